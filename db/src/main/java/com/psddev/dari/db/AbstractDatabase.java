@@ -12,7 +12,6 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
-import java.util.regex.Matcher;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,6 +68,13 @@ public abstract class AbstractDatabase<C> implements Database {
 
     public static final double DEFAULT_READ_TIMEOUT = 3.0;
     public static final String NULL_TYPE_QUERY_OPTION = "db.nullType";
+
+    /**
+     * Query option for specifying the fields whose values should be
+     * aggregated while grouping in {@link #readPartialGrouped}, so that the
+     * aggregates don't need another pass over the objects.
+     */
+    public static final String GROUPING_AGGREGATE_FIELDS_QUERY_OPTION = "db.groupingAggregateFields";
     public static final String GROUPS_SUB_SETTING = "groups";
     public static final String READ_TIMEOUT_SUB_SETTING = "readTimeout";
     public static final String TRIGGER_EXTRA_PREFIX = "db.trigger.";
@@ -563,103 +569,87 @@ public abstract class AbstractDatabase<C> implements Database {
 
     @Override
     public <T> PaginatedResult<Grouping<T>> readPartialGrouped(Query<T> query, long offset, int limit, String... fields) {
-        Map<List<Object>, BasicGrouping<T>> groupingsMap = new CompactMap<List<Object>, BasicGrouping<T>>();
-        for (Object item : readIterable(query, 0)) {
-
-            State itemState = State.getInstance(item);
-            List<Object> keys = new ArrayList<Object>();
-            if (fields != null) {
-                for (String field : fields) {
-                    Matcher groupingMatcher = Query.RANGE_PATTERN.matcher(field);
-                    if (groupingMatcher.find()) {
-                        Double bucket = null;
-                        String fieldName = groupingMatcher.group(1);
-
-                        if (itemState.getByPath(fieldName) != null) {
-                            Double start = ObjectUtils.to(Double.class, groupingMatcher.group(2).trim());
-                            Double end   = ObjectUtils.to(Double.class, groupingMatcher.group(3).trim());
-                            Double gap   = ObjectUtils.to(Double.class, groupingMatcher.group(4).trim());
-                            Double value = ObjectUtils.to(Double.class, itemState.getByPath(fieldName));
-
-                            for (double window = start; window <= end; window += gap) {
-                                if (value < window) {
-                                    bucket = window - gap;
-                                    break;
-                                }
-                            }
-                        }
-                        keys.add(bucket);
+        GroupingAggregator aggregator = new GroupingAggregator(this, fields);
+        Map<List<Object>, GroupingAggregator.Group> groups = aggregator.group(query, getGroupingAggregateFields(query));
+        List<Grouping<T>> groupings = new ArrayList<Grouping<T>>();
 
-                    } else {
-                        keys.add(itemState.getByPath(field));
-                    }
+        for (Map.Entry<List<Object>, GroupingAggregator.Group> entry : groups.entrySet()) {
+            groupings.add(new BasicGrouping<T>(entry.getKey(), query, fields, entry.getValue(), aggregator, groups));
+        }
+
+        return new PaginatedResult<Grouping<T>>(offset, limit, groupings);
+    }
+
+    /**
+     * Returns the fields whose values should be aggregated while grouping
+     * the objects matching the given {@code query}.
+     *
+     * @param query Nonnull.
+     * @return Nonnull.
+     * @see #GROUPING_AGGREGATE_FIELDS_QUERY_OPTION
+     */
+    protected Collection<String> getGroupingAggregateFields(Query<?> query) {
+        Object option = query.getOptions().get(GROUPING_AGGREGATE_FIELDS_QUERY_OPTION);
+        List<String> fields = new ArrayList<String>();
+
+        if (option instanceof Iterable) {
+            for (Object field : (Iterable<?>) option) {
+                if (field != null) {
+                    fields.add(field.toString());
                 }
             }
-            BasicGrouping<T> grouping = groupingsMap.get(keys);
-            if (grouping == null) {
-                grouping = new BasicGrouping<T>(keys, query, fields);
-                groupingsMap.put(keys, grouping);
-            }
 
-            grouping.count += 1;
+        } else if (option != null) {
+            fields.add(option.toString());
         }
 
-        List<Grouping<T>> groupings = new ArrayList<Grouping<T>>(groupingsMap.values());
-        return new PaginatedResult<Grouping<T>>(offset, limit, groupings);
+        return fields;
     }
 
     /** Basic implementation of {@link Grouping}. */
-    private class BasicGrouping<T> extends AbstractGrouping<T> {
+    private static class BasicGrouping<T> extends AbstractGrouping<T> {
 
-        private long count;
+        private final GroupingAggregator.Group group;
+        private final GroupingAggregator aggregator;
+        private final Map<List<Object>, GroupingAggregator.Group> groups;
+
+        public BasicGrouping(
+                List<Object> keys,
+                Query<T> query,
+                String[] fields,
+                GroupingAggregator.Group group,
+                GroupingAggregator aggregator,
+                Map<List<Object>, GroupingAggregator.Group> groups) {
 
-        public BasicGrouping(List<Object> keys, Query<T> query, String[] fields) {
             super(keys, query, fields);
+
+            this.group = group;
+            this.aggregator = aggregator;
+            this.groups = groups;
         }
 
         // --- AbstractGrouping support ---
 
         @Override
         protected Aggregate createAggregate(String field) {
-            Aggregate aggregate = new Aggregate();
-            Query<?> aggregateQuery = Query.fromQuery(query);
-            List<Object> keys = getKeys();
-
-            ITEM: for (Object item : readIterable(aggregateQuery, 0)) {
-                State itemState = State.getInstance(item);
-                Object value = itemState.getByPath(field);
-                if (value == null) {
-                    continue;
-                }
 
-                for (int i = 0, length = fields.length; i < length; ++ i) {
-                    if (!ObjectUtils.equals(keys.get(i), itemState.getByPath(fields[i]))) {
-                        continue ITEM;
-                    }
-                }
+            // Aggregate the field in all groups at once so that the other
+            // groupings don't have to scan again.
+            synchronized (groups) {
+                Aggregate aggregate = group.getAggregate(field);
 
-                aggregate.setNonNullCount(aggregate.getNonNullCount() + 1);
-
-                if (ObjectUtils.compare(aggregate.getMaximum(), value, false) < 0) {
-                    aggregate.setMaximum(value);
+                if (aggregate == null) {
+                    aggregator.aggregate(Query.fromQuery(query), field, groups);
+                    aggregate = group.getAggregate(field);
                 }
 
-                if (ObjectUtils.compare(aggregate.getMinimum(), value, true) > 0) {
-                    aggregate.setMinimum(value);
-                }
-
-                Double valueDouble = ObjectUtils.to(Double.class, value);
-                if (valueDouble != null) {
-                    aggregate.setSum(aggregate.getSum() + valueDouble);
-                }
+                return aggregate;
             }
-
-            return aggregate;
         }
 
         @Override
         public long getCount() {
-            return count;
+            return group.getCount();
         }
     }
 
@@ -1400,6 +1390,8 @@ public abstract class AbstractDatabase<C> implements Database {
             objectState.setResolveUsingCache(query.isCache());
             objectState.setResolveUsingMaster(query.isMaster());
             objectState.setResolveInvisible(query.isResolveInvisible());
+            objectState.setLazyValues(query.isLazyValues());
+            objectState.setDeferReferences(ReferencePreloader.isDeferring(query));
 
             if (query.isReferenceOnly()) {
                 objectState.setStatus(StateStatus.REFERENCE_ONLY);
@@ -1409,6 +1401,28 @@ public abstract class AbstractDatabase<C> implements Database {
         return object;
     }
 
+    /**
+     * Creates a previously saved object from the given serialized
+     * {@code data}, the same way that it would've been read from this
+     * database.
+     *
+     * @param data Nullable. If {@code null}, the object is only a reference.
+     * @see StateSerializer#serialize
+     */
+    final <T> T createSavedObjectUsingData(UUID typeId, UUID id, byte[] data, Query<T> query) {
+        T object = createSavedObject(typeId, id, query);
+        State objectState = State.getInstance(object);
+
+        if (data == null) {
+            objectState.setStatus(StateStatus.REFERENCE_ONLY);
+
+        } else if (!objectState.isReferenceOnly()) {
+            objectState.setValues(StateSerializer.deserialize(data));
+        }
+
+        return swapObjectType(query, object);
+    }
+
     @SuppressWarnings("unchecked")
     protected final <T> T swapObjectType(Query<T> query, T object) {
         DatabaseEnvironment environment = getEnvironment();
@@ -1428,6 +1442,7 @@ public abstract class AbstractDatabase<C> implements Database {
                 state.setResolveUsingCache(oldState.isResolveUsingCache());
                 state.setResolveUsingMaster(oldState.isResolveUsingMaster());
                 state.setResolveInvisible(oldState.isResolveInvisible());
+                state.setLazyValues(oldState.isLazyValues());
                 state.setStatus(oldState.getStatus());
                 state.setValues(oldState);
                 state.getExtras().putAll(oldState.getExtras());
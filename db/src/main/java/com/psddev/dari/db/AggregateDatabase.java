@@ -347,6 +347,11 @@ public class AggregateDatabase implements Database, Iterable<Database> {
         return read(query.getGroup(), delegate -> delegate.readIterable(query, fetchSize));
     }
 
+    @Override
+    public <T> List<Iterable<T>> readPartitionedIterables(Query<T> query, int partitions, int fetchSize) {
+        return read(query.getGroup(), delegate -> delegate.readPartitionedIterables(query, partitions, fetchSize));
+    }
+
     @Override
     public <T> PaginatedResult<T> readPartial(Query<T> query, long offset, int limit) {
         return read(query.getGroup(), delegate -> delegate.readPartial(query, offset, limit));
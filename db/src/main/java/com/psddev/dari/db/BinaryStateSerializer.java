@@ -0,0 +1,368 @@
+package com.psddev.dari.db;
+
+import com.psddev.dari.util.CompactMap;
+import com.psddev.dari.util.ObjectUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of the state values.
+ *
+ * <p>The data starts with {@link #MARKER}, which can never be the first byte
+ * of a JSON object, followed by {@link #VERSION} and the tagged root map.
+ * Map keys are interned per record, so that repeated field names (e.g. in
+ * lists of embedded objects) are written only once.</p>
+ *
+ * <p>The decoded values are identical to what
+ * {@link ObjectUtils#fromJson(byte[])} would return for the JSON encoding
+ * of the same values.</p>
+ */
+final class BinaryStateSerializer {
+
+    static final byte MARKER = 'b';
+    static final byte VERSION = 1;
+
+    private static final byte NULL_TAG = 0;
+    private static final byte TRUE_TAG = 1;
+    private static final byte FALSE_TAG = 2;
+    private static final byte LONG_TAG = 3;
+    private static final byte DOUBLE_TAG = 4;
+    private static final byte STRING_TAG = 5;
+    private static final byte LIST_TAG = 6;
+    private static final byte MAP_TAG = 7;
+
+    private BinaryStateSerializer() {
+    }
+
+    static byte[] serialize(Map<String, Object> values) {
+        Writer writer = new Writer();
+
+        writer.writeByte(MARKER);
+        writer.writeByte(VERSION);
+        writer.writeAny(values);
+
+        return writer.toByteArray();
+    }
+
+    static Map<String, Object> deserialize(byte[] data) {
+        if (data.length < 2 || data[0] != MARKER) {
+            throw new IllegalArgumentException("Not in the binary state format!");
+        }
+
+        byte version = data[1];
+
+        if (version != VERSION) {
+            throw new IllegalStateException(String.format(
+                    "Unknown binary state format version! ([%s])",
+                    version));
+        }
+
+        Object values = new Reader(data, 2).readAny();
+
+        if (!(values instanceof Map)) {
+            throw new IllegalStateException("Binary state data doesn't contain a map!");
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> valuesMap = (Map<String, Object>) values;
+
+        return valuesMap;
+    }
+
+    private static final class Writer {
+
+        private byte[] buffer = new byte[256];
+        private int size;
+        private final Map<String, Integer> keyIndexes = new HashMap<>();
+
+        public void writeAny(Object value) {
+            if (value == null) {
+                writeByte(NULL_TAG);
+
+            } else if (value instanceof String
+                    || value instanceof Character
+                    || value instanceof CharSequence) {
+
+                writeByte(STRING_TAG);
+                writeString(value.toString());
+
+            } else if (value instanceof Boolean) {
+                writeByte((Boolean) value ? TRUE_TAG : FALSE_TAG);
+
+            } else if (value instanceof Long
+                    || value instanceof Integer
+                    || value instanceof Short
+                    || value instanceof Byte) {
+
+                writeByte(LONG_TAG);
+                writeVarLong(((Number) value).longValue());
+
+            } else if (value instanceof Double
+                    || value instanceof Float) {
+
+                writeByte(DOUBLE_TAG);
+                writeDouble(((Number) value).doubleValue());
+
+            } else if (value instanceof Number) {
+                writeByte(STRING_TAG);
+                writeString(value.toString());
+
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                int mapSize = 0;
+
+                for (Object key : map.keySet()) {
+                    if (key != null) {
+                        ++ mapSize;
+                    }
+                }
+
+                writeByte(MAP_TAG);
+                writeVarInt(mapSize);
+
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    Object key = entry.getKey();
+
+                    if (key != null) {
+                        writeKey(key.toString());
+                        writeAny(entry.getValue());
+                    }
+                }
+
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+
+                writeByte(LIST_TAG);
+                writeVarInt(list.size());
+
+                for (Object item : list) {
+                    writeAny(item);
+                }
+
+            } else {
+
+                // Anything else should be rare, so let the JSON processor
+                // decide how it should be represented.
+                writeAny(ObjectUtils.fromJson(ObjectUtils.toJson(value)));
+            }
+        }
+
+        // Writes the key as an index to the previously written one, or as
+        // a new string.
+        private void writeKey(String key) {
+            Integer index = keyIndexes.get(key);
+
+            if (index != null) {
+                writeVarInt(index + 1);
+
+            } else {
+                keyIndexes.put(key, keyIndexes.size());
+                writeVarInt(0);
+                writeString(key);
+            }
+        }
+
+        private void writeString(String string) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+            writeVarInt(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void writeDouble(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+
+            ensureCapacity(8);
+
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[size ++] = (byte) (bits >>> shift);
+            }
+        }
+
+        // Zigzag encoding so that small negative numbers stay small.
+        private void writeVarLong(long value) {
+            long zigzag = (value << 1) ^ (value >> 63);
+
+            ensureCapacity(10);
+
+            while ((zigzag & ~0x7FL) != 0L) {
+                buffer[size ++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+
+            buffer[size ++] = (byte) zigzag;
+        }
+
+        private void writeVarInt(int value) {
+            ensureCapacity(5);
+
+            while ((value & ~0x7F) != 0) {
+                buffer[size ++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            buffer[size ++] = (byte) value;
+        }
+
+        public void writeByte(byte value) {
+            ensureCapacity(1);
+            buffer[size ++] = value;
+        }
+
+        private void ensureCapacity(int additional) {
+            int required = size + additional;
+
+            if (required > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+            }
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+    }
+
+    private static final class Reader {
+
+        private final byte[] data;
+        private int position;
+        private final List<String> keys = new ArrayList<>();
+
+        public Reader(byte[] data, int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        public Object readAny() {
+            byte tag = readByte();
+
+            switch (tag) {
+                case NULL_TAG :
+                    return null;
+
+                case TRUE_TAG :
+                    return Boolean.TRUE;
+
+                case FALSE_TAG :
+                    return Boolean.FALSE;
+
+                case LONG_TAG :
+                    return readVarLong();
+
+                case DOUBLE_TAG :
+                    return readDouble();
+
+                case STRING_TAG :
+                    return readString();
+
+                case LIST_TAG :
+                    int listSize = readVarInt();
+                    List<Object> list = new ArrayList<>(listSize);
+
+                    for (int i = 0; i < listSize; ++ i) {
+                        list.add(readAny());
+                    }
+
+                    return list;
+
+                case MAP_TAG :
+                    int mapSize = readVarInt();
+                    Map<String, Object> map = new CompactMap<>(mapSize);
+
+                    for (int i = 0; i < mapSize; ++ i) {
+                        String key = readKey();
+                        map.put(key, readAny());
+                    }
+
+                    return map;
+
+                default :
+                    throw new IllegalStateException(String.format(
+                            "Unknown binary state tag! ([%s] at [%s])",
+                            tag, position - 1));
+            }
+        }
+
+        private String readKey() {
+            int index = readVarInt();
+
+            if (index == 0) {
+                String key = readString();
+                keys.add(key);
+                return key;
+
+            } else {
+                return keys.get(index - 1);
+            }
+        }
+
+        private String readString() {
+            int length = readVarInt();
+
+            checkAvailable(length);
+
+            String string = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+
+            return string;
+        }
+
+        private double readDouble() {
+            long bits = 0L;
+
+            checkAvailable(8);
+
+            for (int i = 0; i < 8; ++ i) {
+                bits = (bits << 8) | (data[position ++] & 0xFF);
+            }
+
+            return Double.longBitsToDouble(bits);
+        }
+
+        private long readVarLong() {
+            long zigzag = 0L;
+
+            for (int shift = 0; ; shift += 7) {
+                byte b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+
+            return (zigzag >>> 1) ^ -(zigzag & 1L);
+        }
+
+        private int readVarInt() {
+            int value = 0;
+
+            for (int shift = 0; ; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private byte readByte() {
+            checkAvailable(1);
+            return data[position ++];
+        }
+
+        private void checkAvailable(int length) {
+            if (length < 0 || position + length > data.length) {
+                throw new IllegalStateException("Binary state data is truncated!");
+            }
+        }
+    }
+}
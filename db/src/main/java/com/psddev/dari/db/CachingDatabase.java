@@ -40,6 +40,7 @@ public class CachingDatabase extends ForwardingDatabase {
 
     private static final String CACHE_SIZE_SETTING = "dari/cachingDatabaseMaximumSize";
     private static final long DEFAULT_CACHE_SIZE = 1000L;
+    private static final Settings.Handle<Long> CACHE_SIZE = Settings.handle(long.class, CACHE_SIZE_SETTING, DEFAULT_CACHE_SIZE);
 
     private static final Object MISSING = new Object();
 
@@ -118,7 +119,7 @@ public class CachingDatabase extends ForwardingDatabase {
     // --- ForwardingDatabase support ---
 
     private long getCacheSize() {
-        return Settings.getOrDefault(long.class, CACHE_SIZE_SETTING, DEFAULT_CACHE_SIZE);
+        return CACHE_SIZE.get();
     }
 
     private boolean isCacheDisabled(Query<?> query) {
@@ -2,6 +2,7 @@ package com.psddev.dari.db;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Deque;
 import java.util.LinkedHashSet;
@@ -112,6 +113,29 @@ public interface Database extends AutoCloseable, SettingsBackedObject {
      */
     public <T> Iterable<T> readIterable(Query<T> query, int fetchSize);
 
+    /**
+     * Returns iterables that together contain all objects matching the given
+     * {@code query}, each covering a disjoint subset of them, so that they
+     * can be iterated concurrently.
+     *
+     * <p>The default implementation returns a single iterable from
+     * {@link #readIterable(Query, int)}.</p>
+     *
+     * @param query
+     *        Can't be {@code null}.
+     *
+     * @param partitions
+     *        Desired number of iterables. The actual number may differ.
+     *
+     * @param fetchSize
+     *        Maximum number of items to fetch at a time.
+     *
+     * @return Never {@code null}.
+     */
+    default <T> List<Iterable<T>> readPartitionedIterables(Query<T> query, int partitions, int fetchSize) {
+        return Collections.singletonList(readIterable(query, fetchSize));
+    }
+
     /**
      * Returns the date when the objects matching the given {@code query}
      * were last updated.
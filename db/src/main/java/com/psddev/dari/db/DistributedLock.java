@@ -1,11 +1,18 @@
 package com.psddev.dari.db;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.WeakHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -13,27 +20,91 @@ import java.util.concurrent.locks.Lock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.psddev.dari.util.ObjectUtils;
 import com.psddev.dari.util.StringUtils;
+import com.psddev.dari.util.Task;
 import com.psddev.dari.util.UuidUtils;
 
-/** Enforces mutual exclusion across multiple VMs using a {@link Database}. */
+/**
+ * Enforces mutual exclusion across multiple VMs using a {@link Database}.
+ *
+ * <p>The lock is a lease that's acquired and released with atomic
+ * compare-and-set writes to a record keyed by the lock key, and renewed in
+ * the background while it's held. The waiters back off exponentially with
+ * jitter and wake up immediately when the lock is released within the same
+ * VM. Every acquisition gets a {@linkplain #getFencingToken fencing token}
+ * that's greater than the previous one.</p>
+ */
 public class DistributedLock implements Lock {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DistributedLock.class);
     private static final long TIMEOUT = 10000;
-    private static final long TRY_INTERVAL = 50L;
+    private static final long MINIMUM_BACKOFF = 10L;
+    private static final long MAXIMUM_BACKOFF = 1000L;
+    private static final double RENEW_INTERVAL = TIMEOUT / 3000.0;
+
+    private static final LoadingCache<UUID, Signal> SIGNALS = CacheBuilder
+            .newBuilder()
+            .weakValues()
+            .build(CacheLoader.from((UUID keyId) -> new Signal()));
+
+    private static final Set<DistributedLock> HELD = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+    private static final AtomicBoolean RENEWER_STARTED = new AtomicBoolean();
+
+    private static final Task RENEWER = new Task("Distributed Locks", "Renew Leases") {
+
+        @Override
+        protected void doTask() {
+            List<DistributedLock> locks;
+
+            synchronized (HELD) {
+                locks = new ArrayList<>(HELD);
+            }
+
+            for (DistributedLock lock : locks) {
+                try {
+                    lock.renew();
+
+                } catch (RuntimeException error) {
+                    LOGGER.warn(String.format("Can't renew [%s]!", lock), error);
+                }
+            }
+        }
+    };
 
     private final String lockId = UUID.randomUUID().toString();
     private final Database database;
     private final String keyString;
     private final UUID keyId;
+    private final Signal signal;
     private final AtomicReference<Thread> holderRef = new AtomicReference<Thread>();
+    private volatile long fencingToken;
 
     protected DistributedLock(Database database, String key) {
         this.database = database;
         this.keyString = key;
         this.keyId = UuidUtils.fromBytes(StringUtils.md5(key));
+        this.signal = SIGNALS.getUnchecked(keyId);
+    }
+
+    /**
+     * Returns the fencing token of the current acquisition, which is
+     * greater than the token of any previous acquisition of the same key,
+     * so that the resources guarded by this lock can reject the writes
+     * from a holder whose lease has already expired.
+     *
+     * @throws IllegalMonitorStateException If the current thread doesn't
+     *         hold this lock.
+     */
+    public long getFencingToken() {
+        if (!Thread.currentThread().equals(holderRef.get())) {
+            throw new IllegalMonitorStateException("Not the lock owner!");
+        }
+
+        return fencingToken;
     }
 
     // --- Lock support ---
@@ -46,15 +117,11 @@ public class DistributedLock implements Lock {
      */
     @Override
     public void lock() {
-        if (!tryLock()) {
-            LOGGER.debug("Waiting to acquire [{}]", this);
-            do {
-                try {
-                    Thread.sleep(TRY_INTERVAL);
-                } catch (InterruptedException ex) {
-                    // Ignore thread interruption and keep trying to lock.
-                }
-            } while (!tryLock());
+        try {
+            waitToLock(-1L, false);
+
+        } catch (InterruptedException error) {
+            throw new IllegalStateException(error);
         }
     }
 
@@ -66,12 +133,7 @@ public class DistributedLock implements Lock {
      */
     @Override
     public void lockInterruptibly() throws InterruptedException {
-        if (!tryLock()) {
-            LOGGER.debug("Waiting to acquire [{}] interruptibly", this);
-            do {
-                Thread.sleep(TRY_INTERVAL);
-            } while (!tryLock());
-        }
+        waitToLock(-1L, true);
     }
 
     @Override
@@ -92,53 +154,52 @@ public class DistributedLock implements Lock {
         }
 
         synchronized (holderRef) {
-            State key = State.getInstance(Query
-                    .from(Object.class)
-                    .where("_id = ?", keyId)
-                    .using(database)
-                    .noCache()
-                    .master()
-                    .first());
+            if (holderRef.get() != null) {
+                return false;
+            }
+
+            State key = findKey();
+            long token;
 
             if (key == null) {
                 key = new State();
                 key.setDatabase(database);
                 key.setId(keyId);
                 key.put("keyString", keyString);
+                token = 1L;
 
             } else {
-                if (ObjectUtils.to(long.class, key.get("lastPing")) + TIMEOUT < database.now()) {
+                if (key.get("lockId") == null) {
+                    LOGGER.debug("Released: [{}]", this);
+
+                } else if (ObjectUtils.to(long.class, key.get("lastPing")) + TIMEOUT < database.now()) {
                     LOGGER.debug("Timeout exceeded: [{}]", this);
+
                 } else {
                     return false;
                 }
-            }
 
-            try {
-                key.replaceAtomically("lockId", lockId);
-                key.replaceAtomically("lastPing", database.now());
+                token = ObjectUtils.to(long.class, key.get("fencingToken")) + 1L;
+            }
 
-                // saveImmediately (unsafely)
-                database.beginIsolatedWrites();
-                try {
-                    database.saveUnsafely(key);
-                    database.commitWrites();
-                } finally {
-                    database.endWrites();
-                }
+            key.replaceAtomically("lockId", lockId);
+            key.replaceAtomically("fencingToken", token);
+            key.putAtomically("lastPing", database.now());
 
-            } catch (DatabaseException ex) {
-                Throwable cause = ex.getCause();
-                if (cause instanceof AtomicOperation.ReplacementException) {
-                    LOGGER.debug("Stolen by a different VM: [{}]", this);
-                    return false;
-                } else {
-                    throw ex;
-                }
+            if (!saveKey(key)) {
+                LOGGER.debug("Stolen by a different VM: [{}]", this);
+                return false;
             }
 
+            fencingToken = token;
             holderRef.set(Thread.currentThread());
-            LOGGER.debug("Acquired [{}]", this);
+            HELD.add(this);
+
+            if (RENEWER_STARTED.compareAndSet(false, true)) {
+                RENEWER.scheduleWithFixedDelay(RENEW_INTERVAL, RENEW_INTERVAL);
+            }
+
+            LOGGER.debug("Acquired [{}] with token [{}]", this, token);
             return true;
         }
     }
@@ -151,17 +212,7 @@ public class DistributedLock implements Lock {
      */
     @Override
     public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
-        long end = database.now() + unit.toMillis(time);
-
-        do {
-            if (tryLock()) {
-                return true;
-            } else {
-                Thread.sleep(TRY_INTERVAL);
-            }
-        } while (database.now() < end);
-
-        return false;
+        return waitToLock(Math.max(0L, unit.toMillis(time)), true);
     }
 
     /**
@@ -186,20 +237,139 @@ public class DistributedLock implements Lock {
             try {
                 LOGGER.debug("Releasing [{}]", this);
 
-                State key = State.getInstance(Query
-                        .from(Object.class)
-                        .where("_id = ?", keyId)
-                        .using(database)
-                        .noCache()
-                        .master()
-                        .first());
+                // Keep the record so that the fencing token never goes
+                // backwards.
+                State key = findKey();
 
                 if (key != null && lockId.equals(key.get("lockId"))) {
-                    key.deleteImmediately();
+                    key.replaceAtomically("lockId", null);
+                    key.putAtomically("lastPing", 0L);
+
+                    if (!saveKey(key)) {
+                        LOGGER.debug("Lease already lost: [{}]", this);
+                    }
                 }
 
             } finally {
+                HELD.remove(this);
                 holderRef.set(null);
+                signal.signalAll();
+            }
+        }
+    }
+
+    // Tries to acquire the lock until the timeout, backing off
+    // exponentially with jitter between the attempts unless the lock is
+    // released locally.
+    private boolean waitToLock(long timeout, boolean interruptible) throws InterruptedException {
+        if (tryLock()) {
+            return true;
+        }
+
+        LOGGER.debug("Waiting to acquire [{}]", this);
+
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        long backoff = MINIMUM_BACKOFF;
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                long generation = signal.getGeneration();
+
+                if (tryLock()) {
+                    return true;
+                }
+
+                long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+
+                if (timeout >= 0L) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+
+                    if (remaining <= 0L) {
+                        return false;
+                    }
+
+                    delay = Math.min(delay, remaining);
+                }
+
+                try {
+                    if (signal.await(generation, delay)) {
+                        backoff = MINIMUM_BACKOFF;
+                        continue;
+                    }
+
+                } catch (InterruptedException error) {
+                    if (interruptible) {
+                        throw error;
+                    }
+
+                    interrupted = true;
+                }
+
+                backoff = Math.min(backoff * 2, MAXIMUM_BACKOFF);
+            }
+
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Extends the lease if this lock is still held.
+    private void renew() {
+        synchronized (holderRef) {
+            if (holderRef.get() == null) {
+                return;
+            }
+
+            State key = findKey();
+
+            if (key != null && lockId.equals(key.get("lockId"))) {
+                key.replaceAtomically("lockId", lockId);
+                key.putAtomically("lastPing", database.now());
+
+                if (saveKey(key)) {
+                    return;
+                }
+            }
+
+            LOGGER.warn("Lease lost while held: [{}]", this);
+            HELD.remove(this);
+        }
+    }
+
+    // Finds the record that backs this lock.
+    private State findKey() {
+        return State.getInstance(Query
+                .from(Object.class)
+                .where("_id = ?", keyId)
+                .using(database)
+                .noCache()
+                .master()
+                .first());
+    }
+
+    // Saves the atomic operations on the record immediately and returns
+    // false if they were preempted by a different VM.
+    private boolean saveKey(State key) {
+        try {
+            database.beginIsolatedWrites();
+            try {
+                database.saveUnsafely(key);
+                database.commitWrites();
+            } finally {
+                database.endWrites();
+            }
+
+            return true;
+
+        } catch (DatabaseException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof AtomicOperation.ReplacementException) {
+                return false;
+            } else {
+                throw ex;
             }
         }
     }
@@ -247,6 +417,29 @@ public class DistributedLock implements Lock {
         }
     }
 
+    // Wakes up the local waiters when the lock is released.
+    private static final class Signal {
+
+        private long generation;
+
+        public synchronized long getGeneration() {
+            return generation;
+        }
+
+        public synchronized boolean await(long expectedGeneration, long timeout) throws InterruptedException {
+            if (generation == expectedGeneration && timeout > 0L) {
+                wait(timeout);
+            }
+
+            return generation != expectedGeneration;
+        }
+
+        public synchronized void signalAll() {
+            ++ generation;
+            notifyAll();
+        }
+    }
+
     /** {@link DistributedLock} utility methods. */
     public static final class Static {
 
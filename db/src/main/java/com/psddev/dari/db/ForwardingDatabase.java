@@ -83,6 +83,11 @@ public abstract class ForwardingDatabase implements Database {
         return getDelegate().readIterable(filterQuery(query), fetchSize);
     }
 
+    @Override
+    public <T> List<Iterable<T>> readPartitionedIterables(Query<T> query, int partitions, int fetchSize) {
+        return getDelegate().readPartitionedIterables(filterQuery(query), partitions, fetchSize);
+    }
+
     @Override
     public Date readLastUpdate(Query<?> query) {
         return getDelegate().readLastUpdate(filterQuery(query));
@@ -0,0 +1,272 @@
+package com.psddev.dari.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+import com.psddev.dari.util.ObjectUtils;
+
+/**
+ * Groups the objects matching a query by the values of some fields and
+ * aggregates the values of other fields, all in a single pass over the
+ * objects.
+ *
+ * <p>This is used by {@link AbstractDatabase#readPartialGrouped} for the
+ * databases that can't group natively. When the database can split the
+ * objects into {@linkplain Database#readPartitionedIterables partitions},
+ * they're scanned concurrently and the results are merged.</p>
+ */
+class GroupingAggregator {
+
+    private final Database database;
+    private final KeyFunction[] keyFunctions;
+
+    /**
+     * @param database Nonnull.
+     * @param fields Nullable.
+     */
+    public GroupingAggregator(Database database, String[] fields) {
+        this.database = database;
+        this.keyFunctions = new KeyFunction[fields != null ? fields.length : 0];
+
+        for (int i = 0, length = keyFunctions.length; i < length; ++ i) {
+            keyFunctions[i] = KeyFunction.parse(fields[i]);
+        }
+    }
+
+    /**
+     * Groups all objects matching the given {@code query} and aggregates the
+     * values of the given {@code aggregateFields} in each group.
+     *
+     * @param query Nonnull.
+     * @param aggregateFields Nonnull.
+     * @return Nonnull. Groups in the order that they were first seen.
+     */
+    public Map<List<Object>, Group> group(Query<?> query, Collection<String> aggregateFields) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        List<? extends Iterable<?>> partitions = database.readPartitionedIterables(query, processors, 0);
+        List<String> aggregates = new ArrayList<>(aggregateFields);
+
+        if (partitions.size() < 2) {
+            Map<List<Object>, Group> groups = new LinkedHashMap<>();
+
+            for (Iterable<?> partition : partitions) {
+                scan(partition, aggregates, groups);
+            }
+
+            return groups;
+        }
+
+        // Workers don't inherit the default database override.
+        Database defaultDatabase = Database.Static.getDefault();
+
+        return partitions.parallelStream()
+                .map(partition -> {
+                    Map<List<Object>, Group> groups = new LinkedHashMap<>();
+
+                    Database.Static.overrideDefault(defaultDatabase);
+
+                    try {
+                        scan(partition, aggregates, groups);
+
+                    } finally {
+                        Database.Static.restoreDefault();
+                    }
+
+                    return groups;
+                })
+                .reduce(GroupingAggregator::merge)
+                .orElseGet(LinkedHashMap::new);
+    }
+
+    /**
+     * Aggregates the values of the given {@code field} in all given
+     * {@code groups} with one more pass over the objects matching the given
+     * {@code query}.
+     *
+     * @param query Nonnull.
+     * @param field Nonnull.
+     * @param groups Nonnull.
+     */
+    public void aggregate(Query<?> query, String field, Map<List<Object>, Group> groups) {
+        Map<List<Object>, AbstractGrouping.Aggregate> aggregates = new HashMap<>();
+
+        for (List<Object> keys : groups.keySet()) {
+            aggregates.put(keys, new AbstractGrouping.Aggregate());
+        }
+
+        for (Object item : database.readIterable(query, 0)) {
+            State state = State.getInstance(item);
+            AbstractGrouping.Aggregate aggregate = aggregates.get(createKeys(state));
+
+            if (aggregate != null) {
+                Object value = state.getByPath(field);
+
+                if (value != null) {
+                    add(aggregate, value);
+                }
+            }
+        }
+
+        // Publish only after the scan completes so that a failed scan
+        // doesn't leave partial aggregates behind.
+        for (Map.Entry<List<Object>, AbstractGrouping.Aggregate> entry : aggregates.entrySet()) {
+            groups.get(entry.getKey()).aggregates.put(field, entry.getValue());
+        }
+    }
+
+    private List<Object> createKeys(State state) {
+        List<Object> keys = new ArrayList<>(keyFunctions.length);
+
+        for (KeyFunction keyFunction : keyFunctions) {
+            keys.add(keyFunction.apply(state));
+        }
+
+        return keys;
+    }
+
+    // Adds all items to the groups, creating the missing ones.
+    private void scan(Iterable<?> items, List<String> aggregateFields, Map<List<Object>, Group> groups) {
+        for (Object item : items) {
+            State state = State.getInstance(item);
+            List<Object> keys = createKeys(state);
+            Group group = groups.get(keys);
+
+            if (group == null) {
+                group = new Group(aggregateFields);
+                groups.put(keys, group);
+            }
+
+            ++ group.count;
+
+            for (String field : aggregateFields) {
+                Object value = state.getByPath(field);
+
+                if (value != null) {
+                    add(group.aggregates.get(field), value);
+                }
+            }
+        }
+    }
+
+    private static void add(AbstractGrouping.Aggregate aggregate, Object value) {
+        aggregate.setNonNullCount(aggregate.getNonNullCount() + 1);
+
+        if (ObjectUtils.compare(aggregate.getMaximum(), value, false) < 0) {
+            aggregate.setMaximum(value);
+        }
+
+        if (ObjectUtils.compare(aggregate.getMinimum(), value, true) > 0) {
+            aggregate.setMinimum(value);
+        }
+
+        Double valueDouble = ObjectUtils.to(Double.class, value);
+
+        if (valueDouble != null) {
+            aggregate.setSum(aggregate.getSum() + valueDouble);
+        }
+    }
+
+    // Merges the groups from two partitions into the first.
+    private static Map<List<Object>, Group> merge(Map<List<Object>, Group> groups, Map<List<Object>, Group> other) {
+        for (Map.Entry<List<Object>, Group> entry : other.entrySet()) {
+            Group group = groups.get(entry.getKey());
+            Group otherGroup = entry.getValue();
+
+            if (group == null) {
+                groups.put(entry.getKey(), otherGroup);
+                continue;
+            }
+
+            group.count += otherGroup.count;
+
+            for (Map.Entry<String, AbstractGrouping.Aggregate> aggregateEntry : otherGroup.aggregates.entrySet()) {
+                AbstractGrouping.Aggregate aggregate = group.aggregates.get(aggregateEntry.getKey());
+                AbstractGrouping.Aggregate otherAggregate = aggregateEntry.getValue();
+
+                aggregate.setNonNullCount(aggregate.getNonNullCount() + otherAggregate.getNonNullCount());
+                aggregate.setSum(aggregate.getSum() + otherAggregate.getSum());
+
+                if (ObjectUtils.compare(aggregate.getMaximum(), otherAggregate.getMaximum(), false) < 0) {
+                    aggregate.setMaximum(otherAggregate.getMaximum());
+                }
+
+                if (ObjectUtils.compare(aggregate.getMinimum(), otherAggregate.getMinimum(), true) > 0) {
+                    aggregate.setMinimum(otherAggregate.getMinimum());
+                }
+            }
+        }
+
+        return groups;
+    }
+
+    /** Count and aggregates of the objects in a group. */
+    public static final class Group {
+
+        private long count;
+        private final Map<String, AbstractGrouping.Aggregate> aggregates = new HashMap<>();
+
+        private Group(List<String> aggregateFields) {
+            for (String field : aggregateFields) {
+                aggregates.put(field, new AbstractGrouping.Aggregate());
+            }
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return {@code null} if the field hasn't been aggregated.
+         */
+        public AbstractGrouping.Aggregate getAggregate(String field) {
+            return aggregates.get(field);
+        }
+    }
+
+    // Extracts a group key from an object.
+    @FunctionalInterface
+    private interface KeyFunction {
+
+        Object apply(State state);
+
+        static KeyFunction parse(String field) {
+            Matcher rangeMatcher = Query.RANGE_PATTERN.matcher(field);
+
+            if (!rangeMatcher.find()) {
+                return state -> state.getByPath(field);
+            }
+
+            String path = rangeMatcher.group(1);
+            Double start = ObjectUtils.to(Double.class, rangeMatcher.group(2).trim());
+            Double end = ObjectUtils.to(Double.class, rangeMatcher.group(3).trim());
+            Double gap = ObjectUtils.to(Double.class, rangeMatcher.group(4).trim());
+
+            if (start == null || end == null || gap == null || gap <= 0.0) {
+                throw new IllegalArgumentException(String.format(
+                        "[%s] isn't a valid range!", field));
+            }
+
+            // The bucket is the start of the window that contains the
+            // value, or the window just before the first one if the value
+            // is smaller than the start.
+            return state -> {
+                Double value = ObjectUtils.to(Double.class, state.getByPath(path));
+
+                if (value == null) {
+                    return null;
+                }
+
+                double index = value < start ? -1.0 : Math.floor((value - start) / gap);
+
+                return start + (index + 1.0) * gap <= end
+                        ? start + index * gap
+                        : null;
+            };
+        }
+    }
+}
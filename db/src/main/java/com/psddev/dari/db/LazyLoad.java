@@ -12,4 +12,10 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 public @interface LazyLoad {
+
+    /**
+     * {@code true} if the writes to the fields are also tracked, which is
+     * required for {@linkplain State#isLazyValues lazy values}.
+     */
+    boolean trackWrites() default false;
 }
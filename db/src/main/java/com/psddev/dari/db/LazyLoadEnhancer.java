@@ -115,6 +115,11 @@ public class LazyLoadEnhancer extends ClassEnhancer {
             return visitor;
 
         } else {
+
+            // Fields set in the constructors can't have any lazy values to
+            // clobber, and the state may not be available yet.
+            boolean constructor = name.equals("<init>");
+
             return new MethodVisitor(Opcodes.ASM5, visitor) {
                 @Override
                 public void visitFieldInsn(int opcode, String owner, String name, String desc) {
@@ -139,12 +144,44 @@ public class LazyLoadEnhancer extends ClassEnhancer {
 
                         } else if (opcode == Opcodes.PUTFIELD
                                 && recordableFields.contains(name)) {
+                            boolean fieldSet = !constructor && owner.equals(enhancedClassName);
+
                             visitInsn(Opcodes.SWAP);
                             visitInsn(Opcodes.DUP);
                             visitMethodInsn(Opcodes.INVOKEINTERFACE, "com/psddev/dari/db/Recordable", "getState", "()Lcom/psddev/dari/db/State;", true);
+
+                            // Same as below, so that a pending conversion
+                            // doesn't overwrite the new value.
+                            if (fieldSet) {
+                                visitInsn(Opcodes.DUP);
+                                visitLdcInsn(name);
+                                visitMethodInsn(Opcodes.INVOKEVIRTUAL, "com/psddev/dari/db/State", "beforeFieldSet", "(Ljava/lang/String;)V", false);
+                            }
+
                             visitLdcInsn(name);
                             visitMethodInsn(Opcodes.INVOKEVIRTUAL, "com/psddev/dari/db/State", "resolveReference", "(Ljava/lang/String;)V", false);
                             visitInsn(Opcodes.SWAP);
+
+                        } else if (opcode == Opcodes.PUTFIELD
+                                && !constructor
+                                && owner.equals(enhancedClassName)) {
+                            Type type = Type.getType(desc);
+
+                            // Move the object reference above the value
+                            // while taking long and double into account.
+                            if (type.getSize() == 2) {
+                                visitInsn(Opcodes.DUP2_X1);
+                                visitInsn(Opcodes.POP2);
+                                visitInsn(Opcodes.DUP_X2);
+
+                            } else {
+                                visitInsn(Opcodes.SWAP);
+                                visitInsn(Opcodes.DUP_X1);
+                            }
+
+                            visitMethodInsn(Opcodes.INVOKEINTERFACE, "com/psddev/dari/db/Recordable", "getState", "()Lcom/psddev/dari/db/State;", true);
+                            visitLdcInsn(name);
+                            visitMethodInsn(Opcodes.INVOKEVIRTUAL, "com/psddev/dari/db/State", "beforeFieldSet", "(Ljava/lang/String;)V", false);
                         }
                     }
 
@@ -159,6 +196,7 @@ public class LazyLoadEnhancer extends ClassEnhancer {
         if (!missingClasses && !alreadyEnhanced) {
             AnnotationVisitor annotation = super.visitAnnotation(ANNOTATION_DESCRIPTOR, true);
 
+            annotation.visit("trackWrites", Boolean.TRUE);
             annotation.visitEnd();
         }
 
@@ -442,6 +442,30 @@ public class Metric extends Record {
             return mdb.submitResummarizeAllTask(interval, startTimestamp, endTimestamp, parallel, executor, name);
         }
 
+        /**
+         * Rebuild the hourly, daily, and monthly rollups of all metric
+         * values in the given field (all dimensions) within a date range
+         * from the raw data. This should be run once before enabling the
+         * rollup reads. This submits a Task to be executed asynchronously.
+         *
+         * @param database Can't be {@code null}.
+         * @param type Can't be {@code null}.
+         * @param field Can't be {@code null}.
+         * @param start If {@code null}, beginning of time.
+         * @param end If {@code null}, end of time.
+         * @param parallel Number of tasks to run in parallel. If {@code null}, 1.
+         *
+         */
+        public static Task submitRebuildRollupsAllBetweenTask(Database database, ObjectType type, ObjectField field, DateTime start, DateTime end, Integer parallel, String executor, String name) {
+            Long startTimestamp = (start == null ? null : start.getMillis());
+            Long endTimestamp = (end == null ? null : end.getMillis());
+            MetricAccess mdb = MetricAccess.Static.getMetricAccess(database, type, field);
+            if (parallel == null || parallel < 1) {
+                parallel = 1;
+            }
+            return mdb.submitRebuildRollupsAllTask(startTimestamp, endTimestamp, parallel, executor, name);
+        }
+
         private static void preFetchMetrics(State state, UUID dimensionId, Long startTimestamp, Long endTimestamp) {
             if (state == null || state.getType() == null) {
                 return;
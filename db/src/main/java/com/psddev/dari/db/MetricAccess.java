@@ -3,9 +3,11 @@ package com.psddev.dari.db;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -123,14 +125,32 @@ class MetricAccess {
     }
 
     public Double getMetric(UUID id, String dimensionValue, Long startTimestamp, Long endTimestamp) throws SQLException {
+        UUID dimensionId = getDimensionId(dimensionValue);
+        MetricReadCache.Entry entry = MetricReadCache.getEntry(this, id, dimensionId);
+        if (entry != null) {
+            if (!entry.isLoaded()) {
+                long version = entry.getVersion();
+                entry.load(version, getMaxData(id, dimensionId, null));
+            }
+            if (startTimestamp != null && !entry.hasWindow(startTimestamp)) {
+                long version = entry.getVersion();
+                List<byte[]> datas = Static.getMaxMinDataByIdAndDimension(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, startTimestamp, null, false);
+                entry.loadWindow(version, startTimestamp, datas.isEmpty() ? null : datas.get(1));
+            }
+            synchronized (entry) {
+                if (entry.isAnswerable(startTimestamp, endTimestamp)) {
+                    return entry.getSum(startTimestamp, endTimestamp);
+                }
+            }
+        }
         if (startTimestamp == null) {
-            byte[] data = getMaxData(id, getDimensionId(dimensionValue), endTimestamp);
+            byte[] data = getMaxData(id, dimensionId, endTimestamp);
             if (data == null) {
                 return null;
             }
             return Static.amountFromBytes(data, CUMULATIVEAMOUNT_POSITION);
         } else {
-            List<byte[]> datas = getMaxMinData(id, getDimensionId(dimensionValue), startTimestamp, endTimestamp);
+            List<byte[]> datas = getMaxMinData(id, dimensionId, startTimestamp, endTimestamp);
             if (datas.get(0) == null) {
                 return null;
             }
@@ -251,7 +271,14 @@ class MetricAccess {
         if (metricInterval == null) {
             metricInterval = getEventDateProcessor();
         }
-        return Static.getMetricTimelineByIdAndDimension(getDatabase(), id, getTypeId(), getSymbolId(), getDimensionId(dimensionValue), startTimestamp, endTimestamp, metricInterval, false);
+        UUID dimensionId = getDimensionId(dimensionValue);
+        if (MetricRollup.isReadEnabled() && isRollupEnabled()) {
+            Map<DateTime, Double> rollupValues = MetricRollup.getTimeline(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, startTimestamp, endTimestamp, metricInterval, false);
+            if (rollupValues != null) {
+                return rollupValues;
+            }
+        }
+        return Static.getMetricTimelineByIdAndDimension(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, startTimestamp, endTimestamp, metricInterval, false);
     }
 
     public void incrementMetric(UUID id, DateTime time, String dimensionValue, Double amount) throws SQLException {
@@ -265,11 +292,31 @@ class MetricAccess {
         }
         boolean isImplicitEventDate = (time == null);
         long eventDate = getEventDate(time);
-        Static.doIncrementUpdateOrInsert(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, amount, eventDate, isImplicitEventDate);
-        if (!dimensionId.equals(UuidUtils.ZERO_UUID)) {
-            // Do an additional increment for the null dimension to maintain the sum
-            Static.doIncrementUpdateOrInsert(getDatabase(), id, getTypeId(), getSymbolId(), UuidUtils.ZERO_UUID, amount, eventDate, isImplicitEventDate);
+        boolean hasDimension = !dimensionId.equals(UuidUtils.ZERO_UUID);
+        // Keep the cached amounts from being loaded while the increment is written
+        MetricReadCache.Entry entry = MetricReadCache.beginIncrement(this, id, dimensionId);
+        MetricReadCache.Entry allDimensionsEntry = hasDimension ? MetricReadCache.beginIncrement(this, id, UuidUtils.ZERO_UUID) : null;
+        boolean written = false;
+        try {
+            Static.doIncrementInTransaction(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, amount, eventDate, isImplicitEventDate, isRollupEnabled());
+            written = true;
+        } finally {
+            MetricReadCache.endIncrement(this, id, dimensionId, entry, eventDate, amount, written);
+            if (hasDimension) {
+                MetricReadCache.endIncrement(this, id, UuidUtils.ZERO_UUID, allDimensionsEntry, eventDate, amount, written);
+            }
         }
+        afterUpdate(id);
+    }
+
+    // Rollups only make sense for the metrics that track the event date.
+    boolean isRollupEnabled() {
+        return MetricRollup.isEnabled() && !(getEventDateProcessor() instanceof MetricInterval.None);
+    }
+
+    // Clears the cached data and recalculates the immediate indexed methods
+    // after the metric associated with the given id changes.
+    void afterUpdate(UUID id) {
         clearCachedData(Static.getCachingDatabase(), id);
         recalculateImmediateIndexedMethods(id);
     }
@@ -290,24 +337,31 @@ class MetricAccess {
             Double allDimensionsAmount = Static.calculateMetricSumById(getDatabase(), id, getTypeId(), getSymbolId(), null, null, true);
             Static.doSetUpdateOrInsert(getDatabase(), id, getTypeId(), getSymbolId(), UuidUtils.ZERO_UUID, allDimensionsAmount, 0L);
         }
+        MetricReadCache.invalidate(this, id);
         clearCachedData(Static.getCachingDatabase(), id);
         recalculateImmediateIndexedMethods(id);
     }
 
     public void deleteMetric(UUID id) throws SQLException {
         Static.doMetricDelete(getDatabase(), id, getTypeId(), getSymbolId());
+        if (MetricRollup.isEnabled()) {
+            MetricRollup.delete(getDatabase(), id, getTypeId(), getSymbolId());
+        }
+        MetricReadCache.invalidate(this, id);
         clearCachedData(Static.getCachingDatabase(), id);
         recalculateImmediateIndexedMethods(id);
     }
 
     public void reconstructCumulativeAmounts(UUID id) throws SQLException {
         Static.doReconstructCumulativeAmounts(getDatabase(), id, getTypeId(), getSymbolId(), null);
+        MetricReadCache.invalidate(this, id);
         clearCachedData(Static.getCachingDatabase(), id);
         recalculateImmediateIndexedMethods(id);
     }
 
     public void resummarize(UUID id, UUID dimensionId, MetricInterval interval, Long startTimestamp, Long endTimestamp) throws SQLException {
         Static.doResummarize(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, interval, startTimestamp, endTimestamp);
+        MetricReadCache.invalidate(this, id);
         clearCachedData(Static.getCachingDatabase(), id);
     }
 
@@ -317,6 +371,16 @@ class MetricAccess {
         return task;
     }
 
+    public void rebuildRollups(UUID id, UUID dimensionId, Long startTimestamp, Long endTimestamp) throws SQLException {
+        MetricRollup.rebuild(getDatabase(), id, getTypeId(), getSymbolId(), dimensionId, startTimestamp, endTimestamp);
+    }
+
+    public Task submitRebuildRollupsAllTask(Long startTimestamp, Long endTimestamp, int numParallel, String executor, String name) {
+        ResummarizeTask task = new ResummarizeTask(getDatabase(), getSymbolId(), null, startTimestamp, endTimestamp, numParallel, executor, name);
+        task.submit();
+        return task;
+    }
+
     private void recalculateImmediateIndexedMethods(UUID id) {
         Set<ObjectMethod> immediateMethods = new HashSet<ObjectMethod>();
         for (ObjectMethod method : getRecalculableObjectMethods(db, typeId, fieldName)) {
@@ -510,7 +574,7 @@ class MetricAccess {
             return sqlBuilder.toString();
         }
 
-        private static String getAllDataSql(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, boolean doDecodeToBytes) {
+        static String getAllDataSql(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, boolean doDecodeToBytes) {
             StringBuilder sqlBuilder = new StringBuilder();
             SqlVendor vendor = db.getMetricVendor();
 
@@ -887,7 +951,7 @@ class MetricAccess {
 
         // methods that convert bytes into values and back again
 
-        private static byte[] toBytes(long eventDate, double cumulativeAmount, double amount) {
+        static byte[] toBytes(long eventDate, double cumulativeAmount, double amount) {
 
             Long cumulativeAmountLong = (long) (cumulativeAmount * AMOUNT_DECIMAL_SHIFT);
             Long amountLong = (long) (amount * AMOUNT_DECIMAL_SHIFT);
@@ -919,7 +983,7 @@ class MetricAccess {
             return bytes;
         }
 
-        private static double amountFromBytes(byte[] bytes, int position) {
+        static double amountFromBytes(byte[] bytes, int position) {
             long amountLong = 0;
 
             int offset = DATE_BYTE_SIZE + ((position - 1) * AMOUNT_BYTE_SIZE);
@@ -931,7 +995,7 @@ class MetricAccess {
             return (double) amountLong / AMOUNT_DECIMAL_SHIFT;
         }
 
-        private static long timestampFromBytes(byte[] bytes) {
+        static long timestampFromBytes(byte[] bytes) {
             long timestamp = 0;
 
             for (int i = 0; i < DATE_BYTE_SIZE; ++i) {
@@ -943,9 +1007,45 @@ class MetricAccess {
 
         // methods that actually touch the database
 
-        private static void doIncrementUpdateOrInsert(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, double incrementAmount, long eventDate, boolean isImplicitEventDate) throws SQLException {
-            SqlVendor vendor = db.getMetricVendor();
+        // Increments the data in the given dimension and in the null
+        // dimension, along with their rollups, all in one transaction so
+        // that the rollups always match the data.
+        static void doIncrementInTransaction(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, double incrementAmount, long eventDate, boolean isImplicitEventDate, boolean isRollupEnabled) throws SQLException {
+            List<UUID> dimensionIds = new ArrayList<UUID>();
+            dimensionIds.add(dimensionId);
+            if (!dimensionId.equals(UuidUtils.ZERO_UUID)) {
+                // Do an additional increment for the null dimension to maintain the sum
+                dimensionIds.add(UuidUtils.ZERO_UUID);
+                // Same order as MetricIncrementQueue so that they don't deadlock
+                Collections.sort(dimensionIds);
+            }
             Connection connection = db.openConnection();
+            try {
+                boolean autoCommit = connection.getAutoCommit();
+                connection.setAutoCommit(false);
+                try {
+                    for (UUID incrementDimensionId : dimensionIds) {
+                        doIncrementUpdateOrInsert(db, connection, id, typeId, symbolId, incrementDimensionId, incrementAmount, eventDate, isImplicitEventDate);
+                        if (isRollupEnabled) {
+                            MetricRollup.increment(db, connection, id, typeId, symbolId, incrementDimensionId, incrementAmount, eventDate);
+                        }
+                    }
+                    connection.commit();
+                } catch (SQLException | RuntimeException error) {
+                    connection.rollback();
+                    throw error;
+                } finally {
+                    connection.setAutoCommit(autoCommit);
+                }
+            } finally {
+                db.closeConnection(connection);
+            }
+        }
+
+        // Also reads the existing data through the given connection so that
+        // it can be used within a transaction.
+        static void doIncrementUpdateOrInsert(MetricAccessDatabase db, Connection connection, UUID id, UUID typeId, int symbolId, UUID dimensionId, double incrementAmount, long eventDate, boolean isImplicitEventDate) throws SQLException {
+            SqlVendor vendor = db.getMetricVendor();
             try {
 
                 if (isImplicitEventDate) {
@@ -961,7 +1061,7 @@ class MetricAccess {
                     if (0 == rowsAffected) {
                         // There is no data for the current date. Now we have to read
                         // the previous cumulative amount so we can insert a new row.
-                        byte[] data = getDataByIdAndDimension(db, id, typeId, symbolId, dimensionId, null, null, true);
+                        byte[] data = getDataByIdAndDimension(db, connection, id, typeId, symbolId, dimensionId, null, null);
                         double previousCumulativeAmount = 0.0d;
                         if (data != null) {
                             previousCumulativeAmount = amountFromBytes(data, CUMULATIVEAMOUNT_POSITION);
@@ -975,7 +1075,7 @@ class MetricAccess {
                 } else {
 
                     // First, find the max eventDate. Under normal circumstances, this will either be null (INSERT), before our eventDate (INSERT) or equal to our eventDate (UPDATE).
-                    byte[] data = getDataByIdAndDimension(db, id, typeId, symbolId, dimensionId, null, null, true);
+                    byte[] data = getDataByIdAndDimension(db, connection, id, typeId, symbolId, dimensionId, null, null);
 
                     if (data == null || timestampFromBytes(data) < eventDate) {
                         // No data for this eventDate; insert.
@@ -1002,7 +1102,7 @@ class MetricAccess {
                         // or if not, INSERT. Either way we will be updating future
                         // data, so just INSERT with a value of 0 if necessary, then
                         // UPDATE all rows.
-                        byte[] oldData = getDataByIdAndDimension(db, id, typeId, symbolId, dimensionId, null, eventDate, true);
+                        byte[] oldData = getDataByIdAndDimension(db, connection, id, typeId, symbolId, dimensionId, null, eventDate);
                         if (oldData == null || timestampFromBytes(oldData) < eventDate) {
                             double previousCumulativeAmount = 0.0d;
                             if (oldData != null) {
@@ -1025,9 +1125,7 @@ class MetricAccess {
                 List<Object> repairParameters = new ArrayList<Object>();
                 String repairSql = getRepairTypeIdSql(db, repairParameters, id, typeId, dimensionId, symbolId, eventDate);
                 SqlDatabase.Static.executeUpdateWithList(vendor, connection, repairSql, repairParameters);
-                doIncrementUpdateOrInsert(db, id, typeId, symbolId, dimensionId, incrementAmount, eventDate, isImplicitEventDate);
-            } finally {
-                db.closeConnection(connection);
+                doIncrementUpdateOrInsert(db, connection, id, typeId, symbolId, dimensionId, incrementAmount, eventDate, isImplicitEventDate);
             }
         }
 
@@ -1035,9 +1133,16 @@ class MetricAccess {
         private static void tryInsertThenUpdate(MetricAccessDatabase db, Connection connection, String insertSql, List<Object> insertParameters, String updateSql, List<Object> updateParameters) throws SQLException, UpdateFailedException {
             SqlVendor vendor = db.getMetricVendor();
 
+            // Some databases abort the whole transaction on any error, so
+            // the failed insert must be undone separately.
+            Savepoint savepoint = connection.getAutoCommit() ? null : connection.setSavepoint();
+
             try {
                 SqlDatabase.Static.executeUpdateWithList(vendor, connection, insertSql, insertParameters);
             } catch (SQLException ex) {
+                if (savepoint != null) {
+                    connection.rollback(savepoint);
+                }
                 if (db.getMetricVendor().isDuplicateKeyException(ex)) {
                     // Try the update again, maybe we lost a race condition.
                     if (updateSql != null) {
@@ -1158,6 +1263,11 @@ class MetricAccess {
             } finally {
                 db.closeConnection(connection);
             }
+
+            // The raw data is coarser now, so the rollups should match.
+            if (MetricRollup.isEnabled()) {
+                MetricRollup.rebuild(db, id, typeId, symbolId, dimensionId, minEventDate, maxEventDate);
+            }
         }
 
         private static void doResummarizeDataRows(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, long eventDate, long firstTimestamp, long lastTimestamp, double amount, double cumulativeAmount) throws SQLException {
@@ -1366,25 +1476,29 @@ class MetricAccess {
         }
 
         private static byte[] getDataByIdAndDimension(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, boolean master) throws SQLException {
+            Connection connection = master ? db.openConnection() : db.openReadConnection();
+            try {
+                return getDataByIdAndDimension(db, connection, id, typeId, symbolId, dimensionId, minEventDate, maxEventDate);
+            } finally {
+                db.closeConnection(connection);
+            }
+        }
+
+        private static byte[] getDataByIdAndDimension(MetricAccessDatabase db, Connection connection, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate) throws SQLException {
             String sql = getDataSql(db, id, typeId, symbolId, dimensionId, minEventDate, maxEventDate, false, true, null, null, null);
             byte[] data = null;
-            Connection connection = master ? db.openConnection() : db.openReadConnection();
+            Statement statement = connection.createStatement();
             try {
-                Statement statement = connection.createStatement();
+                ResultSet result = db.executeQueryBeforeTimeout(statement, sql, QUERY_TIMEOUT);
                 try {
-                    ResultSet result = db.executeQueryBeforeTimeout(statement, sql, QUERY_TIMEOUT);
-                    try {
-                        if (result.next()) {
-                            data = result.getBytes(1);
-                        }
-                    } finally {
-                        result.close();
+                    if (result.next()) {
+                        data = result.getBytes(1);
                     }
                 } finally {
-                    statement.close();
+                    result.close();
                 }
             } finally {
-                db.closeConnection(connection);
+                statement.close();
             }
             return data;
         }
@@ -1967,7 +2081,12 @@ class ResummarizeConsumer extends AsyncConsumer<Metric.DistinctIds> {
 
     @Override
     protected void consume(Metric.DistinctIds tuple) throws Exception {
-        MetricAccess.Static.doResummarize(database, tuple.id, tuple.typeId, symbolId, tuple.dimensionId, interval, startTimestamp, endTimestamp);
+        // Without an interval, only the rollups are rebuilt.
+        if (interval != null) {
+            MetricAccess.Static.doResummarize(database, tuple.id, tuple.typeId, symbolId, tuple.dimensionId, interval, startTimestamp, endTimestamp);
+        } else {
+            MetricRollup.rebuild(database, tuple.id, tuple.typeId, symbolId, tuple.dimensionId, startTimestamp, endTimestamp);
+        }
     }
 
 }
@@ -1,183 +1,489 @@
 package com.psddev.dari.db;
 
-import java.math.BigDecimal;
+import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.psddev.dari.util.ObjectUtils;
 import com.psddev.dari.util.Task;
-
+import com.psddev.dari.util.UuidUtils;
+
+/**
+ * Accumulates the metric increments in memory and periodically writes them
+ * to the database.
+ *
+ * <p>The increments are summed into cells that are spread across lock
+ * stripes, so that the concurrent increments rarely contend with each other,
+ * and incrementing an existing cell doesn't allocate. On each flush, all
+ * pending increments to the same database, including the ones for the
+ * null dimension that maintain the sum, are combined per row and written
+ * in a single transaction.</p>
+ */
 final class MetricIncrementQueue {
 
-    //private static final Logger LOGGER = LoggerFactory.getLogger(MetricIncrementQueue.class);
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricIncrementQueue.class);
+
+    private static final String EXECUTOR_NAME = "Metric Increments";
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+    private static final long IMPLICIT_EVENT_DATE = Long.MIN_VALUE;
+    static final int MAXIMUM_ATTEMPTS = 3;
+
+    private static final ConcurrentHashMap<Double, MetricIncrementQueue> QUEUES = new ConcurrentHashMap<Double, MetricIncrementQueue>();
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final Writer writer;
+
+    private final Task flusher = new Task(EXECUTOR_NAME, null) {
+
+        @Override
+        protected void doTask() {
+            flush();
+        }
+    };
+
+    private MetricIncrementQueue() {
+        this(MetricIncrementQueue::write);
+    }
+
+    /**
+     * @param writer Nonnull. Writes the rows on each flush.
+     */
+    MetricIncrementQueue(Writer writer) {
+        this.writer = writer;
 
-    private static final ConcurrentHashMap<Double, ConcurrentHashMap<String, QueuedMetricIncrement>> QUEUED_INCREMENTS = new ConcurrentHashMap<Double, ConcurrentHashMap<String, QueuedMetricIncrement>>();
+        for (int i = 0; i < STRIPES; ++ i) {
+            stripes[i] = new Stripe();
+        }
+    }
 
     public static void queueIncrement(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess, double amount, double withinSeconds) {
 
-        double waitSeconds = new BigDecimal(withinSeconds * .75d).setScale(2).doubleValue();
-        double executeSeconds = new BigDecimal(withinSeconds * .25d).setScale(2).doubleValue();
+        // Same as MetricAccess#incrementMetricByDimensionId.
+        if (amount == 0) {
+            return;
+        }
+
+        // Leave some time for the flush itself.
+        double flushSeconds = Math.max(0.01d, Math.round(withinSeconds * 75.0d) / 100.0d);
 
-        putInMap(id, dimensionId, eventDate, metricAccess, amount, waitSeconds);
+        MetricIncrementQueue queue = QUEUES.computeIfAbsent(flushSeconds, s -> {
+            MetricIncrementQueue q = new MetricIncrementQueue();
+            q.flusher.scheduleWithFixedDelay(s, s);
+            return q;
+        });
 
-        // If the task is already running or has been scheduled, this won't do anything.
-        MetricIncrementQueueTask task = MetricIncrementQueueTask.getInstance(executeSeconds, waitSeconds, QUEUED_INCREMENTS.get(waitSeconds));
-        task.schedule(waitSeconds);
+        // Normalize the explicit event date right away so that more
+        // increments can be combined. The implicit one is the time of the
+        // flush.
+        long date = eventDate != null ? metricAccess.getEventDate(eventDate) : IMPLICIT_EVENT_DATE;
 
+        queue.add(metricAccess, id, dimensionId, date, amount, 0);
     }
 
-    private static void putInMap(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess, double amount, double waitSeconds) {
+    // Adds the given amount to the cell associated with the given key.
+    void add(MetricAccess metricAccess, UUID id, UUID dimensionId, long eventDate, double amount, int attempts) {
+        long idMost = id.getMostSignificantBits();
+        long idLeast = id.getLeastSignificantBits();
+        long dimensionMost = dimensionId.getMostSignificantBits();
+        long dimensionLeast = dimensionId.getLeastSignificantBits();
+        int hash = Key.hash(metricAccess, idMost, idLeast, dimensionMost, dimensionLeast, eventDate);
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+
+        stripe.lock.lock();
 
-        ConcurrentHashMap<String, QueuedMetricIncrement> queue = QUEUED_INCREMENTS.get(waitSeconds);
-        if (queue == null) {
-            QUEUED_INCREMENTS.putIfAbsent(waitSeconds, new ConcurrentHashMap<String, QueuedMetricIncrement>());
-            queue = QUEUED_INCREMENTS.get(waitSeconds);
+        try {
+            Key probe = stripe.probe;
+
+            probe.set(metricAccess, idMost, idLeast, dimensionMost, dimensionLeast, eventDate, hash);
+
+            Cell cell = stripe.cells.get(probe);
+
+            if (cell == null) {
+                cell = new Cell();
+                stripe.cells.put(probe.copy(), cell);
+            }
+
+            cell.amount += amount;
+            cell.attempts = Math.max(cell.attempts, attempts);
+
+        } finally {
+            stripe.lock.unlock();
         }
+    }
+
+    // Takes all pending cells out of the stripes.
+    private Map<Key, Cell> drain() {
+        Map<Key, Cell> drained = new HashMap<Key, Cell>();
 
-        String key = getKey(id, dimensionId, eventDate, metricAccess);
-        QueuedMetricIncrement placeholder = new QueuedMetricIncrement(id, dimensionId, eventDate, metricAccess, 0d);
-        while (true) {
-            QueuedMetricIncrement current = queue.putIfAbsent(key, placeholder);
-            if (current == null) {
-                current = placeholder;
+        for (Stripe stripe : stripes) {
+            Map<Key, Cell> cells;
+
+            stripe.lock.lock();
+
+            try {
+                cells = stripe.cells;
+
+                if (cells.isEmpty()) {
+                    continue;
+                }
+
+                stripe.cells = new HashMap<Key, Cell>(cells.size() * 2);
+
+            } finally {
+                stripe.lock.unlock();
             }
-            QueuedMetricIncrement next = new QueuedMetricIncrement(id, dimensionId, eventDate, metricAccess, current.amount + amount);
-            if (queue.replace(key, current, next)) {
-                return;
-            } else {
+
+            drained.putAll(cells);
+        }
+
+        return drained;
+    }
+
+    // Writes all pending increments, one transaction per database.
+    void flush() {
+        Map<Key, Cell> cells = drain();
+
+        if (cells.isEmpty()) {
+            return;
+        }
+
+        Map<MetricAccessDatabase, Map<Row, Row>> rowsByDatabase = new LinkedHashMap<MetricAccessDatabase, Map<Row, Row>>();
+
+        for (Map.Entry<Key, Cell> entry : cells.entrySet()) {
+            Key key = entry.getKey();
+            Cell cell = entry.getValue();
+
+            if (cell.amount == 0) {
                 continue;
             }
+
+            MetricAccess metricAccess = key.metricAccess;
+            UUID id = new UUID(key.idMost, key.idLeast);
+            UUID dimensionId = new UUID(key.dimensionMost, key.dimensionLeast);
+            boolean implicit = key.eventDate == IMPLICIT_EVENT_DATE;
+            long eventDate = implicit ? metricAccess.getEventDate(null) : key.eventDate;
+            Map<Row, Row> rows = rowsByDatabase.computeIfAbsent(metricAccess.getDatabase(), d -> new HashMap<Row, Row>());
+
+            addRow(rows, new Row(metricAccess, id, dimensionId, eventDate, implicit), key, cell);
+
+            // Maintain the sum in the null dimension.
+            if (!dimensionId.equals(UuidUtils.ZERO_UUID)) {
+                addRow(rows, new Row(metricAccess, id, UuidUtils.ZERO_UUID, eventDate, implicit), null, cell);
+            }
         }
 
+        for (Map.Entry<MetricAccessDatabase, Map<Row, Row>> entry : rowsByDatabase.entrySet()) {
+            MetricAccessDatabase database = entry.getKey();
+            List<Row> rows = new ArrayList<Row>(entry.getValue().keySet());
+
+            // Consistent order so that the concurrent flushes from multiple
+            // servers don't deadlock.
+            Collections.sort(rows);
+
+            List<MetricReadCache.Entry> entries = new ArrayList<MetricReadCache.Entry>(rows.size());
+
+            for (Row row : rows) {
+                entries.add(MetricReadCache.beginIncrement(row.metricAccess, row.id, row.dimensionId));
+            }
+
+            boolean written = false;
+
+            try {
+                writer.write(database, rows);
+                written = true;
+
+            } catch (SQLException | RuntimeException error) {
+                requeue(database, rows, error);
+
+            } finally {
+                for (int i = 0, size = rows.size(); i < size; ++ i) {
+                    Row row = rows.get(i);
+
+                    MetricReadCache.endIncrement(row.metricAccess, row.id, row.dimensionId, entries.get(i), row.eventDate, row.amount, written);
+                }
+            }
+
+            if (!written) {
+                continue;
+            }
+
+            Set<List<Object>> updated = new LinkedHashSet<List<Object>>();
+
+            for (Row row : rows) {
+                if (updated.add(Arrays.asList(row.metricAccess, row.id))) {
+                    try {
+                        row.metricAccess.afterUpdate(row.id);
+
+                    } catch (RuntimeException error) {
+                        LOGGER.warn(String.format("Can't update after incrementing metric for [%s]!", row.id), error);
+                    }
+                }
+            }
+        }
     }
 
-    private static String getKey(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess) {
-        StringBuilder str = new StringBuilder();
-        str.append(id);
-        str.append(':');
-        str.append(metricAccess.getTypeId());
-        str.append(':');
-        str.append(metricAccess.getSymbolId());
-        str.append(':');
-        if (eventDate != null) {
-            str.append(eventDate.getMillis());
-        }
-        str.append(':');
-        str.append(dimensionId);
-        return str.toString();
+    // Combines the cell into the row, remembering the source key so that it
+    // can be requeued if the write fails.
+    private static void addRow(Map<Row, Row> rows, Row row, Key key, Cell cell) {
+        Row existing = rows.get(row);
+
+        if (existing == null) {
+            rows.put(row, row);
+            existing = row;
+        }
+
+        existing.amount += cell.amount;
+
+        if (key != null) {
+            existing.sources.put(key, cell);
+        }
     }
 
-}
+    private static void write(MetricAccessDatabase database, List<Row> rows) throws SQLException {
+        Connection connection = database.openConnection();
+
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+
+            connection.setAutoCommit(false);
+
+            try {
+                for (Row row : rows) {
+                    if (row.amount != 0) {
+                        MetricAccess.Static.doIncrementUpdateOrInsert(
+                                database,
+                                connection,
+                                row.id,
+                                row.metricAccess.getTypeId(),
+                                row.symbolId,
+                                row.dimensionId,
+                                row.amount,
+                                row.eventDate,
+                                row.implicit);
+
+                        if (row.metricAccess.isRollupEnabled()) {
+                            MetricRollup.increment(
+                                    database,
+                                    connection,
+                                    row.id,
+                                    row.metricAccess.getTypeId(),
+                                    row.symbolId,
+                                    row.dimensionId,
+                                    row.amount,
+                                    row.eventDate);
+                        }
+                    }
+                }
+
+                connection.commit();
+
+            } catch (SQLException | RuntimeException error) {
+                connection.rollback();
+                throw error;
+
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
 
-class QueuedMetricIncrement {
-    public final UUID id;
-    public final UUID dimensionId;
-    public final DateTime eventDate;
-    public final MetricAccess metricAccess;
-    public final double amount;
-
-    public QueuedMetricIncrement(UUID id, UUID dimensionId, DateTime eventDate, MetricAccess metricAccess, double amount) {
-        this.id = id;
-        this.dimensionId = dimensionId;
-        this.eventDate = eventDate;
-        this.metricAccess = metricAccess;
-        this.amount = amount;
+        } finally {
+            database.closeConnection(connection);
+        }
     }
 
-    @Override
-    public boolean equals(Object other) {
-        if (other == null || !(other instanceof QueuedMetricIncrement)) {
-            return false;
+    // Puts the increments from the failed write back so that they're retried
+    // on the next flush, unless they've failed too many times already.
+    private void requeue(MetricAccessDatabase database, List<Row> rows, Exception error) {
+        int dropped = 0;
+
+        for (Row row : rows) {
+            for (Map.Entry<Key, Cell> entry : row.sources.entrySet()) {
+                Key key = entry.getKey();
+                Cell cell = entry.getValue();
+
+                if (cell.attempts + 1 < MAXIMUM_ATTEMPTS) {
+                    add(key.metricAccess, new UUID(key.idMost, key.idLeast), new UUID(key.dimensionMost, key.dimensionLeast), key.eventDate, cell.amount, cell.attempts + 1);
+
+                } else {
+                    ++ dropped;
+                }
+            }
+        }
+
+        if (dropped > 0) {
+            LOGGER.error(String.format("Dropped [%s] metric increments after [%s] failed attempts to write them to [%s]!", dropped, MAXIMUM_ATTEMPTS, database), error);
+
         } else {
-            QueuedMetricIncrement otherIncr = (QueuedMetricIncrement) other;
-            return this.amount == otherIncr.amount
-                    && this.metricAccess.equals(otherIncr.metricAccess)
-                    && this.dimensionId.equals(otherIncr.dimensionId)
-                    && ((this.eventDate == null && otherIncr.eventDate == null) || (this.eventDate != null && this.eventDate.equals(otherIncr.eventDate)))
-                    && this.id.equals(otherIncr.id);
+            LOGGER.warn(String.format("Can't write metric increments to [%s]! Will retry on the next flush.", database), error);
         }
     }
 
-    @Override
-    public int hashCode() {
-        return ObjectUtils.hashCode(id, dimensionId, eventDate, metricAccess, amount);
+    // Writes the combined rows to a database in a single transaction.
+    @FunctionalInterface
+    interface Writer {
+
+        void write(MetricAccessDatabase database, List<Row> rows) throws SQLException;
     }
-}
 
-final class MetricIncrementQueueTask extends Task {
-    private static final Logger LOGGER = LoggerFactory.getLogger(MetricIncrementQueue.class);
-    //private static MetricIncrementQueueTask instance;
-    private static final transient ConcurrentHashMap<Double, MetricIncrementQueueTask> INSTANCES = new ConcurrentHashMap<Double, MetricIncrementQueueTask>();
+    private static final class Stripe {
 
-    private final transient ConcurrentHashMap<String, QueuedMetricIncrement> queuedIncrements;
+        public final Lock lock = new ReentrantLock();
+        public final Key probe = new Key();
+        public Map<Key, Cell> cells = new HashMap<Key, Cell>();
+    }
 
-    private final transient double executeSeconds;
-    private final transient double waitSeconds;
+    private static final class Cell {
 
-    private MetricIncrementQueueTask(double executeSeconds, double waitSeconds, ConcurrentHashMap<String, QueuedMetricIncrement> queuedIncrements) {
-        this.queuedIncrements = queuedIncrements;
-        this.executeSeconds = executeSeconds;
-        this.waitSeconds = waitSeconds;
+        public double amount;
+        public int attempts;
     }
 
-    public static MetricIncrementQueueTask getInstance(double executeSeconds, double waitSeconds, ConcurrentHashMap<String, QueuedMetricIncrement> queuedIncrements) {
+    // Mutable so that a single instance per stripe can be used to look up
+    // the cells without allocating.
+    private static final class Key {
+
+        public MetricAccess metricAccess;
+        public long idMost;
+        public long idLeast;
+        public long dimensionMost;
+        public long dimensionLeast;
+        public long eventDate;
+        public int hash;
+
+        public static int hash(MetricAccess metricAccess, long idMost, long idLeast, long dimensionMost, long dimensionLeast, long eventDate) {
+            int hash = System.identityHashCode(metricAccess);
+            hash = 31 * hash + Long.hashCode(idMost);
+            hash = 31 * hash + Long.hashCode(idLeast);
+            hash = 31 * hash + Long.hashCode(dimensionMost);
+            hash = 31 * hash + Long.hashCode(dimensionLeast);
+            hash = 31 * hash + Long.hashCode(eventDate);
+            return hash;
+        }
+
+        public void set(MetricAccess metricAccess, long idMost, long idLeast, long dimensionMost, long dimensionLeast, long eventDate, int hash) {
+            this.metricAccess = metricAccess;
+            this.idMost = idMost;
+            this.idLeast = idLeast;
+            this.dimensionMost = dimensionMost;
+            this.dimensionLeast = dimensionLeast;
+            this.eventDate = eventDate;
+            this.hash = hash;
+        }
+
+        public Key copy() {
+            Key copy = new Key();
+            copy.set(metricAccess, idMost, idLeast, dimensionMost, dimensionLeast, eventDate, hash);
+            return copy;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
 
-        MetricIncrementQueueTask instance = INSTANCES.get(executeSeconds);
-        if (instance == null) {
-            INSTANCES.putIfAbsent(executeSeconds, new MetricIncrementQueueTask(executeSeconds, waitSeconds, queuedIncrements));
-            instance = INSTANCES.get(executeSeconds);
+            } else if (other instanceof Key) {
+                Key otherKey = (Key) other;
+                return metricAccess == otherKey.metricAccess
+                        && idMost == otherKey.idMost
+                        && idLeast == otherKey.idLeast
+                        && dimensionMost == otherKey.dimensionMost
+                        && dimensionLeast == otherKey.dimensionLeast
+                        && eventDate == otherKey.eventDate;
+
+            } else {
+                return false;
+            }
         }
 
-        return instance;
+        @Override
+        public int hashCode() {
+            return hash;
+        }
     }
 
-    public void doTask() {
+    // Row in the metric table that's affected by the increments.
+    static final class Row implements Comparable<Row> {
+
+        public final MetricAccess metricAccess;
+        public final int symbolId;
+        public final UUID id;
+        public final UUID dimensionId;
+        public final long eventDate;
+        public final boolean implicit;
+        public final Map<Key, Cell> sources = new HashMap<Key, Cell>();
+        public double amount;
+
+        public Row(MetricAccess metricAccess, UUID id, UUID dimensionId, long eventDate, boolean implicit) {
+            this.metricAccess = metricAccess;
+            this.symbolId = metricAccess.getSymbolId();
+            this.id = id;
+            this.dimensionId = dimensionId;
+            this.eventDate = eventDate;
+            this.implicit = implicit;
+        }
+
+        @Override
+        public int compareTo(Row other) {
+            int c = id.compareTo(other.id);
 
-        long sleepMilliseconds = 0L;
-        Iterator<String> iter = null;
-        while (true) {
-            if (queuedIncrements.isEmpty()) {
-                break;
+            if (c == 0) {
+                c = metricAccess.getTypeId().compareTo(other.metricAccess.getTypeId());
             }
-            if (iter == null || !iter.hasNext()) {
-                if (iter != null) {
-                    long waitMilliseconds = (long) (1000 * waitSeconds);
-                    try {
-                        Thread.sleep(waitMilliseconds);
-                    } catch (InterruptedException ex) {
-                        getThread().interrupt();
-                    }
-                }
-                sleepMilliseconds = (long) (1000 * (executeSeconds / (double) queuedIncrements.size())) - 10L;
-                if (sleepMilliseconds <= 0) {
-                    sleepMilliseconds = 10L;
-                }
-                //LOGGER.info("running MetricIncrementQueueTask within " + executeSeconds + " seconds, approx. size: " + queuedIncrements.size() + " sleeping for " + sleepMilliseconds + " milliseconds between executions");
-                iter = queuedIncrements.keySet().iterator();
+
+            if (c == 0) {
+                c = Integer.compare(symbolId, other.symbolId);
             }
-            String key = iter.next();
-            QueuedMetricIncrement queuedIncrement = queuedIncrements.remove(key);
-            //LOGGER.info("Incrementing : " + queuedIncrement.metricAccess.getSymbolId() + " / " + queuedIncrement.id + " : " + queuedIncrement.dimensionId + " += " + queuedIncrement.amount );
-            try {
-                queuedIncrement.metricAccess.incrementMetricByDimensionId(queuedIncrement.id, queuedIncrement.eventDate, queuedIncrement.dimensionId, queuedIncrement.amount);
-            } catch (SQLException ex) {
-                LOGGER.error("SQLException during incrementMetricByDimensionId: " + ex.getLocalizedMessage());
-                // TODO: log this somewhere so it can be recovered if the database fails catastrophically
-                throw new DatabaseException(queuedIncrement.metricAccess.getDatabase(), "SQLException during MetricAccess.incrementMetricByDimensionId", ex);
+
+            if (c == 0) {
+                c = dimensionId.compareTo(other.dimensionId);
             }
-            try {
-                Thread.sleep(sleepMilliseconds);
-            } catch (InterruptedException ex) {
-                getThread().interrupt();
+
+            if (c == 0) {
+                c = Long.compare(eventDate, other.eventDate);
+            }
+
+            return c;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+
+            } else if (other instanceof Row) {
+                Row otherRow = (Row) other;
+                return metricAccess == otherRow.metricAccess
+                        && id.equals(otherRow.id)
+                        && dimensionId.equals(otherRow.dimensionId)
+                        && eventDate == otherRow.eventDate
+                        && implicit == otherRow.implicit;
+
+            } else {
+                return false;
             }
         }
 
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(metricAccess);
+            hash = 31 * hash + id.hashCode();
+            hash = 31 * hash + dimensionId.hashCode();
+            hash = 31 * hash + Long.hashCode(eventDate);
+            return hash;
+        }
     }
-
 }
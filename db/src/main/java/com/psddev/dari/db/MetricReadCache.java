@@ -0,0 +1,314 @@
+package com.psddev.dari.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.psddev.dari.util.Settings;
+
+/**
+ * Process-wide cache of the latest cumulative amount of each metric, so that
+ * the sums over all time or over recent windows don't need any queries.
+ *
+ * <p>Each entry holds the event date and the cumulative amount of the
+ * latest data row, plus the cumulative amounts just before a few window
+ * starts. The local increments are applied to the entries in place, and
+ * the increments from the other servers are picked up when the entries
+ * expire after {@value #SECONDS_SETTING} seconds.</p>
+ *
+ * <p>An entry isn't loaded from the database while a local increment to it
+ * is being written, since the data read may or may not include it.</p>
+ */
+final class MetricReadCache {
+
+    public static final String SIZE_SETTING = "dari/metricReadCacheSize";
+    public static final String SECONDS_SETTING = "dari/metricReadCacheSeconds";
+
+    private static final long DEFAULT_SIZE = 10000L;
+    private static final long DEFAULT_SECONDS = 5L;
+    private static final int MAXIMUM_WINDOWS = 8;
+
+    private static final Supplier<Cache<Key, Entry>> CACHE = Suppliers.memoize(new Supplier<Cache<Key, Entry>>() {
+
+        @Override
+        public Cache<Key, Entry> get() {
+            long size = Settings.getOrDefault(long.class, SIZE_SETTING, DEFAULT_SIZE);
+            long seconds = Settings.getOrDefault(long.class, SECONDS_SETTING, DEFAULT_SECONDS);
+
+            return size > 0L && seconds > 0L
+                    ? CacheBuilder.newBuilder().maximumSize(size).expireAfterWrite(seconds, TimeUnit.SECONDS).<Key, Entry>build()
+                    : null;
+        }
+    });
+
+    private MetricReadCache() {
+    }
+
+    /**
+     * Returns the entry for the given metric, creating an empty one if
+     * necessary.
+     *
+     * @return {@code null} if the cache is disabled.
+     */
+    public static Entry getEntry(MetricAccess metricAccess, UUID id, UUID dimensionId) {
+        Cache<Key, Entry> cache = CACHE.get();
+
+        return cache != null
+                ? cache.asMap().computeIfAbsent(new Key(metricAccess, id, dimensionId), k -> new Entry())
+                : null;
+    }
+
+    /**
+     * Marks the cached entry, if there is one, as having an increment in
+     * progress. Must be called before the increment is written to the
+     * database, and followed by {@link #endIncrement}.
+     *
+     * @return Nullable. The entry to pass to {@link #endIncrement}.
+     */
+    public static Entry beginIncrement(MetricAccess metricAccess, UUID id, UUID dimensionId) {
+        Cache<Key, Entry> cache = CACHE.get();
+
+        if (cache != null) {
+            Entry entry = cache.getIfPresent(new Key(metricAccess, id, dimensionId));
+
+            if (entry != null) {
+                entry.beginIncrement();
+            }
+
+            return entry;
+
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Applies the given increment to the entry returned by
+     * {@link #beginIncrement}, if it was {@code written} to the database.
+     *
+     * <p>Any other entry created for the same metric in the meantime is
+     * removed, because it may have been loaded either before or after the
+     * increment was written.</p>
+     *
+     * @param entry Nullable.
+     */
+    public static void endIncrement(MetricAccess metricAccess, UUID id, UUID dimensionId, Entry entry, long eventDate, double amount, boolean written) {
+        if (entry != null) {
+            entry.endIncrement(eventDate, amount, written);
+        }
+
+        Cache<Key, Entry> cache = CACHE.get();
+
+        if (cache != null) {
+            Key key = new Key(metricAccess, id, dimensionId);
+            Entry current = cache.getIfPresent(key);
+
+            if (current != null && current != entry) {
+                cache.asMap().remove(key, current);
+            }
+        }
+    }
+
+    /**
+     * Removes all entries for the given metric, in all dimensions.
+     */
+    public static void invalidate(MetricAccess metricAccess, UUID id) {
+        Cache<Key, Entry> cache = CACHE.get();
+
+        if (cache != null) {
+            for (Iterator<Key> i = cache.asMap().keySet().iterator(); i.hasNext();) {
+                Key key = i.next();
+
+                if (key.metricAccess == metricAccess && key.id.equals(id)) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Latest cumulative amount of a metric in a dimension. Synchronize on
+     * the instance to check and read it atomically.
+     */
+    public static final class Entry {
+
+        private long version;
+        private int incrementing;
+        private boolean loaded;
+        private boolean exists;
+        private long latestEventDate;
+        private double latestCumulativeAmount;
+
+        private final Map<Long, Double> windowBases = new LinkedHashMap<Long, Double>() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Double> eldest) {
+                return size() > MAXIMUM_WINDOWS;
+            }
+        };
+
+        /**
+         * Returns the version to pass to {@link #load} or {@link #loadWindow}
+         * so that the data read from the database is discarded if there was
+         * an increment in the meantime.
+         */
+        public synchronized long getVersion() {
+            return version;
+        }
+
+        public synchronized boolean isLoaded() {
+            return loaded;
+        }
+
+        public synchronized boolean hasWindow(long startTimestamp) {
+            return windowBases.containsKey(startTimestamp);
+        }
+
+        /**
+         * @param maxData Nullable. Latest data row.
+         */
+        public synchronized void load(long expectedVersion, byte[] maxData) {
+            if (loaded || incrementing > 0 || version != expectedVersion) {
+                return;
+            }
+
+            loaded = true;
+            exists = maxData != null;
+
+            if (exists) {
+                latestEventDate = MetricAccess.Static.timestampFromBytes(maxData);
+                latestCumulativeAmount = MetricAccess.Static.amountFromBytes(maxData, MetricAccess.CUMULATIVEAMOUNT_POSITION);
+            }
+        }
+
+        /**
+         * @param minData Nullable. First data row on or after the given
+         *        {@code startTimestamp}.
+         */
+        public synchronized void loadWindow(long expectedVersion, long startTimestamp, byte[] minData) {
+            if (!loaded || incrementing > 0 || version != expectedVersion) {
+                return;
+            }
+
+            double base;
+
+            if (minData != null) {
+                base = MetricAccess.Static.amountFromBytes(minData, MetricAccess.CUMULATIVEAMOUNT_POSITION)
+                        - MetricAccess.Static.amountFromBytes(minData, MetricAccess.AMOUNT_POSITION);
+
+            } else {
+                base = exists ? latestCumulativeAmount : 0.0d;
+            }
+
+            windowBases.put(startTimestamp, base);
+        }
+
+        /**
+         * Returns {@code true} if {@link #getSum} can answer for the given
+         * range.
+         */
+        public synchronized boolean isAnswerable(Long startTimestamp, Long endTimestamp) {
+            return loaded
+                    && (!exists || endTimestamp == null || latestEventDate < endTimestamp)
+                    && (startTimestamp == null || windowBases.containsKey(startTimestamp));
+        }
+
+        /**
+         * Returns the sum between the given timestamps the same way as
+         * {@link MetricAccess#getMetric}.
+         */
+        public synchronized Double getSum(Long startTimestamp, Long endTimestamp) {
+            if (!exists) {
+                return null;
+
+            } else if (startTimestamp == null) {
+                return latestCumulativeAmount;
+
+            } else if (latestEventDate < startTimestamp) {
+                return null;
+
+            } else {
+                return latestCumulativeAmount - windowBases.get(startTimestamp);
+            }
+        }
+
+        // Changes the version so that the data read from the database before
+        // or during the write is discarded.
+        private synchronized void beginIncrement() {
+            ++ version;
+            ++ incrementing;
+        }
+
+        // The cumulative amounts of the latest row and all rows after the
+        // window starts include any increment at an earlier date.
+        private synchronized void endIncrement(long eventDate, double amount, boolean written) {
+            ++ version;
+            -- incrementing;
+
+            if (!loaded || !written) {
+                return;
+            }
+
+            if (!exists) {
+                exists = true;
+                latestEventDate = eventDate;
+                latestCumulativeAmount = amount;
+
+            } else {
+                latestEventDate = Math.max(latestEventDate, eventDate);
+                latestCumulativeAmount += amount;
+            }
+
+            for (Map.Entry<Long, Double> entry : windowBases.entrySet()) {
+                if (eventDate < entry.getKey()) {
+                    entry.setValue(entry.getValue() + amount);
+                }
+            }
+        }
+    }
+
+    private static final class Key {
+
+        public final MetricAccess metricAccess;
+        public final UUID id;
+        public final UUID dimensionId;
+
+        public Key(MetricAccess metricAccess, UUID id, UUID dimensionId) {
+            this.metricAccess = metricAccess;
+            this.id = id;
+            this.dimensionId = dimensionId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+
+            } else if (other instanceof Key) {
+                Key otherKey = (Key) other;
+                return metricAccess == otherKey.metricAccess
+                        && id.equals(otherKey.id)
+                        && dimensionId.equals(otherKey.dimensionId);
+
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(metricAccess);
+            hash = 31 * hash + id.hashCode();
+            hash = 31 * hash + dimensionId.hashCode();
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package com.psddev.dari.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+
+import com.psddev.dari.util.CompactMap;
+import com.psddev.dari.util.Settings;
+
+/**
+ * Pre-aggregated hourly, daily, and monthly amounts of the metrics, so that
+ * the timelines at those intervals don't have to scan all the raw data rows.
+ *
+ * <p>The rollups are maintained on every increment and resummarization when
+ * {@value #ENABLED_SETTING} is {@code true}, and used by
+ * {@link MetricAccess#getMetricTimeline} when {@value #READ_ENABLED_SETTING}
+ * is also {@code true}. The latter should only be turned on after the
+ * rollups for the existing data have been rebuilt using
+ * {@link Metric.Static#submitRebuildRollupsAllBetweenTask}.</p>
+ */
+final class MetricRollup {
+
+    public static final String TABLE = "MetricRollup";
+    public static final String INTERVAL_FIELD = "rollupInterval";
+    public static final String EVENT_DATE_FIELD = "eventDate";
+    public static final String AMOUNT_FIELD = "amount";
+
+    public static final String ENABLED_SETTING = "dari/isMetricRollupEnabled";
+    public static final String READ_ENABLED_SETTING = "dari/isMetricRollupReadEnabled";
+
+    private static final int QUERY_TIMEOUT = 3;
+
+    private MetricRollup() {
+    }
+
+    /**
+     * Returns {@code true} if the rollups should be maintained.
+     */
+    public static boolean isEnabled() {
+        return Settings.getOrDefault(boolean.class, ENABLED_SETTING, false);
+    }
+
+    /**
+     * Returns {@code true} if the rollups should be used to read the
+     * timelines.
+     */
+    public static boolean isReadEnabled() {
+        return isEnabled() && Settings.getOrDefault(boolean.class, READ_ENABLED_SETTING, false);
+    }
+
+    /**
+     * Adds the given {@code amount} to all rollups that contain the given
+     * {@code eventDate}.
+     *
+     * @param connection Nonnull. May be within a transaction.
+     */
+    public static void increment(MetricAccessDatabase db, Connection connection, UUID id, UUID typeId, int symbolId, UUID dimensionId, double amount, long eventDate) throws SQLException {
+        SqlVendor vendor = db.getMetricVendor();
+        long amountLong = (long) (amount * MetricAccess.AMOUNT_DECIMAL_SHIFT);
+
+        for (Level level : Level.values()) {
+            long bucket = level.interval.process(new DateTime(eventDate));
+
+            List<Object> updateParameters = new ArrayList<Object>();
+            String updateSql = getUpdateSql(db, updateParameters, id, typeId, symbolId, dimensionId, level, bucket, amountLong);
+
+            if (SqlDatabase.Static.executeUpdateWithList(vendor, connection, updateSql, updateParameters) > 0) {
+                continue;
+            }
+
+            List<Object> insertParameters = new ArrayList<Object>();
+            String insertSql = getInsertSql(db, insertParameters, id, typeId, symbolId, dimensionId, level, bucket, amountLong);
+
+            // Some databases abort the whole transaction on any error, so
+            // the failed insert must be undone separately.
+            Savepoint savepoint = connection.getAutoCommit() ? null : connection.setSavepoint();
+
+            try {
+                SqlDatabase.Static.executeUpdateWithList(vendor, connection, insertSql, insertParameters);
+
+            } catch (SQLException error) {
+                if (savepoint != null) {
+                    connection.rollback(savepoint);
+                }
+
+                // Lost the race to insert the row.
+                if (vendor.isDuplicateKeyException(error)) {
+                    SqlDatabase.Static.executeUpdateWithList(vendor, connection, updateSql, updateParameters);
+
+                } else {
+                    throw error;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the timeline at the given {@code metricInterval} using the
+     * rollups.
+     *
+     * @return {@code null} if the rollups can't be used for the given
+     *         interval or range.
+     */
+    public static Map<DateTime, Double> getTimeline(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate, MetricInterval metricInterval, boolean master) throws SQLException {
+        if (dimensionId == null || metricInterval == null) {
+            return null;
+        }
+
+        Level level = null;
+
+        for (Level l : Level.values()) {
+            if (l.interval.getClass() == metricInterval.getClass()) {
+                level = l;
+                break;
+            }
+        }
+
+        // Partial buckets at the edges of the range need the raw data.
+        if (level == null
+                || (minEventDate != null && level.interval.process(new DateTime(minEventDate)) != minEventDate)
+                || (maxEventDate != null && level.interval.process(new DateTime(maxEventDate)) != maxEventDate)) {
+
+            return null;
+        }
+
+        SqlVendor vendor = db.getMetricVendor();
+        StringBuilder sqlBuilder = new StringBuilder("SELECT ");
+
+        vendor.appendIdentifier(sqlBuilder, EVENT_DATE_FIELD);
+        sqlBuilder.append(", ");
+        vendor.appendIdentifier(sqlBuilder, AMOUNT_FIELD);
+        sqlBuilder.append(" FROM ");
+        sqlBuilder.append(getTableIdentifier(db));
+        appendWhereSql(sqlBuilder, vendor, id, typeId, symbolId, dimensionId);
+        sqlBuilder.append(" AND ");
+        vendor.appendIdentifier(sqlBuilder, INTERVAL_FIELD);
+        sqlBuilder.append(" = ");
+        vendor.appendValue(sqlBuilder, level.code);
+
+        if (minEventDate != null) {
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, EVENT_DATE_FIELD);
+            sqlBuilder.append(" >= ");
+            vendor.appendValue(sqlBuilder, minEventDate);
+        }
+
+        if (maxEventDate != null) {
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, EVENT_DATE_FIELD);
+            sqlBuilder.append(" < ");
+            vendor.appendValue(sqlBuilder, maxEventDate);
+        }
+
+        sqlBuilder.append(" ORDER BY ");
+        vendor.appendIdentifier(sqlBuilder, EVENT_DATE_FIELD);
+
+        Map<DateTime, Double> values = new CompactMap<DateTime, Double>();
+        Connection connection = master ? db.openConnection() : db.openReadConnection();
+
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet result = db.executeQueryBeforeTimeout(statement, sqlBuilder.toString(), QUERY_TIMEOUT);
+                try {
+                    while (result.next()) {
+                        values.put(new DateTime(result.getLong(1)), (double) result.getLong(2) / MetricAccess.AMOUNT_DECIMAL_SHIFT);
+                    }
+                } finally {
+                    result.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            db.closeConnection(connection);
+        }
+
+        return values;
+    }
+
+    /**
+     * Deletes all rollups associated with the given {@code id}.
+     */
+    public static void delete(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId) throws SQLException {
+        SqlVendor vendor = db.getMetricVendor();
+        StringBuilder sqlBuilder = new StringBuilder("DELETE FROM ");
+
+        sqlBuilder.append(getTableIdentifier(db));
+        appendWhereSql(sqlBuilder, vendor, id, typeId, symbolId, null);
+
+        Connection connection = db.openConnection();
+        try {
+            SqlDatabase.Static.executeUpdateWithList(vendor, connection, sqlBuilder.toString(), null);
+        } finally {
+            db.closeConnection(connection);
+        }
+    }
+
+    /**
+     * Recalculates the rollups from the raw data between the given
+     * {@code minEventDate} and {@code maxEventDate}, widened to the whole
+     * months.
+     *
+     * @param dimensionId Nonnull.
+     */
+    public static void rebuild(MetricAccessDatabase db, UUID id, UUID typeId, int symbolId, UUID dimensionId, Long minEventDate, Long maxEventDate) throws SQLException {
+        MetricInterval month = Level.MONTHLY.interval;
+
+        if (minEventDate != null) {
+            minEventDate = month.process(new DateTime(minEventDate));
+        }
+
+        if (maxEventDate != null) {
+            long floor = month.process(new DateTime(maxEventDate));
+
+            if (floor != maxEventDate) {
+                maxEventDate = new DateTime(floor).plusMonths(1).getMillis();
+            }
+        }
+
+        Map<Level, Map<Long, Double>> amounts = new EnumMap<Level, Map<Long, Double>>(Level.class);
+
+        for (Level level : Level.values()) {
+            amounts.put(level, new TreeMap<Long, Double>());
+        }
+
+        SqlVendor vendor = db.getMetricVendor();
+
+        // Lock the raw rows so that the increments to them wait until the
+        // rollups are replaced instead of being wiped out by the DELETE.
+        // The increments lock the raw rows before the rollups, too.
+        String selectSql = MetricAccess.Static.getAllDataSql(db, id, typeId, symbolId, dimensionId, minEventDate, maxEventDate, true) + " FOR UPDATE";
+        StringBuilder deleteBuilder = new StringBuilder("DELETE FROM ");
+
+        deleteBuilder.append(getTableIdentifier(db));
+        appendWhereSql(deleteBuilder, vendor, id, typeId, symbolId, dimensionId);
+
+        if (minEventDate != null) {
+            deleteBuilder.append(" AND ");
+            vendor.appendIdentifier(deleteBuilder, EVENT_DATE_FIELD);
+            deleteBuilder.append(" >= ");
+            vendor.appendValue(deleteBuilder, minEventDate);
+        }
+
+        if (maxEventDate != null) {
+            deleteBuilder.append(" AND ");
+            vendor.appendIdentifier(deleteBuilder, EVENT_DATE_FIELD);
+            deleteBuilder.append(" < ");
+            vendor.appendValue(deleteBuilder, maxEventDate);
+        }
+
+        Connection connection = db.openConnection();
+
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+
+            connection.setAutoCommit(false);
+
+            try {
+                Statement statement = connection.createStatement();
+                try {
+                    ResultSet result = db.executeQueryBeforeTimeout(statement, selectSql, 0);
+                    try {
+                        while (result.next()) {
+                            byte[] data = result.getBytes(1);
+                            double amount = MetricAccess.Static.amountFromBytes(data, MetricAccess.AMOUNT_POSITION);
+                            DateTime timestamp = new DateTime(MetricAccess.Static.timestampFromBytes(data));
+
+                            for (Level level : Level.values()) {
+                                amounts.get(level).merge(level.interval.process(timestamp), amount, Double::sum);
+                            }
+                        }
+                    } finally {
+                        result.close();
+                    }
+                } finally {
+                    statement.close();
+                }
+
+                SqlDatabase.Static.executeUpdateWithList(vendor, connection, deleteBuilder.toString(), null);
+
+                for (Map.Entry<Level, Map<Long, Double>> entry : amounts.entrySet()) {
+                    Level level = entry.getKey();
+
+                    for (Map.Entry<Long, Double> bucket : entry.getValue().entrySet()) {
+                        List<Object> insertParameters = new ArrayList<Object>();
+                        String insertSql = getInsertSql(db, insertParameters, id, typeId, symbolId, dimensionId, level, bucket.getKey(), (long) (bucket.getValue() * MetricAccess.AMOUNT_DECIMAL_SHIFT));
+
+                        SqlDatabase.Static.executeUpdateWithList(vendor, connection, insertSql, insertParameters);
+                    }
+                }
+
+                connection.commit();
+
+            } catch (SQLException | RuntimeException error) {
+                connection.rollback();
+                throw error;
+
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+
+        } finally {
+            db.closeConnection(connection);
+        }
+    }
+
+    private static String getTableIdentifier(MetricAccessDatabase db) {
+        SqlVendor vendor = db.getMetricVendor();
+        String catalog = db.getMetricCatalog();
+        StringBuilder str = new StringBuilder();
+
+        if (catalog != null) {
+            vendor.appendIdentifier(str, catalog);
+            str.append('.');
+        }
+
+        vendor.appendIdentifier(str, TABLE);
+        return str.toString();
+    }
+
+    private static void appendWhereSql(StringBuilder sqlBuilder, SqlVendor vendor, UUID id, UUID typeId, int symbolId, UUID dimensionId) {
+        sqlBuilder.append(" WHERE ");
+        vendor.appendIdentifier(sqlBuilder, MetricAccess.METRIC_SYMBOL_FIELD);
+        sqlBuilder.append(" = ");
+        vendor.appendValue(sqlBuilder, symbolId);
+
+        sqlBuilder.append(" AND ");
+        vendor.appendIdentifier(sqlBuilder, MetricAccess.METRIC_TYPE_FIELD);
+        sqlBuilder.append(" = ");
+        vendor.appendValue(sqlBuilder, typeId);
+
+        sqlBuilder.append(" AND ");
+        vendor.appendIdentifier(sqlBuilder, MetricAccess.METRIC_ID_FIELD);
+        sqlBuilder.append(" = ");
+        vendor.appendValue(sqlBuilder, id);
+
+        if (dimensionId != null) {
+            sqlBuilder.append(" AND ");
+            vendor.appendIdentifier(sqlBuilder, MetricAccess.METRIC_DIMENSION_FIELD);
+            sqlBuilder.append(" = ");
+            vendor.appendValue(sqlBuilder, dimensionId);
+        }
+    }
+
+    private static String getUpdateSql(MetricAccessDatabase db, List<Object> parameters, UUID id, UUID typeId, int symbolId, UUID dimensionId, Level level, long eventDate, long amount) {
+        SqlVendor vendor = db.getMetricVendor();
+        StringBuilder updateBuilder = new StringBuilder("UPDATE ");
+
+        updateBuilder.append(getTableIdentifier(db));
+        updateBuilder.append(" SET ");
+        vendor.appendIdentifier(updateBuilder, AMOUNT_FIELD);
+        updateBuilder.append(" = ");
+        vendor.appendIdentifier(updateBuilder, AMOUNT_FIELD);
+        updateBuilder.append(" + ");
+        vendor.appendBindValue(updateBuilder, amount, parameters);
+        appendWhereSql(updateBuilder, vendor, id, typeId, symbolId, dimensionId);
+
+        updateBuilder.append(" AND ");
+        vendor.appendIdentifier(updateBuilder, INTERVAL_FIELD);
+        updateBuilder.append(" = ");
+        vendor.appendValue(updateBuilder, level.code);
+
+        updateBuilder.append(" AND ");
+        vendor.appendIdentifier(updateBuilder, EVENT_DATE_FIELD);
+        updateBuilder.append(" = ");
+        vendor.appendValue(updateBuilder, eventDate);
+
+        return updateBuilder.toString();
+    }
+
+    private static String getInsertSql(MetricAccessDatabase db, List<Object> parameters, UUID id, UUID typeId, int symbolId, UUID dimensionId, Level level, long eventDate, long amount) {
+        SqlVendor vendor = db.getMetricVendor();
+        StringBuilder insertBuilder = new StringBuilder("INSERT INTO ");
+        Map<String, Object> cols = new CompactMap<String, Object>();
+
+        cols.put(MetricAccess.METRIC_ID_FIELD, id);
+        cols.put(MetricAccess.METRIC_TYPE_FIELD, typeId);
+        cols.put(MetricAccess.METRIC_SYMBOL_FIELD, symbolId);
+        cols.put(MetricAccess.METRIC_DIMENSION_FIELD, dimensionId);
+        cols.put(INTERVAL_FIELD, level.code);
+        cols.put(EVENT_DATE_FIELD, eventDate);
+        cols.put(AMOUNT_FIELD, amount);
+
+        insertBuilder.append(getTableIdentifier(db));
+        insertBuilder.append(" (");
+
+        boolean first = true;
+
+        for (String column : cols.keySet()) {
+            if (!first) {
+                insertBuilder.append(", ");
+            }
+            vendor.appendIdentifier(insertBuilder, column);
+            first = false;
+        }
+
+        insertBuilder.append(") VALUES (");
+        first = true;
+
+        for (Object value : cols.values()) {
+            if (!first) {
+                insertBuilder.append(", ");
+            }
+            vendor.appendBindValue(insertBuilder, value, parameters);
+            first = false;
+        }
+
+        insertBuilder.append(')');
+        return insertBuilder.toString();
+    }
+
+    private enum Level {
+
+        HOURLY(1, new MetricInterval.Hourly()),
+        DAILY(2, new MetricInterval.Daily()),
+        MONTHLY(3, new MetricInterval.Monthly());
+
+        public final int code;
+        public final MetricInterval interval;
+
+        Level(int code, MetricInterval interval) {
+            this.code = code;
+            this.interval = interval;
+        }
+    }
+}
@@ -96,6 +96,7 @@ public class ObjectType extends Record implements ObjectStruct {
     private Set<String> assignableClassNames;
 
     private transient Boolean isLazyLoaded;
+    private transient Boolean lazyValuesSupported;
 
     @SuppressWarnings("deprecation")
     private static void updateFieldsAndIndexes(
@@ -904,6 +905,23 @@ public class ObjectType extends Record implements ObjectStruct {
         return isLazyLoaded;
     }
 
+    /**
+     * Returns {@code true} if the objects of this type can convert their
+     * values to Java values only when they're first accessed.
+     *
+     * @see State#isLazyValues()
+     */
+    public boolean isLazyValuesSupported() {
+        if (lazyValuesSupported == null) {
+            Class<?> objectClass = getObjectClass();
+            LazyLoad lazyLoad = objectClass != null ? objectClass.getAnnotation(LazyLoad.class) : null;
+
+            lazyValuesSupported = lazyLoad != null && lazyLoad.trackWrites();
+        }
+
+        return lazyValuesSupported;
+    }
+
     // Recursively adds all names based on the class hierarchy.
     private static void addNames(
             DatabaseEnvironment environment,
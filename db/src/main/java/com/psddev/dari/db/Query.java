@@ -147,6 +147,8 @@ public class Query<E> extends Record {
     private transient boolean noCache;
     private transient boolean master;
     private transient boolean resolveInvisible;
+    private transient boolean lazyValues;
+    private transient int preloadReferencesDepth;
     private transient Double timeout;
     private transient Map<String, Object> options;
     private final transient Map<String, String> extraSourceColumns = new HashMap<String, String>();
@@ -370,6 +372,45 @@ public class Query<E> extends Record {
         this.resolveInvisible = resolveInvisible;
     }
 
+    /**
+     * Returns {@code true} if this query will return objects whose values
+     * are converted to Java values only when they're first accessed.
+     *
+     * @see State#isLazyValues()
+     */
+    public boolean isLazyValues() {
+        return lazyValues;
+    }
+
+    /**
+     * Sets whether this query will return objects whose values are
+     * converted to Java values only when they're first accessed.
+     *
+     * @see State#isLazyValues()
+     */
+    public void setLazyValues(boolean lazyValues) {
+        this.lazyValues = lazyValues;
+    }
+
+    /**
+     * Returns how many levels of references will be resolved in bulk for
+     * all objects returned by {@link #selectAll} and {@link #select(long,
+     * int)}. {@code 0} means that each object resolves its own references.
+     */
+    public int getPreloadReferencesDepth() {
+        return preloadReferencesDepth;
+    }
+
+    /**
+     * Sets how many levels of references will be resolved in bulk for all
+     * objects returned by {@link #selectAll} and {@link #select(long, int)}.
+     *
+     * @param preloadReferencesDepth {@code 0} or less to disable.
+     */
+    public void setPreloadReferencesDepth(int preloadReferencesDepth) {
+        this.preloadReferencesDepth = Math.max(0, preloadReferencesDepth);
+    }
+
     /**
      * Gets the maximum allowed execution time (in seconds).
      */
@@ -712,6 +753,29 @@ public class Query<E> extends Record {
         return this;
     }
 
+    /**
+     * Sets this query to return objects whose values are converted to
+     * Java values only when they're first accessed.
+     *
+     * @see State#isLazyValues()
+     */
+    public Query<E> lazyValues() {
+        setLazyValues(true);
+        return this;
+    }
+
+    /**
+     * Sets this query to resolve the references of all returned objects in
+     * bulk, using one query per database for each level up to the given
+     * {@code depth}, instead of one query per object.
+     *
+     * @see #getPreloadReferencesDepth()
+     */
+    public Query<E> preloadReferences(int depth) {
+        setPreloadReferencesDepth(depth);
+        return this;
+    }
+
     /**
      * Sets the maximum allowed execution time (in seconds).
      */
@@ -1382,6 +1446,8 @@ public class Query<E> extends Record {
         clone.setCache(!noCache);
         clone.setMaster(master);
         clone.setResolveInvisible(resolveInvisible);
+        clone.setLazyValues(lazyValues);
+        clone.setPreloadReferencesDepth(preloadReferencesDepth);
         clone.setTimeout(timeout);
         clone.setOptions(options != null ? new HashMap<String, Object>(options) : null);
 
@@ -1572,7 +1638,7 @@ public class Query<E> extends Record {
      * in a {@linkplain #getDatabase database}.
      */
     public PaginatedResult<E> select(long offset, int limit) {
-        return getDatabase().readPartial(this, offset, limit);
+        return ReferencePreloader.read(this, () -> getDatabase().readPartial(this, offset, limit), PaginatedResult::getItems);
     }
 
     /**
@@ -1580,7 +1646,7 @@ public class Query<E> extends Record {
      * {@linkplain #getDatabase database}.
      */
     public List<E> selectAll() {
-        return getDatabase().readAll(this);
+        return ReferencePreloader.read(this, () -> getDatabase().readAll(this), items -> items);
     }
 
     /**
@@ -1591,6 +1657,19 @@ public class Query<E> extends Record {
         return getDatabase().readIterable(this, fetchSize);
     }
 
+    /**
+     * Returns iterables that together contain all objects matching this
+     * query in a {@linkplain #getDatabase database}, each covering a
+     * disjoint subset of them, so that they can be iterated concurrently
+     * (e.g. one per worker thread).
+     *
+     * @param partitions Desired number of iterables. The actual number may
+     *        differ depending on the database.
+     */
+    public List<Iterable<E>> partitionedIterables(int partitions, int fetchSize) {
+        return getDatabase().readPartitionedIterables(this, partitions, fetchSize);
+    }
+
     /**
      * Returns {@code true} if there are more items that match this query than
      * the given {@code count}.
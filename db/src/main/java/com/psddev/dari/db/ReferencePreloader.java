@@ -0,0 +1,309 @@
+package com.psddev.dari.db;
+
+import com.google.common.collect.Iterables;
+import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.util.Profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Resolves the references within a page of objects in bulk, so that each
+ * object doesn't have to query for its own references.
+ *
+ * <p>While the page is being read, the objects created for the query
+ * {@linkplain State#isDeferReferences defer} their references. Afterwards,
+ * all unresolved reference IDs are fetched using one query per database,
+ * and the results are stored in each object's
+ * {@link State#SUB_DATA_STATE_EXTRA_PREFIX sub data extras} where
+ * {@link StateValueUtils#resolveReferences} picks them up without any
+ * additional queries.</p>
+ *
+ * @see Query#preloadReferences(int)
+ */
+final class ReferencePreloader {
+
+    private static final String DEFERRED_REFERENCES_EXTRA = "dari.deferredReferences";
+    private static final String PROFILER_EVENT = "Preload References";
+    private static final int BATCH_SIZE = 500;
+
+    private static final ThreadLocal<Query<?>> DEFERRING_QUERY = new ThreadLocal<>();
+
+    private ReferencePreloader() {
+    }
+
+    /**
+     * Reads the objects using the given {@code reader} and preloads their
+     * references up to the query's
+     * {@linkplain Query#getPreloadReferencesDepth depth}.
+     *
+     * @param query Nonnull.
+     * @param reader Nonnull.
+     * @param objectsFunction Nonnull. Extracts the objects to preload from
+     *        the result.
+     */
+    public static <R> R read(Query<?> query, Supplier<R> reader, Function<R, Collection<?>> objectsFunction) {
+        int depth = query.getPreloadReferencesDepth();
+
+        if (depth <= 0 || query.isResolveToReferenceOnly()) {
+            return reader.get();
+        }
+
+        Query<?> oldQuery = DEFERRING_QUERY.get();
+        R result;
+
+        DEFERRING_QUERY.set(query);
+
+        try {
+            result = reader.get();
+
+        } finally {
+            if (oldQuery != null) {
+                DEFERRING_QUERY.set(oldQuery);
+
+            } else {
+                DEFERRING_QUERY.remove();
+            }
+        }
+
+        if (result != null) {
+            preload(objectsFunction.apply(result), depth);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns {@code true} if the objects created for the given
+     * {@code query} should defer resolving their references.
+     *
+     * @param query Nullable.
+     */
+    public static boolean isDeferring(Query<?> query) {
+        return query != null && DEFERRING_QUERY.get() == query;
+    }
+
+    /**
+     * Remembers the references in the given {@code value} of the given
+     * {@code field} so that they can be preloaded later.
+     *
+     * @param state Nonnull.
+     * @param field Nullable.
+     * @param value Nullable.
+     */
+    public static void collectReferences(State state, String field, Object value) {
+        if (value instanceof Map) {
+            if (StateValueUtils.toIdIfReference(value) != null) {
+                getDeferredReferences(state, field).add((Map<?, ?>) value);
+            }
+
+        } else if (value instanceof Collection) {
+            for (Object item : (Collection<?>) value) {
+                if (StateValueUtils.toIdIfReference(item) != null) {
+                    getDeferredReferences(state, field).add((Map<?, ?>) item);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<?, ?>> getDeferredReferences(State state, String field) {
+        return ((Map<String, List<Map<?, ?>>>) state.getExtras().computeIfAbsent(DEFERRED_REFERENCES_EXTRA, k -> new LinkedHashMap<>()))
+                .computeIfAbsent(field, k -> new ArrayList<>());
+    }
+
+    // Fetches all unresolved references in the given objects and makes them
+    // available to each object.
+    private static void preload(Collection<?> objects, int depth) {
+        Map<UUID, Object> pageObjects = new HashMap<>();
+        Map<List<Object>, Batch> batches = new LinkedHashMap<>();
+        List<State> deferredStates = new ArrayList<>();
+
+        for (Object object : objects) {
+            if (object != null) {
+                State state = State.getInstance(object);
+
+                pageObjects.put(state.getId(), object);
+            }
+        }
+
+        for (Object object : objects) {
+            if (object == null) {
+                continue;
+            }
+
+            State state = State.getInstance(object);
+            @SuppressWarnings("unchecked")
+            Map<String, List<Map<?, ?>>> references = (Map<String, List<Map<?, ?>>>) state.getExtras().remove(DEFERRED_REFERENCES_EXTRA);
+
+            if (state.isDeferReferences()) {
+                state.setDeferReferences(false);
+                deferredStates.add(state);
+
+            } else if (references == null) {
+
+                // Not created by this read (e.g. from a cache), so only the
+                // top-level references are still raw.
+                references = new LinkedHashMap<>();
+
+                for (Map.Entry<String, Object> entry : state.getRawValues().entrySet()) {
+                    Object value = entry.getValue();
+
+                    if (StateValueUtils.toIdIfReference(value) != null) {
+                        references.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add((Map<?, ?>) value);
+                    }
+                }
+            }
+
+            if (references == null || references.isEmpty() || state.isResolveToReferenceOnly()) {
+                continue;
+            }
+
+            Map<String, Object> extras = state.getExtras();
+            Batch batch = null;
+
+            for (Map.Entry<String, List<Map<?, ?>>> entry : references.entrySet()) {
+                String field = entry.getKey();
+
+                for (Map<?, ?> reference : entry.getValue()) {
+                    UUID id = StateValueUtils.toIdIfReference(reference);
+                    String extraKey = State.SUB_DATA_STATE_EXTRA_PREFIX + id;
+
+                    if (extras.containsKey(extraKey)) {
+                        continue;
+                    }
+
+                    Object pageObject = pageObjects.get(id);
+
+                    if (pageObject != null) {
+                        extras.put(extraKey, pageObject);
+                        continue;
+                    }
+
+                    if (batch == null) {
+                        batch = batches.computeIfAbsent(
+                                Arrays.asList(state.getDatabase(), state.isResolveUsingCache(), state.isResolveUsingMaster(), state.isResolveInvisible()),
+                                k -> new Batch(state));
+                    }
+
+                    batch.statesById.computeIfAbsent(id, k -> new ArrayList<>()).add(state);
+                    batch.fieldsById.computeIfAbsent(id, k -> new LinkedHashSet<>()).add(field);
+
+                    UUID typeId = ObjectUtils.to(UUID.class, reference.get(StateSerializer.TYPE_KEY));
+
+                    if (typeId != null) {
+                        batch.typeIds.add(typeId);
+                    }
+                }
+            }
+        }
+
+        if (!batches.isEmpty()) {
+            Profiler.Static.startThreadEvent(PROFILER_EVENT);
+
+            try {
+                for (Batch batch : batches.values()) {
+                    batch.execute(depth);
+                }
+
+            } finally {
+                Profiler.Static.stopThreadEvent();
+            }
+        }
+
+        // Objects whose types aren't lazy loaded would normally have their
+        // references resolved by now.
+        for (State state : deferredStates) {
+            ObjectType type = state.getType();
+
+            if (type == null || !type.isLazyLoaded()) {
+                state.resolveReferences();
+            }
+        }
+    }
+
+    private static final class Batch {
+
+        public final Database database;
+        public final boolean cache;
+        public final boolean master;
+        public final boolean resolveInvisible;
+        public final Map<UUID, List<State>> statesById = new LinkedHashMap<>();
+        public final Map<UUID, Set<String>> fieldsById = new HashMap<>();
+        public final Set<UUID> typeIds = new HashSet<>();
+
+        public Batch(State state) {
+            this.database = state.getDatabase();
+            this.cache = state.isResolveUsingCache();
+            this.master = state.isResolveUsingMaster();
+            this.resolveInvisible = state.isResolveInvisible();
+        }
+
+        // Fetches all the references and stores them in the extras of the
+        // referencing states, including the ones that weren't found so that
+        // they're not queried again.
+        public void execute(int depth) {
+            Map<UUID, Object> found = new HashMap<>();
+
+            for (List<UUID> ids : Iterables.partition(statesById.keySet(), BATCH_SIZE)) {
+                Set<Object> parents = new LinkedHashSet<>();
+                Set<String> fields = new LinkedHashSet<>();
+
+                for (UUID id : ids) {
+                    for (State state : statesById.get(id)) {
+                        parents.add(state.getOriginalObject());
+                    }
+
+                    fields.addAll(fieldsById.get(id));
+                }
+
+                // Same options as StateValueUtils#resolveReferences, except
+                // that there may be more than one referencing object or
+                // field.
+                Query<Object> query = Query
+                        .from(Object.class)
+                        .where("_id = ?", ids)
+                        .using(database)
+                        .option(State.REFERENCE_RESOLVING_QUERY_OPTION, onlyOrAll(parents))
+                        .option(State.REFERENCE_FIELD_QUERY_OPTION, onlyOrAll(fields))
+                        .option(State.UNRESOLVED_TYPE_IDS_QUERY_OPTION, typeIds)
+                        .preloadReferences(depth - 1);
+
+                query.setCache(cache);
+                query.setMaster(master);
+                query.setResolveInvisible(resolveInvisible);
+
+                for (Object object : query.selectAll()) {
+                    found.put(State.getInstance(object).getId(), object);
+                }
+            }
+
+            for (Map.Entry<UUID, List<State>> entry : statesById.entrySet()) {
+                UUID id = entry.getKey();
+                Object object = found.get(id);
+
+                for (State state : entry.getValue()) {
+                    state.getExtras().put(State.SUB_DATA_STATE_EXTRA_PREFIX + id, object);
+                }
+            }
+        }
+
+        // Returns the only value, or a list of all of them.
+        private static Object onlyOrAll(Set<?> values) {
+            return values.size() == 1
+                    ? values.iterator().next()
+                    : new ArrayList<>(values);
+        }
+    }
+}
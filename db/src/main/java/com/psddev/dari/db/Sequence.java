@@ -1,5 +1,11 @@
 package com.psddev.dari.db;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
 import com.psddev.dari.util.ObjectUtils;
 
 /**
@@ -32,10 +38,22 @@ public class Sequence extends Record {
 
     /** Returns the next number in this sequence. */
     public double next() {
+        return reserve(1);
+    }
+
+    /**
+     * Reserves the given number of values in this sequence at once and
+     * returns the last one.
+     *
+     * @param size Must be greater than {@code 0}.
+     */
+    public double reserve(int size) {
+        Preconditions.checkArgument(size > 0, "Size must be greater than 0!");
+
         synchronized (this) {
             State state = getState();
 
-            state.incrementAtomically("value", 1.0);
+            state.incrementAtomically("value", size);
             state.saveImmediately();
 
             return ObjectUtils.to(double.class, state.get("value"));
@@ -45,24 +63,76 @@ public class Sequence extends Record {
     /** {@link Sequence} utility methods. */
     public static final class Static {
 
+        private static final Map<Database, Map<String, Allocator>> ALLOCATORS = new WeakHashMap<Database, Map<String, Allocator>>();
+
         /**
          * Returns the next number in the sequence with the given {@code name},
          * or the given {@code initialValue} if the sequence has never been
          * used before.
          *
+         * <p>The numbers are gap-free, since each one is written to the
+         * database before it's returned.</p>
+         *
          * @param name Can't be blank.
          */
         public static long nextLong(String name, long initialValue) {
+            Database database = Database.Static.getDefault();
+
+            return getAllocator(database, name, initialValue).reserve(database, 1);
+        }
+
+        /**
+         * Returns the next number in the sequence with the given {@code name}
+         * from a block of {@code blockSize} numbers that's reserved at once
+         * and handed out locally.
+         *
+         * <p>The numbers are unique and increasing within this VM, but they
+         * interleave with the blocks reserved by the other VMs, and the
+         * unused numbers in a block are lost when the VM stops.</p>
+         *
+         * @param name Can't be blank.
+         * @param blockSize Must be greater than {@code 0}.
+         */
+        public static long nextLong(String name, long initialValue, int blockSize) {
+            Database database = Database.Static.getDefault();
+
+            return getAllocator(database, name, initialValue).next(database, blockSize);
+        }
+
+        // Finds or creates the allocator for the sequence with the given
+        // name in the given database.
+        private static Allocator getAllocator(Database database, String name, long initialValue) {
+            synchronized (Static.class) {
+                Map<String, Allocator> byName = ALLOCATORS.get(database);
+
+                if (byName == null) {
+                    byName = new HashMap<String, Allocator>();
+                    ALLOCATORS.put(database, byName);
+                }
+
+                Allocator allocator = byName.get(name);
+
+                if (allocator == null) {
+                    allocator = new Allocator(name, initialValue);
+                    byName.put(name, allocator);
+                }
+
+                return allocator;
+            }
+        }
+
+        private static Sequence findOrCreate(Database database, String name, long initialValue) {
             Sequence s = null;
 
             while (true) {
-                s = Query.from(Sequence.class).where("name = ?", name).master().noCache().first();
+                s = Query.from(Sequence.class).where("name = ?", name).using(database).master().noCache().first();
 
                 if (s != null) {
                     break;
                 }
 
                 s = new Sequence();
+                s.getState().setDatabase(database);
                 s.setName(name);
                 s.setValue(initialValue);
 
@@ -77,7 +147,58 @@ public class Sequence extends Record {
                 }
             }
 
-            return (long) s.next();
+            return s;
+        }
+    }
+
+    // Hands out the numbers from the block that was last reserved. Doesn't
+    // keep the sequence, since its state refers to the database that's the
+    // weak key of the allocator.
+    private static final class Allocator {
+
+        private final String name;
+        private final long initialValue;
+        private volatile Block block;
+
+        public Allocator(String name, long initialValue) {
+            this.name = name;
+            this.initialValue = initialValue;
+        }
+
+        public long reserve(Database database, int size) {
+            return (long) Static.findOrCreate(database, name, initialValue).reserve(size);
+        }
+
+        public long next(Database database, int blockSize) {
+            while (true) {
+                Block current = block;
+
+                if (current != null) {
+                    long value = current.next.getAndIncrement();
+
+                    if (value <= current.last) {
+                        return value;
+                    }
+                }
+
+                synchronized (this) {
+                    if (block == current) {
+                        long last = reserve(database, blockSize);
+                        block = new Block(last - blockSize + 1, last);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Block {
+
+        public final AtomicLong next;
+        public final long last;
+
+        public Block(long first, long last) {
+            this.next = new AtomicLong(first);
+            this.last = last;
         }
     }
 }
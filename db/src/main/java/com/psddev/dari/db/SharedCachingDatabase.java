@@ -0,0 +1,791 @@
+package com.psddev.dari.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.util.PaginatedResult;
+import com.psddev.dari.util.SettingsException;
+
+/**
+ * Caches the results of read operations across requests.
+ *
+ * <p>Unlike {@link CachingDatabase}, which is meant to be used within a
+ * single request, the results are kept until they're evicted, based on the
+ * estimated number of bytes that they use, or invalidated. A result is
+ * invalidated when an object that's contained in it is written, or when an
+ * object of a type that its query depends on is written with changes to
+ * the fields that the query filters or sorts by. The writes are the ones
+ * made through this database or reported by the {@link UpdateNotifier}s of
+ * the delegate (e.g. from the MySQL binary log).</p>
+ *
+ * <p>The changed fields are found by comparing the object against the data
+ * that's still cached for it. If there isn't any, or if the object is
+ * new or deleted, all fields are considered changed.</p>
+ *
+ * <p>The objects are kept in their serialized form, so that every read
+ * returns new instances that can be modified safely.</p>
+ *
+ * <p>All methods are thread-safe.</p>
+ */
+public class SharedCachingDatabase extends ForwardingDatabase {
+
+    public static final String MAXIMUM_BYTES_SUB_SETTING = "maximumBytes";
+
+    private static final long DEFAULT_MAXIMUM_BYTES = 64L * 1024L * 1024L;
+    private static final int ENTRY_OVERHEAD = 256;
+    private static final int ITEM_OVERHEAD = 64;
+    private static final String VISIBILITIES_FIELD = "dari.visibilities";
+
+    private volatile long maximumBytes = DEFAULT_MAXIMUM_BYTES;
+    private volatile Cache<Key, Entry> cache = createCache(DEFAULT_MAXIMUM_BYTES);
+
+    private final Map<UUID, Set<Key>> keysByTypeId = new ConcurrentHashMap<>();
+    private final Map<UUID, Set<Key>> keysById = new ConcurrentHashMap<>();
+    private final Set<Key> wildcardKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final ThreadLocal<List<Write>> pendingWrites = new ThreadLocal<>();
+    private final UpdateNotifier<Object> notifier = new Notifier();
+
+    /**
+     * Returns the maximum number of bytes that the cached results can use.
+     */
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    /**
+     * Sets the maximum number of bytes that the cached results can use.
+     * This also clears the cache.
+     *
+     * @param maximumBytes Must be greater than {@code 0}.
+     * @see #MAXIMUM_BYTES_SUB_SETTING
+     */
+    public void setMaximumBytes(long maximumBytes) {
+        if (maximumBytes <= 0L) {
+            throw new IllegalArgumentException("Maximum bytes must be greater than 0!");
+        }
+
+        this.maximumBytes = maximumBytes;
+        Cache<Key, Entry> oldCache = cache;
+        cache = createCache(maximumBytes);
+
+        oldCache.invalidateAll();
+    }
+
+    private Cache<Key, Entry> createCache(long maximumBytes) {
+        return CacheBuilder
+                .newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((Key key, Entry entry) -> entry.weight)
+                .removalListener(this::removeDependencies)
+                .build();
+    }
+
+    /**
+     * Invalidates all cached results.
+     */
+    public void invalidateAll() {
+        invalidations.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    /**
+     * Invalidates all cached results that may have been affected by a write
+     * to the given {@code state}.
+     *
+     * @param state Nonnull.
+     */
+    public void invalidate(State state) {
+        invalidate(createWrite(state, false));
+    }
+
+    // Finds the fields that the write to the state changed, unless it's a
+    // delete.
+    private Write createWrite(State state, boolean delete) {
+        Item oldItem = findItem(state.getId());
+
+        return new Write(
+                state,
+                oldItem != null ? oldItem.typeId : null,
+                delete ? null : findChangedFields(oldItem, state));
+    }
+
+    private void invalidate(Write write) {
+        invalidations.incrementAndGet();
+
+        State state = write.state;
+        Set<Key> keys = new HashSet<>(wildcardKeys);
+        Set<Key> typeKeys = new HashSet<>();
+
+        addKeys(keys, keysById, state.getId());
+        addKeys(typeKeys, keysByTypeId, write.oldTypeId);
+        addKeys(typeKeys, keysByTypeId, state.getTypeId());
+        addKeys(typeKeys, keysByTypeId, state.getVisibilityAwareTypeId());
+
+        Map<Key, Entry> entries = cache.asMap();
+
+        for (Key key : typeKeys) {
+            Entry entry = entries.get(key);
+
+            if (entry != null && entry.dependsOn(write.changedFields)) {
+                keys.add(key);
+            }
+        }
+
+        cache.invalidateAll(keys);
+    }
+
+    // Finds the data that's still cached for the object with the given id.
+    private Item findItem(UUID id) {
+        Set<Key> keys = id != null ? keysById.get(id) : null;
+
+        if (keys == null) {
+            return null;
+        }
+
+        Map<Key, Entry> entries = cache.asMap();
+
+        for (Key key : keys) {
+            Entry entry = entries.get(key);
+
+            if (entry != null) {
+                for (Item item : entry.items) {
+                    if (id.equals(item.id) && item.data != null) {
+                        return item;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // Compares the state against the old data, and returns null if all
+    // fields should be considered changed.
+    private Set<String> findChangedFields(Item oldItem, State state) {
+        if (oldItem == null || !oldItem.typeId.equals(state.getTypeId())) {
+            return null;
+        }
+
+        // Round-trip the new values so that they compare equal to the old.
+        Map<String, Object> oldValues = StateSerializer.deserialize(oldItem.data);
+        Map<String, Object> newValues = StateSerializer.deserialize(StateSerializer.serialize(state.getSimpleValues(), StateSerializer.Format.BINARY));
+        Set<String> names = new HashSet<>(oldValues.keySet());
+        Set<String> changedFields = new HashSet<>();
+
+        names.addAll(newValues.keySet());
+
+        for (String name : names) {
+            if (!ObjectUtils.equals(oldValues.get(name), newValues.get(name))) {
+                changedFields.add(name);
+            }
+        }
+
+        // Changing the visibility moves the object between types.
+        if (changedFields.contains(VISIBILITIES_FIELD)
+                || isVisibilityChanged(oldValues, changedFields)
+                || isVisibilityChanged(newValues, changedFields)) {
+
+            return null;
+        }
+
+        return changedFields;
+    }
+
+    private boolean isVisibilityChanged(Map<String, Object> values, Set<String> changedFields) {
+        Object visibilities = values.get(VISIBILITIES_FIELD);
+
+        if (visibilities instanceof Collection) {
+            for (Object visibility : (Collection<?>) visibilities) {
+                if (changedFields.contains(visibility)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private void addKeys(Set<Key> keys, Map<UUID, Set<Key>> keysByUuid, UUID uuid) {
+        if (uuid != null) {
+            Set<Key> uuidKeys = keysByUuid.get(uuid);
+
+            if (uuidKeys != null) {
+                keys.addAll(uuidKeys);
+            }
+        }
+    }
+
+    // Removes the entry from all dependency indexes when it's evicted or
+    // invalidated.
+    private void removeDependencies(RemovalNotification<Key, Entry> notification) {
+        if (notification.getCause() == RemovalCause.REPLACED) {
+            return;
+        }
+
+        Key key = notification.getKey();
+        Entry entry = notification.getValue();
+
+        if (key == null || entry == null) {
+            return;
+        }
+
+        wildcardKeys.remove(key);
+        removeKey(keysByTypeId, entry.typeIds, key);
+        removeKey(keysById, entry.ids, key);
+    }
+
+    private void removeKey(Map<UUID, Set<Key>> keysByUuid, Collection<UUID> uuids, Key key) {
+        for (UUID uuid : uuids) {
+            keysByUuid.computeIfPresent(uuid, (k, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    private boolean isCacheable(Query<?> query) {
+        return query.isCache()
+                && !query.isMaster()
+                && query.getOptions().isEmpty()
+                && findCreator() != null;
+    }
+
+    // Finds the database that creates the objects, so that the cached ones
+    // are created the same way.
+    private AbstractDatabase<?> findCreator() {
+        Database database = getDelegate();
+
+        while (database instanceof ForwardingDatabase) {
+            database = ((ForwardingDatabase) database).getDelegate();
+        }
+
+        return database instanceof AbstractDatabase
+                ? (AbstractDatabase<?>) database
+                : null;
+    }
+
+    // Caches the entry unless it was invalidated while it was being read.
+    private void put(Key key, long generation, Entry entry) {
+        if (entry == null) {
+            return;
+        }
+
+        if (entry.wildcard) {
+            wildcardKeys.add(key);
+        }
+
+        for (UUID typeId : entry.typeIds) {
+            keysByTypeId.computeIfAbsent(typeId, k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+
+        for (UUID id : entry.ids) {
+            keysById.computeIfAbsent(id, k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+
+        cache.put(key, entry);
+
+        if (invalidations.get() != generation) {
+            cache.invalidate(key);
+        }
+    }
+
+    // Creates an entry that contains the given items, or returns null if
+    // any of them can't be cached.
+    private Entry createEntry(Query<?> query, List<?> items, long count) {
+        List<Item> cachedItems = new ArrayList<>();
+
+        for (Object item : items) {
+            if (item == null || item instanceof ObjectType) {
+                return null;
+            }
+
+            State state = State.getInstance(item);
+
+            if (state.getType() == null) {
+                return null;
+            }
+
+            cachedItems.add(new Item(state));
+        }
+
+        return new Entry(getDelegate(), query, cachedItems, count);
+    }
+
+    @Override
+    public <T> List<T> readAll(Query<T> query) {
+        if (!isCacheable(query)) {
+            return super.readAll(query);
+        }
+
+        Key key = new Key("readAll", query, 0L, 0);
+        Entry entry = cache.getIfPresent(key);
+
+        if (entry != null) {
+            return entry.createObjects(findCreator(), query);
+        }
+
+        long generation = invalidations.get();
+        List<T> all = super.readAll(query);
+
+        put(key, generation, createEntry(query, all, all.size()));
+        return all;
+    }
+
+    @Override
+    public long readCount(Query<?> query) {
+        if (!isCacheable(query)) {
+            return super.readCount(query);
+        }
+
+        Key key = new Key("readCount", query, 0L, 0);
+        Entry entry = cache.getIfPresent(key);
+
+        if (entry != null) {
+            return entry.count;
+        }
+
+        long generation = invalidations.get();
+        long count = super.readCount(query);
+
+        put(key, generation, createEntry(query, Collections.emptyList(), count));
+        return count;
+    }
+
+    @Override
+    public <T> T readFirst(Query<T> query) {
+        if (!isCacheable(query)) {
+            return super.readFirst(query);
+        }
+
+        Key key = new Key("readFirst", query, 0L, 0);
+        Entry entry = cache.getIfPresent(key);
+
+        if (entry != null) {
+            List<T> objects = entry.createObjects(findCreator(), query);
+
+            return objects.isEmpty() ? null : objects.get(0);
+        }
+
+        long generation = invalidations.get();
+        T first = super.readFirst(query);
+
+        put(key, generation, createEntry(
+                query,
+                first != null ? Collections.singletonList(first) : Collections.emptyList(),
+                first != null ? 1L : 0L));
+
+        return first;
+    }
+
+    @Override
+    public <T> PaginatedResult<T> readPartial(Query<T> query, long offset, int limit) {
+        if (!isCacheable(query)) {
+            return super.readPartial(query, offset, limit);
+        }
+
+        Key key = new Key("readPartial", query, offset, limit);
+        Entry entry = cache.getIfPresent(key);
+
+        if (entry != null) {
+            return new PaginatedResult<>(offset, limit, entry.count, entry.createObjects(findCreator(), query));
+        }
+
+        long generation = invalidations.get();
+        PaginatedResult<T> result = super.readPartial(query, offset, limit);
+
+        put(key, generation, createEntry(query, result.getItems(), result.getCount()));
+        return result;
+    }
+
+    // --- Write support ---
+
+    private void invalidateWrite(State state, boolean delete) {
+        Write write = createWrite(state, delete);
+
+        invalidate(write);
+
+        // Invalidate again on commit, in case the old data was read and
+        // cached before then.
+        List<Write> pending = pendingWrites.get();
+
+        if (pending != null) {
+            pending.add(write);
+        }
+    }
+
+    private boolean commit(boolean committed) {
+        List<Write> pending = pendingWrites.get();
+
+        if (committed && pending != null) {
+            pending.forEach(this::invalidate);
+            pending.clear();
+        }
+
+        return committed;
+    }
+
+    @Override
+    public boolean beginWrites() {
+        if (pendingWrites.get() == null) {
+            pendingWrites.set(new ArrayList<>());
+        }
+
+        return super.beginWrites();
+    }
+
+    @Override
+    public void beginIsolatedWrites() {
+        if (pendingWrites.get() == null) {
+            pendingWrites.set(new ArrayList<>());
+        }
+
+        super.beginIsolatedWrites();
+    }
+
+    @Override
+    public boolean commitWrites() {
+        return commit(super.commitWrites());
+    }
+
+    @Override
+    public boolean commitWritesEventually() {
+        return commit(super.commitWritesEventually());
+    }
+
+    @Override
+    public boolean endWrites() {
+        boolean ended = super.endWrites();
+
+        if (ended) {
+            pendingWrites.remove();
+        }
+
+        return ended;
+    }
+
+    @Override
+    public void save(State state) {
+        super.save(state);
+        invalidateWrite(state, false);
+    }
+
+    @Override
+    public void saveUnsafely(State state) {
+        super.saveUnsafely(state);
+        invalidateWrite(state, false);
+    }
+
+    @Override
+    public void index(State state) {
+        super.index(state);
+        invalidateWrite(state, false);
+    }
+
+    @Override
+    public void recalculate(State state, ObjectIndex... indexes) {
+        super.recalculate(state, indexes);
+        invalidateWrite(state, false);
+    }
+
+    @Override
+    public void delete(State state) {
+        super.delete(state);
+        invalidateWrite(state, true);
+    }
+
+    @Override
+    public void deleteByQuery(Query<?> query) {
+        super.deleteByQuery(query);
+        invalidateAll();
+    }
+
+    // --- ForwardingDatabase support ---
+
+    @Override
+    public void setDelegate(Database delegate) {
+        Database oldDelegate = getDelegate();
+
+        if (oldDelegate != null) {
+            oldDelegate.removeUpdateNotifier(notifier);
+        }
+
+        super.setDelegate(delegate);
+        invalidateAll();
+
+        if (delegate != null) {
+            delegate.addUpdateNotifier(notifier);
+        }
+    }
+
+    @Override
+    public void initialize(String settingsKey, Map<String, Object> settings) {
+        super.initialize(settingsKey, settings);
+
+        Object maximumBytes = settings.get(MAXIMUM_BYTES_SUB_SETTING);
+
+        if (maximumBytes != null) {
+            Long maximumBytesLong = ObjectUtils.to(Long.class, maximumBytes);
+
+            if (maximumBytesLong == null || maximumBytesLong <= 0L) {
+                throw new SettingsException(
+                        settingsKey + "/" + MAXIMUM_BYTES_SUB_SETTING,
+                        String.format("[%s] isn't a valid number of bytes!", maximumBytes));
+            }
+
+            setMaximumBytes(maximumBytesLong);
+        }
+    }
+
+    // Invalidates the cache when the delegate reports a write from
+    // elsewhere.
+    private class Notifier implements UpdateNotifier<Object> {
+
+        @Override
+        public void onUpdate(Object object) {
+            invalidate(createWrite(State.getInstance(object), false));
+        }
+
+        @Override
+        public void onDelete(Object object) {
+            invalidate(createWrite(State.getInstance(object), true));
+        }
+    }
+
+    private static final class Key {
+
+        private final String method;
+        private final Query<?> query;
+        private final boolean referenceOnly;
+        private final long offset;
+        private final int limit;
+
+        public Key(String method, Query<?> query, long offset, int limit) {
+            this.method = method;
+            this.query = query.clone();
+            this.referenceOnly = query.isReferenceOnly();
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+
+            } else if (other instanceof Key) {
+                Key otherKey = (Key) other;
+
+                return method.equals(otherKey.method)
+                        && query.equals(otherKey.query)
+                        && referenceOnly == otherKey.referenceOnly
+                        && offset == otherKey.offset
+                        && limit == otherKey.limit;
+
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return ObjectUtils.hashCode(method, query, referenceOnly, offset, limit);
+        }
+    }
+
+    private static final class Entry {
+
+        public final List<Item> items;
+        public final long count;
+        public final Set<UUID> typeIds;
+        public final Set<UUID> ids;
+        public final Set<String> fields;
+        public final boolean wildcard;
+        public final int weight;
+
+        public Entry(Database database, Query<?> query, List<Item> items, long count) {
+            this.items = items;
+            this.count = count;
+            this.typeIds = query.getConcreteTypeIds(database);
+            this.ids = ConcurrentHashMap.newKeySet();
+            this.fields = findFields(database, query, typeIds);
+            this.wildcard = typeIds.isEmpty() || dependsOnOtherTypes(query);
+
+            long weight = ENTRY_OVERHEAD;
+
+            for (Item item : items) {
+                ids.add(item.id);
+                weight += ITEM_OVERHEAD + (item.data != null ? item.data.length : 0);
+            }
+
+            this.weight = (int) Math.min(weight, Integer.MAX_VALUE);
+        }
+
+        // Returns true if the result may change when the given fields
+        // change. Null means all fields.
+        public boolean dependsOn(Set<String> changedFields) {
+            return changedFields == null
+                    || fields == null
+                    || !Collections.disjoint(fields, changedFields);
+        }
+
+        // Finds the fields that the query filters or sorts by, or returns
+        // null if it may depend on any of them.
+        private static Set<String> findFields(Database database, Query<?> query, Set<UUID> typeIds) {
+            Set<String> fields = new HashSet<>();
+
+            for (Sorter sorter : query.getSorters()) {
+                for (Object option : sorter.getOptions()) {
+                    if (option instanceof String) {
+                        fields.add((String) option);
+
+                    } else if (option instanceof Predicate && !addFields(fields, (Predicate) option)) {
+                        return null;
+                    }
+                }
+            }
+
+            if (!addFields(fields, query.getPredicate())) {
+                return null;
+            }
+
+            for (String field : fields) {
+                if (Query.ID_KEY.equals(field)) {
+                    continue;
+
+                } else if (field.startsWith("_") || !isStoredField(database, typeIds, field)) {
+                    return null;
+                }
+            }
+
+            return fields;
+        }
+
+        // Methods and denormalized fields are indexed with the values that
+        // aren't in the changed fields of the object itself.
+        private static boolean isStoredField(Database database, Set<UUID> typeIds, String name) {
+            DatabaseEnvironment environment = database.getEnvironment();
+
+            for (UUID typeId : typeIds) {
+                ObjectType type = environment.getTypeById(typeId);
+                ObjectField field = type != null ? type.getField(name) : null;
+
+                if (field == null) {
+                    field = environment.getField(name);
+                }
+
+                if (field == null
+                        || field instanceof ObjectMethod
+                        || field.isDenormalized()) {
+
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static boolean addFields(Set<String> fields, Predicate predicate) {
+            if (predicate instanceof CompoundPredicate) {
+                for (Predicate child : ((CompoundPredicate) predicate).getChildren()) {
+                    if (!addFields(fields, child)) {
+                        return false;
+                    }
+                }
+
+                return true;
+
+            } else if (predicate instanceof ComparisonPredicate) {
+                fields.add(((ComparisonPredicate) predicate).getKey());
+                return true;
+
+            } else {
+                return predicate == null;
+            }
+        }
+
+        // Paths and sub-queries may match against objects of any type.
+        private static boolean dependsOnOtherTypes(Query<?> query) {
+            for (Sorter sorter : query.getSorters()) {
+                for (Object option : sorter.getOptions()) {
+                    if (option instanceof String && ((String) option).contains("/")) {
+                        return true;
+                    }
+                }
+            }
+
+            return dependsOnOtherTypes(query.getPredicate());
+        }
+
+        private static boolean dependsOnOtherTypes(Predicate predicate) {
+            if (predicate instanceof CompoundPredicate) {
+                for (Predicate child : ((CompoundPredicate) predicate).getChildren()) {
+                    if (dependsOnOtherTypes(child)) {
+                        return true;
+                    }
+                }
+
+            } else if (predicate instanceof ComparisonPredicate) {
+                ComparisonPredicate comparison = (ComparisonPredicate) predicate;
+
+                return comparison.getKey().contains("/")
+                        || comparison.findValueQuery() != null;
+            }
+
+            return false;
+        }
+
+        public <T> List<T> createObjects(AbstractDatabase<?> creator, Query<T> query) {
+            List<T> objects = new ArrayList<>(items.size());
+
+            for (Item item : items) {
+                objects.add(creator.createSavedObjectUsingData(item.typeId, item.id, item.data, query));
+            }
+
+            return objects;
+        }
+    }
+
+    // Write to an object along with the fields that it changed. Null
+    // changed fields means all fields.
+    private static final class Write {
+
+        public final State state;
+        public final UUID oldTypeId;
+        public final Set<String> changedFields;
+
+        public Write(State state, UUID oldTypeId, Set<String> changedFields) {
+            this.state = state;
+            this.oldTypeId = oldTypeId;
+            this.changedFields = changedFields;
+        }
+    }
+
+    private static final class Item {
+
+        public final UUID typeId;
+        public final UUID id;
+        public final byte[] data;
+
+        public Item(State state) {
+            this.typeId = state.getTypeId();
+            this.id = state.getId();
+            this.data = state.isReferenceOnly()
+                    ? null
+                    : StateSerializer.serialize(state.getSimpleValues(), StateSerializer.Format.BINARY);
+        }
+    }
+}
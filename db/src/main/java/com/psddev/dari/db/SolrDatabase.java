@@ -1,5 +1,6 @@
 package com.psddev.dari.db;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Documented;
 import java.lang.annotation.ElementType;
@@ -13,9 +14,11 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Matcher;
@@ -34,6 +37,7 @@ import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.MoreLikeThisParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,8 +66,16 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
     public static final String VERSION_SUB_SETTING = "version";
     public static final String SAVE_DATA_SUB_SETTING = "saveData";
     public static final String AUTO_COMMIT_SUB_SETTING = "autoCommit";
+    public static final String ASYNC_INDEXING_SUB_SETTING = "asyncIndexing";
+    public static final String ASYNC_INDEXING_CAPACITY_SUB_SETTING = "asyncIndexingCapacity";
+    public static final String ASYNC_INDEXING_BATCH_SIZE_SUB_SETTING = "asyncIndexingBatchSize";
+    public static final String ASYNC_INDEXING_INTERVAL_SUB_SETTING = "asyncIndexingInterval";
+    public static final String ASYNC_INDEXING_SPILL_DIRECTORY_SUB_SETTING = "asyncIndexingSpillDirectory";
 
     public static final double DEFAULT_COMMIT_WITHIN = 0.0;
+    public static final int DEFAULT_ASYNC_INDEXING_CAPACITY = 10000;
+    public static final int DEFAULT_ASYNC_INDEXING_BATCH_SIZE = 500;
+    public static final double DEFAULT_ASYNC_INDEXING_INTERVAL = 1.0;
 
     public static final String TENANT_FIELD = "_s__tenant";
     public static final String ID_FIELD = "id";
@@ -75,10 +87,19 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
 
     public static final String SUGGESTION_FIELD = "_e_suggestField";
 
+    /**
+     * Query option for the Solr cursor mark to read the page after, so that
+     * {@link #readPartial} doesn't have to skip over all previous results.
+     * Use {@code *} for the first page, and
+     * {@link SolrPaginatedResult#getNextCursorMark} for the next ones.
+     */
+    public static final String CURSOR_MARK_QUERY_OPTION = "solr.cursorMark";
+
     public static final String SCORE_EXTRA = "solr.score";
     public static final String NORMALIZED_SCORE_EXTRA = "solr.normalizedScore";
 
     private static final int INITIAL_FETCH_SIZE = 100;
+    private static final int DEFAULT_ITERABLE_FETCH_SIZE = 200;
     private static final Logger LOGGER = LoggerFactory.getLogger(SolrDatabase.class);
     private static final Pattern UUID_PATTERN = Pattern.compile("([A-Fa-f0-9]{8})-([A-Fa-f0-9]{4})-([A-Fa-f0-9]{4})-([A-Fa-f0-9]{4})-([A-Fa-f0-9]{12})");
 
@@ -107,6 +128,7 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
     private volatile String version;
     private volatile boolean saveData = true;
     private volatile boolean autoCommit;
+    private volatile SolrIndexQueue indexQueue;
 
     /** Returns the underlying Solr server. */
     public SolrServer getServer() {
@@ -1152,6 +1174,11 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
      * the given {@code query}.
      */
     public <T> SolrPaginatedResult<T> queryPartialWithOptions(SolrQuery solrQuery, Query<T> query) {
+        Integer start = solrQuery.getStart();
+        return queryPartialWithOptions(solrQuery, query, start != null ? start : 0L);
+    }
+
+    private <T> SolrPaginatedResult<T> queryPartialWithOptions(SolrQuery solrQuery, Query<T> query, long offset) {
         QueryResponse response = queryWithOptions(solrQuery, query);
         SolrDocumentList documents = response.getResults();
 
@@ -1164,8 +1191,8 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
             }
         }
 
-        return new SolrPaginatedResult<T>(
-                solrQuery.getStart(),
+        SolrPaginatedResult<T> result = new SolrPaginatedResult<T>(
+                offset,
                 solrQuery.getRows(),
                 count,
                 objects,
@@ -1173,6 +1200,9 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
                 response.getFacetRanges(),
                 query != null ? query.getClass() : null,
                 Settings.isDebug() ? solrQuery : null);
+
+        result.setNextCursorMark(response.getNextCursorMark());
+        return result;
     }
 
     /**
@@ -1222,6 +1252,35 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
         return swapObjectType(query, object);
     }
 
+    /**
+     * Returns {@code true} if the saves and the deletes are queued and sent
+     * to Solr in the background.
+     *
+     * <p>The immediate writes, such as {@link State#saveImmediately}, still
+     * bypass the queue and are sent and committed right away.</p>
+     */
+    public boolean isAsyncIndexing() {
+        return indexQueue != null;
+    }
+
+    /**
+     * Returns the number of documents that are queued to be sent to Solr
+     * in the background.
+     */
+    public int getAsyncIndexingPendingCount() {
+        SolrIndexQueue queue = indexQueue;
+        return queue != null ? queue.getPendingCount() : 0;
+    }
+
+    /**
+     * Returns the number of batches that couldn't be sent to Solr and are
+     * spilled to disk.
+     */
+    public int getAsyncIndexingSpilledCount() {
+        SolrIndexQueue queue = indexQueue;
+        return queue != null ? queue.getSpilledCount() : 0;
+    }
+
     /** Commits all pending writes in the underlying Solr server. */
     public void commit() {
         doCommit(openConnection());
@@ -1298,6 +1357,30 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
         if (autoCommit != null) {
             setAutoCommit(autoCommit);
         }
+
+        SolrIndexQueue oldIndexQueue = indexQueue;
+
+        // Sends the pending documents before the queue is replaced.
+        if (oldIndexQueue != null) {
+            indexQueue = null;
+            oldIndexQueue.stop();
+        }
+
+        if (ObjectUtils.to(boolean.class, settings.get(ASYNC_INDEXING_SUB_SETTING))) {
+            Integer capacity = ObjectUtils.to(Integer.class, settings.get(ASYNC_INDEXING_CAPACITY_SUB_SETTING));
+            Integer batchSize = ObjectUtils.to(Integer.class, settings.get(ASYNC_INDEXING_BATCH_SIZE_SUB_SETTING));
+            Double interval = ObjectUtils.to(Double.class, settings.get(ASYNC_INDEXING_INTERVAL_SUB_SETTING));
+            String spillDirectory = ObjectUtils.to(String.class, settings.get(ASYNC_INDEXING_SPILL_DIRECTORY_SUB_SETTING));
+
+            SolrIndexQueue newIndexQueue = new SolrIndexQueue(
+                    this,
+                    capacity != null ? capacity : DEFAULT_ASYNC_INDEXING_CAPACITY,
+                    batchSize != null ? batchSize : DEFAULT_ASYNC_INDEXING_BATCH_SIZE,
+                    !ObjectUtils.isBlank(spillDirectory) ? new File(spillDirectory) : null);
+
+            newIndexQueue.start(interval != null ? interval : DEFAULT_ASYNC_INDEXING_INTERVAL);
+            indexQueue = newIndexQueue;
+        }
     }
 
     @Override
@@ -1366,12 +1449,125 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Uses a Solr cursor instead of the offset if there's one in the
+     * {@link #CURSOR_MARK_QUERY_OPTION} option. Cursors are never shared
+     * between callers, so a caller that pages by offset alone always reads
+     * with {@code start}; use {@link #readIterable} or pass
+     * {@link SolrPaginatedResult#getNextCursorMark} along to page deeply.</p>
+     */
     @Override
     public <T> PaginatedResult<T> readPartial(Query<T> query, long offset, int limit) {
         SolrQuery solrQuery = buildQuery(query);
-        solrQuery.setStart((int) offset);
+        String cursorMark = ObjectUtils.to(String.class, query.getOptions().get(CURSOR_MARK_QUERY_OPTION));
+
+        if (cursorMark == null) {
+            solrQuery.setStart((int) offset);
+            solrQuery.setRows(limit);
+            return queryPartialWithOptions(solrQuery, query);
+        }
+
+        addCursorSort(solrQuery);
+        solrQuery.setStart(0);
         solrQuery.setRows(limit);
-        return queryPartialWithOptions(solrQuery, query);
+        solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+
+        return queryPartialWithOptions(solrQuery, query, offset);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Reads the results in pages using a Solr cursor, so the cost of
+     * each page doesn't depend on how deep it is.</p>
+     */
+    @Override
+    public <T> Iterable<T> readIterable(Query<T> query, int fetchSize) {
+        return () -> new CursorIterator<T>(query, fetchSize > 0 ? fetchSize : DEFAULT_ITERABLE_FETCH_SIZE);
+    }
+
+    // Makes the sort of the given query total by breaking the ties with
+    // the unique key, as required by the cursors.
+    private void addCursorSort(SolrQuery solrQuery) {
+        String sort = solrQuery.get(CommonParams.SORT);
+
+        if (ObjectUtils.isBlank(sort)) {
+            solrQuery.set(CommonParams.SORT, ID_FIELD + " asc");
+            return;
+        }
+
+        for (String clause : sort.split(",")) {
+            if (clause.trim().startsWith(ID_FIELD + " ")) {
+                return;
+            }
+        }
+
+        solrQuery.set(CommonParams.SORT, sort + "," + ID_FIELD + " asc");
+    }
+
+    private class CursorIterator<T> implements Iterator<T> {
+
+        private final Query<T> query;
+        private final SolrQuery solrQuery;
+        private String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+        private SolrDocumentList documents;
+        private int index;
+        private boolean done;
+
+        public CursorIterator(Query<T> query, int fetchSize) {
+            this.query = query;
+            this.solrQuery = buildQuery(query);
+
+            addCursorSort(solrQuery);
+            solrQuery.setStart(0);
+            solrQuery.setRows(fetchSize);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (documents == null || index >= documents.size()) {
+                if (done) {
+                    return false;
+                }
+
+                solrQuery.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+
+                QueryResponse response = queryWithOptions(solrQuery, query);
+                String nextCursorMark = response.getNextCursorMark();
+
+                documents = response.getResults();
+                index = 0;
+
+                if (documents == null || nextCursorMark == null || nextCursorMark.equals(cursorMark)) {
+                    done = true;
+                }
+
+                cursorMark = nextCursorMark;
+            }
+
+            return true;
+        }
+
+        // Creates the objects one at a time so that a whole page of them
+        // isn't held in memory at once.
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            SolrDocument document = documents.get(index);
+            ++ index;
+
+            return createSavedObjectWithDocument(document, documents, query);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
     @Override
@@ -1630,6 +1826,21 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
             return;
         }
 
+        SolrIndexQueue queue = indexQueue;
+        if (queue != null) {
+            if (isImmediate) {
+                List<String> ids = new ArrayList<String>();
+                for (SolrInputDocument document : documents) {
+                    ids.add(document.getFieldValue(ID_FIELD).toString());
+                }
+
+                queue.supersede(ids);
+
+            } else if (queue.add(documents)) {
+                return;
+            }
+        }
+
         Throwable error = null;
 
         try {
@@ -1862,6 +2073,16 @@ public class SolrDatabase extends AbstractDatabase<SolrServer> {
             idStrings.add(state.getId().toString());
         }
 
+        SolrIndexQueue queue = indexQueue;
+        if (queue != null) {
+            if (isImmediate) {
+                queue.supersede(idStrings);
+
+            } else if (queue.delete(idStrings)) {
+                return;
+            }
+        }
+
         int statesSize = states.size();
         Throwable error = null;
 
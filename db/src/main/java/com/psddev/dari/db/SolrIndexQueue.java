@@ -0,0 +1,558 @@
+package com.psddev.dari.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.psddev.dari.util.Profiler;
+import com.psddev.dari.util.Stats;
+import com.psddev.dari.util.Task;
+
+/**
+ * Bounded queue of the Solr documents that {@link SolrDatabase} indexes
+ * asynchronously in batches.
+ *
+ * <p>The pending writes are coalesced by ID so that only the latest
+ * version of each document is sent. The batches that can't be sent after
+ * a few attempts are spilled to disk, if there's a spill directory, and
+ * are read back once Solr is available again.</p>
+ *
+ * <p>Every write is numbered in the order that it was queued, so that a
+ * spilled version of a document is never sent over a newer one.</p>
+ */
+class SolrIndexQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SolrIndexQueue.class);
+
+    private static final Stats STATS = new Stats("Solr Index Queue");
+    private static final String FLUSH_STATS_OPERATION = "Flush";
+    private static final String FLUSH_PROFILER_EVENT = "Solr Index Queue " + FLUSH_STATS_OPERATION;
+    private static final String SPILL_FILE_SUFFIX = ".solrqueue";
+    private static final int MAXIMUM_ATTEMPTS = 3;
+    private static final int DEFAULT_COMMIT_WITHIN_MILLIS = 1000;
+
+    private final SolrDatabase database;
+    private final int capacity;
+    private final int batchSize;
+    private final File spillDirectory;
+
+    // Held while a batch is being sent so that the older versions of the
+    // documents are never sent after the newer ones.
+    private final Object flushLock = new Object();
+
+    // Null documents are deletes.
+    private final Map<String, Write> pending = new LinkedHashMap<>();
+
+    // Latest sequence of each ID that has a version spilled to disk.
+    private final Map<String, Long> spilledSequences = new HashMap<>();
+
+    private long nextSequence;
+    private boolean stopped;
+
+    private volatile int attempts;
+    private volatile long sentCount;
+    private volatile long failedCount;
+
+    private final Task flusher;
+
+    /**
+     * @param database Nonnull.
+     * @param capacity Maximum number of pending documents.
+     * @param batchSize Maximum number of documents sent at once.
+     * @param spillDirectory Nullable.
+     */
+    public SolrIndexQueue(SolrDatabase database, int capacity, int batchSize, File spillDirectory) {
+        this.database = database;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.spillDirectory = spillDirectory;
+
+        if (spillDirectory != null && !spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            throw new IllegalArgumentException(String.format(
+                    "Can't create the spill directory [%s]!",
+                    spillDirectory));
+        }
+
+        // Continue numbering from the batches spilled by an earlier queue.
+        for (File file : listSpillFiles()) {
+            Map<String, Write> writes = readSpillFile(file);
+
+            if (writes != null) {
+                for (Map.Entry<String, Write> entry : writes.entrySet()) {
+                    long sequence = entry.getValue().sequence;
+
+                    spilledSequences.merge(entry.getKey(), sequence, Math::max);
+                    nextSequence = Math.max(nextSequence, sequence + 1);
+                }
+            }
+        }
+
+        this.flusher = new Task("Solr Index Queue", database.getName()) {
+
+            @Override
+            protected void doTask() {
+                while (shouldContinue()) {
+                    if (!flush()) {
+                        break;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Starts flushing the queue in the background every given
+     * {@code interval} seconds.
+     */
+    public void start(double interval) {
+        flusher.scheduleWithFixedDelay(interval, interval);
+    }
+
+    /**
+     * Stops flushing the queue in the background and sends all pending
+     * documents. The documents that can't be sent are spilled to disk, if
+     * there's a spill directory.
+     *
+     * <p>Any documents queued after this is called are rejected, so that
+     * the caller sends them itself.</p>
+     */
+    public void stop() {
+        flusher.stop();
+
+        synchronized (this) {
+            stopped = true;
+        }
+
+        synchronized (flushLock) {
+            while (true) {
+                Map<String, Write> batch = takeBatch();
+
+                if (batch.isEmpty()) {
+                    break;
+                }
+
+                try {
+                    send(batch);
+                    sentCount += batch.size();
+
+                } catch (Exception error) {
+                    ++ failedCount;
+
+                    requeue(batch);
+
+                    Map<String, Write> remaining;
+
+                    synchronized (this) {
+                        remaining = new LinkedHashMap<>(pending);
+                        pending.clear();
+                    }
+
+                    if (spillDirectory != null) {
+                        try {
+                            spill(remaining);
+                            LOGGER.warn(String.format("Can't send [%s] documents to Solr while stopping! Spilled to disk.", remaining.size()), error);
+                            break;
+
+                        } catch (IOException spillError) {
+                            LOGGER.warn("Can't spill Solr documents to disk!", spillError);
+                        }
+                    }
+
+                    LOGGER.warn(String.format("Can't send [%s] documents to Solr while stopping! Discarded.", remaining.size()), error);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of documents waiting to be sent.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the number of batches that are spilled to disk.
+     */
+    public int getSpilledCount() {
+        return listSpillFiles().size();
+    }
+
+    /**
+     * Returns the number of documents that were sent successfully.
+     */
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Returns the number of failed attempts to send a batch.
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * Queues the given {@code documents} to be added, replacing any older
+     * pending versions.
+     *
+     * @param documents Nonnull.
+     * @return {@code false} if the queue is full and the documents couldn't
+     *         be spilled, or if the queue is stopped, in which case the
+     *         caller should send them itself.
+     */
+    public boolean add(List<SolrInputDocument> documents) {
+        Map<String, SolrInputDocument> writes = new LinkedHashMap<>();
+
+        for (SolrInputDocument document : documents) {
+            writes.put(document.getFieldValue(SolrDatabase.ID_FIELD).toString(), document);
+        }
+
+        return offer(writes);
+    }
+
+    /**
+     * Queues the documents with the given {@code ids} to be deleted,
+     * replacing any pending additions.
+     *
+     * @param ids Nonnull.
+     * @return {@code false} if the queue is full and the deletes couldn't
+     *         be spilled, or if the queue is stopped, in which case the
+     *         caller should send them itself.
+     */
+    public boolean delete(List<String> ids) {
+        Map<String, SolrInputDocument> writes = new LinkedHashMap<>();
+
+        for (String id : ids) {
+            writes.put(id, null);
+        }
+
+        return offer(writes);
+    }
+
+    /**
+     * Discards the pending and the spilled writes to the documents with the
+     * given {@code ids}, because the caller is about to send newer versions
+     * itself.
+     *
+     * <p>This waits for the batch that's being sent, if any, so that it
+     * can't overwrite the newer versions.</p>
+     *
+     * @param ids Nonnull.
+     */
+    public void supersede(Collection<String> ids) {
+        synchronized (flushLock) {
+            synchronized (this) {
+                long sequence = nextSequence++;
+
+                for (String id : ids) {
+                    pending.remove(id);
+                    spilledSequences.computeIfPresent(id, (k, v) -> sequence);
+                }
+            }
+        }
+    }
+
+    private boolean offer(Map<String, SolrInputDocument> documents) {
+        Map<String, Write> writes = new LinkedHashMap<>();
+
+        synchronized (this) {
+            if (stopped) {
+                return false;
+            }
+
+            long sequence = nextSequence++;
+            int added = 0;
+
+            for (Map.Entry<String, SolrInputDocument> entry : documents.entrySet()) {
+                String id = entry.getKey();
+
+                writes.put(id, new Write(entry.getValue(), sequence));
+                spilledSequences.computeIfPresent(id, (k, v) -> sequence);
+
+                if (!pending.containsKey(id)) {
+                    ++ added;
+                }
+            }
+
+            if (pending.size() + added <= capacity) {
+                pending.putAll(writes);
+                return true;
+            }
+
+            if (spillDirectory != null) {
+                try {
+                    spill(writes);
+                    return true;
+
+                } catch (IOException error) {
+                    LOGGER.warn("Can't spill Solr documents to disk!", error);
+                }
+            }
+        }
+
+        return false;
+    }
+
+    // Removes the next batch from the front of the queue.
+    private synchronized Map<String, Write> takeBatch() {
+        Map<String, Write> batch = new LinkedHashMap<>();
+
+        for (Iterator<Map.Entry<String, Write>> i = pending.entrySet().iterator(); i.hasNext() && batch.size() < batchSize;) {
+            Map.Entry<String, Write> entry = i.next();
+
+            batch.put(entry.getKey(), entry.getValue());
+            i.remove();
+        }
+
+        return batch;
+    }
+
+    // Sends the next batch and returns true if there may be more to send.
+    private boolean flush() {
+        synchronized (flushLock) {
+            Map<String, Write> batch = takeBatch();
+
+            if (batch.isEmpty()) {
+                return attempts == 0 && unspill();
+            }
+
+            try {
+                send(batch);
+
+                attempts = 0;
+                sentCount += batch.size();
+                return true;
+
+            } catch (Exception error) {
+                ++ failedCount;
+                ++ attempts;
+
+                if (attempts >= MAXIMUM_ATTEMPTS && spillDirectory != null) {
+                    try {
+                        spill(batch);
+
+                        // Start over so that the spilled batches are read
+                        // back and retried on the next flush.
+                        attempts = 0;
+                        LOGGER.warn(String.format("Can't send [%s] documents to Solr! Spilled to disk.", batch.size()), error);
+                        return getPendingCount() > 0;
+
+                    } catch (IOException spillError) {
+                        LOGGER.warn("Can't spill Solr documents to disk!", spillError);
+                    }
+                }
+
+                LOGGER.warn(String.format("Can't send [%s] documents to Solr! Will retry.", batch.size()), error);
+                requeue(batch);
+                return false;
+            }
+        }
+    }
+
+    private void send(Map<String, Write> batch) throws Exception {
+        List<SolrInputDocument> documents = new ArrayList<>();
+        List<String> deletes = new ArrayList<>();
+
+        for (Map.Entry<String, Write> entry : batch.entrySet()) {
+            SolrInputDocument document = entry.getValue().document;
+
+            if (document != null) {
+                documents.add(document);
+
+            } else {
+                deletes.add(entry.getKey());
+            }
+        }
+
+        double commitWithin = database.getEffectiveCommitWithin();
+        UpdateRequest update = new UpdateRequest();
+
+        update.setCommitWithin(commitWithin > 0.0 ? (int) (commitWithin * 1000) : DEFAULT_COMMIT_WITHIN_MILLIS);
+
+        if (!documents.isEmpty()) {
+            update.add(documents);
+        }
+
+        if (!deletes.isEmpty()) {
+            update.deleteById(deletes);
+        }
+
+        Stats.Timer timer = STATS.startTimer();
+        Profiler.Static.startThreadEvent(FLUSH_PROFILER_EVENT, batch.size());
+
+        try {
+            update.process(database.openConnection());
+
+        } finally {
+            double duration = timer.stop(FLUSH_STATS_OPERATION, batch.size());
+            Profiler.Static.stopThreadEvent();
+
+            LOGGER.debug("Solr index queue flush: [{}], Time: [{}]ms", batch.size(), duration);
+        }
+    }
+
+    // Puts the writes back in front of the queue unless there are newer
+    // versions already.
+    private synchronized void requeue(Map<String, Write> writes) {
+        Map<String, Write> newPending = new LinkedHashMap<>(writes);
+
+        for (Map.Entry<String, Write> entry : pending.entrySet()) {
+            Write write = entry.getValue();
+            Write older = newPending.get(entry.getKey());
+
+            if (older == null || older.sequence < write.sequence) {
+                newPending.put(entry.getKey(), write);
+            }
+        }
+
+        pending.clear();
+        pending.putAll(newPending);
+    }
+
+    // Writes the batch to a file named after its oldest sequence, and
+    // records the sequences so that the batch is never sent over the newer
+    // versions.
+    private synchronized void spill(Map<String, Write> writes) throws IOException {
+        long oldestSequence = Long.MAX_VALUE;
+
+        for (Map.Entry<String, Write> entry : writes.entrySet()) {
+            String id = entry.getKey();
+            long sequence = entry.getValue().sequence;
+            Write newer = pending.get(id);
+
+            if (newer != null) {
+                sequence = Math.max(sequence, newer.sequence);
+            }
+
+            spilledSequences.merge(id, sequence, Math::max);
+            oldestSequence = Math.min(oldestSequence, entry.getValue().sequence);
+        }
+
+        File file = new File(spillDirectory, String.format("%019d-%s%s", oldestSequence, UUID.randomUUID(), SPILL_FILE_SUFFIX));
+        File tempFile = new File(spillDirectory, file.getName() + ".tmp");
+
+        try (ObjectOutputStream output = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeObject(new LinkedHashMap<>(writes));
+        }
+
+        if (!tempFile.renameTo(file)) {
+            throw new IOException(String.format("Can't rename [%s] to [%s]!", tempFile, file));
+        }
+    }
+
+    // Moves the oldest spilled batch back into the queue if there's room,
+    // and returns true if it did.
+    private boolean unspill() {
+        List<File> files = listSpillFiles();
+
+        if (files.isEmpty()) {
+            return false;
+        }
+
+        File file = files.get(0);
+        Map<String, Write> writes = readSpillFile(file);
+
+        if (writes == null) {
+            return true;
+        }
+
+        synchronized (this) {
+            if (pending.size() + writes.size() > capacity) {
+                return false;
+            }
+
+            Map<String, Write> current = new LinkedHashMap<>();
+
+            // Skip the versions that were superseded after the spill.
+            for (Map.Entry<String, Write> entry : writes.entrySet()) {
+                Long latest = spilledSequences.get(entry.getKey());
+
+                if (latest == null || latest <= entry.getValue().sequence) {
+                    current.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            requeue(current);
+
+            if (!file.delete()) {
+                LOGGER.warn("Can't delete [{}]!", file);
+            }
+
+            if (listSpillFiles().isEmpty()) {
+                spilledSequences.clear();
+            }
+        }
+
+        return true;
+    }
+
+    // Returns null and sets the file aside if it can't be read.
+    @SuppressWarnings("unchecked")
+    private Map<String, Write> readSpillFile(File file) {
+        try (ObjectInputStream input = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (Map<String, Write>) input.readObject();
+
+        } catch (IOException | ClassNotFoundException | ClassCastException error) {
+            LOGGER.warn(String.format("Can't read the spilled Solr documents in [%s]!", file), error);
+
+            if (!file.renameTo(new File(file.getPath() + ".bad"))) {
+                LOGGER.warn("Can't set aside [{}]!", file);
+            }
+
+            return null;
+        }
+    }
+
+    private List<File> listSpillFiles() {
+        if (spillDirectory == null) {
+            return new ArrayList<>();
+        }
+
+        File[] files = spillDirectory.listFiles((dir, name) -> name.endsWith(SPILL_FILE_SUFFIX));
+
+        if (files == null) {
+            return new ArrayList<>();
+        }
+
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private static final class Write implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        // Null for deletes.
+        public final SolrInputDocument document;
+
+        // Order that the write was queued in.
+        public final long sequence;
+
+        public Write(SolrInputDocument document, long sequence) {
+            this.document = document;
+            this.sequence = sequence;
+        }
+    }
+}
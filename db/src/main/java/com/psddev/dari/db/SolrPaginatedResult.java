@@ -93,6 +93,23 @@ public class SolrPaginatedResult<E> extends PaginatedResult<E> implements HtmlOb
         this.solrQuery = solrQuery;
     }
 
+    private String nextCursorMark;
+
+    /**
+     * Returns the Solr cursor mark for the page after this one, if this
+     * page was read with a cursor.
+     *
+     * @return May be {@code null}.
+     * @see SolrDatabase#CURSOR_MARK_QUERY_OPTION
+     */
+    public String getNextCursorMark() {
+        return nextCursorMark;
+    }
+
+    public void setNextCursorMark(String nextCursorMark) {
+        this.nextCursorMark = nextCursorMark;
+    }
+
     @Override
     public void format(HtmlWriter writer) throws IOException {
         writer.writeStart("p");
@@ -75,6 +75,8 @@ public class State implements Map<String, Object> {
     private static final int RESOLVE_WITHOUT_CACHE = 1 << 2;
     private static final int RESOLVE_USING_MASTER = 1 << 3;
     private static final int RESOLVE_INVISIBLE = 1 << 4;
+    private static final int LAZY_VALUES_FLAG = 1 << 5;
+    private static final int DEFER_REFERENCES_FLAG = 1 << 6;
 
     private static final ThreadLocal<List<Listener>> LISTENERS_LOCAL = new ThreadLocal<>();
 
@@ -87,6 +89,10 @@ public class State implements Map<String, Object> {
     private Map<ObjectField, List<String>> errors;
     private volatile int flags;
 
+    // Keys of the raw values that haven't been converted to Java values yet,
+    // mapped from both the keys themselves and the Java field names.
+    private volatile Map<String, String> unconvertedKeys;
+
     /**
      * Returns the state associated with the given {@code object}.
      *
@@ -756,6 +762,12 @@ public class State implements Map<String, Object> {
         return false;
     }
 
+    /**
+     * Returns the raw values map.
+     *
+     * <p>If {@linkplain #isLazyValues lazy values} is enabled, the values
+     * that haven't been accessed yet won't be converted to Java values.</p>
+     */
     public Map<String, Object> getRawValues() {
         return rawValues;
     }
@@ -765,6 +777,9 @@ public class State implements Map<String, Object> {
      * instance of the given {@code returnType}. This version of get will
      * not trigger reference resolution which avoids a round-trip to the
      * database.
+     *
+     * <p>If {@linkplain #isLazyValues lazy values} is enabled, the value
+     * may not be converted to a Java value yet.</p>
      */
     public Object getRawValue(String name) {
         Object value = rawValues;
@@ -1160,6 +1175,49 @@ public class State implements Map<String, Object> {
         }
     }
 
+    /**
+     * Returns {@code true} if the values should be converted to Java values
+     * only when they're first accessed.
+     *
+     * <p>This only takes effect on the objects whose type
+     * {@linkplain ObjectType#isLazyValuesSupported supports it}, and must
+     * be set before the values are. Fields read directly from outside the
+     * {@linkplain LazyLoadEnhancer enhanced} classes won't trigger the
+     * conversion, so they should be accessed through methods or this
+     * state instead.</p>
+     */
+    public boolean isLazyValues() {
+        return (flags & LAZY_VALUES_FLAG) != 0;
+    }
+
+    /**
+     * Sets whether the values should be converted to Java values only when
+     * they're first accessed.
+     *
+     * @see #isLazyValues()
+     */
+    public void setLazyValues(boolean lazyValues) {
+        if (lazyValues) {
+            flags |= LAZY_VALUES_FLAG;
+        } else {
+            flags &= ~LAZY_VALUES_FLAG;
+        }
+    }
+
+    // Returns true if the references should be left unresolved when the
+    // values are set, so that ReferencePreloader can resolve them in bulk.
+    boolean isDeferReferences() {
+        return (flags & DEFER_REFERENCES_FLAG) != 0;
+    }
+
+    void setDeferReferences(boolean deferReferences) {
+        if (deferReferences) {
+            flags |= DEFER_REFERENCES_FLAG;
+        } else {
+            flags &= ~DEFER_REFERENCES_FLAG;
+        }
+    }
+
     /**
      * Returns a descriptive label for this state.
      */
@@ -1571,6 +1629,8 @@ public class State implements Map<String, Object> {
     }
 
     public void beforeFieldGet(String name) {
+        convertValue(name);
+
         List<Listener> listeners = LISTENERS_LOCAL.get();
 
         if (listeners != null && !listeners.isEmpty()) {
@@ -1580,6 +1640,101 @@ public class State implements Map<String, Object> {
         }
     }
 
+    /**
+     * Converts the value that will be overwritten in the field with the
+     * given {@code name}, so that it doesn't get clobbered by the lazy
+     * conversion later. This method doesn't need to be used directly in
+     * typical cases, because it will be called automatically by
+     * {@link LazyLoadEnhancer}.
+     *
+     * @param name Nonnull.
+     */
+    public void beforeFieldSet(String name) {
+        convertValue(name);
+    }
+
+    // Marks the raw value associated with the given key so that it's
+    // converted to a Java value on first access. Synchronized like the
+    // conversions, since the map is shared with them.
+    private synchronized void deferValueConversion(String key) {
+        Map<String, String> keys = unconvertedKeys;
+
+        if (keys == null) {
+            keys = new HashMap<>();
+            unconvertedKeys = keys;
+        }
+
+        keys.put(key, key);
+
+        for (Object object : linkedObjects.values()) {
+            ObjectField field = State.getInstance(object).getField(key);
+
+            if (field != null) {
+                String javaFieldName = field.getJavaFieldName();
+
+                if (javaFieldName != null && !javaFieldName.equals(key)) {
+                    keys.putIfAbsent(javaFieldName, key);
+                }
+            }
+        }
+    }
+
+    // Converts the raw value associated with the given key or Java field
+    // name if it hasn't been already.
+    private void convertValue(String name) {
+        if (unconvertedKeys == null) {
+            return;
+        }
+
+        synchronized (this) {
+            Map<String, String> keys = unconvertedKeys;
+
+            if (keys == null) {
+                return;
+            }
+
+            String key = keys.remove(name);
+
+            // Java field name entries aren't removed when the value is
+            // converted via its key, so make sure that it's still pending.
+            if (key == null
+                    || (!key.equals(name) && keys.remove(key) == null)) {
+                return;
+            }
+
+            if (keys.isEmpty()) {
+                unconvertedKeys = null;
+            }
+
+            put(key, rawValues.get(key));
+        }
+    }
+
+    // Converts all raw values that haven't been converted yet.
+    private void convertValues() {
+        if (unconvertedKeys == null) {
+            return;
+        }
+
+        synchronized (this) {
+            Map<String, String> keys = unconvertedKeys;
+
+            if (keys == null) {
+                return;
+            }
+
+            unconvertedKeys = null;
+
+            for (Map.Entry<String, String> entry : keys.entrySet()) {
+                String key = entry.getValue();
+
+                if (key.equals(entry.getKey())) {
+                    put(key, rawValues.get(key));
+                }
+            }
+        }
+    }
+
     /**
      * Resolves the reference possibly stored in the given {@code field}.
      * This method doesn't need to be used directly in typical cases, because
@@ -1799,6 +1954,8 @@ public class State implements Map<String, Object> {
     }
 
     void copyRawValuesToJavaFields(Object object) {
+        convertValues();
+
         Class<?> objectClass = object.getClass();
         ObjectType type = getDatabase().getEnvironment().getTypeByClass(objectClass);
         if (type == null) {
@@ -1903,6 +2060,7 @@ public class State implements Map<String, Object> {
     @Override
     public void clear() {
         rawValues.clear();
+        unconvertedKeys = null;
 
         DatabaseEnvironment environment = getDatabase().getEnvironment();
 
@@ -1936,6 +2094,7 @@ public class State implements Map<String, Object> {
 
     @Override
     public boolean containsValue(Object value) {
+        convertValues();
         copyJavaFieldsToRawValues();
         return rawValues.containsValue(value);
     }
@@ -1943,6 +2102,7 @@ public class State implements Map<String, Object> {
     @Nonnull
     @Override
     public Set<Map.Entry<String, Object>> entrySet() {
+        convertValues();
         copyJavaFieldsToRawValues();
         return rawValues.entrySet();
     }
@@ -1953,6 +2113,7 @@ public class State implements Map<String, Object> {
             return null;
         }
 
+        convertValue((String) key);
         resolveReferences();
 
         Object originalObject = getOriginalObjectOrNull();
@@ -2034,6 +2195,16 @@ public class State implements Map<String, Object> {
             return null;
         }
 
+        if (unconvertedKeys != null) {
+            synchronized (this) {
+                Map<String, String> keys = unconvertedKeys;
+
+                if (keys != null) {
+                    keys.remove(key);
+                }
+            }
+        }
+
         boolean first =  true;
         for (Map.Entry<Class<?>, Object> entry : linkedObjects.entrySet()) {
             Class<?> objectClass = entry.getKey();
@@ -2062,12 +2233,22 @@ public class State implements Map<String, Object> {
         if (!linkedObjects.isEmpty()) {
             Object object = linkedObjects.values().iterator().next();
 
-            if (object != null && getType() != null && getType().isLazyLoaded()) {
+            boolean deferReferences = isDeferReferences();
+
+            if (object != null && getType() != null && (deferReferences || getType().isLazyLoaded())) {
+                boolean lazyValues = isLazyValues() && getType().isLazyValuesSupported();
+
                 for (Map.Entry<? extends String, ?> e : map.entrySet()) {
                     String key = e.getKey();
                     Object value = e.getValue();
+                    if (deferReferences) {
+                        ReferencePreloader.collectReferences(this, key, value);
+                    }
                     if (StateValueUtils.toIdIfReference(value) != null) {
                         rawValues.put(key, value);
+                    } else if (lazyValues && key != null && !key.startsWith("_")) {
+                        rawValues.put(key, value);
+                        deferValueConversion(key);
                     } else {
                         put(key, value);
                     }
@@ -2111,6 +2292,7 @@ public class State implements Map<String, Object> {
     @Nonnull
     @Override
     public Collection<Object> values() {
+        convertValues();
         copyJavaFieldsToRawValues();
         return rawValues.values();
     }
@@ -23,6 +23,46 @@ public interface StateSerializer {
      */
     String REFERENCE_KEY = "_ref";
 
+    /**
+     * Formats that the state values can be serialized into.
+     *
+     * <p>{@link #deserialize(byte[])} can always read all formats, so it's
+     * safe to switch between them on a database that already contains
+     * data.</p>
+     */
+    enum Format {
+
+        /**
+         * UTF-8 encoded JSON.
+         */
+        JSON {
+
+            @Override
+            public byte[] serialize(Map<String, Object> values) {
+                return ObjectUtils.toJson(values).getBytes(StandardCharsets.UTF_8);
+            }
+        },
+
+        /**
+         * Compact, versioned binary encoding with interned field names.
+         */
+        BINARY {
+
+            @Override
+            public byte[] serialize(Map<String, Object> values) {
+                return BinaryStateSerializer.serialize(values);
+            }
+        };
+
+        /**
+         * Serializes the given {@code values} into this format.
+         *
+         * @param values Nonnull.
+         * @return Nonnull.
+         */
+        public abstract byte[] serialize(Map<String, Object> values);
+    }
+
     /**
      * Serializes the given {@code values} map from a {@link State} instance
      * into a byte array that's suitable for storing in a database.
@@ -31,19 +71,39 @@ public interface StateSerializer {
      * @return Nonnull.
      */
     static byte[] serialize(Map<String, Object> values) {
+        return serialize(values, Format.JSON);
+    }
+
+    /**
+     * Serializes the given {@code values} map from a {@link State} instance
+     * into a byte array in the given {@code format}.
+     *
+     * @param values Nonnull.
+     * @param format Nonnull.
+     * @return Nonnull.
+     */
+    static byte[] serialize(Map<String, Object> values, Format format) {
         Preconditions.checkNotNull(values);
-        return ObjectUtils.toJson(values).getBytes(StandardCharsets.UTF_8);
+        Preconditions.checkNotNull(format);
+        return format.serialize(values);
     }
 
     /**
      * Deserializes the given {@code data} byte array from a database into
      * a map that's suitable for use by a {@link State} instance.
      *
+     * <p>The format is detected automatically from the first byte.</p>
+     *
      * @param data Nonnull.
      * @return Nonnull.
      */
     static Map<String, Object> deserialize(byte[] data) {
         Preconditions.checkNotNull(data);
+
+        if (data.length > 0 && data[0] == BinaryStateSerializer.MARKER) {
+            return BinaryStateSerializer.deserialize(data);
+        }
+
         @SuppressWarnings("unchecked")
         Map<String, Object> dataMap = (Map<String, Object>) ObjectUtils.fromJson(data);
         return dataMap;
@@ -453,6 +453,7 @@ abstract class StateValueUtils {
                             valueState.setDatabase(database);
                             valueState.setResolveToReferenceOnly(objectState.isResolveToReferenceOnly());
                             valueState.setResolveInvisible(objectState.isResolveInvisible());
+                            valueState.setLazyValues(objectState.isLazyValues());
                             valueState.putAll(valueMap);
                         }
                     }
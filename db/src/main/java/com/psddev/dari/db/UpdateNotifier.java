@@ -3,4 +3,14 @@ package com.psddev.dari.db;
 public interface UpdateNotifier<T> {
 
     void onUpdate(T object) throws Exception;
+
+    /**
+     * Called when the given {@code object} is deleted.
+     *
+     * <p>The default implementation doesn't do anything.</p>
+     *
+     * @param object Nonnull.
+     */
+    default void onDelete(T object) throws Exception {
+    }
 }
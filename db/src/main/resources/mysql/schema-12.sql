@@ -94,6 +94,17 @@ CREATE TABLE IF NOT EXISTS Metric (
     KEY k_metricData (symbolId, typeId, id, dimensionId, data)
 ) ENGINE=InnoDB DEFAULT CHARSET=binary ROW_FORMAT=COMPRESSED;
 
+CREATE TABLE IF NOT EXISTS MetricRollup (
+    id BINARY(16) NOT NULL,
+    typeId BINARY(16) NOT NULL,
+    symbolId INT NOT NULL,
+    dimensionId BINARY(16) NOT NULL,
+    rollupInterval TINYINT NOT NULL,
+    eventDate BIGINT NOT NULL,
+    amount BIGINT NOT NULL,
+    PRIMARY KEY (symbolId, typeId, id, dimensionId, rollupInterval, eventDate)
+) ENGINE=InnoDB DEFAULT CHARSET=binary ROW_FORMAT=COMPRESSED;
+
 CREATE TABLE IF NOT EXISTS MetricDimension (
     dimensionId BINARY(16) NOT NULL PRIMARY KEY,
     value VARBINARY(500) NOT NULL,
@@ -101,6 +101,17 @@ CREATE INDEX k_metricAllDims ON Metric (symbolId, typeId, id, data, dimensionId)
 
 CREATE UNIQUE INDEX k_metricData ON Metric (symbolId, id, dimensionId, left(data, 8));
 
+CREATE TABLE IF NOT EXISTS MetricRollup (
+    id UUID NOT NULL,
+    typeId UUID NOT NULL,
+    symbolId INT NOT NULL,
+    dimensionId UUID NOT NULL,
+    rollupInterval SMALLINT NOT NULL,
+    eventDate BIGINT NOT NULL,
+    amount BIGINT NOT NULL,
+    PRIMARY KEY (symbolId, typeId, id, dimensionId, rollupInterval, eventDate)
+);
+
 CREATE TABLE IF NOT EXISTS MetricDimension (
     dimensionId UUID NOT NULL PRIMARY KEY,
     value BYTEA NOT NULL
@@ -0,0 +1,138 @@
+package com.psddev.dari.db;
+
+import com.psddev.dari.util.UuidUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MetricIncrementQueueTest {
+
+    private static final long EVENT_DATE = 1000L;
+
+    private MetricAccessDatabase database;
+    private MetricAccess metricAccess;
+    private UUID id;
+
+    @Before
+    public void before() {
+        database = mock(MetricAccessDatabase.class);
+        metricAccess = mock(MetricAccess.class);
+        id = UuidUtils.createSequentialUuid();
+
+        when(metricAccess.getDatabase()).thenReturn(database);
+        when(metricAccess.getTypeId()).thenReturn(UuidUtils.ZERO_UUID);
+        when(metricAccess.getSymbolId()).thenReturn(1);
+    }
+
+    private static Map<UUID, Double> amountsByDimension(List<MetricIncrementQueue.Row> rows) {
+        Map<UUID, Double> amounts = new HashMap<>();
+
+        for (MetricIncrementQueue.Row row : rows) {
+            assertThat(amounts.put(row.dimensionId, row.amount), nullValue());
+        }
+
+        return amounts;
+    }
+
+    @Test
+    public void coalesceConcurrentIncrements() throws Exception {
+        List<List<MetricIncrementQueue.Row>> writes = new ArrayList<>();
+        MetricIncrementQueue queue = new MetricIncrementQueue((d, rows) -> writes.add(rows));
+        UUID dimensionId = UuidUtils.createSequentialUuid();
+        int threads = 8;
+        int increments = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int t = 0; t < threads; ++ t) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < increments; ++ i) {
+                        queue.add(metricAccess, id, dimensionId, EVENT_DATE, 1.0d, 0);
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+        } finally {
+            executor.shutdown();
+        }
+
+        queue.flush();
+
+        assertThat(writes, hasSize(1));
+
+        // One row for the dimension, and one for the sum in the null
+        // dimension.
+        Map<UUID, Double> amounts = amountsByDimension(writes.get(0));
+
+        assertThat(amounts.keySet(), hasSize(2));
+        assertThat(amounts.get(dimensionId), is((double) threads * increments));
+        assertThat(amounts.get(UuidUtils.ZERO_UUID), is((double) threads * increments));
+
+        queue.flush();
+
+        assertThat(writes, hasSize(1));
+    }
+
+    @Test
+    public void requeueAfterFailedFlush() {
+        AtomicInteger calls = new AtomicInteger();
+        List<List<MetricIncrementQueue.Row>> writes = new ArrayList<>();
+        MetricIncrementQueue queue = new MetricIncrementQueue((d, rows) -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new SQLException("Fail the first write!");
+            }
+
+            writes.add(rows);
+        });
+
+        queue.add(metricAccess, id, UuidUtils.ZERO_UUID, EVENT_DATE, 2.0d, 0);
+        queue.flush();
+
+        assertThat(writes, empty());
+
+        // Increments after the failure are combined with the retried ones.
+        queue.add(metricAccess, id, UuidUtils.ZERO_UUID, EVENT_DATE, 3.0d, 0);
+        queue.flush();
+
+        assertThat(calls.get(), is(2));
+        assertThat(writes, hasSize(1));
+        assertThat(amountsByDimension(writes.get(0)).get(UuidUtils.ZERO_UUID), is(5.0d));
+    }
+
+    @Test
+    public void dropAfterMaximumAttempts() {
+        AtomicInteger calls = new AtomicInteger();
+        MetricIncrementQueue queue = new MetricIncrementQueue((d, rows) -> {
+            calls.incrementAndGet();
+            throw new SQLException("Fail all writes!");
+        });
+
+        queue.add(metricAccess, id, UuidUtils.ZERO_UUID, EVENT_DATE, 1.0d, 0);
+
+        for (int i = 0; i < MetricIncrementQueue.MAXIMUM_ATTEMPTS + 2; ++ i) {
+            queue.flush();
+        }
+
+        assertThat(calls.get(), is(MetricIncrementQueue.MAXIMUM_ATTEMPTS));
+    }
+}
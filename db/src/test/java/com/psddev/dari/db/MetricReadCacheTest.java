@@ -0,0 +1,117 @@
+package com.psddev.dari.db;
+
+import com.psddev.dari.util.UuidUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MetricReadCacheTest {
+
+    private static final long EVENT_DATE = 3600000L;
+
+    private MetricAccess metricAccess;
+    private UUID id;
+    private UUID dimensionId;
+
+    @Before
+    public void before() {
+        metricAccess = mock(MetricAccess.class);
+        id = UuidUtils.createSequentialUuid();
+        dimensionId = UuidUtils.createSequentialUuid();
+    }
+
+    private static byte[] data(double cumulativeAmount, double amount) {
+        return MetricAccess.Static.toBytes(EVENT_DATE, cumulativeAmount, amount);
+    }
+
+    @Test
+    public void loadAndIncrement() {
+        MetricReadCache.Entry entry = MetricReadCache.getEntry(metricAccess, id, dimensionId);
+
+        entry.load(entry.getVersion(), data(5.0d, 5.0d));
+
+        assertThat(entry.isAnswerable(null, null), is(true));
+        assertThat(entry.getSum(null, null), is(5.0d));
+
+        MetricReadCache.Entry incremented = MetricReadCache.beginIncrement(metricAccess, id, dimensionId);
+
+        assertThat(incremented, sameInstance(entry));
+
+        MetricReadCache.endIncrement(metricAccess, id, dimensionId, incremented, EVENT_DATE, 3.0d, true);
+
+        assertThat(entry.getSum(null, null), is(8.0d));
+    }
+
+    @Test
+    public void loadDuringIncrement() {
+        MetricReadCache.Entry entry = MetricReadCache.getEntry(metricAccess, id, dimensionId);
+        long version = entry.getVersion();
+        MetricReadCache.Entry incremented = MetricReadCache.beginIncrement(metricAccess, id, dimensionId);
+
+        // The row read while the increment is being written may already
+        // include it.
+        entry.load(entry.getVersion(), data(3.0d, 3.0d));
+
+        assertThat(entry.isLoaded(), is(false));
+
+        MetricReadCache.endIncrement(metricAccess, id, dimensionId, incremented, EVENT_DATE, 3.0d, true);
+
+        // So does the row read before the increment started, but loaded
+        // after it was written.
+        entry.load(version, data(3.0d, 3.0d));
+
+        assertThat(entry.isLoaded(), is(false));
+
+        entry.load(entry.getVersion(), data(3.0d, 3.0d));
+
+        assertThat(entry.getSum(null, null), is(3.0d));
+    }
+
+    @Test
+    public void entryCreatedDuringIncrement() {
+        MetricReadCache.Entry incremented = MetricReadCache.beginIncrement(metricAccess, id, dimensionId);
+
+        assertThat(incremented, nullValue());
+
+        MetricReadCache.Entry entry = MetricReadCache.getEntry(metricAccess, id, dimensionId);
+
+        entry.load(entry.getVersion(), data(3.0d, 3.0d));
+        MetricReadCache.endIncrement(metricAccess, id, dimensionId, incremented, EVENT_DATE, 3.0d, true);
+
+        assertThat(MetricReadCache.getEntry(metricAccess, id, dimensionId), not(sameInstance(entry)));
+    }
+
+    @Test
+    public void failedIncrement() {
+        MetricReadCache.Entry entry = MetricReadCache.getEntry(metricAccess, id, dimensionId);
+
+        entry.load(entry.getVersion(), data(5.0d, 5.0d));
+
+        MetricReadCache.Entry incremented = MetricReadCache.beginIncrement(metricAccess, id, dimensionId);
+
+        MetricReadCache.endIncrement(metricAccess, id, dimensionId, incremented, EVENT_DATE, 3.0d, false);
+
+        assertThat(entry.getSum(null, null), is(5.0d));
+    }
+
+    @Test
+    public void invalidate() {
+        UUID otherId = UuidUtils.createSequentialUuid();
+        MetricReadCache.Entry entry = MetricReadCache.getEntry(metricAccess, id, dimensionId);
+        MetricReadCache.Entry nullDimensionEntry = MetricReadCache.getEntry(metricAccess, id, UuidUtils.ZERO_UUID);
+        MetricReadCache.Entry otherEntry = MetricReadCache.getEntry(metricAccess, otherId, dimensionId);
+
+        assertThat(MetricReadCache.getEntry(metricAccess, id, dimensionId), sameInstance(entry));
+
+        MetricReadCache.invalidate(metricAccess, id);
+
+        assertThat(MetricReadCache.getEntry(metricAccess, id, dimensionId), not(sameInstance(entry)));
+        assertThat(MetricReadCache.getEntry(metricAccess, id, UuidUtils.ZERO_UUID), not(sameInstance(nullDimensionEntry)));
+        assertThat(MetricReadCache.getEntry(metricAccess, otherId, dimensionId), sameInstance(otherEntry));
+    }
+}
@@ -0,0 +1,131 @@
+package com.psddev.dari.db;
+
+import com.psddev.dari.util.UuidUtils;
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MetricRollupTest {
+
+    private static final UUID ID = UuidUtils.createSequentialUuid();
+    private static final UUID TYPE_ID = UuidUtils.createSequentialUuid();
+    private static final int SYMBOL_ID = 1;
+
+    // Raw increments, keyed by event date.
+    private static final Map<Long, Double> INCREMENTS = new LinkedHashMap<>();
+
+    static {
+        INCREMENTS.put(new DateTime(2016, 1, 1, 10, 0).getMillis(), 1.5d);
+        INCREMENTS.put(new DateTime(2016, 1, 1, 11, 0).getMillis(), 2.25d);
+        INCREMENTS.put(new DateTime(2016, 1, 2, 9, 0).getMillis(), 3.0d);
+        INCREMENTS.put(new DateTime(2016, 2, 15, 9, 0).getMillis(), 0.75d);
+    }
+
+    private Connection connection;
+    private MetricAccessDatabase database;
+
+    @Before
+    public void before() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:" + UUID.randomUUID().toString().replaceAll("-", ""));
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE MetricRollup ("
+                    + "id UUID NOT NULL, "
+                    + "typeId UUID NOT NULL, "
+                    + "symbolId INT NOT NULL, "
+                    + "dimensionId UUID NOT NULL, "
+                    + "rollupInterval TINYINT NOT NULL, "
+                    + "eventDate BIGINT NOT NULL, "
+                    + "amount BIGINT NOT NULL, "
+                    + "PRIMARY KEY (symbolId, typeId, id, dimensionId, rollupInterval, eventDate))");
+        }
+
+        database = mock(MetricAccessDatabase.class);
+
+        when(database.getMetricVendor()).thenReturn(new SqlVendor.H2());
+        when(database.openConnection()).thenReturn(connection);
+        when(database.openReadConnection()).thenReturn(connection);
+        when(database.executeQueryBeforeTimeout(any(Statement.class), anyString(), anyInt())).thenAnswer(invocation ->
+                ((Statement) invocation.getArguments()[0]).executeQuery((String) invocation.getArguments()[1]));
+    }
+
+    @After
+    public void after() throws SQLException {
+        connection.close();
+    }
+
+    private void incrementAll() throws SQLException {
+        for (Map.Entry<Long, Double> entry : INCREMENTS.entrySet()) {
+            MetricRollup.increment(database, connection, ID, TYPE_ID, SYMBOL_ID, UuidUtils.ZERO_UUID, entry.getValue(), entry.getKey());
+        }
+    }
+
+    private Map<Integer, Double> sumsByLevel() throws SQLException {
+        Map<Integer, Double> sums = new HashMap<>();
+
+        try (Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT rollupInterval, SUM(amount) FROM MetricRollup GROUP BY rollupInterval")) {
+
+            while (result.next()) {
+                sums.put(result.getInt(1), (double) result.getLong(2) / MetricAccess.AMOUNT_DECIMAL_SHIFT);
+            }
+        }
+
+        return sums;
+    }
+
+    @Test
+    public void totalsMatchRawSums() throws SQLException {
+        incrementAll();
+
+        double rawSum = INCREMENTS.values().stream().mapToDouble(Double::doubleValue).sum();
+        Map<Integer, Double> sums = sumsByLevel();
+
+        assertThat(sums.keySet(), hasSize(3));
+
+        for (Double sum : sums.values()) {
+            assertThat(sum, closeTo(rawSum, 0.0001d));
+        }
+    }
+
+    @Test
+    public void bucketsMatchRawSums() throws SQLException {
+        incrementAll();
+
+        MetricInterval daily = new MetricInterval.Daily();
+        Map<DateTime, Double> expected = new HashMap<>();
+
+        for (Map.Entry<Long, Double> entry : INCREMENTS.entrySet()) {
+            expected.merge(new DateTime(daily.process(new DateTime(entry.getKey()))), entry.getValue(), Double::sum);
+        }
+
+        assertThat(
+                MetricRollup.getTimeline(database, ID, TYPE_ID, SYMBOL_ID, UuidUtils.ZERO_UUID, null, null, daily, true),
+                equalTo(expected));
+    }
+
+    @Test
+    public void rollbackWithTransaction() throws SQLException {
+        connection.setAutoCommit(false);
+        incrementAll();
+        connection.rollback();
+        connection.setAutoCommit(true);
+
+        assertThat(sumsByLevel().keySet(), empty());
+    }
+}
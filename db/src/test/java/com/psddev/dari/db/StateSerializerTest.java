@@ -0,0 +1,84 @@
+package com.psddev.dari.db;
+
+import com.psddev.dari.util.CompactMap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class StateSerializerTest {
+
+    private Map<String, Object> values;
+
+    @Before
+    public void before() {
+        List<Object> embedded = new ArrayList<>();
+
+        for (int i = 0; i < 3; ++ i) {
+            Map<String, Object> item = new CompactMap<>();
+            item.put("name", "item" + i);
+            item.put("position", (long) i);
+            embedded.add(item);
+        }
+
+        values = new CompactMap<>();
+        values.put(StateSerializer.ID_KEY, "00000000-0000-0000-0000-000000000001");
+        values.put(StateSerializer.TYPE_KEY, "00000000-0000-0000-0000-000000000002");
+        values.put("string", "café");
+        values.put("long", -1234567890123L);
+        values.put("double", 1.5d);
+        values.put("boolean", Boolean.TRUE);
+        values.put("null", null);
+        values.put("list", Arrays.asList("a", 1L, 2.5d, null));
+        values.put("embedded", embedded);
+    }
+
+    @Test
+    public void binaryRoundTrip() {
+        byte[] data = StateSerializer.serialize(values, StateSerializer.Format.BINARY);
+
+        assertThat(StateSerializer.deserialize(data), equalTo(values));
+    }
+
+    @Test
+    public void binaryMatchesJson() {
+        values.put("integer", 5);
+        values.put("float", 0.25f);
+        values.put("decimal", new BigDecimal("1.10"));
+
+        byte[] json = StateSerializer.serialize(values, StateSerializer.Format.JSON);
+        byte[] binary = StateSerializer.serialize(values, StateSerializer.Format.BINARY);
+
+        assertThat(StateSerializer.deserialize(binary), equalTo(StateSerializer.deserialize(json)));
+    }
+
+    @Test
+    public void binaryIsSmaller() {
+        byte[] json = StateSerializer.serialize(values);
+        byte[] binary = StateSerializer.serialize(values, StateSerializer.Format.BINARY);
+
+        assertThat(binary.length, lessThan(json.length));
+    }
+
+    @Test
+    public void deserializeJson() {
+        byte[] data = "{\"foo\":\"bar\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(StateSerializer.deserialize(data), hasEntry("foo", (Object) "bar"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void deserializeTruncatedBinary() {
+        byte[] data = StateSerializer.serialize(values, StateSerializer.Format.BINARY);
+
+        StateSerializer.deserialize(Arrays.copyOf(data, data.length / 2));
+    }
+}
@@ -0,0 +1,18 @@
+CREATE TABLE IF NOT EXISTS MetricRollup (
+    id BINARY(16) NOT NULL,
+    typeId BINARY(16) NOT NULL,
+    symbolId INT NOT NULL,
+    dimensionId BINARY(16) NOT NULL,
+    rollupInterval TINYINT NOT NULL,
+    eventDate BIGINT NOT NULL,
+    amount BIGINT NOT NULL,
+    PRIMARY KEY (symbolId, typeId, id, dimensionId, rollupInterval, eventDate)
+) ENGINE=InnoDB DEFAULT CHARSET=binary ROW_FORMAT=COMPRESSED;
+
+/*
+-- After setting dari/isMetricRollupEnabled, rebuild the rollups for the
+-- existing data using Metric.Static#submitRebuildRollupsAllBetweenTask
+-- before setting dari/isMetricRollupReadEnabled.
+
+DROP TABLE MetricRollup;
+*/
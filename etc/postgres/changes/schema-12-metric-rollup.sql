@@ -0,0 +1,18 @@
+CREATE TABLE IF NOT EXISTS MetricRollup (
+    id UUID NOT NULL,
+    typeId UUID NOT NULL,
+    symbolId INT NOT NULL,
+    dimensionId UUID NOT NULL,
+    rollupInterval SMALLINT NOT NULL,
+    eventDate BIGINT NOT NULL,
+    amount BIGINT NOT NULL,
+    PRIMARY KEY (symbolId, typeId, id, dimensionId, rollupInterval, eventDate)
+);
+
+/*
+-- After setting dari/isMetricRollupEnabled, rebuild the rollups for the
+-- existing data using Metric.Static#submitRebuildRollupsAllBetweenTask
+-- before setting dari/isMetricRollupReadEnabled.
+
+DROP TABLE MetricRollup;
+*/
@@ -23,6 +23,7 @@ import org.jooq.impl.SQLDataType;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Comparator;
 import java.util.Locale;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -166,6 +167,13 @@ public class H2Database extends AbstractSqlDatabase {
                         .collect(Collectors.toList()));
     }
 
+    @Override
+    protected Comparator<UUID> getIdComparator() {
+
+        // H2 compares UUIDs like Java does, using signed longs.
+        return Comparator.naturalOrder();
+    }
+
     @Override
     protected SortField<?> sort(Sorter sorter, SqlSortOptions options) {
         if (Sorter.RELEVANT_OPERATOR.equals(sorter.getOperator())) {
@@ -1,7 +1,7 @@
 package com.psddev.dari.h2;
 
 import com.psddev.dari.db.Query;
-import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.db.StateSerializer;
 import org.h2.api.Trigger;
 import org.jooq.DSLContext;
 import org.jooq.Field;
@@ -10,7 +10,6 @@ import org.jooq.SQLDialect;
 import org.jooq.Table;
 import org.jooq.impl.DSL;
 
-import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
@@ -43,8 +42,7 @@ public class SearchUpdateTrigger implements Trigger {
 
             // INSERT or UPDATE.
             } else {
-                @SuppressWarnings("unchecked")
-                Map<String, Object> data = (Map<String, Object>) ObjectUtils.fromJson(new String((byte[]) newRow[2], StandardCharsets.UTF_8));
+                Map<String, Object> data = StateSerializer.deserialize((byte[]) newRow[2]);
                 StringBuilder any = new StringBuilder();
 
                 for (Map.Entry<String, Object> entry : data.entrySet()) {
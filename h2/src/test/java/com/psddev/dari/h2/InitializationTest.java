@@ -1,15 +1,21 @@
 package com.psddev.dari.h2;
 
+import com.psddev.dari.sql.SqlReadReplica;
 import com.psddev.dari.util.CollectionUtils;
 import com.psddev.dari.util.SettingsException;
 import com.zaxxer.hikari.HikariDataSource;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.sql.Connection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
 public class InitializationTest {
 
     private static final String JDBC_URL = "jdbc:h2:mem:test" + UUID.randomUUID().toString().replaceAll("-", "") + ";DB_CLOSE_DELAY=-1";
@@ -40,4 +46,38 @@ public class InitializationTest {
         put(H2Database.DATA_SOURCE_SUB_SETTING, "foo");
         database.initialize("", settings);
     }
+
+    @Test
+    public void readDataSources() throws Exception {
+        HikariDataSource hikari = new HikariDataSource();
+        hikari.setJdbcUrl(JDBC_URL);
+        put(H2Database.DATA_SOURCE_SUB_SETTING, hikari);
+        put(H2Database.READ_DATA_SOURCES_SUB_SETTING + "/replica/" + H2Database.DATA_SOURCE_SUB_SETTING, hikari);
+        database.initialize("", settings);
+
+        try {
+            List<SqlReadReplica> replicas = database.getReadReplicas();
+
+            assertThat(replicas, hasSize(1));
+            assertThat(replicas.get(0).isHealthy(), is(true));
+
+            Connection connection = database.openReadConnection();
+
+            assertThat(replicas.get(0).getOutstanding(), is(1));
+            database.closeConnection(connection);
+            assertThat(replicas.get(0).getOutstanding(), is(0));
+
+        } finally {
+            database.close();
+        }
+    }
+
+    @Test(expected = SettingsException.class)
+    public void readDataSourcesNotMap() {
+        HikariDataSource hikari = new HikariDataSource();
+        hikari.setJdbcUrl(JDBC_URL);
+        put(H2Database.DATA_SOURCE_SUB_SETTING, hikari);
+        put(H2Database.READ_DATA_SOURCES_SUB_SETTING, "foo");
+        database.initialize("", settings);
+    }
 }
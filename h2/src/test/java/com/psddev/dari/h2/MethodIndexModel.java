@@ -0,0 +1,23 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Record;
+
+import java.util.Locale;
+
+public class MethodIndexModel extends Record {
+
+    private String name;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Indexed
+    public String getUpperName() {
+        return name != null ? name.toUpperCase(Locale.ENGLISH) : null;
+    }
+}
@@ -18,11 +18,16 @@ public class ReadModel extends Record {
     @Indexed
     public Set<String> letters;
 
+    @Indexed
+    public int length;
+
     @Override
     protected void beforeSave() {
         if (text != null) {
             int textLength = text.length();
 
+            length = textLength;
+
             if (textLength > 0) {
                 firstLetter = text.substring(0, 1);
                 letters = IntStream.range(0, textLength)
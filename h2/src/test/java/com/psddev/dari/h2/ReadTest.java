@@ -1,18 +1,23 @@
 package com.psddev.dari.h2;
 
+import com.psddev.dari.db.AbstractDatabase;
 import com.psddev.dari.db.Database;
 import com.psddev.dari.db.Grouping;
 import com.psddev.dari.db.Query;
 import com.psddev.dari.sql.AbstractSqlDatabase;
+import com.psddev.dari.util.ObjectUtils;
 import com.psddev.dari.util.PaginatedResult;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
@@ -92,6 +97,46 @@ public class ReadTest extends AbstractTest {
         });
     }
 
+    @Test
+    public void allGroupedAggregated() {
+        List<Grouping<ReadModel>> groupings = Query.from(ReadModel.class)
+                .option(AbstractDatabase.GROUPING_AGGREGATE_FIELDS_QUERY_OPTION, "length")
+                .groupBy("firstLetter");
+
+        assertThat(
+                groupings,
+                hasSize(25));
+
+        groupings.forEach(g -> {
+            String firstLetter = (String) g.getKeys().get(0);
+            long count = firstLetter.charAt(0) - 'a';
+
+            assertThat(firstLetter, g.getNonNullCount("length"), is(count));
+            assertThat(firstLetter, g.getSum("length"), is(count * (count + 1) / 2.0));
+            assertThat(firstLetter, ObjectUtils.to(long.class, g.getMinimum("length")), is(1L));
+            assertThat(firstLetter, ObjectUtils.to(long.class, g.getMaximum("length")), is(count));
+        });
+    }
+
+    @Test
+    public void allGroupedAggregatedSet() {
+        List<Grouping<ReadModel>> groupings = Query.from(ReadModel.class)
+                .option(AbstractDatabase.GROUPING_AGGREGATE_FIELDS_QUERY_OPTION, "letters")
+                .groupBy("firstLetter");
+
+        assertThat(
+                groupings,
+                hasSize(25));
+
+        groupings.forEach(g -> {
+            String firstLetter = (String) g.getKeys().get(0);
+            long count = firstLetter.charAt(0) - 'a';
+
+            assertThat(firstLetter, g.getCount(), is(count));
+            assertThat(firstLetter, g.getNonNullCount("letters"), is(count));
+        });
+    }
+
     @Test
     public void count() {
         assertThat(
@@ -137,6 +182,46 @@ public class ReadTest extends AbstractTest {
         iterable(true, 1);
     }
 
+    @Test
+    public void partitionedIterables() {
+        List<Iterable<ReadModel>> iterables = Query.from(ReadModel.class).partitionedIterables(4, 10);
+        List<ReadModel> result = new ArrayList<>();
+
+        assertThat(iterables, hasSize(4));
+        iterables.parallelStream().forEach(iterable -> {
+            List<ReadModel> partition = new ArrayList<>();
+
+            iterable.forEach(partition::add);
+
+            synchronized (result) {
+                result.addAll(partition);
+            }
+        });
+
+        assertThat(result, hasSize(MODELS.size()));
+        assertThat(new HashSet<>(result), is(MODELS));
+    }
+
+    @Test
+    public void stream() {
+        H2Database database = Database.Static.getFirst(H2Database.class);
+
+        try (Stream<ReadModel> stream = database.readStream(Query.from(ReadModel.class), 7)) {
+            assertThat(stream.collect(Collectors.toSet()), is(MODELS));
+        }
+    }
+
+    @Test
+    public void streamClosedEarly() {
+        H2Database database = Database.Static.getFirst(H2Database.class);
+
+        try (Stream<ReadModel> stream = database.readStream(Query.from(ReadModel.class), 1)) {
+            assertThat(stream.limit(3).count(), is(3L));
+        }
+
+        assertThat(Query.from(ReadModel.class).count(), is((long) MODELS.size()));
+    }
+
     private void iterableNext(boolean disableByIdIterator) {
         Iterator<ReadModel> i = Query
                 .from(ReadModel.class)
@@ -194,7 +279,78 @@ public class ReadTest extends AbstractTest {
         assertThat(result.getItems(), hasSize(1));
     }
 
+    @Test
+    public void partialSameShape() {
+        for (char letter = 'b'; letter <= 'e'; ++ letter) {
+            String firstLetter = String.valueOf(letter);
+            List<ReadModel> items = Query.from(ReadModel.class)
+                    .where("firstLetter = ?", firstLetter)
+                    .sortAscending("text")
+                    .select(1, 100)
+                    .getItems();
+
+            assertThat(items, hasSize(letter - 'a' - 1));
+            items.forEach(item -> assertThat(item.firstLetter, is(firstLetter)));
+        }
+    }
+
     @Test
     public void partialGrouped() {
+        assertPartialGrouped(Query
+                .from(ReadModel.class)
+                .option(AbstractDatabase.GROUPING_AGGREGATE_FIELDS_QUERY_OPTION, "length"));
+    }
+
+    @Test
+    public void partialGroupedInMemory() {
+
+        // Text isn't numeric, so the groups are aggregated in memory, and
+        // the length is only aggregated on first access.
+        assertPartialGrouped(Query
+                .from(ReadModel.class)
+                .option(AbstractDatabase.GROUPING_AGGREGATE_FIELDS_QUERY_OPTION, "text"))
+                .forEach(g -> {
+                    String firstLetter = (String) g.getKeys().get(0);
+                    StringBuilder maximum = new StringBuilder();
+
+                    for (char letter = firstLetter.charAt(0); letter > 'a'; -- letter) {
+                        maximum.append(letter);
+                    }
+
+                    assertThat(firstLetter, g.getNonNullCount("text"), is(g.getCount()));
+                    assertThat(firstLetter, g.getSum("text"), is(0.0));
+                    assertThat(firstLetter, g.getMinimum("text"), is((Object) firstLetter));
+                    assertThat(firstLetter, g.getMaximum("text"), is((Object) maximum.toString()));
+                });
+    }
+
+    // Reads the groups by first letter in pages, and checks the count and
+    // the length aggregates of each.
+    private List<Grouping<ReadModel>> assertPartialGrouped(Query<ReadModel> query) {
+        List<Grouping<ReadModel>> groupings = new ArrayList<>();
+        Set<Object> keys = new HashSet<>();
+
+        for (int offset = 0; offset < 25; offset += 10) {
+            PaginatedResult<Grouping<ReadModel>> result = query.groupByPartial(offset, 10, "firstLetter");
+
+            assertThat(result.getCount(), is(25L));
+            assertThat(result.getItems(), hasSize(Math.min(10, 25 - offset)));
+
+            for (Grouping<ReadModel> g : result.getItems()) {
+                String firstLetter = (String) g.getKeys().get(0);
+                long count = firstLetter.charAt(0) - 'a';
+
+                assertThat(firstLetter, keys.add(firstLetter), is(true));
+                assertThat(firstLetter, g.getCount(), is(count));
+                assertThat(firstLetter, g.getNonNullCount("length"), is(count));
+                assertThat(firstLetter, g.getSum("length"), is(count * (count + 1) / 2.0));
+                assertThat(firstLetter, ObjectUtils.to(long.class, g.getMinimum("length")), is(1L));
+                assertThat(firstLetter, ObjectUtils.to(long.class, g.getMaximum("length")), is(count));
+                groupings.add(g);
+            }
+        }
+
+        assertThat(keys, hasSize(25));
+        return groupings;
     }
 }
@@ -0,0 +1,164 @@
+package com.psddev.dari.h2;
+
+import com.psddev.dari.db.Database;
+import com.psddev.dari.db.Query;
+import com.psddev.dari.db.SharedCachingDatabase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class SharedCachingDatabaseTest extends AbstractTest {
+
+    private SharedCachingDatabase caching;
+
+    @Before
+    public void createCaching() {
+        caching = new SharedCachingDatabase();
+        caching.setDelegate(Database.Static.getDefault());
+    }
+
+    @After
+    public void deleteModels() {
+        Query.from(WriteModel.class).deleteAll();
+        Query.from(StringIndexModel.class).deleteAll();
+        Query.from(MethodIndexModel.class).deleteAll();
+    }
+
+    @Test
+    public void readNewInstances() {
+        WriteModel model = new WriteModel();
+        model.string = "foo";
+        model.save();
+
+        WriteModel first = Query.from(WriteModel.class).using(caching).first();
+        WriteModel second = Query.from(WriteModel.class).using(caching).first();
+
+        assertThat(second, is(first));
+        assertThat(second, not(sameInstance(first)));
+        assertThat(second.string, is("foo"));
+    }
+
+    @Test
+    public void staleWithoutInvalidation() {
+        WriteModel model = new WriteModel();
+        model.save();
+
+        assertThat(Query.from(WriteModel.class).using(caching).count(), is(1L));
+
+        new WriteModel().save();
+
+        assertThat(Query.from(WriteModel.class).using(caching).count(), is(1L));
+        assertThat(Query.from(WriteModel.class).using(caching).noCache().count(), is(2L));
+    }
+
+    @Test
+    public void invalidateOnSave() {
+        WriteModel model = new WriteModel();
+        model.string = "foo";
+        model.save();
+
+        WriteModel cached = Query.from(WriteModel.class).using(caching).first();
+
+        cached.string = "bar";
+        caching.save(cached.getState());
+
+        assertThat(Query.from(WriteModel.class).using(caching).first().string, is("bar"));
+        assertThat(Query.from(WriteModel.class).using(caching).count(), is(1L));
+
+        WriteModel other = new WriteModel();
+        other.getState().setDatabase(caching);
+        other.save();
+
+        assertThat(Query.from(WriteModel.class).using(caching).count(), is(2L));
+    }
+
+    @Test
+    public void invalidateOnDelete() {
+        WriteModel model = new WriteModel();
+        model.save();
+
+        assertThat(Query.from(WriteModel.class).using(caching).selectAll(), hasSize(1));
+
+        caching.delete(model.getState());
+
+        assertThat(Query.from(WriteModel.class).using(caching).selectAll(), empty());
+    }
+
+    @Test
+    public void invalidateOnChangedFields() {
+        StringIndexModel foo = new StringIndexModel();
+        foo.setOne("foo");
+        foo.save();
+
+        StringIndexModel bar = new StringIndexModel();
+        bar.setOne("bar");
+        bar.save();
+
+        Query<StringIndexModel> fooQuery = Query.from(StringIndexModel.class).where("one = foo").using(caching);
+        Query<StringIndexModel> barQuery = Query.from(StringIndexModel.class).where("one = bar").using(caching);
+
+        assertThat(fooQuery.count(), is(1L));
+
+        // Not written through the cache, so the count is stale until a
+        // write changes the field that the query filters by.
+        StringIndexModel other = new StringIndexModel();
+        other.setOne("foo");
+        other.save();
+
+        StringIndexModel cached = barQuery.first();
+
+        cached.setList(Collections.singletonList("baz"));
+        caching.save(cached.getState());
+
+        assertThat(fooQuery.count(), is(1L));
+        assertThat(barQuery.first().getList(), contains("baz"));
+
+        cached = barQuery.first();
+
+        cached.setOne("foo");
+        caching.save(cached.getState());
+
+        assertThat(fooQuery.count(), is(3L));
+        assertThat(barQuery.first(), nullValue());
+    }
+
+    @Test
+    public void invalidateOnMethodIndex() {
+        MethodIndexModel model = new MethodIndexModel();
+        model.setName("foo");
+        model.save();
+
+        Query<MethodIndexModel> fooQuery = Query.from(MethodIndexModel.class).where("getUpperName = FOO").using(caching);
+
+        assertThat(fooQuery.count(), is(1L));
+
+        // The method isn't a changed field, so any change to the type must
+        // invalidate the count.
+        MethodIndexModel cached = Query.from(MethodIndexModel.class).using(caching).first();
+
+        cached.setName("bar");
+        caching.save(cached.getState());
+
+        assertThat(fooQuery.count(), is(0L));
+    }
+
+    @Test
+    public void readCompleteObjects() {
+        StringIndexModel model = new StringIndexModel();
+        model.setOne("foo");
+        model.save();
+
+        Query<StringIndexModel> query = Query.from(StringIndexModel.class).using(caching);
+        StringIndexModel first = query.first();
+        StringIndexModel second = query.first();
+
+        assertThat(second.getOne(), is("foo"));
+        assertThat(second.getState().getDatabase(), is(first.getState().getDatabase()));
+        assertThat(second.getState().getExtras().get(Query.CREATOR_EXTRA), notNullValue());
+    }
+}
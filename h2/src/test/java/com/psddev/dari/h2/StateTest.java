@@ -1,15 +1,18 @@
 package com.psddev.dari.h2;
 
 import com.psddev.dari.db.Query;
+import com.psddev.dari.db.State;
 import org.junit.After;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 
+import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
 public class StateTest extends AbstractTest {
@@ -18,6 +21,111 @@ public class StateTest extends AbstractTest {
     public void deleteModels() {
 
         Query.from(UuidIndexModel.class).deleteAll();
+        Query.from(WriteModel.class).deleteAll();
+    }
+
+    @Test
+    public void lazyValues() {
+        WriteModel model = new WriteModel();
+        model.number = 1;
+        model.string = "foo";
+        model.list.add("bar");
+        model.save();
+
+        WriteModel lazy = Query.from(WriteModel.class).lazyValues().noCache().where("_id = ?", model.getId()).first();
+        State lazyState = lazy.getState();
+
+        assertThat(lazyState.isLazyValues(), is(true));
+
+        // Reading the fields directly from here bypasses the enhancer, so
+        // they only show the values that have been converted.
+        assertThat(lazyState.getRawValue("string"), is((Object) "foo"));
+        assertThat(lazy.string, nullValue());
+        assertThat(lazy.number, is(0));
+        assertThat(lazy.list, empty());
+
+        assertThat(lazyState.get("string"), is((Object) "foo"));
+        assertThat(lazy.string, is("foo"));
+        assertThat(lazy.number, is(0));
+        assertThat(lazy.list, empty());
+
+        assertThat(lazyState.get("list"), is((Object) Collections.singletonList("bar")));
+        assertThat(lazy.list, contains("bar"));
+        assertThat(lazy.number, is(0));
+
+        WriteModel eager = Query.from(WriteModel.class).noCache().where("_id = ?", model.getId()).first();
+
+        assertThat(eager.getState().isLazyValues(), is(false));
+        assertThat(eager.string, is("foo"));
+        assertThat(eager.number, is(1));
+
+        lazyState.put("number", 2);
+        lazyState.save();
+
+        WriteModel saved = Query.from(WriteModel.class).noCache().where("_id = ?", model.getId()).first();
+
+        assertThat(saved.number, is(2));
+        assertThat(saved.string, is("foo"));
+        assertThat(saved.list, contains("bar"));
+    }
+
+    @Test
+    public void lazyReferenceSet() {
+        UuidIndexModel reference1 = new UuidIndexModel();
+        UuidIndexModel reference2 = new UuidIndexModel();
+        UuidIndexModel model = new UuidIndexModel();
+
+        reference1.save();
+        reference2.save();
+        model.setReferenceOne(reference1);
+        model.save();
+
+        UuidIndexModel lazy = Query.from(UuidIndexModel.class).lazyValues().noCache().where("_id = ?", model.getId()).first();
+
+        // Setting the reference before reading it must not be overwritten
+        // by the pending conversion of the old one.
+        lazy.setReferenceOne(reference2);
+
+        assertThat(lazy.getReferenceOne(), is(reference2));
+        assertThat(lazy.getState().get("referenceOne"), is((Object) reference2));
+    }
+
+    @Test
+    public void preloadReferences() {
+        UuidIndexModel reference1 = new UuidIndexModel();
+        UuidIndexModel reference2 = new UuidIndexModel();
+        UuidIndexModel model1 = new UuidIndexModel();
+        UuidIndexModel model2 = new UuidIndexModel();
+
+        reference1.save();
+        reference2.save();
+        model1.setReferenceOne(reference1);
+        model1.setReferenceList(Arrays.asList(reference1, reference2));
+        model1.save();
+        model2.setReferenceOne(reference2);
+        model2.save();
+
+        List<UuidIndexModel> models = Query.from(UuidIndexModel.class)
+                .where("_id = ?", Arrays.asList(model1, model2))
+                .noCache()
+                .preloadReferences(1)
+                .selectAll();
+
+        assertThat(models, hasSize(2));
+
+        for (UuidIndexModel model : models) {
+            State state = model.getState();
+
+            if (model.equals(model1)) {
+                assertThat(state.getExtras(), hasKey(State.SUB_DATA_STATE_EXTRA_PREFIX + reference2.getId()));
+                assertThat(model.getReferenceOne(), is(reference1));
+                assertThat(model.getReferenceList(), contains(reference1, reference2));
+
+            } else {
+                assertThat(state.getExtras(), hasKey(State.SUB_DATA_STATE_EXTRA_PREFIX + reference2.getId()));
+                assertThat(model.getReferenceOne(), is(reference2));
+            }
+        }
     }
 
     @Test
@@ -0,0 +1,150 @@
+package com.psddev.dari.h2;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class SymbolTest extends AbstractTest {
+
+    // Slightly longer than the duration that the missing symbols are
+    // remembered for.
+    private static final long MISSING_SYMBOLS_EXPIRE_MILLIS = 11000L;
+
+    private static HikariDataSource dataSource;
+    private static SymbolDatabase database;
+
+    @BeforeClass
+    public static void createSymbolDatabase() {
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:h2:mem:symbol" + UUID.randomUUID().toString().replaceAll("-", "") + ";DB_CLOSE_DELAY=-1");
+
+        Map<String, Object> settings = new HashMap<>();
+
+        settings.put(H2Database.DATA_SOURCE_SUB_SETTING, dataSource);
+
+        database = new SymbolDatabase();
+        database.initialize("symbol", settings);
+    }
+
+    @AfterClass
+    public static void closeSymbolDatabase() throws Exception {
+        database.close();
+        dataSource.close();
+    }
+
+    // Creates the symbol behind the database's back, the same as another
+    // server would, and returns its ID.
+    private static int insertSymbol(String symbol) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("INSERT INTO \"Symbol\" (\"value\") VALUES (?)", Statement.RETURN_GENERATED_KEYS)) {
+
+            statement.setString(1, symbol);
+            statement.executeUpdate();
+
+            try (ResultSet result = statement.getGeneratedKeys()) {
+                assertThat(result.next(), is(true));
+                return result.getInt(1);
+            }
+        }
+    }
+
+    @Test
+    public void bulkCreate() {
+        List<String> symbols = new ArrayList<>();
+
+        // More than what's read in one query.
+        for (int i = 0; i < 1200; ++ i) {
+            symbols.add("bulk/" + i);
+        }
+
+        Map<String, Integer> created = database.findSymbolIds(symbols, true);
+
+        assertThat(created.keySet(), is(new HashSet<>(symbols)));
+        assertThat(new HashSet<>(created.values()), hasSize(symbols.size()));
+
+        assertThat(database.findSymbolIds(symbols, false), is(created));
+        assertThat(database.findSymbolIds(symbols, true), is(created));
+        assertThat(database.findSymbolId("bulk/0", false), is(created.get("bulk/0")));
+
+        database.invalidateCaches();
+
+        assertThat(database.findSymbolIds(symbols, false), is(created));
+    }
+
+    @Test
+    public void createMissing() {
+        Map<String, Integer> existing = database.findSymbolIds(Collections.singleton("mixed/existing"), true);
+        List<String> symbols = new ArrayList<>();
+
+        symbols.add("mixed/existing");
+        symbols.add("mixed/new");
+
+        assertThat(database.findSymbolIds(symbols, false), is(existing));
+
+        Map<String, Integer> ids = database.findSymbolIds(symbols, true);
+
+        assertThat(ids.keySet(), containsInAnyOrder("mixed/existing", "mixed/new"));
+        assertThat(ids.get("mixed/existing"), is(existing.get("mixed/existing")));
+        assertThat(ids.get("mixed/new"), not(existing.get("mixed/existing")));
+        assertThat(database.findSymbolId("mixed/new", false), is(ids.get("mixed/new")));
+    }
+
+    @Test
+    public void missingWithoutCreate() throws SQLException {
+        assertThat(database.findSymbolIds(Collections.singleton("missing/created"), false).entrySet(), empty());
+        assertThat(database.findSymbolId("missing/created", false), is(-1));
+
+        int id = insertSymbol("missing/created");
+
+        // Remembered as missing, but the creation still checks the
+        // database and finds the existing ID.
+        assertThat(database.findSymbolIds(Collections.singleton("missing/created"), false).entrySet(), empty());
+        assertThat(database.findSymbolIds(Collections.singleton("missing/created"), true).get("missing/created"), is(id));
+        assertThat(database.findSymbolIds(Collections.singleton("missing/created"), false).get("missing/created"), is(id));
+    }
+
+    @Test
+    public void missingExpires() throws InterruptedException, SQLException {
+        assertThat(database.findSymbolIds(Collections.singleton("missing/expires"), false).entrySet(), empty());
+
+        int id = insertSymbol("missing/expires");
+
+        assertThat(database.findSymbolIds(Collections.singleton("missing/expires"), false).entrySet(), empty());
+
+        Thread.sleep(MISSING_SYMBOLS_EXPIRE_MILLIS);
+
+        assertThat(database.findSymbolIds(Collections.singleton("missing/expires"), false).get("missing/expires"), is(id));
+    }
+
+    // Exposes the symbol lookups to the tests.
+    public static class SymbolDatabase extends H2Database {
+
+        @Override
+        public int findSymbolId(String symbol, boolean create) {
+            return super.findSymbolId(symbol, create);
+        }
+
+        @Override
+        public Map<String, Integer> findSymbolIds(Collection<String> symbols, boolean create) {
+            return super.findSymbolIds(symbols, create);
+        }
+    }
+}
@@ -52,6 +52,61 @@ public class WriteTest extends AbstractTest {
         assertThat(Query.from(WriteModel.class).first(), is(model1));
     }
 
+    @Test
+    public void saveBatch() {
+        Database database = Database.Static.getDefault();
+        List<WriteModel> models = new ArrayList<>();
+
+        database.beginWrites();
+
+        try {
+            for (int i = 0; i < 5; ++ i) {
+                WriteModel model = new WriteModel();
+                model.number = i;
+                model.save();
+                models.add(model);
+            }
+
+            database.commitWrites();
+
+        } finally {
+            database.endWrites();
+        }
+
+        assertThat(Query.from(WriteModel.class).selectAll(), containsInAnyOrder(models.toArray()));
+    }
+
+    @Test
+    public void saveBatchRetry() {
+        WriteModel saved = new WriteModel();
+        saved.save();
+        WriteModel deleted = new WriteModel();
+        deleted.save();
+        Query.from(WriteModel.class).where("_id = ?", deleted).deleteAll();
+
+        WriteModel duplicate = new WriteModel();
+        duplicate.getState().setId(saved.getId());
+        duplicate.number = 1;
+
+        Database database = Database.Static.getDefault();
+
+        database.beginWrites();
+
+        try {
+            duplicate.save();
+            deleted.save();
+            new WriteModel().save();
+            database.commitWrites();
+
+        } finally {
+            database.endWrites();
+        }
+
+        assertThat(Query.from(WriteModel.class).count(), is(3L));
+        assertThat(Query.from(WriteModel.class).where("_id = ?", saved).first().number, is(1));
+        assertThat(Query.from(WriteModel.class).where("_id = ?", deleted).first(), is(deleted));
+    }
+
     @Test
     public void saveAtomicallyIncrement() {
         new WriteModel().save();
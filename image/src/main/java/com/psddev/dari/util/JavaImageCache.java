@@ -0,0 +1,360 @@
+package com.psddev.dari.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import static com.psddev.dari.util.JavaImageEditor.MEGA_BYTE;
+
+/**
+ * Two-tier cache of the images rendered by {@link JavaImageServlet}.
+ *
+ * <p>The recently rendered images are kept in memory, and all of them are
+ * written to the disk, which is kept under its limit by deleting the least
+ * recently used files. Concurrent requests for the same image that isn't
+ * cached yet wait for a single render.</p>
+ */
+public class JavaImageCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JavaImageCache.class);
+
+    private static final double EVICT_RATIO = 0.8;
+    private static final int MAXIMUM_MEMORY_ENTRY_RATIO = 8;
+
+    private final File directory;
+    private final long diskLimit;
+    private final long memoryLimit;
+    private final Cache<String, Image> memory;
+    private final ConcurrentMap<String, CompletableFuture<Image>> renders = new ConcurrentHashMap<>();
+
+    // Sizes of the files on disk by their paths in access order.
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskSize;
+
+    /**
+     * @param directory Nonnull.
+     * @param diskLimit Maximum number of bytes to keep on disk.
+     * @param memoryLimit Maximum number of bytes to keep in memory.
+     *        {@code 0} disables the memory tier.
+     */
+    public JavaImageCache(File directory, long diskLimit, long memoryLimit) {
+        this.directory = directory;
+        this.diskLimit = diskLimit;
+        this.memoryLimit = memoryLimit;
+        this.memory = memoryLimit > 0L
+                ? CacheBuilder.newBuilder()
+                        .maximumWeight(memoryLimit)
+                        .weigher((String key, Image image) -> image.getData().length)
+                        .build()
+                : null;
+
+        new Task("Java Image Cache", "Scan " + directory) {
+
+            @Override
+            protected void doTask() throws IOException {
+                scan();
+            }
+        }.submit();
+    }
+
+    /**
+     * Returns the image associated with the given {@code key} from memory.
+     *
+     * @param key Nonnull.
+     * @return {@code null} if not found.
+     */
+    public Image getFromMemory(String key) {
+        return memory != null ? memory.getIfPresent(key) : null;
+    }
+
+    /**
+     * Marks the given {@code file} as recently used.
+     *
+     * @param file Nonnull.
+     */
+    public void touch(File file) {
+        String path = file.getPath();
+
+        synchronized (files) {
+            if (files.get(path) == null) {
+                long length = file.length();
+
+                files.put(path, length);
+                diskSize += length;
+            }
+        }
+    }
+
+    /**
+     * Returns the image associated with the given {@code key}, rendering it
+     * with the given {@code renderer} and writing it to the given
+     * {@code file} if it's not in memory. The concurrent calls with the
+     * same {@code key} share the same render.
+     *
+     * @param key Nonnull.
+     * @param file Nonnull.
+     * @param renderer Nonnull.
+     * @return Nonnull.
+     */
+    public Image get(String key, File file, Callable<Image> renderer) throws IOException {
+        Image image = getFromMemory(key);
+
+        if (image != null) {
+            return image;
+        }
+
+        CompletableFuture<Image> future = new CompletableFuture<>();
+        CompletableFuture<Image> existing = renders.putIfAbsent(key, future);
+
+        if (existing != null) {
+            try {
+                return existing.get();
+
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+
+            } catch (ExecutionException error) {
+                throw propagate(error.getCause());
+            }
+        }
+
+        try {
+            image = renderer.call();
+
+            if (image.isCacheable()) {
+                if (memory != null && image.getData().length <= memoryLimit / MAXIMUM_MEMORY_ENTRY_RATIO) {
+                    memory.put(key, image);
+                }
+
+                write(file, image.getData());
+            }
+
+            future.complete(image);
+            return image;
+
+        } catch (Exception error) {
+            future.completeExceptionally(error);
+            throw propagate(error);
+
+        } finally {
+            renders.remove(key, future);
+        }
+    }
+
+    private IOException propagate(Throwable error) {
+        if (error instanceof IOException) {
+            return (IOException) error;
+
+        } else if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+
+        } else if (error instanceof Error) {
+            throw (Error) error;
+
+        } else {
+            return new IOException(error);
+        }
+    }
+
+    // Writes the data to a temporary file first so that the partially
+    // written files are never served.
+    private void write(File file, byte[] data) {
+        File parent = file.getParentFile();
+        File tempFile = new File(parent, file.getName() + "." + UUID.randomUUID() + ".tmp");
+
+        try {
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                throw new IOException(String.format("Unable to create folder %s", parent));
+            }
+
+            try (FileOutputStream output = new FileOutputStream(tempFile)) {
+                output.write(data);
+            }
+
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException error) {
+            LOGGER.warn(String.format("Unable to write image cache file %s", file), error);
+
+            if (tempFile.exists() && !tempFile.delete()) {
+                LOGGER.warn("Unable to delete {}", tempFile);
+            }
+
+            return;
+        }
+
+        String path = file.getPath();
+
+        synchronized (files) {
+            Long oldLength = files.put(path, (long) data.length);
+
+            diskSize += data.length - (oldLength != null ? oldLength : 0L);
+        }
+
+        evict();
+    }
+
+    // Deletes the least recently used files until the cache is at 80% of
+    // its limit.
+    private void evict() {
+        List<String> victims = new ArrayList<>();
+        long size;
+
+        synchronized (files) {
+            if (diskSize <= diskLimit) {
+                return;
+            }
+
+            long target = (long) (diskLimit * EVICT_RATIO);
+
+            for (Iterator<Map.Entry<String, Long>> i = files.entrySet().iterator(); i.hasNext() && diskSize > target;) {
+                Map.Entry<String, Long> entry = i.next();
+
+                victims.add(entry.getKey());
+                diskSize -= entry.getValue();
+                i.remove();
+            }
+
+            size = diskSize;
+        }
+
+        int deleted = 0;
+
+        for (String victim : victims) {
+            if (new File(victim).delete()) {
+                ++ deleted;
+            }
+        }
+
+        LOGGER.info(String.format("Removed %s files from the image cache. Current size %.2fmb", deleted, (float) size / MEGA_BYTE));
+    }
+
+    // Finds the files that are already on disk, oldest first.
+    private void scan() throws IOException {
+        if (!directory.isDirectory()) {
+            return;
+        }
+
+        TreeMap<String, File> scanned = new TreeMap<>();
+
+        for (Iterator<File> i = FileUtils.iterateFiles(directory, null, true); i.hasNext();) {
+            File file = i.next();
+
+            if (file.isFile() && !file.isHidden() && !file.getName().endsWith(".tmp")) {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                long time = attributes.lastAccessTime() != null
+                        ? attributes.lastAccessTime().toMillis()
+                        : file.lastModified();
+
+                scanned.put(String.format("%020d", time) + file.getPath(), file);
+            }
+        }
+
+        synchronized (files) {
+            LinkedHashMap<String, Long> recent = new LinkedHashMap<>(files);
+
+            files.clear();
+            diskSize = 0L;
+
+            for (File file : scanned.values()) {
+                long length = file.length();
+
+                files.put(file.getPath(), length);
+                diskSize += length;
+            }
+
+            for (Map.Entry<String, Long> entry : recent.entrySet()) {
+                Long oldLength = files.put(entry.getKey(), entry.getValue());
+
+                diskSize += entry.getValue() - (oldLength != null ? oldLength : 0L);
+            }
+        }
+
+        evict();
+    }
+
+    /** Rendered image. */
+    public static final class Image {
+
+        private final String type;
+        private final byte[] data;
+        private final String eTag;
+        private final boolean cacheable;
+
+        /**
+         * @param type Nonnull. Image format, such as {@code png}.
+         * @param data Nonnull.
+         */
+        public Image(String type, byte[] data) {
+            this(type, data, true);
+        }
+
+        /**
+         * @param type Nonnull. Image format, such as {@code png}.
+         * @param data Nonnull.
+         * @param cacheable {@code false} if the image is only a stand-in,
+         *        such as the original served when an edit times out.
+         */
+        public Image(String type, byte[] data, boolean cacheable) {
+            this.type = type;
+            this.data = data;
+            this.cacheable = cacheable;
+
+            String eTag = null;
+
+            try {
+                eTag = StringUtils.hex(MessageDigest.getInstance("MD5").digest(data));
+
+            } catch (NoSuchAlgorithmException error) {
+                // No Such Algorithm Exception don't write eTag
+            }
+
+            this.eTag = eTag;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return Nullable.
+         */
+        public String getETag() {
+            return eTag;
+        }
+
+        public boolean isCacheable() {
+            return cacheable;
+        }
+    }
+}
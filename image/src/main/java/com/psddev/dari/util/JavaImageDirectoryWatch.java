@@ -18,6 +18,10 @@ import org.slf4j.LoggerFactory;
 
 import static com.psddev.dari.util.JavaImageEditor.MEGA_BYTE;
 
+/**
+ * @deprecated The cache size is now enforced by {@link JavaImageCache}.
+ */
+@Deprecated
 public class JavaImageDirectoryWatch implements Runnable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JavaImageDirectoryWatch.class);
@@ -8,9 +8,9 @@ import java.awt.Polygon;
 import java.awt.RenderingHints;
 import java.awt.geom.Ellipse2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.BufferedImageOp;
 import java.awt.image.ConvolveOp;
 import java.awt.image.Kernel;
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.WatchService;
@@ -119,6 +119,12 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
     private boolean disableCache;
     private String cachePath;
     private Long cacheLimitInMegaBytes = 500L;
+    private Long memoryCacheLimitInMegaBytes = 64L;
+    private volatile JavaImageCache imageCache;
+    private Integer processingThreads;
+    private Long processingMemoryLimitInMegaBytes;
+    private Double processingQueueTimeout = 10.0;
+    private volatile JavaImageProcessor imageProcessor;
 
     public Scalr.Method getQuality() {
         return quality;
@@ -186,6 +192,102 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
         this.cacheLimitInMegaBytes = cacheLimitInMegaBytes;
     }
 
+    public Long getMemoryCacheLimitInMegaBytes() {
+        return memoryCacheLimitInMegaBytes;
+    }
+
+    public void setMemoryCacheLimitInMegaBytes(Long memoryCacheLimitInMegaBytes) {
+        this.memoryCacheLimitInMegaBytes = memoryCacheLimitInMegaBytes;
+    }
+
+    /**
+     * Returns the cache of the rendered images in the
+     * {@linkplain #getCachePath cache path}.
+     *
+     * @return {@code null} if there's no cache path.
+     */
+    public JavaImageCache getImageCache() {
+        if (imageCache == null) {
+            synchronized (this) {
+                String cachePath = getCachePath();
+
+                if (imageCache == null && !StringUtils.isBlank(cachePath)) {
+                    long memoryLimit = memoryCacheLimitInMegaBytes != null ? memoryCacheLimitInMegaBytes : 0L;
+
+                    imageCache = new JavaImageCache(
+                            new File(cachePath),
+                            cacheLimitInMegaBytes * MEGA_BYTE,
+                            memoryLimit * MEGA_BYTE);
+                }
+            }
+        }
+
+        return imageCache;
+    }
+
+    /**
+     * Returns the number of threads that edit the images.
+     *
+     * @return Defaults to the number of available processors.
+     */
+    public Integer getProcessingThreads() {
+        return processingThreads != null && processingThreads > 0
+                ? processingThreads
+                : Runtime.getRuntime().availableProcessors();
+    }
+
+    public void setProcessingThreads(Integer processingThreads) {
+        this.processingThreads = processingThreads;
+    }
+
+    /**
+     * Returns the maximum amount of estimated pixel memory that the images
+     * being edited can use at once.
+     *
+     * @return Defaults to a quarter of the maximum heap size.
+     */
+    public Long getProcessingMemoryLimitInMegaBytes() {
+        return processingMemoryLimitInMegaBytes != null && processingMemoryLimitInMegaBytes > 0L
+                ? processingMemoryLimitInMegaBytes
+                : Math.max(1L, Runtime.getRuntime().maxMemory() / 4 / MEGA_BYTE);
+    }
+
+    public void setProcessingMemoryLimitInMegaBytes(Long processingMemoryLimitInMegaBytes) {
+        this.processingMemoryLimitInMegaBytes = processingMemoryLimitInMegaBytes;
+    }
+
+    /**
+     * Returns the maximum number of seconds that an image waits to be
+     * edited before the original is served instead.
+     */
+    public Double getProcessingQueueTimeout() {
+        return processingQueueTimeout;
+    }
+
+    public void setProcessingQueueTimeout(Double processingQueueTimeout) {
+        this.processingQueueTimeout = processingQueueTimeout;
+    }
+
+    /**
+     * Returns the processor that edits the images.
+     *
+     * @return Nonnull.
+     */
+    public JavaImageProcessor getImageProcessor() {
+        if (imageProcessor == null) {
+            synchronized (this) {
+                if (imageProcessor == null) {
+                    imageProcessor = new JavaImageProcessor(
+                            getProcessingThreads(),
+                            getProcessingMemoryLimitInMegaBytes() * MEGA_BYTE,
+                            processingQueueTimeout != null ? processingQueueTimeout : 0.0);
+                }
+            }
+        }
+
+        return imageProcessor;
+    }
+
     @Override
     public String getBaseUrl() {
 
@@ -449,6 +551,18 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
             setDisableCache(ObjectUtils.to(Boolean.class, settings.get("disableCache")));
         }
 
+        if (!ObjectUtils.isBlank(settings.get("processingThreads"))) {
+            setProcessingThreads(ObjectUtils.to(Integer.class, settings.get("processingThreads")));
+        }
+
+        if (!ObjectUtils.isBlank(settings.get("processingMemoryLimitInMegaBytes"))) {
+            setProcessingMemoryLimitInMegaBytes(ObjectUtils.to(Long.class, settings.get("processingMemoryLimitInMegaBytes")));
+        }
+
+        if (!ObjectUtils.isBlank(settings.get("processingQueueTimeout"))) {
+            setProcessingQueueTimeout(ObjectUtils.to(Double.class, settings.get("processingQueueTimeout")));
+        }
+
         if (!disableCache) {
             if (!ObjectUtils.isBlank(settings.get("cachePath"))) {
                 setCachePath(ObjectUtils.to(String.class, settings.get("cachePath")));
@@ -458,12 +572,20 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
                 setCacheLimitInMegaBytes(ObjectUtils.to(Long.class, settings.get("cacheLimitInMegaBytes")));
             }
 
-            initWatchService(getCacheLimitInMegaBytes() * MEGA_BYTE);
+            if (!ObjectUtils.isBlank(settings.get("memoryCacheLimitInMegaBytes"))) {
+                setMemoryCacheLimitInMegaBytes(ObjectUtils.to(Long.class, settings.get("memoryCacheLimitInMegaBytes")));
+            }
+
+            getImageCache();
 
         }
 
     }
 
+    /**
+     * @deprecated The cache size is now enforced by {@link #getImageCache}.
+     */
+    @Deprecated
     public void initWatchService(Long maximumCacheSizeInBytes) {
 
         if (maximumCacheSizeInBytes == null) {
@@ -674,8 +796,7 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
 
         Kernel kernel = new Kernel(3, 3, data);
 
-        BufferedImageOp bufferedImageOp = new ConvolveOp(kernel);
-        bufferedImageOp.filter(sourceImage, resultImage);
+        JavaImageProcessor.convolve(new ConvolveOp(kernel), sourceImage, resultImage);
 
         return resultImage;
     }
@@ -714,8 +835,8 @@ public class JavaImageEditor extends AbstractUrlImageEditor {
         BufferedImage resultImage = new BufferedImage(sourceImage.getWidth(), sourceImage.getHeight(), sourceImage.getType());
 
         //A good blur is between 10 and 20
-        getGaussianBlurFilter(amount + 10, true).filter(sourceImage, horizontalBlur);
-        getGaussianBlurFilter(amount + 10, false).filter(horizontalBlur, resultImage);
+        JavaImageProcessor.convolve(getGaussianBlurFilter(amount + 10, true), sourceImage, horizontalBlur);
+        JavaImageProcessor.convolve(getGaussianBlurFilter(amount + 10, false), horizontalBlur, resultImage);
 
         return resultImage;
     }
@@ -0,0 +1,217 @@
+package com.psddev.dari.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the image edits on a bounded pool of workers, admitting only as
+ * many at once as the estimated memory for the decoded pixels allows.
+ *
+ * <p>The edits that can't start within the queue timeout are skipped, and
+ * the caller falls back to the original image instead.</p>
+ */
+public class JavaImageProcessor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JavaImageProcessor.class);
+
+    private static final long KILO_BYTE = 1024L;
+    private static final int MINIMUM_TILED_PIXELS = 512 * 512;
+    private static final int TILE_ROWS = 128;
+
+    private final ExecutorService executor;
+    private final Semaphore memory;
+    private final int memoryPermits;
+    private final long queueTimeout;
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param threads Number of workers.
+     * @param memoryLimit Maximum number of bytes of estimated pixel memory
+     *        that the edits in progress can use.
+     * @param queueTimeout Maximum number of seconds to wait for an edit to
+     *        start.
+     */
+    public JavaImageProcessor(int threads, long memoryLimit, double queueTimeout) {
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("Java Image Processor %d").setDaemon(true).build());
+
+        this.memoryPermits = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, memoryLimit / KILO_BYTE));
+        this.memory = new Semaphore(memoryPermits, true);
+        this.queueTimeout = (long) (queueTimeout * 1e9);
+    }
+
+    /**
+     * Returns the number of edits that were skipped because they couldn't
+     * start within the queue timeout.
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * Runs the given {@code edit} in a worker once there's enough memory
+     * for it, or returns the result of the given {@code fallback} if it
+     * can't start within the queue timeout.
+     *
+     * @param estimatedBytes Estimated number of bytes that the edit uses.
+     * @param edit Nonnull.
+     * @param fallback Nonnull.
+     */
+    public <T> T process(long estimatedBytes, Callable<T> edit, Supplier<T> fallback) throws IOException {
+        long deadline = System.nanoTime() + queueTimeout;
+        int permits = (int) Math.max(1L, Math.min(memoryPermits, estimatedBytes / KILO_BYTE));
+
+        try {
+            if (!memory.tryAcquire(permits, queueTimeout, TimeUnit.NANOSECONDS)) {
+                return timeout(estimatedBytes, fallback);
+            }
+
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        try {
+            Future<T> future = executor.submit(() -> {
+                if (System.nanoTime() - deadline > 0L) {
+                    throw new QueueTimeoutException();
+                }
+
+                return edit.call();
+            });
+
+            try {
+                return future.get();
+
+            } catch (InterruptedException error) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+
+            } catch (ExecutionException error) {
+                Throwable cause = error.getCause();
+
+                if (cause instanceof QueueTimeoutException) {
+                    return timeout(estimatedBytes, fallback);
+
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+
+                } else {
+                    throw new IOException(cause);
+                }
+            }
+
+        } finally {
+            memory.release(permits);
+        }
+    }
+
+    private <T> T timeout(long estimatedBytes, Supplier<T> fallback) {
+        timeouts.incrementAndGet();
+        LOGGER.warn("Image edit using [{}] bytes timed out in the queue! Falling back to the original image.", estimatedBytes);
+        return fallback.get();
+    }
+
+    /**
+     * Applies the given convolution {@code op} to the given {@code source}
+     * and writes the result to the given {@code destination}, in bands of
+     * rows across all cores if the image is large.
+     *
+     * @param op Nonnull.
+     * @param source Nonnull.
+     * @param destination Nonnull. Must be the same size and type as the
+     *        {@code source}.
+     */
+    public static void convolve(ConvolveOp op, BufferedImage source, BufferedImage destination) {
+        if (source.getWidth() * source.getHeight() < MINIMUM_TILED_PIXELS) {
+            op.filter(source, destination);
+
+        } else {
+            ForkJoinPool.commonPool().invoke(new ConvolveTask(op, source, destination, 0, source.getHeight()));
+        }
+    }
+
+    private static final class ConvolveTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ConvolveOp op;
+        private final BufferedImage source;
+        private final BufferedImage destination;
+        private final int startY;
+        private final int endY;
+
+        public ConvolveTask(ConvolveOp op, BufferedImage source, BufferedImage destination, int startY, int endY) {
+            this.op = op;
+            this.source = source;
+            this.destination = destination;
+            this.startY = startY;
+            this.endY = endY;
+        }
+
+        @Override
+        protected void compute() {
+            if (endY - startY > TILE_ROWS) {
+                int middleY = (startY + endY) >>> 1;
+
+                invokeAll(
+                        new ConvolveTask(op, source, destination, startY, middleY),
+                        new ConvolveTask(op, source, destination, middleY, endY));
+
+                return;
+            }
+
+            // Pad the band with the rows that the kernel reaches into so
+            // that only the real image edges are treated as edges.
+            Kernel kernel = op.getKernel();
+            int width = source.getWidth();
+            int paddedStartY = Math.max(0, startY - kernel.getYOrigin());
+            int paddedEndY = Math.min(source.getHeight(), endY + kernel.getHeight() - 1 - kernel.getYOrigin());
+            BufferedImage band = new BufferedImage(width, paddedEndY - paddedStartY, source.getType());
+
+            op.filter(source.getSubimage(0, paddedStartY, width, paddedEndY - paddedStartY), band);
+
+            Raster rows = band.getRaster().createChild(0, startY - paddedStartY, width, endY - startY, 0, 0, null);
+
+            destination.getRaster().setRect(0, startY, rows);
+        }
+    }
+
+    private static final class QueueTimeoutException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+    }
+}
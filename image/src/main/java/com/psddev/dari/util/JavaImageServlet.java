@@ -1,22 +1,27 @@
 package com.psddev.dari.util;
 
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.TimeZone;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
@@ -30,6 +35,9 @@ public class JavaImageServlet extends HttpServlet {
     private static final List<String> BASIC_COMMANDS = Arrays.asList("circle", "grayscale", "invert", "sepia", "star", "starburst", "flipH", "flipV", "sharpen", "blur"); //Commands that don't require a value
     private static final List<String> PNG_COMMANDS = Arrays.asList("circle", "star", "starburst"); //Commands that return a PNG regardless of input
     private static final String QUALITY_OPTION = "quality";
+    private static final Stats STATS = new Stats("Java Image Editor");
+    private static final Settings.Handle<Boolean> DISABLE_LONG_CACHE_FILE_NAME = Settings.handle(Boolean.class, "dari/imageEditor/_java/disableLongCacheFileName", false);
+    private static final Settings.Handle<Integer> MAX_AGE = Settings.handle(Integer.class, "dari/imageEditor/_java/max-age", 31536000);
     private static SimpleDateFormat expiresDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz");
     protected static final String SERVLET_PATH = StringUtils.ensureEnd(RoutingFilter.Static.getApplicationPath("_image"), "/");
 
@@ -101,8 +109,11 @@ public class JavaImageServlet extends HttpServlet {
             }
 
             //Local Cache
+            JavaImageCache imageCache = cacheImage ? javaImageEditor.getImageCache() : null;
+            String cacheKey = null;
             File file = null;
-            if (cacheImage) {
+
+            if (imageCache != null) {
                 String cachePath = javaImageEditor.getCachePath();
                 if (!cachePath.endsWith("/")) {
                     cachePath += "/";
@@ -110,25 +121,10 @@ public class JavaImageServlet extends HttpServlet {
 
                 String requestUrl = request.getQueryString() != null ? request.getServletPath() + "?" + request.getQueryString() : request.getServletPath();
                 String md5Hex = StringUtils.hex(StringUtils.md5(requestUrl));
-                String baseDir = cachePath + md5Hex.substring(0, 2);
-                String imageDir = baseDir + "/" + md5Hex.substring(2, 6);
-
-                File baseFolder = new File(baseDir);
-                if (!baseFolder.exists()) {
-                    if (!baseFolder.mkdir()) {
-                        throw new IOException(String.format("Unable to create folder %s", baseDir));
-                    }
-                }
-
-                File imageFolder = new File(imageDir);
-                if (!imageFolder.exists()) {
-                    if (!imageFolder.mkdir()) {
-                        throw new IOException(String.format("Unable to create folder %s", imageFolder));
-                    }
-                }
+                String imageDir = cachePath + md5Hex.substring(0, 2) + "/" + md5Hex.substring(2, 6);
 
                 String filePath;
-                if (Settings.getOrDefault(Boolean.class, "dari/imageEditor/_java/disableLongCacheFileName", false)) {
+                if (DISABLE_LONG_CACHE_FILE_NAME.get()) {
                     filePath = StringUtils.hex(StringUtils.md5(requestUrl));
                 } else {
                     filePath = StringUtils.encodeUri(requestUrl);
@@ -138,344 +134,475 @@ public class JavaImageServlet extends HttpServlet {
                     }
                 }
 
-                filePath = imageFolder + "/" + filePath;
-                file = new File(filePath);
-                if (file.exists() && !file.isDirectory()) {
-                    ServletOutputStream out = response.getOutputStream();
+                cacheKey = requestUrl;
+                file = new File(imageDir + "/" + filePath);
 
-                    response.setHeader("Content-Type", "image/" + imageType);
-                    response.setContentLength((int) file.length());
-
-                    BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(file));
-
-                    int b;
-                    while ((b = inputStream.read()) != -1) {
-                        out.write(b);
-                    }
-
-                    inputStream.close();
-                    out.close();
+                JavaImageCache.Image cached = imageCache.getFromMemory(cacheKey);
+                if (cached != null) {
+                    writeImage(response, cached);
+                    return;
+                }
 
+                if (file.isFile() && writeFile(response, file, imageType)) {
+                    imageCache.touch(file);
                     return;
                 }
             }
 
-            BufferedImage bufferedImage;
+            //Concurrent requests for the same image share a single render
+            String sourceUrl = imageUrl;
+            String sourceType = imageType;
+            String[] commands = parameters;
+            JavaImageCache.Image image = imageCache != null
+                    ? imageCache.get(cacheKey, file, () -> render(request, javaImageEditor, sourceUrl, sourceType, commands))
+                    : render(request, javaImageEditor, sourceUrl, sourceType, commands);
 
-            try {
-                if (!imageUrl.startsWith("http")) {
-                    imageUrl = JspUtils.getAbsoluteUrl(request, imageUrl);
-                }
+            writeImage(response, image);
+        } else {
+            throw new IOException("No source image provided");
+        }
+    }
 
-                URL url = new URL(imageUrl);
-                URI uri = new URI(url.getProtocol(), url.getAuthority(), url.getPath(), url.getQuery(), url.getRef());
+    private JavaImageCache.Image render(HttpServletRequest request, JavaImageEditor javaImageEditor, String imageUrl, String imageType, String[] parameters) throws IOException {
+        SourceImage source;
 
-                if ((imageUrl.endsWith("tif") || imageUrl.endsWith("tiff")) && ObjectUtils.getClassByName(JavaImageEditor.TIFF_READER_CLASS) != null) {
-                    bufferedImage = JavaImageTiffReader.readTiff(uri.toString());
-                } else {
-                    bufferedImage = ImageIO.read(new URL(uri.toString()));
-                }
-            } catch (URISyntaxException ex) {
-                bufferedImage = null;
+        try {
+            if (!imageUrl.startsWith("http")) {
+                imageUrl = JspUtils.getAbsoluteUrl(request, imageUrl);
             }
 
-            if (bufferedImage == null) {
-                throw new IOException(String.format("Unable to process image %s", imageUrl));
-            }
+            URL url = new URL(imageUrl);
+            URI uri = new URI(url.getProtocol(), url.getAuthority(), url.getPath(), url.getQuery(), url.getRef());
+            boolean tiff = (imageUrl.endsWith("tif") || imageUrl.endsWith("tiff"))
+                    && ObjectUtils.getClassByName(JavaImageEditor.TIFF_READER_CLASS) != null
+                    && JavaImageTiffReader.register();
 
-            Scalr.Method quality = null;
-            for (int i = 0; i < parameters.length; i = i + 2) {
-                String command = parameters[i];
+            source = SourceImage.read(IoUtils.toByteArray(new URL(uri.toString())), tiff);
 
-                if (command.equals(QUALITY_OPTION)) {
-                    String value = parameters[i + 1];
-                    try {
-                        quality = Scalr.Method.valueOf(Scalr.Method.class, value.toUpperCase());
-                    } catch (IllegalArgumentException ex) {
-                        quality = javaImageEditor.findQualityByInteger(Integer.parseInt(value));
-                    }
+        } catch (URISyntaxException ex) {
+            source = null;
+        }
+
+        if (source == null) {
+            throw new IOException(String.format("Unable to process image %s", imageUrl));
+        }
+
+        // Roughly the decoded pixels plus the intermediate copies that the
+        // commands make, estimated from the header alone so that the pixels
+        // are only decoded once the edit is admitted.
+        long estimatedBytes = (long) source.width * source.height * 4L * 3L;
+        SourceImage sourceImage = source;
+        String sourceUrl = imageUrl;
+
+        return javaImageEditor.getImageProcessor().process(
+                estimatedBytes,
+                () -> edit(javaImageEditor, sourceImage.decode(sourceUrl), imageType, parameters),
+                () -> new JavaImageCache.Image(sourceImage.format, sourceImage.data, false));
+    }
+
+    private JavaImageCache.Image edit(JavaImageEditor javaImageEditor, BufferedImage bufferedImage, String imageType, String[] parameters) throws IOException {
+        Scalr.Method quality = null;
+        for (int i = 0; i < parameters.length; i = i + 2) {
+            String command = parameters[i];
+
+            if (command.equals(QUALITY_OPTION)) {
+                String value = parameters[i + 1];
+                try {
+                    quality = Scalr.Method.valueOf(Scalr.Method.class, value.toUpperCase());
+                } catch (IllegalArgumentException ex) {
+                    quality = javaImageEditor.findQualityByInteger(Integer.parseInt(value));
                 }
             }
+        }
 
-            for (int i = 0; i < parameters.length; i = i + 2) {
-                String command = parameters[i];
-                String value = i + 1 < parameters.length ? parameters[i + 1] : "";
-                boolean validComand = true;
-
-                if (command.equals(ImageEditor.RESIZE_COMMAND)) {
-                    String option = null;
-                    Integer width = null;
-                    Integer height = null;
-
-                    if (value.endsWith("!")) {
-                        option = ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO;
-                    } else if (value.endsWith(">")) {
-                        option = ImageEditor.RESIZE_OPTION_ONLY_SHRINK_LARGER;
-                    } else if (value.endsWith("<")) {
-                        option = ImageEditor.RESIZE_OPTION_ONLY_ENLARGE_SMALLER;
-                    } else if (value.endsWith("^")) {
-                        option = ImageEditor.RESIZE_OPTION_FILL_AREA;
-                    }
-                    if (option != null) {
-                        value = value.substring(0, value.length() - 1);
-                    }
+        for (int i = 0; i < parameters.length; i = i + 2) {
+            String command = parameters[i];
+            String value = i + 1 < parameters.length ? parameters[i + 1] : "";
+            boolean validComand = true;
+            Stats.Timer timer = STATS.startTimer();
+
+            if (command.equals(ImageEditor.RESIZE_COMMAND)) {
+                String option = null;
+                Integer width = null;
+                Integer height = null;
+
+                if (value.endsWith("!")) {
+                    option = ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO;
+                } else if (value.endsWith(">")) {
+                    option = ImageEditor.RESIZE_OPTION_ONLY_SHRINK_LARGER;
+                } else if (value.endsWith("<")) {
+                    option = ImageEditor.RESIZE_OPTION_ONLY_ENLARGE_SMALLER;
+                } else if (value.endsWith("^")) {
+                    option = ImageEditor.RESIZE_OPTION_FILL_AREA;
+                }
+                if (option != null) {
+                    value = value.substring(0, value.length() - 1);
+                }
 
-                    String[] wh = value.split("x");
-                    width = parseInteger(wh[0]);
-                    if (wh.length == 2) {
-                        height = parseInteger(wh[1]);
-                    }
+                String[] wh = value.split("x");
+                width = parseInteger(wh[0]);
+                if (wh.length == 2) {
+                    height = parseInteger(wh[1]);
+                }
 
-                    bufferedImage = javaImageEditor.reSize(bufferedImage, width, height, option, quality);
+                bufferedImage = javaImageEditor.reSize(bufferedImage, width, height, option, quality);
 
-                } else if (command.equals(ImageEditor.CROP_COMMAND)) {
-                    Integer x = 0;
-                    Integer y = 0;
-                    Integer width = null;
-                    Integer height = null;
-                    String[] size;
+            } else if (command.equals(ImageEditor.CROP_COMMAND)) {
+                Integer x = 0;
+                Integer y = 0;
+                Integer width = null;
+                Integer height = null;
+                String[] size;
 
-                    if (value.contains("+")) {
-                        int delimiter = value.indexOf("+");
-                        String[] xy = value.substring(delimiter + 1).split("\\+");
+                if (value.contains("+")) {
+                    int delimiter = value.indexOf("+");
+                    String[] xy = value.substring(delimiter + 1).split("\\+");
 
-                        x = parseInteger(xy[0]) != null ? parseInteger(xy[0]) : 0;
-                        y = parseInteger(xy[1]) != null ? parseInteger(xy[1]) : 0;
+                    x = parseInteger(xy[0]) != null ? parseInteger(xy[0]) : 0;
+                    y = parseInteger(xy[1]) != null ? parseInteger(xy[1]) : 0;
 
-                        size = value.substring(0, delimiter).split("x");
+                    size = value.substring(0, delimiter).split("x");
 
-                    } else {
-                        size = value.split("x");
-                        if (size.length > 3) {
-                            x = parseInteger(size[0]) != null ? parseInteger(size[0]) : 0;
-                            y = parseInteger(size[1]) != null ? parseInteger(size[1]) : 0;
-                            size[0] = size[2];
-                            size[1] = size[3];
-                        }
+                } else {
+                    size = value.split("x");
+                    if (size.length > 3) {
+                        x = parseInteger(size[0]) != null ? parseInteger(size[0]) : 0;
+                        y = parseInteger(size[1]) != null ? parseInteger(size[1]) : 0;
+                        size[0] = size[2];
+                        size[1] = size[3];
                     }
+                }
 
-                    width = parseInteger(size[0]);
-                    if (size.length > 1) {
-                        height = parseInteger(size[1]);
-                    }
+                width = parseInteger(size[0]);
+                if (size.length > 1) {
+                    height = parseInteger(size[1]);
+                }
 
-                    bufferedImage = javaImageEditor.crop(bufferedImage, x, y, width, height);
+                bufferedImage = javaImageEditor.crop(bufferedImage, x, y, width, height);
 
-                } else if (command.equals(JavaImageEditor.THUMBNAIL_COMMAND)) {
-                    String option = null;
+            } else if (command.equals(JavaImageEditor.THUMBNAIL_COMMAND)) {
+                String option = null;
 
-                    if (value.endsWith("!")) {
-                        option = ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO;
-                    } else if (value.endsWith(">")) {
-                        option = ImageEditor.RESIZE_OPTION_ONLY_SHRINK_LARGER;
-                    } else if (value.endsWith("<")) {
-                        option = ImageEditor.RESIZE_OPTION_ONLY_ENLARGE_SMALLER;
-                    } else if (value.endsWith("^")) {
-                        option = ImageEditor.RESIZE_OPTION_FILL_AREA;
-                    }
-                    if (option != null) {
-                        value = value.substring(0, value.length() - 1);
-                    }
+                if (value.endsWith("!")) {
+                    option = ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO;
+                } else if (value.endsWith(">")) {
+                    option = ImageEditor.RESIZE_OPTION_ONLY_SHRINK_LARGER;
+                } else if (value.endsWith("<")) {
+                    option = ImageEditor.RESIZE_OPTION_ONLY_ENLARGE_SMALLER;
+                } else if (value.endsWith("^")) {
+                    option = ImageEditor.RESIZE_OPTION_FILL_AREA;
+                }
+                if (option != null) {
+                    value = value.substring(0, value.length() - 1);
+                }
 
-                    String[] wh = value.split("x");
-                    if (ObjectUtils.isBlank(wh) || wh.length < 2) {
-                        continue;
-                    }
-                    Integer width = ObjectUtils.to(Integer.class, wh[0]);
-                    Integer height = ObjectUtils.to(Integer.class, wh[1]);
+                String[] wh = value.split("x");
+                if (ObjectUtils.isBlank(wh) || wh.length < 2) {
+                    timer.stop("Invalid");
+                    continue;
+                }
+                Integer width = ObjectUtils.to(Integer.class, wh[0]);
+                Integer height = ObjectUtils.to(Integer.class, wh[1]);
 
-                    int resizeHeight =  height;
-                    int resizeWidth = width;
+                int resizeHeight =  height;
+                int resizeWidth = width;
 
-                    if (option == null || !option.equals(ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO)) {
-                        resizeHeight = (int) ((double) bufferedImage.getHeight() / (double) bufferedImage.getWidth() * (double) width);
-                        resizeWidth  = (int) ((double) bufferedImage.getWidth() / (double) bufferedImage.getHeight() * (double) height);
-                    }
+                if (option == null || !option.equals(ImageEditor.RESIZE_OPTION_IGNORE_ASPECT_RATIO)) {
+                    resizeHeight = (int) ((double) bufferedImage.getHeight() / (double) bufferedImage.getWidth() * (double) width);
+                    resizeWidth  = (int) ((double) bufferedImage.getWidth() / (double) bufferedImage.getHeight() * (double) height);
+                }
 
-                    bufferedImage = javaImageEditor.reSize(bufferedImage, resizeWidth, resizeHeight, option, quality);
-                    if ((width != bufferedImage.getWidth() || height != bufferedImage.getHeight())) {
+                bufferedImage = javaImageEditor.reSize(bufferedImage, resizeWidth, resizeHeight, option, quality);
+                if ((width != bufferedImage.getWidth() || height != bufferedImage.getHeight())) {
 
-                        //Allows for crop when reSized size is slightly off
-                        if (width > bufferedImage.getWidth() && (width - 2) <= bufferedImage.getWidth()) {
-                            width = bufferedImage.getWidth();
-                        }
+                    //Allows for crop when reSized size is slightly off
+                    if (width > bufferedImage.getWidth() && (width - 2) <= bufferedImage.getWidth()) {
+                        width = bufferedImage.getWidth();
+                    }
 
-                        if (height > bufferedImage.getHeight() && (height - 2) <= bufferedImage.getHeight()) {
-                            height = bufferedImage.getHeight();
-                        }
+                    if (height > bufferedImage.getHeight() && (height - 2) <= bufferedImage.getHeight()) {
+                        height = bufferedImage.getHeight();
+                    }
 
-                        int x = 0;
-                        int y = 0;
+                    int x = 0;
+                    int y = 0;
 
-                        //center automatic crop
-                        if (bufferedImage.getWidth() > width) {
-                            x = (bufferedImage.getWidth() - width) / 2;
-                        }
-                        if (bufferedImage.getHeight() > height) {
-                            y = (bufferedImage.getHeight() - height) / 2;
-                        }
+                    //center automatic crop
+                    if (bufferedImage.getWidth() > width) {
+                        x = (bufferedImage.getWidth() - width) / 2;
+                    }
+                    if (bufferedImage.getHeight() > height) {
+                        y = (bufferedImage.getHeight() - height) / 2;
+                    }
 
-                        if (width <= bufferedImage.getWidth() && height <= bufferedImage.getHeight()) {
-                            bufferedImage = javaImageEditor.crop(bufferedImage, x, y, width, height);
-                        }
+                    if (width <= bufferedImage.getWidth() && height <= bufferedImage.getHeight()) {
+                        bufferedImage = javaImageEditor.crop(bufferedImage, x, y, width, height);
                     }
+                }
 
-                } else if (command.equals("grayscale")) {
-                    bufferedImage = javaImageEditor.grayscale(bufferedImage);
+            } else if (command.equals("grayscale")) {
+                bufferedImage = javaImageEditor.grayscale(bufferedImage);
 
-                } else if (command.equals("brightness")) {
-                    String[] wh = value.split("x");
-                    Double brightness = Double.valueOf(wh[0]);
-                    Double contrast = wh.length > 1 ? Double.valueOf(wh[1]) : 0.0d;
+            } else if (command.equals("brightness")) {
+                String[] wh = value.split("x");
+                Double brightness = Double.valueOf(wh[0]);
+                Double contrast = wh.length > 1 ? Double.valueOf(wh[1]) : 0.0d;
 
-                    if (Math.abs(brightness) < 0) {
-                        brightness *= 100;
-                    }
+                if (Math.abs(brightness) < 0) {
+                    brightness *= 100;
+                }
 
-                    if (Math.abs(contrast) < 0) {
-                        contrast *= 100;
-                    }
+                if (Math.abs(contrast) < 0) {
+                    contrast *= 100;
+                }
+
+                bufferedImage = javaImageEditor.brightness(bufferedImage, brightness.intValue(), contrast.intValue());
 
-                    bufferedImage = javaImageEditor.brightness(bufferedImage, brightness.intValue(), contrast.intValue());
+            } else if (command.equals("sharpen")) {
+                Integer ammount = null;
+                try {
+                    ammount = Integer.parseInt(value);
+                } catch (NumberFormatException ex) {
+                    ammount = 2;
+                }
+                bufferedImage = javaImageEditor.sharpen(bufferedImage, ammount);
+
+            } else if (command.equals("blur")) {
+                int defaultBlur = 1;
+
+                if (value.contains("x")) {
+                    String[] axywh = value.split("x");
+                    int ammount = defaultBlur;
+                    int sizeOffset = 0;
+                    if (axywh.length > 4) {
+                        ammount = Integer.parseInt(axywh[0]);
+                        sizeOffset = 1;
+                    }
+                    int x = Integer.parseInt(axywh[sizeOffset]);
+                    int y = Integer.parseInt(axywh[sizeOffset + 1]);
+                    int w = Integer.parseInt(axywh[sizeOffset + 2]);
+                    int h = Integer.parseInt(axywh[sizeOffset + 3]);
 
-                } else if (command.equals("sharpen")) {
+                    bufferedImage = javaImageEditor.blurArea(bufferedImage, ammount, x, y, w, h);
+                } else {
                     Integer ammount = null;
                     try {
                         ammount = Integer.parseInt(value);
                     } catch (NumberFormatException ex) {
-                        ammount = 2;
-                    }
-                    bufferedImage = javaImageEditor.sharpen(bufferedImage, ammount);
-
-                } else if (command.equals("blur")) {
-                    int defaultBlur = 1;
-
-                    if (value.contains("x")) {
-                        String[] axywh = value.split("x");
-                        int ammount = defaultBlur;
-                        int sizeOffset = 0;
-                        if (axywh.length > 4) {
-                            ammount = Integer.parseInt(axywh[0]);
-                            sizeOffset = 1;
-                        }
-                        int x = Integer.parseInt(axywh[sizeOffset]);
-                        int y = Integer.parseInt(axywh[sizeOffset + 1]);
-                        int w = Integer.parseInt(axywh[sizeOffset + 2]);
-                        int h = Integer.parseInt(axywh[sizeOffset + 3]);
-
-                        bufferedImage = javaImageEditor.blurArea(bufferedImage, ammount, x, y, w, h);
-                    } else {
-                        Integer ammount = null;
-                        try {
-                            ammount = Integer.parseInt(value);
-                        } catch (NumberFormatException ex) {
-                            ammount = defaultBlur;
-                        }
-                        bufferedImage = javaImageEditor.blur(bufferedImage, ammount);
+                        ammount = defaultBlur;
                     }
+                    bufferedImage = javaImageEditor.blur(bufferedImage, ammount);
+                }
 
-                } else if (command.equals("contrast")) {
-                    Double contrast = Double.valueOf(value);
-                    if (Math.abs(contrast) < 0) {
-                        contrast *= 100;
-                    }
+            } else if (command.equals("contrast")) {
+                Double contrast = Double.valueOf(value);
+                if (Math.abs(contrast) < 0) {
+                    contrast *= 100;
+                }
 
-                    bufferedImage = javaImageEditor.brightness(bufferedImage, 0, contrast.intValue());
+                bufferedImage = javaImageEditor.brightness(bufferedImage, 0, contrast.intValue());
 
-                } else if (command.equals("flipflop")) {
-                    if (value.equals("horizontal")) {
-                        bufferedImage = javaImageEditor.flipHorizontal(bufferedImage);
-                    } else if (value.equals("vertical")) {
-                        bufferedImage = javaImageEditor.flipVertical(bufferedImage);
-                    }
-                } else if (command.equals("flipH")) {
+            } else if (command.equals("flipflop")) {
+                if (value.equals("horizontal")) {
                     bufferedImage = javaImageEditor.flipHorizontal(bufferedImage);
-                } else if (command.equals("flipV")) {
+                } else if (value.equals("vertical")) {
                     bufferedImage = javaImageEditor.flipVertical(bufferedImage);
-                } else if (command.equals("invert")) {
-                    bufferedImage = javaImageEditor.invert(bufferedImage);
-
-                } else if (command.equals("rotate")) {
-                    bufferedImage = javaImageEditor.rotate(bufferedImage, Integer.valueOf(parameters[i + 1]));
-
-                } else if (command.equals("sepia")) {
-                    bufferedImage = javaImageEditor.sepia(bufferedImage);
-
-                } else if (command.equals("format")) {
-                    imageType = value;
-
-                } else if (command.equals("circle")) {
-                    bufferedImage = javaImageEditor.circle(bufferedImage);
-
-                } else if (command.equals("star")) {
-                    bufferedImage = javaImageEditor.star(bufferedImage);
-
-                } else if (command.equals("starburst")) {
-                    int size = 5;
-                    int count = 30;
-                    if (value.contains("x")) {
-                        String[] sc = value.split("x");
-                        if (!StringUtils.isBlank(sc[0])) {
-                            size = Integer.parseInt(sc[0]);
-                        }
-                        if (sc.length > 1 && !StringUtils.isBlank(sc[1])) {
-                            count = Integer.parseInt(sc[1]);
-                        }
+                }
+            } else if (command.equals("flipH")) {
+                bufferedImage = javaImageEditor.flipHorizontal(bufferedImage);
+            } else if (command.equals("flipV")) {
+                bufferedImage = javaImageEditor.flipVertical(bufferedImage);
+            } else if (command.equals("invert")) {
+                bufferedImage = javaImageEditor.invert(bufferedImage);
+
+            } else if (command.equals("rotate")) {
+                bufferedImage = javaImageEditor.rotate(bufferedImage, Integer.valueOf(parameters[i + 1]));
+
+            } else if (command.equals("sepia")) {
+                bufferedImage = javaImageEditor.sepia(bufferedImage);
+
+            } else if (command.equals("format")) {
+                imageType = value;
+
+            } else if (command.equals("circle")) {
+                bufferedImage = javaImageEditor.circle(bufferedImage);
+
+            } else if (command.equals("star")) {
+                bufferedImage = javaImageEditor.star(bufferedImage);
+
+            } else if (command.equals("starburst")) {
+                int size = 5;
+                int count = 30;
+                if (value.contains("x")) {
+                    String[] sc = value.split("x");
+                    if (!StringUtils.isBlank(sc[0])) {
+                        size = Integer.parseInt(sc[0]);
+                    }
+                    if (sc.length > 1 && !StringUtils.isBlank(sc[1])) {
+                        count = Integer.parseInt(sc[1]);
                     }
-                    bufferedImage = javaImageEditor.starburst(bufferedImage, size, count);
-
-                } else {
-                    validComand = false;
                 }
+                bufferedImage = javaImageEditor.starburst(bufferedImage, size, count);
 
-                if (PNG_COMMANDS.contains(command)) {
-                    imageType = "png";
-                }
+            } else {
+                validComand = false;
+            }
 
-                //shift offset if a command wasn't found or a basic command has no value
-                if (!validComand || (BASIC_COMMANDS.contains(command) && !StringUtils.isBlank(value) && !value.toLowerCase().equals("true"))) {
-                    i = i - 1;
-                }
+            if (validComand) {
+                timer.stop(command);
+
+            } else {
+                timer.stop("Invalid");
             }
 
-            Integer maxAge = Settings.getOrDefault(Integer.class, "dari/imageEditor/_java/max-age", 31536000);
-            response.setContentType("image/" + imageType);
-            response.setHeader("Cache-Control", String.format("%s, public", maxAge.toString()));
-            response.setHeader("Edge-Control", String.format("downstream-ttl=%s", maxAge));
-            DateTime expires = new DateTime().plusSeconds(maxAge);
+            if (PNG_COMMANDS.contains(command)) {
+                imageType = "png";
+            }
+
+            //shift offset if a command wasn't found or a basic command has no value
+            if (!validComand || (BASIC_COMMANDS.contains(command) && !StringUtils.isBlank(value) && !value.toLowerCase().equals("true"))) {
+                i = i - 1;
+            }
+        }
+
+        return encode(bufferedImage, imageType, true);
+    }
+
+    private JavaImageCache.Image encode(BufferedImage bufferedImage, String imageType, boolean cacheable) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+
+        try {
+            ImageIO.write(bufferedImage, imageType, byteArrayOutputStream);
+
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+
+        return new JavaImageCache.Image(imageType, byteArrayOutputStream.toByteArray(), cacheable);
+    }
+
+    private void writeImage(HttpServletResponse response, JavaImageCache.Image image) throws IOException {
+        response.setContentType("image/" + image.getType());
+
+        if (!image.isCacheable()) {
+            response.setHeader("Cache-Control", "no-cache");
+            writeData(response, image.getData());
+            return;
+        }
+
+        Integer maxAge = MAX_AGE.get();
+        response.setHeader("Cache-Control", String.format("%s, public", maxAge.toString()));
+        response.setHeader("Edge-Control", String.format("downstream-ttl=%s", maxAge));
+        DateTime expires = new DateTime().plusSeconds(maxAge);
+        synchronized (expiresDateFormat) {
             if (!expiresDateFormat.getTimeZone().equals(TimeZone.getTimeZone("GMT"))) {
                 expiresDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
             }
             response.setHeader("Expires", expiresDateFormat.format(expires.toDate()));
+        }
+
+        if (image.getETag() != null) {
+            response.setHeader("ETag", image.getETag());
+        }
+
+        writeData(response, image.getData());
+    }
+
+    private void writeData(HttpServletResponse response, byte[] data) throws IOException {
+        response.setContentLength(data.length);
+
+        ServletOutputStream out = response.getOutputStream();
+        out.write(data);
+        out.close();
+    }
+
+    // Serves the cached file with FileChannel#transferTo, and returns false
+    // if the file was evicted in the meantime.
+    private boolean writeFile(HttpServletResponse response, File file, String imageType) throws IOException {
+        FileChannel channel;
+
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        } catch (NoSuchFileException error) {
+            return false;
+        }
+
+        try {
+            long size = channel.size();
+
+            response.setHeader("Content-Type", "image/" + imageType);
+            response.setContentLength((int) size);
+
             ServletOutputStream out = response.getOutputStream();
-            ImageIO.write(bufferedImage, imageType, out);
+            WritableByteChannel target = Channels.newChannel(out);
 
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            ImageIO.write(bufferedImage, imageType, byteArrayOutputStream);
-            byteArrayOutputStream.flush();
-            byte[] data = byteArrayOutputStream.toByteArray();
-
-            try {
-                MessageDigest md = MessageDigest.getInstance("MD5");
-                md.update(data);
-                byte[] hash = md.digest();
-                StringBuilder eTag = new StringBuilder();
-                for (int hashIndex = 0; hashIndex < hash.length; hashIndex++) {
-                    eTag.append(Integer.toString((hash[hashIndex] & 0xff) + 0x100, 16).substring(1));
+            for (long position = 0L; position < size;) {
+                position += channel.transferTo(position, size - position, target);
+            }
+
+            out.close();
+
+        } finally {
+            channel.close();
+        }
+
+        return true;
+    }
+
+    // Source image that's been downloaded, but only decoded up to its header.
+    private static final class SourceImage {
+
+        public final byte[] data;
+        public final boolean tiff;
+        public final String format;
+        public final int width;
+        public final int height;
+
+        private SourceImage(byte[] data, boolean tiff, String format, int width, int height) {
+            this.data = data;
+            this.tiff = tiff;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+        }
+
+        // Reads the format and the size from the header, and returns null
+        // if the data isn't in a readable format.
+        public static SourceImage read(byte[] data, boolean tiff) throws IOException {
+            try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+                Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+
+                if (readers == null || !readers.hasNext()) {
+                    return null;
+                }
+
+                ImageReader reader = readers.next();
+
+                try {
+                    reader.setInput(input, true, true);
+
+                    return new SourceImage(
+                            data,
+                            tiff,
+                            reader.getFormatName().toLowerCase(Locale.ENGLISH),
+                            reader.getWidth(0),
+                            reader.getHeight(0));
+
+                } finally {
+                    reader.dispose();
                 }
-                response.setHeader("ETag", eTag.toString());
-            } catch (NoSuchAlgorithmException ex) {
-                //No Such Algorithm Exception don't write eTag
             }
+        }
 
-            if (cacheImage) {
-                FileOutputStream fileOutputStream = new FileOutputStream(file);
-                ImageIO.write(bufferedImage, imageType, fileOutputStream);
+        public BufferedImage decode(String imageUrl) throws IOException {
+            BufferedImage bufferedImage = ImageIO.read(new ByteArrayInputStream(data));
+
+            if (bufferedImage == null) {
+                throw new IOException(String.format("Unable to process image %s", imageUrl));
             }
 
-            out.close();
-        } else {
-            throw new IOException("No source image provided");
+            return tiff ? JavaImageTiffReader.toRgb(bufferedImage) : bufferedImage;
         }
     }
 
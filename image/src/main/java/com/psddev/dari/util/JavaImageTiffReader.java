@@ -13,34 +13,46 @@ public class JavaImageTiffReader {
     protected static final Logger LOGGER = LoggerFactory.getLogger(JavaImageTiffReader.class);
 
     public static BufferedImage readTiff(String url) throws IOException {
+        if (!register()) {
+            return null;
+        }
+
+        BufferedImage tiffImage = ImageIO.read(new URL(url));
+
+        return tiffImage != null ? toRgb(tiffImage) : null;
+    }
 
+    // Registers the TIFF support, and returns false if it isn't available.
+    static boolean register() {
         try {
             if (!IIORegistry.lookupProviders(Class.forName(JavaImageEditor.TIFF_READER_CLASS)).hasNext()) {
                 //Register TIFF support
                 IIORegistry.getDefaultInstance().registerServiceProvider(Class.forName(JavaImageEditor.TIFF_READER_CLASS).newInstance());
             }
 
-            BufferedImage tiffImage = ImageIO.read(new URL(url));
-
-            //Convert to RGB
-            BufferedImage bufferedImage = new BufferedImage(tiffImage.getWidth(), tiffImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
-            for (int x = 0; x < tiffImage.getWidth(); x++) {
-                for (int y = 0; y < tiffImage.getHeight(); y++) {
-                    bufferedImage.setRGB(x, y, tiffImage.getRGB(x, y));
-                }
-            }
-
-            return bufferedImage;
+            return true;
 
         } catch (ClassNotFoundException ex) {
             LOGGER.error(JavaImageEditor.TIFF_READER_CLASS + " class not found");
-            return null;
+            return false;
         } catch (InstantiationException ex) {
             LOGGER.error("Unable to instantiate an instance of " + JavaImageEditor.TIFF_READER_CLASS);
-            return null;
+            return false;
         } catch (IllegalAccessException ex) {
             LOGGER.error("Unable to instantiate an instance of " + JavaImageEditor.TIFF_READER_CLASS);
-            return null;
+            return false;
+        }
+    }
+
+    // Converts the decoded TIFF to RGB.
+    static BufferedImage toRgb(BufferedImage tiffImage) {
+        BufferedImage bufferedImage = new BufferedImage(tiffImage.getWidth(), tiffImage.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < tiffImage.getWidth(); x++) {
+            for (int y = 0; y < tiffImage.getHeight(); y++) {
+                bufferedImage.setRGB(x, y, tiffImage.getRGB(x, y));
+            }
         }
+
+        return bufferedImage;
     }
 }
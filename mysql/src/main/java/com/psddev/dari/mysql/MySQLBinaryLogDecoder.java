@@ -0,0 +1,408 @@
+package com.psddev.dari.mysql;
+
+import com.psddev.dari.db.StateSerializer;
+import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.util.Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Applies the changes from the committed transactions in the binary log to
+ * the replication cache on a pool of workers.
+ *
+ * <p>Each change is routed to a lane by its ID, and each lane applies its
+ * changes in order on its own thread, so the changes to the same ID are
+ * always applied in the order that they were committed. The lanes are
+ * bounded, so the binary log client blocks when the workers fall too far
+ * behind.</p>
+ *
+ * <p>A lane that dies is replaced, and the cache is invalidated, since the
+ * changes that were queued on it are lost.</p>
+ */
+class MySQLBinaryLogDecoder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MySQLBinaryLogDecoder.class);
+    private static final Stats STATS = new Stats("MySQL Binary Log");
+    private static final int LANE_CAPACITY = 10000;
+    private static final long LANE_WAIT_MILLIS = 1000L;
+
+    private final MySQLDatabase database;
+    private final MySQLReplicationCache cache;
+    private final List<Lane> lanes;
+
+    // Held for reading while applying a change, and for writing while
+    // discarding all pending changes.
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile long generation;
+    private volatile boolean closed;
+
+    /**
+     * @param database Nonnull.
+     * @param cache Nonnull.
+     * @param threads Number of workers. Must be greater than {@code 0}.
+     */
+    public MySQLBinaryLogDecoder(MySQLDatabase database, MySQLReplicationCache cache, int threads) {
+        this.database = database;
+        this.cache = cache;
+
+        List<Lane> lanes = new ArrayList<>(threads);
+
+        for (int i = 0; i < threads; ++ i) {
+            lanes.add(new Lane(i));
+        }
+
+        this.lanes = new CopyOnWriteArrayList<>(lanes);
+        this.lanes.forEach(Thread::start);
+    }
+
+    /**
+     * Queues the change to the given {@code id} for the worker responsible
+     * for it, waiting if its lane is full. Does nothing once the decoder
+     * is closed.
+     *
+     * @param id Nonnull.
+     * @param data Nullable. New data, or the deleted data if
+     *        {@code delete} is {@code true}.
+     * @param delete {@code true} if the object was deleted.
+     * @param timestamp Time, in milliseconds, that the change was committed.
+     */
+    public void submit(UUID id, byte[] data, boolean delete, long timestamp) {
+        if (!closed) {
+            enqueue((id.hashCode() & Integer.MAX_VALUE) % lanes.size(), new Change(id, data, delete, timestamp, generation));
+        }
+    }
+
+    /**
+     * Waits until all changes queued so far have been applied, or until the
+     * decoder is closed.
+     */
+    public void awaitApplied() {
+        int size = lanes.size();
+        CountDownLatch latch = new CountDownLatch(size);
+        List<Lane> targets = new ArrayList<>(size);
+
+        for (int i = 0; i < size; ++ i) {
+            targets.add(lanes.get(i));
+
+            if (!enqueue(i, new Change(latch))) {
+                latch.countDown();
+            }
+        }
+
+        try {
+            while (!closed && !latch.await(LANE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                for (int i = 0; i < size; ++ i) {
+                    Lane lane = targets.get(i);
+
+                    if (!lane.isAlive()) {
+                        restartLane(i, lane);
+                        lane.releaseLatches();
+                    }
+                }
+            }
+
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Queues the change on the lane at the given index, waiting in bounded
+    // intervals so that a closed decoder or a dead lane can't block the
+    // caller forever. Returns false if the change was dropped.
+    private boolean enqueue(int index, Change change) {
+        while (!closed) {
+            Lane lane = lanes.get(index);
+
+            if (!lane.isAlive()) {
+                restartLane(index, lane);
+                return false;
+            }
+
+            try {
+                if (lane.queue.offer(change, LANE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+
+            } catch (InterruptedException error) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    // Replaces the dead lane and invalidates the cache, since the changes
+    // that were queued on it can't be applied anymore. The changes queued
+    // on the other lanes are applied first so that their notifications
+    // aren't lost along with them.
+    private synchronized void restartLane(int index, Lane dead) {
+        if (closed || lanes.get(index) != dead) {
+            return;
+        }
+
+        LOGGER.error("[{}] died! Replacing it and invalidating the replication cache.", dead.getName());
+
+        Lane lane = new Lane(index);
+
+        lanes.set(index, lane);
+        lane.start();
+        dead.releaseLatches();
+        awaitLanes(new ArrayList<>(lanes));
+        invalidateAll();
+    }
+
+    // Waits until all changes queued so far on the given lanes have been
+    // applied, skipping the lanes that die in the meantime instead of
+    // restarting them.
+    private void awaitLanes(List<Lane> targets) {
+        CountDownLatch latch = new CountDownLatch(targets.size());
+
+        try {
+            for (Lane lane : targets) {
+                Change marker = new Change(latch);
+
+                while (true) {
+                    if (closed || !lane.isAlive()) {
+                        latch.countDown();
+                        break;
+
+                    } else if (lane.queue.offer(marker, LANE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                }
+            }
+
+            while (!closed && !latch.await(LANE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                for (Lane lane : targets) {
+                    if (!lane.isAlive()) {
+                        lane.releaseLatches();
+                    }
+                }
+            }
+
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Discards all pending changes and removes all items from the cache,
+     * after waiting for the changes in progress to finish.
+     */
+    public void invalidateAll() {
+        Lock writeLock = lock.writeLock();
+
+        writeLock.lock();
+
+        try {
+            ++ generation;
+
+            for (Lane lane : lanes) {
+                lane.queue.removeIf(change -> change.latch == null);
+            }
+
+            cache.invalidateAll();
+
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns how far behind the binary log the cache is, in milliseconds,
+     * based on the commit time of the oldest change that hasn't been
+     * applied yet.
+     */
+    public long getLag() {
+        long oldest = Long.MAX_VALUE;
+
+        for (Lane lane : lanes) {
+            long timestamp = lane.getOldestTimestamp();
+
+            if (timestamp > 0L && timestamp < oldest) {
+                oldest = timestamp;
+            }
+        }
+
+        return oldest != Long.MAX_VALUE
+                ? Math.max(0L, System.currentTimeMillis() - oldest)
+                : 0L;
+    }
+
+    /**
+     * Stops all workers, discarding any pending changes. Any changes
+     * submitted afterwards are ignored.
+     */
+    public void close() {
+        closed = true;
+        lanes.forEach(Thread::interrupt);
+    }
+
+    // Applies a single change to the cache and notifies the listeners.
+    private void apply(Change change) {
+        Lock readLock = lock.readLock();
+
+        readLock.lock();
+
+        try {
+            if (change.generation != generation) {
+                return;
+            }
+
+            Stats.Timer timer = STATS.startTimer();
+            UUID id = change.id;
+            byte[] data = change.data;
+
+            if (change.delete) {
+                LOGGER.debug("Invalidate: {}", id);
+                cache.invalidate(id);
+
+                // Full row image includes the data.
+                if (data != null) {
+                    database.notifyDelete(database.createSavedObjectFromReplicationCache(id, data, StateSerializer.deserialize(data), null));
+                }
+
+                timer.stop("Delete");
+
+            } else if (data == null) {
+                LOGGER.debug("Invalidate: {}", id);
+                cache.invalidate(id);
+                timer.stop("Invalidate");
+
+            } else {
+                Map<String, Object> dataJson = StateSerializer.deserialize(data);
+                UUID typeId = ObjectUtils.to(UUID.class, dataJson.get(StateSerializer.TYPE_KEY));
+
+                if (cache.contains(id)) {
+                    LOGGER.debug("Update: {}", id);
+
+                    if (typeId != null) {
+                        cache.put(id, typeId, data);
+
+                    } else {
+                        cache.invalidate(id);
+                    }
+                }
+
+                database.notifyUpdate(database.createSavedObjectFromReplicationCache(id, data, dataJson, null));
+                timer.stop("Update");
+            }
+
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private final class Lane extends Thread {
+
+        public final BlockingQueue<Change> queue = new ArrayBlockingQueue<>(LANE_CAPACITY);
+        private volatile long inProgressTimestamp;
+
+        public Lane(int index) {
+            super("MySQL Binary Log Decoder " + index);
+            setDaemon(true);
+        }
+
+        public long getOldestTimestamp() {
+            long timestamp = inProgressTimestamp;
+
+            if (timestamp > 0L) {
+                return timestamp;
+            }
+
+            Change next = queue.peek();
+
+            return next != null ? next.timestamp : 0L;
+        }
+
+        // Counts down the markers left in the queue of a dead lane so that
+        // no one waits on them forever.
+        public void releaseLatches() {
+            List<Change> remaining = new ArrayList<>();
+
+            queue.drainTo(remaining);
+
+            for (Change change : remaining) {
+                if (change.latch != null) {
+                    change.latch.countDown();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                Change change;
+
+                try {
+                    change = queue.take();
+
+                } catch (InterruptedException error) {
+                    break;
+                }
+
+                if (change.latch != null) {
+                    change.latch.countDown();
+                    continue;
+                }
+
+                inProgressTimestamp = change.timestamp;
+
+                try {
+                    apply(change);
+
+                } catch (RuntimeException error) {
+                    LOGGER.warn(String.format("Can't apply the change to [%s] from the binary log!", change.id), error);
+                    cache.invalidate(change.id);
+
+                } finally {
+                    inProgressTimestamp = 0L;
+                }
+            }
+        }
+    }
+
+    private static final class Change {
+
+        public final UUID id;
+        public final byte[] data;
+        public final boolean delete;
+        public final long timestamp;
+        public final long generation;
+        public final CountDownLatch latch;
+
+        public Change(UUID id, byte[] data, boolean delete, long timestamp, long generation) {
+            this.id = id;
+            this.data = data;
+            this.delete = delete;
+            this.timestamp = timestamp;
+            this.generation = generation;
+            this.latch = null;
+        }
+
+        // Marker that counts down the given latch once all changes queued
+        // before it are applied.
+        public Change(CountDownLatch latch) {
+            this.id = null;
+            this.data = null;
+            this.delete = false;
+            this.timestamp = 0L;
+            this.generation = 0L;
+            this.latch = latch;
+        }
+    }
+}
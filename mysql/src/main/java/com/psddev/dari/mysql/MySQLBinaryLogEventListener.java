@@ -4,13 +4,13 @@ import com.github.shyiko.mysql.binlog.BinaryLogClient.EventListener;
 import com.github.shyiko.mysql.binlog.event.DeleteRowsEventData;
 import com.github.shyiko.mysql.binlog.event.Event;
 import com.github.shyiko.mysql.binlog.event.EventData;
+import com.github.shyiko.mysql.binlog.event.EventHeader;
+import com.github.shyiko.mysql.binlog.event.EventHeaderV4;
 import com.github.shyiko.mysql.binlog.event.EventType;
+import com.github.shyiko.mysql.binlog.event.RotateEventData;
 import com.github.shyiko.mysql.binlog.event.TableMapEventData;
 import com.github.shyiko.mysql.binlog.event.UpdateRowsEventData;
 import com.github.shyiko.mysql.binlog.event.WriteRowsEventData;
-import com.google.common.cache.Cache;
-import com.psddev.dari.db.State;
-import com.psddev.dari.db.StateSerializer;
 import com.psddev.dari.db.shyiko.DariQueryEventData;
 import com.psddev.dari.util.StringUtils;
 import com.psddev.dari.util.UuidUtils;
@@ -19,16 +19,28 @@ import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 class MySQLBinaryLogEventListener implements EventListener {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MySQLBinaryLogEventListener.class);
 
-    private final MySQLDatabase mysqlDatabase;
-    private final Cache<UUID, Object[]> cache;
+    private static final String OPERATOR_CHARACTERS = "=<>!|&^~+-*/%:@?#";
+    private static final Set<String> COMPARISON_OPERATORS = new HashSet<>(Arrays.asList("=", "<>", "!=", "<", "<=", ">", ">="));
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("(?:(?:`[^`]+`|[A-Za-z_$][\\w$]*)\\.)*(`[^`]+`|[A-Za-z_$][\\w$]*)");
+    private static final Pattern BINARY_LITERAL_PATTERN = Pattern.compile("(?i)x'([0-9a-f]*)'|0x([0-9a-f]+)");
+    private static final Pattern LITERAL_PATTERN = Pattern.compile("(?i)x'[0-9a-f]*'|0x[0-9a-f]+|[0-9]+(?:\\.[0-9]+)?|'.*'");
+
+    private final MySQLBinaryLogDecoder decoder;
     private final String databaseName;
     private final String recordTableName;
 
@@ -36,14 +48,55 @@ class MySQLBinaryLogEventListener implements EventListener {
     private boolean invalidateCacheOnCommit;
     private final List<Serializable[]> pendingUpdates = new ArrayList<>();
     private final List<Serializable[]> pendingInvalidates = new ArrayList<>();
+    private final Set<UUID> pendingStatementIds = new LinkedHashSet<>();
+
+    private boolean inTransaction;
+    private String binlogFilename;
+    private volatile MySQLBinaryLogPosition committedPosition;
+    private volatile MySQLBinaryLogPosition catchUpPosition;
 
-    public MySQLBinaryLogEventListener(MySQLDatabase mysqlDatabase, Cache<UUID, Object[]> cache, String databaseName, String recordTableName) {
-        this.mysqlDatabase = mysqlDatabase;
-        this.cache = cache;
+    public MySQLBinaryLogEventListener(MySQLBinaryLogDecoder decoder, String databaseName, String recordTableName) {
+        this.decoder = decoder;
         this.databaseName = databaseName;
         this.recordTableName = recordTableName;
     }
 
+    /**
+     * Returns the position right after the last transaction whose changes
+     * were handed off to the decoder.
+     *
+     * @return Nullable.
+     */
+    public MySQLBinaryLogPosition getCommittedPosition() {
+        return committedPosition;
+    }
+
+    /**
+     * Returns {@code true} if all changes up to the position that the
+     * stream needed to catch up to have been applied.
+     */
+    public boolean isCaughtUp() {
+        return catchUpPosition == null;
+    }
+
+    /**
+     * Resumes the stream from the given {@code checkpoint}, considering it
+     * behind until all changes up to the given {@code catchUpPosition} are
+     * applied.
+     *
+     * @param checkpoint Nullable.
+     * @param catchUpPosition Nullable if there's no need to catch up.
+     */
+    public void resume(MySQLBinaryLogPosition checkpoint, MySQLBinaryLogPosition catchUpPosition) {
+        this.inTransaction = false;
+        this.committedPosition = checkpoint;
+        this.catchUpPosition = checkpoint != null
+                && catchUpPosition != null
+                && checkpoint.compareTo(catchUpPosition) < 0
+                ? catchUpPosition
+                : null;
+    }
+
     @Override
     public void onEvent(Event event) {
         EventData eventData = event.getData();
@@ -55,14 +108,16 @@ class MySQLBinaryLogEventListener implements EventListener {
             if (sql.equalsIgnoreCase("BEGIN")) {
                 LOGGER.debug("Begin");
                 reset();
+                inTransaction = true;
 
             } else if (sql.equalsIgnoreCase("COMMIT")) {
                 LOGGER.debug("Commit");
-                commit();
+                commit(event.getHeader());
 
             } else if (sql.equalsIgnoreCase("ROLLBACK")) {
                 LOGGER.debug("Rollback");
                 reset();
+                inTransaction = false;
 
             } else if (queryEventData.getErrorCode() == 0
                     && queryEventData.getDatabase().equals(databaseName)) {
@@ -75,14 +130,25 @@ class MySQLBinaryLogEventListener implements EventListener {
                     String table = sql.substring(firstBackQuote, secondBackQuote);
 
                     if (recordTableName.equalsIgnoreCase(table)) {
-                        invalidateCacheOnCommit = true;
+                        Set<UUID> ids = findAffectedIds(sql);
+
+                        if (ids != null) {
+                            pendingStatementIds.addAll(ids);
+
+                        } else {
+                            invalidateCacheOnCommit = true;
+                        }
                     }
                 }
             }
 
+        } else if (eventData instanceof RotateEventData) {
+            binlogFilename = ((RotateEventData) eventData).getBinlogFilename();
+            LOGGER.debug("Rotate: {}", binlogFilename);
+
         } else if (event.getHeader().getEventType() == EventType.XID) {
             LOGGER.debug("XID");
-            commit();
+            commit(event.getHeader());
 
         // Only work on changes to the Record table.
         } else if (eventData instanceof TableMapEventData) {
@@ -141,38 +207,64 @@ class MySQLBinaryLogEventListener implements EventListener {
                 recordTableId = null;
             }
         }
+
+        // Events outside of the transactions, such as the rotations, move
+        // the position forward too, so that the stream can still catch up
+        // when there aren't any new transactions.
+        if (!inTransaction) {
+            MySQLBinaryLogPosition position = findNextPosition(event);
+
+            if (position != null) {
+                advance(position);
+            }
+        }
+    }
+
+    // Finds the position right after the given event.
+    private MySQLBinaryLogPosition findNextPosition(Event event) {
+        EventData eventData = event.getData();
+
+        if (eventData instanceof RotateEventData) {
+            return new MySQLBinaryLogPosition(binlogFilename, ((RotateEventData) eventData).getBinlogPosition());
+        }
+
+        EventHeader header = event.getHeader();
+
+        if (binlogFilename != null && header instanceof EventHeaderV4) {
+            long nextPosition = ((EventHeaderV4) header).getNextPosition();
+
+            if (nextPosition > 0L) {
+                return new MySQLBinaryLogPosition(binlogFilename, nextPosition);
+            }
+        }
+
+        return null;
     }
 
     private void reset() {
         invalidateCacheOnCommit = false;
         pendingUpdates.clear();
         pendingInvalidates.clear();
+        pendingStatementIds.clear();
     }
 
-    private void commit() {
+    // Hands the changes in the transaction off to the decoder. The position
+    // moves past the transaction once the event is done.
+    private void commit(EventHeader header) {
+        long timestamp = header.getTimestamp();
+
         try {
             if (invalidateCacheOnCommit) {
                 LOGGER.debug("Invalidate all");
-                cache.invalidateAll();
+                decoder.awaitApplied();
+                decoder.invalidateAll();
 
             } else {
                 pendingUpdates.forEach(row -> {
                     UUID id = uuid((byte[]) row[0]);
 
                     if (id != null) {
-                        byte[] data = (byte[]) row[2];
-                        Map<String, Object> dataJson = StateSerializer.deserialize(data);
-                        Object object = mysqlDatabase.createSavedObjectFromReplicationCache(id, data, dataJson, null);
-
-                        mysqlDatabase.notifyUpdate(object);
-
-                        if (cache.getIfPresent(id) != null) {
-                            LOGGER.debug("Update: {}", id);
-                            cache.put(id, new Object[]{
-                                    UuidUtils.toBytes(State.getInstance(object).getTypeId()),
-                                    data,
-                                    dataJson});
-                        }
+                        decoder.submit(id, (byte[]) row[2], false, timestamp);
                     }
                 });
 
@@ -180,19 +272,197 @@ class MySQLBinaryLogEventListener implements EventListener {
                     UUID id = uuid((byte[]) row[0]);
 
                     if (id != null) {
-                        LOGGER.debug("Invalidate: {}", id);
-                        cache.invalidate(id);
+                        decoder.submit(id, row.length > 2 ? (byte[]) row[2] : null, true, timestamp);
                     }
                 });
+
+                pendingStatementIds.forEach(id -> decoder.submit(id, null, false, timestamp));
             }
 
         } finally {
             reset();
+            inTransaction = false;
+        }
+    }
+
+    // Moves the committed position forward, and waits for the changes to
+    // be applied if it reaches the position that needed to be caught up to.
+    private void advance(MySQLBinaryLogPosition position) {
+        MySQLBinaryLogPosition committed = committedPosition;
+
+        if (committed != null && position.compareTo(committed) < 0) {
+            return;
+        }
+
+        committedPosition = position;
+
+        MySQLBinaryLogPosition target = catchUpPosition;
+
+        if (target != null && position.compareTo(target) >= 0) {
+            decoder.awaitApplied();
+            catchUpPosition = null;
+            LOGGER.info("Caught up to the binary log at [{}]", position);
+        }
+    }
+
+    // Finds the IDs of the objects that the given statement on the Record
+    // table can change, or returns null if they can't be determined. Only
+    // accepts an UPDATE or a DELETE on a single table whose condition is
+    // made up of the ID comparisons with the binary literals, optionally
+    // combined with the other simple comparisons using AND.
+    static Set<UUID> findAffectedIds(String sql) {
+        List<String> tokens = tokenize(sql);
+
+        if (tokens == null || tokens.isEmpty()) {
+            return null;
+        }
+
+        if (tokens.get(tokens.size() - 1).equals(";")) {
+            tokens = tokens.subList(0, tokens.size() - 1);
+        }
+
+        StatementParser parser = new StatementParser(tokens);
+
+        // New rows can't be in the cache yet.
+        if (parser.accept("INSERT")) {
+            for (int i = 0, size = tokens.size() - 2; i < size; ++ i) {
+                if (tokens.get(i).equalsIgnoreCase("ON")
+                        && tokens.get(i + 1).equalsIgnoreCase("DUPLICATE")
+                        && tokens.get(i + 2).equalsIgnoreCase("KEY")) {
+
+                    return null;
+                }
+            }
+
+            return Collections.emptySet();
+
+        } else if (parser.accept("UPDATE")) {
+            parser.accept("LOW_PRIORITY");
+            parser.accept("IGNORE");
+
+            if (!parser.acceptIdentifier() || !parser.accept("SET") || !parser.skipToWhere()) {
+                return null;
+            }
+
+        } else if (parser.accept("DELETE")) {
+            parser.accept("LOW_PRIORITY");
+            parser.accept("QUICK");
+            parser.accept("IGNORE");
+
+            if (!parser.accept("FROM") || !parser.acceptIdentifier() || !parser.accept("WHERE")) {
+                return null;
+            }
+
+        } else {
+            return null;
         }
+
+        Set<UUID> ids = new LinkedHashSet<>();
+
+        return parser.parseConjunction(ids) && parser.isDone() && !ids.isEmpty()
+                ? ids
+                : null;
+    }
+
+    // Splits the given SQL into the words, the identifiers, the literals,
+    // and the operators, or returns null if it contains anything else, such
+    // as comments.
+    static List<String> tokenize(String sql) {
+        List<String> tokens = new ArrayList<>();
+        int length = sql.length();
+        int i = 0;
+
+        while (i < length) {
+            char c = sql.charAt(i);
+
+            if (Character.isWhitespace(c)) {
+                ++ i;
+                continue;
+            }
+
+            int start = i;
+
+            if (c == '(' || c == ')' || c == ',' || c == ';') {
+                ++ i;
+
+            } else if (c == '\'' || c == '"') {
+                i = skipQuoted(sql, i);
+
+            } else if (OPERATOR_CHARACTERS.indexOf(c) > -1) {
+                if (sql.startsWith("--", i) || sql.startsWith("/*", i)) {
+                    return null;
+                }
+
+                while (i < length && OPERATOR_CHARACTERS.indexOf(sql.charAt(i)) > -1) {
+                    ++ i;
+                }
+
+            } else if (c == '`' || c == '_' || c == '$' || Character.isLetterOrDigit(c)) {
+
+                // Qualified names and prefixed literals, such as x'00', are
+                // single tokens.
+                while (i < length) {
+                    c = sql.charAt(i);
+
+                    if (c == '`') {
+                        i = skipQuoted(sql, i);
+
+                    } else if (c == '\'' && i > start) {
+                        i = skipQuoted(sql, i);
+                        break;
+
+                    } else if (c == '.' || c == '_' || c == '$' || Character.isLetterOrDigit(c)) {
+                        ++ i;
+
+                    } else {
+                        break;
+                    }
+
+                    if (i < 0) {
+                        break;
+                    }
+                }
+
+            } else {
+                return null;
+            }
+
+            if (i < 0) {
+                return null;
+            }
+
+            tokens.add(sql.substring(start, i));
+        }
+
+        return tokens;
+    }
+
+    // Returns the index right after the closing quote, or -1 if there
+    // isn't one.
+    private static int skipQuoted(String sql, int start) {
+        char quote = sql.charAt(start);
+
+        for (int i = start + 1, length = sql.length(); i < length; ++ i) {
+            char c = sql.charAt(i);
+
+            if (c == '\\' && quote != '`') {
+                ++ i;
+
+            } else if (c == quote) {
+                if (i + 1 < length && sql.charAt(i + 1) == quote) {
+                    ++ i;
+
+                } else {
+                    return i + 1;
+                }
+            }
+        }
+
+        return -1;
     }
 
     // Binary fields don't include trailing 0s so add them back.
-    private UUID uuid(byte[] bytes) {
+    private static UUID uuid(byte[] bytes) {
         int bytesLength = bytes.length;
 
         if (bytesLength != 16) {
@@ -204,4 +474,166 @@ class MySQLBinaryLogEventListener implements EventListener {
             return UuidUtils.fromBytes(bytes);
         }
     }
+
+    // Recursive descent parser over the tokens of a statement that only
+    // understands what findAffectedIds accepts.
+    private static final class StatementParser {
+
+        private final List<String> tokens;
+        private int index;
+
+        public StatementParser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        public boolean isDone() {
+            return index == tokens.size();
+        }
+
+        // Consumes the next token if it's the given keyword.
+        public boolean accept(String keyword) {
+            if (index < tokens.size() && tokens.get(index).equalsIgnoreCase(keyword)) {
+                ++ index;
+                return true;
+
+            } else {
+                return false;
+            }
+        }
+
+        // Consumes the next token if it's a plain or a qualified name.
+        public boolean acceptIdentifier() {
+            if (index < tokens.size() && IDENTIFIER_PATTERN.matcher(tokens.get(index)).matches()) {
+                ++ index;
+                return true;
+
+            } else {
+                return false;
+            }
+        }
+
+        // Consumes the tokens up to and including the WHERE that's not
+        // within the parentheses.
+        public boolean skipToWhere() {
+            int depth = 0;
+
+            for (int size = tokens.size(); index < size; ++ index) {
+                String token = tokens.get(index);
+
+                if (token.equals("(")) {
+                    ++ depth;
+
+                } else if (token.equals(")")) {
+                    -- depth;
+
+                } else if (depth == 0 && token.equalsIgnoreCase("WHERE")) {
+                    ++ index;
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        // term [AND term]...
+        public boolean parseConjunction(Set<UUID> ids) {
+            if (!parseTerm(ids)) {
+                return false;
+            }
+
+            while (accept("AND")) {
+                if (!parseTerm(ids)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        // (conjunction) | comparison
+        private boolean parseTerm(Set<UUID> ids) {
+            if (accept("(")) {
+                return parseConjunction(ids) && accept(")");
+
+            } else {
+                return parseComparison(ids);
+            }
+        }
+
+        // id = binary | id IN (binary [, binary]...) | column op literal
+        private boolean parseComparison(Set<UUID> ids) {
+            if (index >= tokens.size()) {
+                return false;
+            }
+
+            String column = tokens.get(index);
+            Matcher columnMatcher = IDENTIFIER_PATTERN.matcher(column);
+
+            if (!columnMatcher.matches()) {
+                return false;
+            }
+
+            ++ index;
+
+            String name = columnMatcher.group(1).replace("`", "");
+
+            if (name.equalsIgnoreCase("id")) {
+                if (accept("=")) {
+                    return acceptId(ids);
+
+                } else if (accept("IN") && accept("(")) {
+                    do {
+                        if (!acceptId(ids)) {
+                            return false;
+                        }
+                    } while (accept(","));
+
+                    return accept(")");
+
+                } else {
+                    return false;
+                }
+
+            } else if (index + 1 < tokens.size()
+                    && COMPARISON_OPERATORS.contains(tokens.get(index))
+                    && LITERAL_PATTERN.matcher(tokens.get(index + 1)).matches()) {
+
+                index += 2;
+                return true;
+
+            } else {
+                return false;
+            }
+        }
+
+        // Consumes the next token if it's a binary literal that can be an
+        // ID, and adds it to the given ids.
+        private boolean acceptId(Set<UUID> ids) {
+            if (index >= tokens.size()) {
+                return false;
+            }
+
+            Matcher literalMatcher = BINARY_LITERAL_PATTERN.matcher(tokens.get(index));
+
+            if (!literalMatcher.matches()) {
+                return false;
+            }
+
+            String hex = literalMatcher.group(1) != null ? literalMatcher.group(1) : literalMatcher.group(2);
+
+            if (hex.length() % 2 != 0 || hex.length() > 32) {
+                return false;
+            }
+
+            byte[] bytes = new byte[hex.length() / 2];
+
+            for (int i = 0, length = bytes.length; i < length; ++ i) {
+                bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+            }
+
+            ids.add(uuid(bytes));
+            ++ index;
+            return true;
+        }
+    }
 }
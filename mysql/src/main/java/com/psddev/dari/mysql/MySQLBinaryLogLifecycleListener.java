@@ -1,23 +1,43 @@
 package com.psddev.dari.mysql;
 
-import java.util.UUID;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.shyiko.mysql.binlog.BinaryLogClient;
 import com.github.shyiko.mysql.binlog.BinaryLogClient.AbstractLifecycleListener;
-import com.google.common.cache.Cache;
+import com.github.shyiko.mysql.binlog.network.ServerException;
 
 class MySQLBinaryLogLifecycleListener extends AbstractLifecycleListener {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MySQLBinaryLogLifecycleListener.class);
 
-    private final Cache<UUID, Object[]> cache;
+    // ER_MASTER_FATAL_ERROR_READING_BINLOG, such as when the binary log file
+    // was already purged.
+    private static final int FATAL_ERROR_READING_BINLOG_CODE = 1236;
+
+    private final MySQLBinaryLogDecoder decoder;
+    private final Runnable positionLostCallback;
     private volatile boolean connected;
 
-    public MySQLBinaryLogLifecycleListener(Cache<UUID, Object[]> cache) {
-        this.cache = cache;
+    /**
+     * @param decoder Nonnull.
+     * @param positionLostCallback Nonnull. Called when the server can't
+     *        stream from the requested position.
+     */
+    public MySQLBinaryLogLifecycleListener(MySQLBinaryLogDecoder decoder, Runnable positionLostCallback) {
+        this.decoder = decoder;
+        this.positionLostCallback = positionLostCallback;
+    }
+
+    /**
+     * Returns {@code true} if the given {@code error} means that the server
+     * can't stream from the requested position.
+     *
+     * @param error Nullable.
+     */
+    public static boolean isPositionLost(Throwable error) {
+        return error instanceof ServerException
+                && ((ServerException) error).getErrorCode() == FATAL_ERROR_READING_BINLOG_CODE;
     }
 
     public boolean isConnected() {
@@ -33,12 +53,20 @@ class MySQLBinaryLogLifecycleListener extends AbstractLifecycleListener {
     @Override
     public void onCommunicationFailure(BinaryLogClient client, Exception error) {
         LOGGER.warn("Can't communicate with MySQL as a slave!", error);
+
+        if (isPositionLost(error)) {
+            positionLostCallback.run();
+        }
     }
 
     @Override
     public void onDisconnect(BinaryLogClient client) {
         LOGGER.info("Disconnected from MySQL as a slave");
         connected = false;
-        cache.invalidateAll();
+
+        // Apply the changes that were already queued so that their
+        // notifications aren't lost.
+        decoder.awaitApplied();
+        decoder.invalidateAll();
     }
 }
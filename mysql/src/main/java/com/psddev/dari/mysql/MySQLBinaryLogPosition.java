@@ -0,0 +1,97 @@
+package com.psddev.dari.mysql;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Position in the MySQL binary log, made up of the binary log file name and
+ * the offset within it.
+ */
+final class MySQLBinaryLogPosition implements Comparable<MySQLBinaryLogPosition> {
+
+    private final String filename;
+    private final long position;
+
+    /**
+     * @param filename Nonnull.
+     * @param position Offset within the file.
+     */
+    public MySQLBinaryLogPosition(String filename, long position) {
+        Preconditions.checkNotNull(filename);
+
+        this.filename = filename;
+        this.position = position;
+    }
+
+    /**
+     * @return Nonnull.
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    // The file names only differ in their sequence numbers, which can
+    // outgrow the zero padding (999999 to 1000000), so compare them as
+    // numbers.
+    @Override
+    public int compareTo(MySQLBinaryLogPosition other) {
+        long sequence = sequence(filename);
+        long otherSequence = sequence(other.filename);
+        int filenameCompare = sequence >= 0L && otherSequence >= 0L
+                ? Long.compare(sequence, otherSequence)
+                : filename.compareTo(other.filename);
+
+        return filenameCompare != 0
+                ? filenameCompare
+                : Long.compare(position, other.position);
+    }
+
+    // Returns the numeric suffix of the given file name, or -1 if there
+    // isn't one.
+    private static long sequence(String filename) {
+        String suffix = filename.substring(filename.lastIndexOf('.') + 1);
+
+        if (suffix.isEmpty() || suffix.length() > 18) {
+            return -1L;
+        }
+
+        for (int i = 0, length = suffix.length(); i < length; ++ i) {
+            char c = suffix.charAt(i);
+
+            if (c < '0' || c > '9') {
+                return -1L;
+            }
+        }
+
+        return Long.parseLong(suffix);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+
+        } else if (other instanceof MySQLBinaryLogPosition) {
+            MySQLBinaryLogPosition otherPosition = (MySQLBinaryLogPosition) other;
+
+            return filename.equals(otherPosition.filename)
+                    && position == otherPosition.position;
+
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return filename.hashCode() * 31 + Long.hashCode(position);
+    }
+
+    @Override
+    public String toString() {
+        return filename + ":" + position;
+    }
+}
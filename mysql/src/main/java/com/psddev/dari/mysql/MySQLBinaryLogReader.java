@@ -13,13 +13,13 @@ import com.github.shyiko.mysql.binlog.event.deserialization.RotateEventDataDeser
 import com.github.shyiko.mysql.binlog.event.deserialization.RowsQueryEventDataDeserializer;
 import com.github.shyiko.mysql.binlog.event.deserialization.TableMapEventDataDeserializer;
 import com.github.shyiko.mysql.binlog.event.deserialization.XidEventDataDeserializer;
-import com.google.common.cache.Cache;
 import com.psddev.dari.db.shyiko.DariDeleteRowsEventDataDeserializer;
 import com.psddev.dari.db.shyiko.DariQueryEventDataDeserializer;
 import com.psddev.dari.db.shyiko.DariUpdateRowsEventDataDeserializer;
 import com.psddev.dari.db.shyiko.DariWriteRowsEventDataDeserializer;
 import com.psddev.dari.util.ObjectUtils;
 import com.psddev.dari.util.StringUtils;
+import com.psddev.dari.util.Task;
 import com.zaxxer.hikari.HikariDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,11 +27,18 @@ import org.slf4j.LoggerFactory;
 import javax.sql.DataSource;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -43,10 +50,21 @@ class MySQLBinaryLogReader {
     private static final SecureRandom RANDOM = new SecureRandom();
 
     private final BinaryLogClient client;
+    private final MySQLReplicationCache cache;
+    private final MySQLBinaryLogDecoder decoder;
+    private final MySQLBinaryLogEventListener eventListener;
     private final MySQLBinaryLogLifecycleListener lifecycleListener;
     private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean positionLost = new AtomicBoolean();
 
-    public MySQLBinaryLogReader(MySQLDatabase database, Cache<UUID, Object[]> cache, DataSource dataSource, String recordTableName) {
+    private final String jdbcUrl;
+    private final String username;
+    private final String password;
+    private final Path snapshotPath;
+    private final double snapshotInterval;
+    private final Task snapshotTask;
+
+    public MySQLBinaryLogReader(MySQLDatabase database, MySQLReplicationCache cache, DataSource dataSource, String recordTableName) {
         String host = database.getReplicationCacheHost();
         Integer port;
         String schema;
@@ -121,11 +139,32 @@ class MySQLBinaryLogReader {
         }
 
         this.client = new BinaryLogClient(host, port != null ? port : 3306, schema, username, password);
-        this.lifecycleListener = new MySQLBinaryLogLifecycleListener(cache);
+        this.cache = cache;
+        this.decoder = new MySQLBinaryLogDecoder(database, cache, database.getReplicationCacheDecoderThreads());
+        this.eventListener = new MySQLBinaryLogEventListener(decoder, schema, recordTableName);
+        this.lifecycleListener = new MySQLBinaryLogLifecycleListener(decoder, this::resumeFromCurrentPosition);
+
+        this.jdbcUrl = String.format("jdbc:mysql://%s:%s/%s", host, port != null ? port : 3306, schema);
+        this.username = username;
+        this.password = password;
+
+        String snapshotPath = database.getReplicationCacheSnapshotPath();
+
+        this.snapshotPath = !StringUtils.isBlank(snapshotPath) ? Paths.get(snapshotPath) : null;
+        this.snapshotInterval = database.getReplicationCacheSnapshotInterval();
+        this.snapshotTask = this.snapshotPath != null
+                ? new Task("MySQL Replication Cache", "Snapshot " + snapshotPath) {
+
+                    @Override
+                    protected void doTask() {
+                        writeSnapshot();
+                    }
+                }
+                : null;
 
         client.setServerId(RANDOM.nextLong());
         client.registerLifecycleListener(lifecycleListener);
-        client.registerEventListener(new MySQLBinaryLogEventListener(database, cache, schema, recordTableName));
+        client.registerEventListener(eventListener);
 
         @SuppressWarnings("rawtypes")
         Map<EventType, EventDataDeserializer> eventDataDeserializers = new HashMap<>();
@@ -159,11 +198,29 @@ class MySQLBinaryLogReader {
 
                 @Override
                 public void run() {
-                    try {
-                        client.connect();
+                    readSnapshot();
 
-                    } catch (IOException error) {
-                        LOGGER.warn("Can't connect to MySQL as a slave!", error);
+                    if (snapshotTask != null) {
+                        snapshotTask.scheduleWithFixedDelay(snapshotInterval, snapshotInterval);
+                    }
+
+                    while (isRunning()) {
+                        try {
+                            client.connect();
+
+                        } catch (IOException error) {
+                            if (MySQLBinaryLogLifecycleListener.isPositionLost(error)) {
+                                resumeFromCurrentPosition();
+
+                            } else {
+                                LOGGER.warn("Can't connect to MySQL as a slave!", error);
+                            }
+                        }
+
+                        // Only try again if the checkpoint was too old.
+                        if (!positionLost.getAndSet(false) || client.isConnected()) {
+                            break;
+                        }
                     }
                 }
             };
@@ -176,18 +233,147 @@ class MySQLBinaryLogReader {
         return running.get();
     }
 
+    /**
+     * Returns {@code true} if the reader is connected and the replication
+     * cache has caught up to the binary log after resuming from a snapshot.
+     */
     public boolean isConnected() {
-        return isRunning() && lifecycleListener.isConnected();
+        return isRunning() && lifecycleListener.isConnected() && eventListener.isCaughtUp();
+    }
+
+    /**
+     * Returns how far behind the binary log the replication cache is, in
+     * milliseconds.
+     */
+    public long getLag() {
+        return decoder.getLag();
     }
 
     public void stop() {
         if (running.compareAndSet(true, false)) {
+            if (snapshotTask != null) {
+                snapshotTask.stop();
+                writeSnapshot();
+            }
+
             try {
                 client.disconnect();
 
             } catch (IOException error) {
                 LOGGER.warn("Can't disconnect from MySQL as a slave!", error);
+
+            } finally {
+                decoder.close();
             }
         }
     }
+
+    // Loads the snapshot and resumes the binary log stream from the
+    // position that it reflects.
+    private void readSnapshot() {
+        if (snapshotPath == null || !Files.isRegularFile(snapshotPath)) {
+            return;
+        }
+
+        MySQLBinaryLogPosition checkpoint;
+
+        try {
+            checkpoint = cache.readSnapshot(snapshotPath);
+
+        } catch (IOException error) {
+            LOGGER.warn(String.format("Can't read the replication cache snapshot from [%s]!", snapshotPath), error);
+            cache.invalidateAll();
+            return;
+        }
+
+        if (checkpoint == null) {
+            LOGGER.warn("[{}] isn't a valid replication cache snapshot!", snapshotPath);
+            return;
+        }
+
+        MySQLBinaryLogPosition current;
+
+        try {
+            current = readCurrentPosition();
+
+        } catch (SQLException error) {
+            LOGGER.warn("Can't read the current binary log position! Discarding the replication cache snapshot.", error);
+            cache.invalidateAll();
+            return;
+        }
+
+        // Without the current position, there's no way to tell when the
+        // cache has caught up.
+        if (current == null) {
+            LOGGER.warn("Binary logging isn't enabled on the server! Discarding the replication cache snapshot.");
+            cache.invalidateAll();
+            return;
+        }
+
+        LOGGER.info("Loaded [{}] items from the replication cache snapshot at [{}], catching up to [{}]", cache.size(), checkpoint, current);
+        client.setBinlogFilename(checkpoint.getFilename());
+        client.setBinlogPosition(checkpoint.getPosition());
+        eventListener.resume(checkpoint, current);
+    }
+
+    // Reads the current binary log position from the server that's streamed,
+    // or returns null if binary logging isn't enabled.
+    private MySQLBinaryLogPosition readCurrentPosition() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(jdbcUrl, username, password);
+                Statement statement = connection.createStatement()) {
+
+            ResultSet result;
+
+            // MySQL 8.4 removed the older form in favor of the newer one.
+            try {
+                result = statement.executeQuery("SHOW MASTER STATUS");
+
+            } catch (SQLException error) {
+                result = statement.executeQuery("SHOW BINARY LOG STATUS");
+            }
+
+            try {
+                return result.next()
+                        ? new MySQLBinaryLogPosition(result.getString(1), result.getLong(2))
+                        : null;
+
+            } finally {
+                result.close();
+            }
+        }
+    }
+
+    // Discards the snapshot and streams from the current position instead,
+    // when the binary log at the checkpoint is no longer available.
+    private void resumeFromCurrentPosition() {
+        LOGGER.warn("Binary log at the replication cache checkpoint is no longer available! Starting from the current position.");
+        positionLost.set(true);
+        decoder.invalidateAll();
+        eventListener.resume(null, null);
+        client.setBinlogFilename(null);
+    }
+
+    // Writes the cache to the snapshot file once all changes up to the last
+    // committed position have been applied.
+    private void writeSnapshot() {
+        if (snapshotPath == null || !lifecycleListener.isConnected() || !eventListener.isCaughtUp()) {
+            return;
+        }
+
+        MySQLBinaryLogPosition position = eventListener.getCommittedPosition();
+
+        if (position == null) {
+            return;
+        }
+
+        decoder.awaitApplied();
+
+        try {
+            cache.writeSnapshot(snapshotPath, position);
+            LOGGER.debug("Wrote the replication cache snapshot at [{}]", position);
+
+        } catch (IOException error) {
+            LOGGER.warn(String.format("Can't write the replication cache snapshot to [%s]!", snapshotPath), error);
+        }
+    }
 }
@@ -1,7 +1,6 @@
 package com.psddev.dari.mysql;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.psddev.dari.db.CompoundPredicate;
 import com.psddev.dari.db.MetricAccessDatabase;
 import com.psddev.dari.db.ObjectType;
@@ -14,9 +13,9 @@ import com.psddev.dari.db.State;
 import com.psddev.dari.db.StateSerializer;
 import com.psddev.dari.sql.AbstractSqlDatabase;
 import com.psddev.dari.sql.SqlDatabaseException;
-import com.psddev.dari.util.CompactMap;
 import com.psddev.dari.util.ObjectUtils;
 import com.psddev.dari.util.Profiler;
+import com.psddev.dari.util.SettingsException;
 import com.psddev.dari.util.UuidUtils;
 import org.jooq.Converter;
 import org.jooq.DataType;
@@ -38,7 +37,6 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.stream.Collectors;
 
 /**
  * Database implementation for use with MySQL.
@@ -110,6 +108,56 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
      */
     public static final String REPLICATION_CACHE_SIZE_SUB_SETTING = "replicationCacheSize";
 
+    /**
+     * Sub-setting name for specifying the maximum number of bytes of direct
+     * memory that the replication cache can use.
+     *
+     * @see #getReplicationCacheMaximumBytes()
+     * @see #setReplicationCacheMaximumBytes(long)
+     */
+    public static final String REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING = "replicationCacheMaximumBytes";
+
+    /**
+     * Sub-setting name for specifying whether the data in the replication
+     * cache should be compressed.
+     *
+     * @see #isReplicationCacheCompress()
+     * @see #setReplicationCacheCompress(boolean)
+     */
+    public static final String REPLICATION_CACHE_COMPRESS_SUB_SETTING = "replicationCacheCompress";
+
+    /**
+     * Sub-setting name for specifying the number of threads that apply the
+     * changes from the binary log to the replication cache.
+     *
+     * @see #getReplicationCacheDecoderThreads()
+     * @see #setReplicationCacheDecoderThreads(int)
+     */
+    public static final String REPLICATION_CACHE_DECODER_THREADS_SUB_SETTING = "replicationCacheDecoderThreads";
+
+    /**
+     * Sub-setting name for specifying the path to the file that the
+     * replication cache is periodically saved to and reloaded from on
+     * startup.
+     *
+     * @see #getReplicationCacheSnapshotPath()
+     * @see #setReplicationCacheSnapshotPath(String)
+     */
+    public static final String REPLICATION_CACHE_SNAPSHOT_PATH_SUB_SETTING = "replicationCacheSnapshotPath";
+
+    /**
+     * Sub-setting name for specifying how often, in seconds, the replication
+     * cache should be saved to the snapshot file.
+     *
+     * @see #getReplicationCacheSnapshotInterval()
+     * @see #setReplicationCacheSnapshotInterval(double)
+     */
+    public static final String REPLICATION_CACHE_SNAPSHOT_INTERVAL_SUB_SETTING = "replicationCacheSnapshotInterval";
+
+    private static final long DEFAULT_REPLICATION_CACHE_MAXIMUM_BYTES = 256L * 1024L * 1024L;
+    private static final int DEFAULT_REPLICATION_CACHE_DECODER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private static final double DEFAULT_REPLICATION_CACHE_SNAPSHOT_INTERVAL = 60.0;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(MySQLDatabase.class);
 
     private static final DataType<UUID> UUID_TYPE = MySQLDataType.BINARY.asConvertedDataType(new Converter<byte[], UUID>() {
@@ -142,8 +190,13 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
     private volatile String replicationCacheUsername;
     private volatile String replicationCachePassword;
     private volatile long replicationCacheMaximumSize;
+    private volatile long replicationCacheMaximumBytes;
+    private volatile boolean replicationCacheCompress;
+    private volatile int replicationCacheDecoderThreads;
+    private volatile String replicationCacheSnapshotPath;
+    private volatile double replicationCacheSnapshotInterval;
 
-    private volatile Cache<UUID, Object[]> replicationCache;
+    private volatile MySQLReplicationCache replicationCache;
     private volatile MySQLBinaryLogReader binaryLogReader;
     private volatile boolean binlogFormatStatement;
 
@@ -280,6 +333,138 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
         return this.replicationCacheMaximumSize;
     }
 
+    /**
+     * Returns the maximum number of bytes of direct memory that the
+     * replication cache can use.
+     *
+     * @see #REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING
+     */
+    public long getReplicationCacheMaximumBytes() {
+        return replicationCacheMaximumBytes;
+    }
+
+    /**
+     * Sets the maximum number of bytes of direct memory that the replication
+     * cache can use.
+     *
+     * @see #REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING
+     */
+    public void setReplicationCacheMaximumBytes(long replicationCacheMaximumBytes) {
+        this.replicationCacheMaximumBytes = replicationCacheMaximumBytes;
+    }
+
+    /**
+     * Returns {@code true} if the data in the replication cache should be
+     * compressed.
+     *
+     * @see #REPLICATION_CACHE_COMPRESS_SUB_SETTING
+     */
+    public boolean isReplicationCacheCompress() {
+        return replicationCacheCompress;
+    }
+
+    /**
+     * Sets whether the data in the replication cache should be compressed.
+     *
+     * @see #REPLICATION_CACHE_COMPRESS_SUB_SETTING
+     */
+    public void setReplicationCacheCompress(boolean replicationCacheCompress) {
+        this.replicationCacheCompress = replicationCacheCompress;
+    }
+
+    /**
+     * Returns the number of threads that apply the changes from the binary
+     * log to the replication cache.
+     *
+     * @see #REPLICATION_CACHE_DECODER_THREADS_SUB_SETTING
+     */
+    public int getReplicationCacheDecoderThreads() {
+        return replicationCacheDecoderThreads;
+    }
+
+    /**
+     * Sets the number of threads that apply the changes from the binary log
+     * to the replication cache.
+     *
+     * @see #REPLICATION_CACHE_DECODER_THREADS_SUB_SETTING
+     */
+    public void setReplicationCacheDecoderThreads(int replicationCacheDecoderThreads) {
+        this.replicationCacheDecoderThreads = replicationCacheDecoderThreads;
+    }
+
+    /**
+     * Returns the path to the file that the replication cache is saved to
+     * and reloaded from.
+     *
+     * @return Nullable if the snapshots are disabled.
+     * @see #REPLICATION_CACHE_SNAPSHOT_PATH_SUB_SETTING
+     */
+    public String getReplicationCacheSnapshotPath() {
+        return replicationCacheSnapshotPath;
+    }
+
+    /**
+     * Sets the path to the file that the replication cache is saved to and
+     * reloaded from.
+     *
+     * @param replicationCacheSnapshotPath Nullable to disable the snapshots.
+     * @see #REPLICATION_CACHE_SNAPSHOT_PATH_SUB_SETTING
+     */
+    public void setReplicationCacheSnapshotPath(String replicationCacheSnapshotPath) {
+        this.replicationCacheSnapshotPath = replicationCacheSnapshotPath;
+    }
+
+    /**
+     * Returns how often, in seconds, the replication cache is saved to the
+     * snapshot file.
+     *
+     * @see #REPLICATION_CACHE_SNAPSHOT_INTERVAL_SUB_SETTING
+     */
+    public double getReplicationCacheSnapshotInterval() {
+        return replicationCacheSnapshotInterval;
+    }
+
+    /**
+     * Sets how often, in seconds, the replication cache is saved to the
+     * snapshot file.
+     *
+     * @see #REPLICATION_CACHE_SNAPSHOT_INTERVAL_SUB_SETTING
+     */
+    public void setReplicationCacheSnapshotInterval(double replicationCacheSnapshotInterval) {
+        this.replicationCacheSnapshotInterval = replicationCacheSnapshotInterval;
+    }
+
+    /**
+     * Returns the hit, miss, and eviction counts of the replication cache.
+     *
+     * @return Nullable if the replication caching isn't enabled.
+     */
+    public CacheStats getReplicationCacheStats() {
+        MySQLReplicationCache cache = replicationCache;
+
+        return cache != null ? cache.getStats() : null;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory that the replication cache
+     * is using.
+     */
+    public long getReplicationCacheBytes() {
+        MySQLReplicationCache cache = replicationCache;
+
+        return cache != null ? cache.getBytes() : 0L;
+    }
+
+    /**
+     * Returns how far behind the binary log the replication cache is, in
+     * milliseconds.
+     */
+    public long getReplicationCacheLag() {
+        MySQLBinaryLogReader reader = binaryLogReader;
+
+        return reader != null ? reader.getLag() : 0L;
+    }
+
     @Override
     protected SQLDialect getDialect() {
         return SQLDialect.MYSQL;
@@ -300,7 +485,12 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
     @Override
     public void invalidateCaches() {
         super.invalidateCaches();
-        replicationCache.invalidateAll();
+
+        MySQLReplicationCache cache = replicationCache;
+
+        if (cache != null) {
+            cache.invalidateAll();
+        }
     }
 
     @Override
@@ -314,13 +504,45 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
         setReplicationCacheSchema(ObjectUtils.to(String.class, settings.get(REPLICATION_CACHE_SCHEMA_SUB_SETTING)));
         setReplicationCacheUsername(ObjectUtils.to(String.class, settings.get(REPLICATION_CACHE_USERNAME_SUB_SETTING)));
         setReplicationCachePassword(ObjectUtils.to(String.class, settings.get(REPLICATION_CACHE_PASSWORD_SUB_SETTING)));
-        setReplicationCacheMaximumSize(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(REPLICATION_CACHE_SIZE_SUB_SETTING)), 10000L));
+        setReplicationCacheMaximumSize(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(REPLICATION_CACHE_SIZE_SUB_SETTING)), Long.MAX_VALUE));
+        setReplicationCacheMaximumBytes(ObjectUtils.firstNonNull(ObjectUtils.to(Long.class, settings.get(REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING)), DEFAULT_REPLICATION_CACHE_MAXIMUM_BYTES));
+        setReplicationCacheCompress(ObjectUtils.to(boolean.class, settings.get(REPLICATION_CACHE_COMPRESS_SUB_SETTING)));
+        setReplicationCacheDecoderThreads(ObjectUtils.firstNonNull(ObjectUtils.to(Integer.class, settings.get(REPLICATION_CACHE_DECODER_THREADS_SUB_SETTING)), DEFAULT_REPLICATION_CACHE_DECODER_THREADS));
+        setReplicationCacheSnapshotPath(ObjectUtils.to(String.class, settings.get(REPLICATION_CACHE_SNAPSHOT_PATH_SUB_SETTING)));
+        setReplicationCacheSnapshotInterval(ObjectUtils.firstNonNull(ObjectUtils.to(Double.class, settings.get(REPLICATION_CACHE_SNAPSHOT_INTERVAL_SUB_SETTING)), DEFAULT_REPLICATION_CACHE_SNAPSHOT_INTERVAL));
+
+        if (getReplicationCacheMaximumSize() <= 0L) {
+            throw new SettingsException(
+                    settingsKey + "/" + REPLICATION_CACHE_SIZE_SUB_SETTING,
+                    "Replication cache size must be greater than 0!");
+        }
+
+        if (getReplicationCacheMaximumBytes() <= 0L) {
+            throw new SettingsException(
+                    settingsKey + "/" + REPLICATION_CACHE_MAXIMUM_BYTES_SUB_SETTING,
+                    "Replication cache maximum bytes must be greater than 0!");
+        }
+
+        if (getReplicationCacheDecoderThreads() <= 0) {
+            throw new SettingsException(
+                    settingsKey + "/" + REPLICATION_CACHE_DECODER_THREADS_SUB_SETTING,
+                    "Replication cache decoder threads must be greater than 0!");
+        }
+
+        if (getReplicationCacheSnapshotInterval() <= 0.0) {
+            throw new SettingsException(
+                    settingsKey + "/" + REPLICATION_CACHE_SNAPSHOT_INTERVAL_SUB_SETTING,
+                    "Replication cache snapshot interval must be greater than 0!");
+        }
 
         if (isEnableReplicationCache()
                 && (binaryLogReader == null
                 || !binaryLogReader.isRunning())) {
 
-            replicationCache = CacheBuilder.newBuilder().maximumSize(getReplicationCacheMaximumSize()).build();
+            replicationCache = new MySQLReplicationCache(
+                    getReplicationCacheMaximumBytes(),
+                    getReplicationCacheMaximumSize(),
+                    isReplicationCacheCompress());
 
             try {
                 LOGGER.info("Starting MySQL binary log reader");
@@ -405,15 +627,15 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
         return object;
     }
 
-    // Creates a previously saved object from the replication cache.
+    // Creates a previously saved object from the replication cache. The
+    // values aren't shared with anything else, since the cache only holds
+    // the raw data.
     <T> T createSavedObjectFromReplicationCache(UUID id, byte[] data, Map<String, Object> dataJson, Query<T> query) {
         UUID typeId = ObjectUtils.to(UUID.class, dataJson.get(StateSerializer.TYPE_KEY));
         T object = createSavedObject(typeId, id, query);
         State state = State.getInstance(object);
-        @SuppressWarnings("unchecked")
-        Map<String, Object> dataJsonClone = (Map<String, Object>) cloneJson(dataJson);
 
-        state.setValues(dataJsonClone);
+        state.setValues(dataJson);
 
         if (query != null && ObjectUtils.to(boolean.class, query.getOptions().get(RETURN_ORIGINAL_DATA_QUERY_OPTION))) {
             state.getExtras().put(ORIGINAL_DATA_EXTRA, data);
@@ -422,32 +644,6 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
         return swapObjectType(query, object);
     }
 
-    // Clones the object so that it's safe to use in multiple threads.
-    private static Object cloneJson(Object object) {
-        if (object instanceof Map) {
-            @SuppressWarnings("unchecked")
-            Map<String, Object> map = (Map<String, Object>) object;
-            Map<String, Object> clone = new CompactMap<>(map.size());
-
-            for (Map.Entry<?, ?> entry : map.entrySet()) {
-                clone.put((String) entry.getKey(), cloneJson(entry.getValue()));
-            }
-
-            return clone;
-
-        } else if (object instanceof List) {
-            @SuppressWarnings("unchecked")
-            List<Object> objectList = (List<Object>) object;
-
-            return objectList.stream()
-                    .map(MySQLDatabase::cloneJson)
-                    .collect(Collectors.toList());
-
-        } else {
-            return object;
-        }
-    }
-
     @Override
     public <T> List<T> readAll(Query<T> query) {
         if (checkReplicationCache(query)) {
@@ -487,9 +683,9 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
                     continue;
                 }
 
-                Object[] value = replicationCache.getIfPresent(id);
+                MySQLReplicationCache.Item item = replicationCache.getIfPresent(id);
 
-                if (value == null) {
+                if (item == null) {
                     if (missingIds == null) {
                         missingIds = new ArrayList<>();
                     }
@@ -498,17 +694,14 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
                     continue;
                 }
 
-                UUID typeId = ObjectUtils.to(UUID.class, value[0]);
-                byte[] data = (byte[]) value[1];
-                @SuppressWarnings("unchecked")
-                Map<String, Object> dataJson = (Map<String, Object>) value[2];
+                byte[] data = item.getData();
 
                 objects = createReplicationCacheObjects(
                         objects,
-                        typeId,
+                        item.getTypeId(),
                         id,
                         data,
-                        dataJson,
+                        StateSerializer.deserialize(data),
                         query);
             }
 
@@ -542,8 +735,8 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
                         Map<String, Object> dataJson = StateSerializer.deserialize(data);
                         UUID typeId = ObjectUtils.to(UUID.class, dataJson.get(StateSerializer.TYPE_KEY));
 
-                        if (!UuidUtils.ZERO_UUID.equals(typeId)) {
-                            replicationCache.put(id, new Object[] { UuidUtils.toBytes(typeId), data, dataJson });
+                        if (typeId != null && !UuidUtils.ZERO_UUID.equals(typeId)) {
+                            replicationCache.put(id, typeId, data);
                         }
 
                         resultObjects = createReplicationCacheObjects(
@@ -654,6 +847,14 @@ public class MySQLDatabase extends AbstractSqlDatabase implements MetricAccessDa
         return false;
     }
 
+    @Override
+    protected int getStreamingFetchSize(int fetchSize) {
+
+        // Connector/J only streams the rows with this special value, unless
+        // useCursorFetch is enabled.
+        return Integer.MIN_VALUE;
+    }
+
     @Override
     public SqlVendor getMetricVendor() {
         return new SqlVendor.MySQL();
@@ -0,0 +1,746 @@
+package com.psddev.dari.mysql;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Replication cache that keeps the raw record data outside of the Java heap.
+ *
+ * <p>The data is appended to fixed-size slabs of direct memory, and only
+ * a small index from the ID to the slab address stays on the heap. When the
+ * byte budget or the maximum number of items is reached, the oldest slab is
+ * dropped as a whole, so the eviction order is approximately FIFO.</p>
+ *
+ * <p>The items can be written to a snapshot file along with the binary log
+ * position that they reflect, so that a restarted instance can reload them
+ * and catch up from there instead of starting cold.</p>
+ */
+class MySQLReplicationCache {
+
+    private static final int MINIMUM_SLAB_SIZE = 64 * 1024;
+    private static final int MAXIMUM_SLAB_SIZE = 64 * 1024 * 1024;
+    private static final int MINIMUM_COMPRESS_SIZE = 256;
+
+    // ID (16) + type ID (16) + flags (1) + original length (4) + stored length (4).
+    private static final int HEADER_SIZE = 41;
+    private static final byte COMPRESSED_FLAG = 1;
+
+    // Magic (4) + version (4) + binary log file name length (2) + name +
+    // binary log position (8), followed by the segments of items, each
+    // prefixed with its length (4) and its CRC-32 checksum (4).
+    private static final int SNAPSHOT_MAGIC = 0x44415249;
+    private static final int SNAPSHOT_VERSION = 2;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int MAXIMUM_SNAPSHOT_HEADER_SIZE = 4 + 4 + 2 + 0xFFFF + 8;
+
+    private final long maximumBytes;
+    private final long maximumSize;
+    private final boolean compress;
+    private final int slabSize;
+    private final int maximumSlabs;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<UUID, Long> addresses = new HashMap<>();
+    private final List<Slab> slabs = new ArrayList<>();
+    private Slab freeSlab;
+    private int nextSlabNumber;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * @param maximumBytes Must be greater than {@code 0}.
+     * @param maximumSize Must be greater than {@code 0}.
+     * @param compress {@code true} to deflate the data before storing it.
+     */
+    public MySQLReplicationCache(long maximumBytes, long maximumSize, boolean compress) {
+        Preconditions.checkArgument(maximumBytes > 0L);
+        Preconditions.checkArgument(maximumSize > 0L);
+
+        this.maximumBytes = maximumBytes;
+        this.maximumSize = maximumSize;
+        this.compress = compress;
+        this.slabSize = (int) Math.max(MINIMUM_SLAB_SIZE, Math.min(MAXIMUM_SLAB_SIZE, maximumBytes / 16L));
+        this.maximumSlabs = (int) Math.max(2L, maximumBytes / slabSize);
+    }
+
+    /**
+     * Returns the cached item associated with the given {@code id}.
+     *
+     * @param id Nonnull.
+     * @return Nullable.
+     */
+    public Item getIfPresent(UUID id) {
+        Item item = null;
+        Lock readLock = lock.readLock();
+
+        readLock.lock();
+
+        try {
+            Long address = addresses.get(id);
+
+            if (address != null) {
+                item = read(address);
+            }
+
+        } finally {
+            readLock.unlock();
+        }
+
+        if (item != null) {
+            hitCount.increment();
+
+        } else {
+            missCount.increment();
+        }
+
+        return item;
+    }
+
+    /**
+     * Returns {@code true} if there's an item associated with the given
+     * {@code id}. This doesn't count as a hit or a miss.
+     *
+     * @param id Nonnull.
+     */
+    public boolean contains(UUID id) {
+        Lock readLock = lock.readLock();
+
+        readLock.lock();
+
+        try {
+            return addresses.containsKey(id);
+
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Associates the given {@code typeId} and {@code data} with the given
+     * {@code id}, replacing any existing item. If the data is too large to
+     * fit in a slab, any existing item is removed instead.
+     *
+     * @param id Nonnull.
+     * @param typeId Nonnull.
+     * @param data Nonnull.
+     */
+    public void put(UUID id, UUID typeId, byte[] data) {
+        byte[] stored = data;
+        byte flags = 0;
+
+        // Compress outside the lock since it's the most expensive part.
+        if (compress && data.length >= MINIMUM_COMPRESS_SIZE) {
+            byte[] compressed = deflate(data);
+
+            if (compressed.length < data.length) {
+                stored = compressed;
+                flags = COMPRESSED_FLAG;
+            }
+        }
+
+        Lock writeLock = lock.writeLock();
+
+        writeLock.lock();
+
+        try {
+            store(id, typeId, flags, data.length, stored);
+
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Appends the item to the newest slab. Must be called with the write
+    // lock held.
+    private void store(UUID id, UUID typeId, byte flags, int dataLength, byte[] stored) {
+        int entrySize = HEADER_SIZE + stored.length;
+
+        if (entrySize > slabSize) {
+            addresses.remove(id);
+            return;
+        }
+
+        Slab slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+
+        if (slab == null || slab.buffer.remaining() < entrySize) {
+            slab = addSlab();
+        }
+
+        ByteBuffer buffer = slab.buffer;
+        int offset = buffer.position();
+
+        buffer.putLong(id.getMostSignificantBits());
+        buffer.putLong(id.getLeastSignificantBits());
+        buffer.putLong(typeId.getMostSignificantBits());
+        buffer.putLong(typeId.getLeastSignificantBits());
+        buffer.put(flags);
+        buffer.putInt(dataLength);
+        buffer.putInt(stored.length);
+        buffer.put(stored);
+
+        addresses.put(id, address(slab.number, offset));
+
+        while (addresses.size() > maximumSize && slabs.size() > 1) {
+            evictOldestSlab();
+        }
+    }
+
+    /**
+     * Removes the item associated with the given {@code id}.
+     *
+     * @param id Nonnull.
+     */
+    public void invalidate(UUID id) {
+        Lock writeLock = lock.writeLock();
+
+        writeLock.lock();
+
+        try {
+            addresses.remove(id);
+
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all items.
+     */
+    public void invalidateAll() {
+        Lock writeLock = lock.writeLock();
+
+        writeLock.lock();
+
+        try {
+            addresses.clear();
+
+            if (!slabs.isEmpty()) {
+                release(slabs.get(slabs.size() - 1));
+                slabs.clear();
+            }
+
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of items.
+     */
+    public long size() {
+        Lock readLock = lock.readLock();
+
+        readLock.lock();
+
+        try {
+            return addresses.size();
+
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of direct memory in use.
+     */
+    public long getBytes() {
+        Lock readLock = lock.readLock();
+
+        readLock.lock();
+
+        try {
+            return (long) (slabs.size() + (freeSlab != null ? 1 : 0)) * slabSize;
+
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the maximum number of bytes of direct memory to use.
+     */
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    /**
+     * Returns the hit, miss, and eviction counts.
+     *
+     * @return Nonnull.
+     */
+    public CacheStats getStats() {
+        return new CacheStats(
+                hitCount.sum(),
+                missCount.sum(),
+                0L,
+                0L,
+                0L,
+                evictionCount.sum());
+    }
+
+    /**
+     * Writes all items to the given {@code file} along with the given
+     * binary log {@code position} that they reflect. The file is replaced
+     * atomically, so it's never read partially written.
+     *
+     * <p>The lock is only held to find the items that are still current,
+     * and their slabs are pinned so that they aren't reused while they're
+     * being written.</p>
+     *
+     * @param file Nonnull.
+     * @param position Nonnull.
+     */
+    public void writeSnapshot(Path file, MySQLBinaryLogPosition position) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        List<Segment> segments = new ArrayList<>();
+        Lock readLock = lock.readLock();
+
+        readLock.lock();
+
+        try {
+            for (Slab slab : slabs) {
+                Segment segment = findSnapshotSegment(slab);
+
+                if (segment != null) {
+                    slab.pins.incrementAndGet();
+                    segments.add(segment);
+                }
+            }
+
+        } finally {
+            readLock.unlock();
+        }
+
+        Path tempFile = file.resolveSibling(file.getFileName() + "." + UUID.randomUUID() + ".tmp");
+
+        try {
+            try (FileChannel channel = FileChannel.open(
+                    tempFile,
+                    StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+
+                byte[] filename = position.getFilename().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer header = ByteBuffer.allocate(4 + 4 + 2 + filename.length + 8);
+
+                header.putInt(SNAPSHOT_MAGIC);
+                header.putInt(SNAPSHOT_VERSION);
+                header.putShort((short) filename.length);
+                header.put(filename);
+                header.putLong(position.getPosition());
+                header.flip();
+                writeFully(channel, header);
+
+                for (Segment segment : segments) {
+                    writeSnapshotSegment(channel, segment);
+                }
+
+                channel.force(true);
+            }
+
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } finally {
+            segments.forEach(segment -> segment.slab.pins.decrementAndGet());
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    // Finds the items in the slab that are still current. Must be called
+    // with the lock held.
+    private Segment findSnapshotSegment(Slab slab) {
+        ByteBuffer buffer = slab.buffer.duplicate();
+        int end = buffer.position();
+        List<Integer> offsets = new ArrayList<>();
+        int length = 0;
+
+        for (int offset = 0; offset < end;) {
+            buffer.position(offset);
+
+            UUID id = new UUID(buffer.getLong(), buffer.getLong());
+            int entrySize = HEADER_SIZE + buffer.getInt(offset + HEADER_SIZE - 4);
+
+            Long address = addresses.get(id);
+
+            if (address != null && address == address(slab.number, offset)) {
+                offsets.add(offset);
+                length += entrySize;
+            }
+
+            offset += entrySize;
+        }
+
+        return length > 0 ? new Segment(slab, offsets, length) : null;
+    }
+
+    // Writes the items in the segment along with their length and
+    // checksum. The slab must be pinned.
+    private void writeSnapshotSegment(FileChannel channel, Segment segment) throws IOException {
+        List<ByteBuffer> entries = new ArrayList<>(segment.offsets.size());
+        CRC32 checksum = new CRC32();
+
+        for (int offset : segment.offsets) {
+            ByteBuffer entry = segment.slab.buffer.duplicate();
+
+            entry.limit(offset + HEADER_SIZE + entry.getInt(offset + HEADER_SIZE - 4));
+            entry.position(offset);
+            checksum.update(entry.duplicate());
+            entries.add(entry);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+
+        header.putInt(segment.length);
+        header.putInt((int) checksum.getValue());
+        header.flip();
+        writeFully(channel, header);
+
+        for (ByteBuffer entry : entries) {
+            writeFully(channel, entry);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Replaces all items with the ones in the given snapshot {@code file}.
+     *
+     * @param file Nonnull.
+     * @return Binary log position that the items reflect. Nullable if the
+     *         file isn't a valid snapshot, in which case the cache is left
+     *         empty.
+     */
+    public MySQLBinaryLogPosition readSnapshot(Path file) throws IOException {
+        Lock writeLock = lock.writeLock();
+
+        writeLock.lock();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            invalidateAll();
+
+            long size = channel.size();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0L, Math.min(size, MAXIMUM_SNAPSHOT_HEADER_SIZE));
+
+            if (header.remaining() < 8
+                    || header.getInt() != SNAPSHOT_MAGIC
+                    || header.getInt() != SNAPSHOT_VERSION) {
+
+                return null;
+            }
+
+            byte[] filename = new byte[header.getShort() & 0xFFFF];
+
+            header.get(filename);
+
+            MySQLBinaryLogPosition position = new MySQLBinaryLogPosition(new String(filename, StandardCharsets.UTF_8), header.getLong());
+
+            for (long fileOffset = header.position(); fileOffset < size;) {
+                if (fileOffset + SEGMENT_HEADER_SIZE > size) {
+                    invalidateAll();
+                    return null;
+                }
+
+                MappedByteBuffer segmentHeader = channel.map(FileChannel.MapMode.READ_ONLY, fileOffset, SEGMENT_HEADER_SIZE);
+                int segmentLength = segmentHeader.getInt();
+                int segmentChecksum = segmentHeader.getInt();
+
+                if (segmentLength <= 0 || fileOffset + SEGMENT_HEADER_SIZE + segmentLength > size) {
+                    invalidateAll();
+                    return null;
+                }
+
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, fileOffset + SEGMENT_HEADER_SIZE, segmentLength);
+                CRC32 checksum = new CRC32();
+
+                checksum.update(segment.duplicate());
+
+                if ((int) checksum.getValue() != segmentChecksum) {
+                    invalidateAll();
+                    return null;
+                }
+
+                while (segment.hasRemaining()) {
+                    UUID id = new UUID(segment.getLong(), segment.getLong());
+                    UUID typeId = new UUID(segment.getLong(), segment.getLong());
+                    byte flags = segment.get();
+                    int dataLength = segment.getInt();
+                    int storedLength = segment.getInt();
+
+                    // Check the lengths before allocating so that a corrupt
+                    // file can't exhaust the heap.
+                    if (dataLength < 0
+                            || storedLength < 0
+                            || storedLength > segment.remaining()
+                            || HEADER_SIZE + storedLength > slabSize
+                            || ((flags & COMPRESSED_FLAG) == 0 && dataLength != storedLength)) {
+
+                        invalidateAll();
+                        return null;
+                    }
+
+                    byte[] stored = new byte[storedLength];
+
+                    segment.get(stored);
+                    store(id, typeId, flags, dataLength, stored);
+                }
+
+                fileOffset += SEGMENT_HEADER_SIZE + segmentLength;
+            }
+
+            return position;
+
+        } catch (BufferUnderflowException error) {
+            invalidateAll();
+            return null;
+
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static long address(int slabNumber, int offset) {
+        return ((long) slabNumber << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    // Reads the item at the given address. Must be called with the lock held.
+    private Item read(long address) {
+        int slabNumber = (int) (address >>> 32);
+        int offset = (int) address;
+
+        if (slabs.isEmpty()) {
+            return null;
+        }
+
+        int slabIndex = slabNumber - slabs.get(0).number;
+
+        if (slabIndex < 0 || slabIndex >= slabs.size()) {
+            return null;
+        }
+
+        ByteBuffer buffer = slabs.get(slabIndex).buffer.duplicate();
+
+        buffer.position(offset + 16);
+
+        UUID typeId = new UUID(buffer.getLong(), buffer.getLong());
+        byte flags = buffer.get();
+        int dataLength = buffer.getInt();
+        byte[] stored = new byte[buffer.getInt()];
+
+        buffer.get(stored);
+
+        return new Item(typeId, (flags & COMPRESSED_FLAG) != 0 ? inflate(stored, dataLength) : stored);
+    }
+
+    // Adds a new slab, evicting the oldest one if over the budget. Must be
+    // called with the write lock held.
+    private Slab addSlab() {
+        while (slabs.size() >= maximumSlabs) {
+            evictOldestSlab();
+        }
+
+        ByteBuffer buffer;
+
+        if (freeSlab != null) {
+            buffer = freeSlab.buffer;
+            freeSlab = null;
+            buffer.clear();
+
+        } else {
+            buffer = ByteBuffer.allocateDirect(slabSize);
+        }
+
+        Slab slab = new Slab(nextSlabNumber, buffer);
+
+        ++ nextSlabNumber;
+        slabs.add(slab);
+        return slab;
+    }
+
+    // Removes the oldest slab along with all items that still point to it,
+    // and keeps its memory around for reuse. Must be called with the write
+    // lock held.
+    private void evictOldestSlab() {
+        Slab slab = slabs.remove(0);
+        ByteBuffer buffer = slab.buffer.duplicate();
+        int end = buffer.position();
+        int offset = 0;
+
+        buffer.position(0);
+
+        while (offset < end) {
+            buffer.position(offset);
+
+            UUID id = new UUID(buffer.getLong(), buffer.getLong());
+            long address = address(slab.number, offset);
+
+            if (addresses.remove(id, address)) {
+                evictionCount.increment();
+            }
+
+            buffer.position(offset + HEADER_SIZE - 4);
+            offset += HEADER_SIZE + buffer.getInt();
+        }
+
+        release(slab);
+    }
+
+    // Keeps the memory of the slab around for reuse, unless it's pinned by
+    // a snapshot that's being written. Must be called with the write lock
+    // held.
+    private void release(Slab slab) {
+        if (slab.pins.get() == 0) {
+            freeSlab = slab;
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2);
+            byte[] chunk = new byte[4096];
+
+            while (!deflater.finished()) {
+                output.write(chunk, 0, deflater.deflate(chunk));
+            }
+
+            return output.toByteArray();
+
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] stored, int dataLength) {
+        Inflater inflater = new Inflater();
+
+        try {
+            byte[] data = new byte[dataLength];
+
+            inflater.setInput(stored);
+
+            int length = 0;
+
+            while (length < dataLength && !inflater.finished()) {
+                int inflated = inflater.inflate(data, length, dataLength - length);
+
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                length += inflated;
+            }
+
+            if (length != dataLength) {
+                throw new IllegalStateException(String.format(
+                        "Expected [%s] bytes but inflated [%s] from the replication cache!",
+                        dataLength,
+                        length));
+            }
+
+            return data;
+
+        } catch (DataFormatException error) {
+            throw new IllegalStateException("Can't inflate the data from the replication cache!", error);
+
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static final class Slab {
+
+        public final int number;
+        public final ByteBuffer buffer;
+        public final AtomicInteger pins = new AtomicInteger();
+
+        public Slab(int number, ByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+        }
+    }
+
+    // Items in a slab that are written to a snapshot as a segment.
+    private static final class Segment {
+
+        public final Slab slab;
+        public final List<Integer> offsets;
+        public final int length;
+
+        public Segment(Slab slab, List<Integer> offsets, int length) {
+            this.slab = slab;
+            this.offsets = offsets;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Item in the replication cache.
+     */
+    public static final class Item {
+
+        private final UUID typeId;
+        private final byte[] data;
+
+        public Item(UUID typeId, byte[] data) {
+            this.typeId = typeId;
+            this.data = data;
+        }
+
+        /**
+         * @return Nonnull.
+         */
+        public UUID getTypeId() {
+            return typeId;
+        }
+
+        /**
+         * Returns the raw data, which is read fresh out of the cache each
+         * time so it's safe to modify.
+         *
+         * @return Nonnull.
+         */
+        public byte[] getData() {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.psddev.dari.mysql;
+
+import com.psddev.dari.util.StringUtils;
+import com.psddev.dari.util.UuidUtils;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class MySQLBinaryLogEventListenerTest {
+
+    private static final UUID ID1 = UUID.fromString("0000015a-1b2c-d3e4-f5a6-b7c8d9e0f1a2");
+    private static final UUID ID2 = UUID.fromString("0000015a-1b2c-d3e4-f5a6-b7c8d9e0f1a3");
+    private static final UUID TYPE_ID = UUID.fromString("0000015a-0000-0000-0000-000000000001");
+
+    private static String x(UUID id) {
+        return "x'" + StringUtils.hex(UuidUtils.toBytes(id)) + "'";
+    }
+
+    @Test
+    public void update() {
+        assertThat(
+                MySQLBinaryLogEventListener.findAffectedIds("UPDATE `Record` SET `typeId` = " + x(TYPE_ID) + ", `data` = x'7b7d' WHERE `id` = " + x(ID1)),
+                contains(ID1));
+    }
+
+    @Test
+    public void updateQualified() {
+        assertThat(
+                MySQLBinaryLogEventListener.findAffectedIds("update `dari`.`Record` set `Record`.`data` = x'7b7d' where (`Record`.`id` = " + x(ID1) + " and `Record`.`typeId` = " + x(TYPE_ID) + ")"),
+                contains(ID1));
+    }
+
+    @Test
+    public void updateWithWhereInData() {
+        assertThat(
+                MySQLBinaryLogEventListener.findAffectedIds("UPDATE `Record` SET `data` = ' WHERE `id` = x''00''' WHERE `id` = " + x(ID1)),
+                contains(ID1));
+    }
+
+    @Test
+    public void updateWithTabsAndNewlines() {
+        assertThat(
+                MySQLBinaryLogEventListener.findAffectedIds("UPDATE\t`Record`\nSET `data` = x'7b7d'\nWHERE\t`id`\t=\t" + x(ID1) + ";"),
+                contains(ID1));
+    }
+
+    @Test
+    public void updateWithoutWhere() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("UPDATE `Record` SET `data` = x'7b7d'"), nullValue());
+    }
+
+    @Test
+    public void updateJoin() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("UPDATE `Record`\tJOIN\t`Other` ON `Record`.`id` = `Other`.`id` SET `data` = x'7b7d' WHERE `id` = " + x(ID1)), nullValue());
+    }
+
+    @Test
+    public void delete() {
+        assertThat(
+                MySQLBinaryLogEventListener.findAffectedIds("DELETE FROM `Record` WHERE `id` = 0x" + StringUtils.hex(UuidUtils.toBytes(ID1))),
+                contains(ID1));
+    }
+
+    @Test
+    public void deleteIn() {
+        assertThat(
+                MySQLBinaryLogEventListener.findAffectedIds("delete from `Record` where `Record`.`id` in (" + x(ID1) + ", " + x(ID2) + ")"),
+                contains(ID1, ID2));
+    }
+
+    @Test
+    public void deleteInSubquery() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("DELETE FROM `Record` WHERE `id` IN (SELECT `id` FROM `Other`)"), nullValue());
+    }
+
+    @Test
+    public void deleteMultipleTables() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("DELETE `Record` FROM `Record`, `Other` WHERE `id` = " + x(ID1)), nullValue());
+    }
+
+    @Test
+    public void or() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("DELETE FROM `Record` WHERE `id` = " + x(ID1) + " OR `typeId` = " + x(TYPE_ID)), nullValue());
+    }
+
+    @Test
+    public void orWithNewlines() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("DELETE FROM `Record` WHERE `id` = " + x(ID1) + "\nOR\n`typeId` = " + x(TYPE_ID)), nullValue());
+    }
+
+    @Test
+    public void orWithParentheses() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("DELETE FROM `Record` WHERE `id` = " + x(ID1) + " OR(`typeId` = " + x(TYPE_ID) + ")"), nullValue());
+    }
+
+    @Test
+    public void orWithPipes() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("DELETE FROM `Record` WHERE `id` = " + x(ID1) + " || `typeId` = " + x(TYPE_ID)), nullValue());
+    }
+
+    @Test
+    public void xor() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("DELETE FROM `Record` WHERE `id` = " + x(ID1) + " XOR `typeId` = " + x(TYPE_ID)), nullValue());
+    }
+
+    @Test
+    public void not() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("DELETE FROM `Record` WHERE NOT `id` = " + x(ID1)), nullValue());
+    }
+
+    @Test
+    public void notIn() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("DELETE FROM `Record` WHERE `id` NOT IN (" + x(ID1) + ")"), nullValue());
+    }
+
+    @Test
+    public void notEqualWithEqual() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("DELETE FROM `Record` WHERE `id` != " + x(ID1) + " AND `id` = " + x(ID2)), nullValue());
+    }
+
+    @Test
+    public void comment() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("DELETE FROM `Record` WHERE `id` = " + x(ID1) + " /*! OR 1 = 1 */"), nullValue());
+    }
+
+    @Test
+    public void insert() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("INSERT INTO `Record` (`id`, `typeId`, `data`) VALUES (" + x(ID1) + ", " + x(TYPE_ID) + ", x'7b7d')"), empty());
+    }
+
+    @Test
+    public void insertOnDuplicateKey() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("INSERT INTO `Record` (`id`, `typeId`, `data`) VALUES (" + x(ID1) + ", " + x(TYPE_ID) + ", x'7b7d')\nON DUPLICATE\tKEY UPDATE `data` = VALUES(`data`)"), nullValue());
+    }
+
+    @Test
+    public void replace() {
+        assertThat(MySQLBinaryLogEventListener.findAffectedIds("REPLACE INTO `Record` (`id`, `typeId`, `data`) VALUES (" + x(ID1) + ", " + x(TYPE_ID) + ", x'7b7d')"), nullValue());
+    }
+}
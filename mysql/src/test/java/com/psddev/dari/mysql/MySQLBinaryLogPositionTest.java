@@ -0,0 +1,26 @@
+package com.psddev.dari.mysql;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class MySQLBinaryLogPositionTest {
+
+    @Test
+    public void comparePosition() {
+        assertThat(new MySQLBinaryLogPosition("mysql-bin.000001", 4L).compareTo(new MySQLBinaryLogPosition("mysql-bin.000001", 120L)), lessThan(0));
+        assertThat(new MySQLBinaryLogPosition("mysql-bin.000001", 120L).compareTo(new MySQLBinaryLogPosition("mysql-bin.000001", 120L)), is(0));
+    }
+
+    @Test
+    public void compareFilename() {
+        assertThat(new MySQLBinaryLogPosition("mysql-bin.000002", 4L).compareTo(new MySQLBinaryLogPosition("mysql-bin.000001", 120L)), greaterThan(0));
+    }
+
+    @Test
+    public void compareFilenameOutgrowingPadding() {
+        assertThat(new MySQLBinaryLogPosition("mysql-bin.999999", 120L).compareTo(new MySQLBinaryLogPosition("mysql-bin.1000000", 4L)), lessThan(0));
+        assertThat(new MySQLBinaryLogPosition("mysql-bin.1000000", 4L).compareTo(new MySQLBinaryLogPosition("mysql-bin.999999", 120L)), greaterThan(0));
+    }
+}
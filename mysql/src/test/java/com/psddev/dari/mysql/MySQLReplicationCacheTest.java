@@ -0,0 +1,120 @@
+package com.psddev.dari.mysql;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.*;
+
+public class MySQLReplicationCacheTest {
+
+    private static final UUID TYPE_ID = UUID.fromString("0000015a-0000-0000-0000-000000000001");
+    private static final MySQLBinaryLogPosition POSITION = new MySQLBinaryLogPosition("mysql-bin.000042", 1234L);
+
+    private Path directory;
+
+    @Before
+    public void before() throws IOException {
+        directory = Files.createTempDirectory("dari-replication-cache");
+    }
+
+    @After
+    public void after() throws IOException {
+        Files.walk(directory)
+                .sorted((x, y) -> y.compareTo(x))
+                .forEach(path -> path.toFile().delete());
+    }
+
+    private static byte[] data(int size, char c) {
+        byte[] data = new byte[size];
+
+        Arrays.fill(data, (byte) c);
+        return data;
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        MySQLReplicationCache cache = new MySQLReplicationCache(1024L * 1024L, 1000L, true);
+        UUID small = UUID.randomUUID();
+        UUID large = UUID.randomUUID();
+        UUID replaced = UUID.randomUUID();
+        UUID invalidated = UUID.randomUUID();
+        byte[] smallData = "{\"name\":\"small\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] largeData = data(4096, 'x');
+        byte[] replacedData = "{\"name\":\"new\"}".getBytes(StandardCharsets.UTF_8);
+
+        cache.put(small, TYPE_ID, smallData);
+        cache.put(large, TYPE_ID, largeData);
+        cache.put(replaced, TYPE_ID, "{\"name\":\"old\"}".getBytes(StandardCharsets.UTF_8));
+        cache.put(replaced, TYPE_ID, replacedData);
+        cache.put(invalidated, TYPE_ID, smallData);
+        cache.invalidate(invalidated);
+
+        Path file = directory.resolve("snapshot");
+
+        cache.writeSnapshot(file, POSITION);
+
+        MySQLReplicationCache loaded = new MySQLReplicationCache(1024L * 1024L, 1000L, true);
+
+        assertThat(loaded.readSnapshot(file), is(POSITION));
+        assertThat(loaded.size(), is(3L));
+        assertThat(loaded.getIfPresent(small).getTypeId(), is(TYPE_ID));
+        assertThat(loaded.getIfPresent(small).getData(), is(smallData));
+        assertThat(loaded.getIfPresent(large).getData(), is(largeData));
+        assertThat(loaded.getIfPresent(replaced).getData(), is(replacedData));
+        assertThat(loaded.contains(invalidated), is(false));
+    }
+
+    @Test
+    public void snapshotCorrupted() throws IOException {
+        MySQLReplicationCache cache = new MySQLReplicationCache(1024L * 1024L, 1000L, false);
+
+        cache.put(UUID.randomUUID(), TYPE_ID, data(100, 'a'));
+        cache.put(UUID.randomUUID(), TYPE_ID, data(100, 'b'));
+
+        Path file = directory.resolve("snapshot");
+
+        cache.writeSnapshot(file, POSITION);
+
+        byte[] bytes = Files.readAllBytes(file);
+
+        // Flip a byte in the last item so that the checksum doesn't match.
+        bytes[bytes.length - 1] ^= 0xFF;
+        Files.write(file, bytes);
+
+        MySQLReplicationCache loaded = new MySQLReplicationCache(1024L * 1024L, 1000L, false);
+
+        loaded.put(UUID.randomUUID(), TYPE_ID, data(10, 'c'));
+
+        assertThat(loaded.readSnapshot(file), nullValue());
+        assertThat(loaded.size(), is(0L));
+    }
+
+    @Test
+    public void snapshotTruncated() throws IOException {
+        MySQLReplicationCache cache = new MySQLReplicationCache(1024L * 1024L, 1000L, false);
+
+        cache.put(UUID.randomUUID(), TYPE_ID, data(100, 'a'));
+
+        Path file = directory.resolve("snapshot");
+
+        cache.writeSnapshot(file, POSITION);
+
+        byte[] bytes = Files.readAllBytes(file);
+
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 10));
+
+        MySQLReplicationCache loaded = new MySQLReplicationCache(1024L * 1024L, 1000L, false);
+
+        assertThat(loaded.readSnapshot(file), nullValue());
+        assertThat(loaded.size(), is(0L));
+    }
+}
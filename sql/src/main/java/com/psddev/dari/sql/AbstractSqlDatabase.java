@@ -4,7 +4,10 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.psddev.dari.db.AbstractDatabase;
 import com.psddev.dari.db.AtomicOperation;
 import com.psddev.dari.db.ComparisonPredicate;
@@ -70,10 +73,13 @@ import java.sql.SQLTimeoutException;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -81,8 +87,11 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Abstract database implementation for use with JDBC.
@@ -125,6 +134,47 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
      */
     public static final String READ_DATA_SOURCE_JNDI_NAME_SUB_SETTING = "readDataSourceJndiName";
 
+    /**
+     * Sub-setting name for specifying the read replicas as a map of names to
+     * maps, each containing the {@value #DATA_SOURCE_SUB_SETTING} or the
+     * {@value #DATA_SOURCE_JNDI_NAME_SUB_SETTING} sub-setting and optionally
+     * the {@value #READ_REPLICA_WEIGHT_SUB_SETTING} sub-setting.
+     *
+     * <p>When specified, the reads are distributed across the replicas
+     * instead of going to the {@linkplain #getReadDataSource() read data
+     * source}, and fall back to the master when none of them are
+     * usable.</p>
+     *
+     * @see #getReadReplicas()
+     */
+    public static final String READ_DATA_SOURCES_SUB_SETTING = "readDataSources";
+
+    /**
+     * Sub-setting name within each of the {@linkplain
+     * #READ_DATA_SOURCES_SUB_SETTING read replicas} for specifying its
+     * relative share of the reads. Defaults to {@code 1}.
+     */
+    public static final String READ_REPLICA_WEIGHT_SUB_SETTING = "weight";
+
+    /**
+     * Sub-setting name for specifying the maximum replication lag, in
+     * seconds, before a read replica stops being used. Defaults to
+     * {@code 5}.
+     */
+    public static final String READ_REPLICA_MAXIMUM_LAG_SUB_SETTING = "readReplicaMaximumLag";
+
+    /**
+     * Sub-setting name for specifying the SQL query that returns the
+     * replication lag of a read replica in seconds, typically by comparing
+     * the current time to a heartbeat row that's updated periodically on
+     * the master.
+     *
+     * <p>Without it, the replicas are only checked for connectivity, and
+     * the reads on a thread go to the master for the maximum lag after each
+     * commit.</p>
+     */
+    public static final String READ_REPLICA_LAG_QUERY_SUB_SETTING = "readReplicaLagQuery";
+
     /**
      * Sub-setting name for specifying the JDBC catalog where the data should
      * be stored.
@@ -142,6 +192,25 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
      */
     public static final String INDEX_SPATIAL_SUB_SETTING = "indexSpatial";
 
+    /**
+     * Sub-setting name for specifying the format that the data should be
+     * serialized into.
+     *
+     * @see #getDataFormat()
+     * @see #setDataFormat(StateSerializer.Format)
+     */
+    public static final String DATA_FORMAT_SUB_SETTING = "dataFormat";
+
+    /**
+     * Sub-setting name for specifying the maximum number of rendered SQL
+     * templates to keep for the queries with different shapes. {@code 0}
+     * disables the cache.
+     *
+     * @see #getSelectTemplateCacheSize()
+     * @see #setSelectTemplateCacheSize(int)
+     */
+    public static final String SELECT_TEMPLATE_CACHE_SIZE_SUB_SETTING = "selectTemplateCacheSize";
+
     public static final String CONNECTION_QUERY_OPTION = "sql.connection";
     public static final String RETURN_ORIGINAL_DATA_QUERY_OPTION = "sql.returnOriginalData";
     public static final String DISABLE_BY_ID_ITERATOR_OPTION = "sql.disableByIdIterator";
@@ -150,7 +219,11 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
     public static final String ORIGINAL_DATA_EXTRA = "sql.originalData";
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AbstractSqlDatabase.class);
-    private static final Stats STATS = new Stats("SQL");
+    static final Stats STATS = new Stats("SQL");
+    private static final int MISSING_SYMBOLS_CACHE_SIZE = 10000;
+    private static final long MISSING_SYMBOLS_CACHE_DURATION = 10L;
+    private static final int SYMBOL_READ_BATCH_SIZE = 500;
+    private static final int DEFAULT_SELECT_TEMPLATE_CACHE_SIZE = 1000;
 
     private static final DataType<String> STRING_INDEX_TYPE = SQLDataType.LONGVARBINARY.asConvertedDataType(new Converter<byte[], String>() {
 
@@ -193,8 +266,12 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
 
     private volatile DataSource dataSource;
     private volatile DataSource readDataSource;
+    private volatile SqlReadReplicaPool readReplicaPool;
     private volatile String catalog;
     private volatile boolean indexSpatial;
+    private volatile StateSerializer.Format dataFormat;
+    private volatile int selectTemplateCacheSize = DEFAULT_SELECT_TEMPLATE_CACHE_SIZE;
+    private volatile Cache<String, String> selectTemplates = createSelectTemplates(DEFAULT_SELECT_TEMPLATE_CACHE_SIZE);
 
     /**
      * jOOQ table that represents the {@code Record} table.
@@ -314,6 +391,14 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
 
     }, 5, TimeUnit.MINUTES);
 
+    // Cache that stores the symbols that didn't have IDs when they were
+    // last looked up without creation.
+    private final Cache<String, Boolean> missingSymbols = CacheBuilder
+            .newBuilder()
+            .maximumSize(MISSING_SYMBOLS_CACHE_SIZE)
+            .expireAfterWrite(MISSING_SYMBOLS_CACHE_DURATION, TimeUnit.SECONDS)
+            .build();
+
     // Cache that stores all symbol IDs.
     private final Lazy<Map<String, Integer>> symbolIds = new Lazy<Map<String, Integer>>() {
 
@@ -390,6 +475,19 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         this.readDataSource = readDataSource;
     }
 
+    /**
+     * Returns all read replicas along with their current health, lag, and
+     * load.
+     *
+     * @return Nonnull. Empty if there aren't any read replicas.
+     * @see #READ_DATA_SOURCES_SUB_SETTING
+     */
+    public List<SqlReadReplica> getReadReplicas() {
+        SqlReadReplicaPool pool = readReplicaPool;
+
+        return pool != null ? pool.getReplicas() : Collections.emptyList();
+    }
+
     /**
      * Returns the JDBC catalog where the data should be stored.
      *
@@ -428,6 +526,57 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         this.indexSpatial = indexSpatial;
     }
 
+    /**
+     * Returns the format that the data should be serialized into.
+     *
+     * <p>Existing data is always readable regardless of this setting, so
+     * it's safe to change it on a database that already contains data.</p>
+     *
+     * @return Nonnull. Defaults to {@link StateSerializer.Format#JSON}.
+     * @see #DATA_FORMAT_SUB_SETTING
+     */
+    public StateSerializer.Format getDataFormat() {
+        return dataFormat != null ? dataFormat : StateSerializer.Format.JSON;
+    }
+
+    /**
+     * Sets the format that the data should be serialized into.
+     *
+     * @param dataFormat Nullable.
+     * @see #DATA_FORMAT_SUB_SETTING
+     */
+    public void setDataFormat(StateSerializer.Format dataFormat) {
+        this.dataFormat = dataFormat;
+    }
+
+    /**
+     * Returns the maximum number of rendered SQL templates to keep for the
+     * queries with different shapes.
+     *
+     * @see #SELECT_TEMPLATE_CACHE_SIZE_SUB_SETTING
+     */
+    public int getSelectTemplateCacheSize() {
+        return selectTemplateCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of rendered SQL templates to keep for the
+     * queries with different shapes.
+     *
+     * @param selectTemplateCacheSize {@code 0} disables the cache.
+     * @see #SELECT_TEMPLATE_CACHE_SIZE_SUB_SETTING
+     */
+    public void setSelectTemplateCacheSize(int selectTemplateCacheSize) {
+        this.selectTemplateCacheSize = selectTemplateCacheSize;
+        this.selectTemplates = createSelectTemplates(selectTemplateCacheSize);
+    }
+
+    private static Cache<String, String> createSelectTemplates(int size) {
+        return size > 0
+                ? CacheBuilder.newBuilder().maximumSize(size).build()
+                : null;
+    }
+
     /**
      * Returns the jOOQ dialect that should be used to construct the SQL
      * statements.
@@ -580,6 +729,26 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
 
     @Override
     protected Connection doOpenReadConnection() {
+        SqlReadReplicaPool pool = readReplicaPool;
+
+        if (pool != null) {
+            SqlReadReplica replica = pool.select();
+
+            if (replica != null) {
+                try {
+                    Connection connection = getConnection(replica.getDataSource(), true);
+
+                    pool.acquire(connection, replica);
+                    return connection;
+
+                } catch (SqlDatabaseException error) {
+                    pool.markFailure(replica, error);
+                }
+            }
+
+            return getConnection(getDataSource(), true);
+        }
+
         return getConnection(getReadDataSource(), true);
     }
 
@@ -672,9 +841,23 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         return new SqlDatabaseException(this, sqlError, query != null ? query.getSQL() : null, null);
     }
 
+    @Override
+    public void close() throws Exception {
+        SqlReadReplicaPool pool = readReplicaPool;
+
+        if (pool != null) {
+            pool.stop();
+            readReplicaPool = null;
+        }
+
+        super.close();
+    }
+
     @Override
     public void closeConnection(Connection connection) {
         if (connection != null) {
+            releaseReadReplica(connection);
+
             try {
                 if (!connection.isClosed()) {
                     connection.close();
@@ -686,6 +869,15 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         }
     }
 
+    // Tells the read replica pool that the connection is about to be closed.
+    private void releaseReadReplica(Connection connection) {
+        SqlReadReplicaPool pool = readReplicaPool;
+
+        if (pool != null) {
+            pool.release(connection);
+        }
+    }
+
     /**
      * Sets up the database.
      *
@@ -750,6 +942,13 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
      */
     public void invalidateCaches() {
         symbolIds.reset();
+        missingSymbols.invalidateAll();
+
+        Cache<String, String> selectTemplates = this.selectTemplates;
+
+        if (selectTemplates != null) {
+            selectTemplates.invalidateAll();
+        }
     }
 
     /**
@@ -785,9 +984,25 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
     protected void doInitialize(String settingsKey, Map<String, Object> settings) {
         setDataSource(createDataSource(settings, DATA_SOURCE_JNDI_NAME_SUB_SETTING, DATA_SOURCE_SUB_SETTING));
         setReadDataSource(createDataSource(settings, READ_DATA_SOURCE_JNDI_NAME_SUB_SETTING, READ_DATA_SOURCE_SUB_SETTING));
+        initializeReadReplicas(settings);
         setCatalog(ObjectUtils.to(String.class, settings.get(CATALOG_SUB_SETTING)));
         setIndexSpatial(ObjectUtils.to(boolean.class, settings.get(INDEX_SPATIAL_SUB_SETTING)));
 
+        Object dataFormatSetting = settings.get(DATA_FORMAT_SUB_SETTING);
+        StateSerializer.Format dataFormat = ObjectUtils.to(StateSerializer.Format.class, dataFormatSetting);
+
+        if (dataFormatSetting != null && dataFormat == null) {
+            throw new SettingsException(
+                    DATA_FORMAT_SUB_SETTING,
+                    String.format("[%s] isn't a valid data format!", dataFormatSetting));
+        }
+
+        setDataFormat(dataFormat);
+
+        Integer selectTemplateCacheSize = ObjectUtils.to(Integer.class, settings.get(SELECT_TEMPLATE_CACHE_SIZE_SUB_SETTING));
+
+        setSelectTemplateCacheSize(selectTemplateCacheSize != null ? selectTemplateCacheSize : DEFAULT_SELECT_TEMPLATE_CACHE_SIZE);
+
         setUp();
 
         // Cache of existing table names.
@@ -829,6 +1044,69 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
                 .build();
     }
 
+    // Creates the read replica pool using the settings.
+    private void initializeReadReplicas(Map<String, Object> settings) {
+        Object replicasSetting = settings.get(READ_DATA_SOURCES_SUB_SETTING);
+        List<SqlReadReplica> replicas = new ArrayList<>();
+
+        if (replicasSetting instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) replicasSetting).entrySet()) {
+                String name = String.valueOf(entry.getKey());
+                String replicaKey = READ_DATA_SOURCES_SUB_SETTING + "/" + name;
+
+                if (!(entry.getValue() instanceof Map)) {
+                    throw new SettingsException(replicaKey, "Read replica settings must be a map!");
+                }
+
+                @SuppressWarnings("unchecked")
+                Map<String, Object> replicaSettings = (Map<String, Object>) entry.getValue();
+                DataSource replicaDataSource = createDataSource(replicaSettings, DATA_SOURCE_JNDI_NAME_SUB_SETTING, DATA_SOURCE_SUB_SETTING);
+
+                if (replicaDataSource == null) {
+                    throw new SettingsException(
+                            replicaKey + "/" + DATA_SOURCE_SUB_SETTING,
+                            "Read replica doesn't have a data source!");
+                }
+
+                double weight = ObjectUtils.firstNonNull(ObjectUtils.to(Double.class, replicaSettings.get(READ_REPLICA_WEIGHT_SUB_SETTING)), 1.0);
+
+                if (weight <= 0.0) {
+                    throw new SettingsException(
+                            replicaKey + "/" + READ_REPLICA_WEIGHT_SUB_SETTING,
+                            "Read replica weight must be greater than 0!");
+                }
+
+                replicas.add(new SqlReadReplica(name, replicaDataSource, weight));
+            }
+
+        } else if (replicasSetting != null) {
+            throw new SettingsException(
+                    READ_DATA_SOURCES_SUB_SETTING,
+                    String.format("[%s] isn't a map of read replicas!", replicasSetting));
+        }
+
+        SqlReadReplicaPool oldPool = readReplicaPool;
+
+        if (oldPool != null) {
+            oldPool.stop();
+        }
+
+        if (replicas.isEmpty()) {
+            readReplicaPool = null;
+            return;
+        }
+
+        double maximumLag = ObjectUtils.firstNonNull(ObjectUtils.to(Double.class, settings.get(READ_REPLICA_MAXIMUM_LAG_SUB_SETTING)), 5.0);
+        String lagQuery = ObjectUtils.to(String.class, settings.get(READ_REPLICA_LAG_QUERY_SUB_SETTING));
+        SqlReadReplicaPool pool = new SqlReadReplicaPool(
+                replicas,
+                (long) (maximumLag * 1000.0),
+                StringUtils.isBlank(lagQuery) ? null : lagQuery);
+
+        pool.start();
+        readReplicaPool = pool;
+    }
+
     // Creates a data source using the settings.
     private DataSource createDataSource(Map<String, Object> settings, String dataSourceJndiNameSetting, String dataSourceSetting) {
 
@@ -997,6 +1275,31 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         return addComment(new SqlQuery(this, query).select((int) offset, limit), query);
     }
 
+    /**
+     * Builds a prepared SQL statement that can be used to select a subset of
+     * objects matching the given {@code query}.
+     *
+     * <p>All values in the query are bound as parameters, and the SQL is
+     * rendered only once for all queries with the same shape, so that the
+     * database and the JDBC driver can reuse their parsed statements (e.g.
+     * with {@code cachePrepStmts} in MySQL Connector/J).</p>
+     *
+     * @param query Nonnull.
+     * @param offset Greater than or equal to {@code 0}.
+     * @param limit Greater than {@code 0}.
+     * @return Nonnull.
+     * @see #SELECT_TEMPLATE_CACHE_SIZE_SUB_SETTING
+     */
+    SqlStatement buildPreparedSelectStatement(Query<?> query, long offset, int limit) {
+        Preconditions.checkNotNull(query);
+        Preconditions.checkArgument(offset >= 0L);
+        Preconditions.checkArgument(limit > 0);
+
+        SqlStatement statement = new SqlQuery(this, query).selectStatement((int) offset, limit, selectTemplates);
+
+        return statement.withSql(addComment(statement.sql, query));
+    }
+
     // Adds comment to the SQL to improve debugging.
     private String addComment(String sql, Query<?> query) {
         if (query != null) {
@@ -1032,8 +1335,17 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
      */
     public <R> R select(String sqlQuery, Query<?> query, SqlSelectFunction<R> selectFunction) {
         Preconditions.checkNotNull(sqlQuery);
+
+        return select(new SqlStatement(sqlQuery), query, selectFunction);
+    }
+
+    // Selects using the given statement, which may be prepared with bind
+    // values.
+    <R> R select(SqlStatement sqlStatement, Query<?> query, SqlSelectFunction<R> selectFunction) {
+        Preconditions.checkNotNull(sqlStatement);
         Preconditions.checkNotNull(selectFunction);
 
+        String sqlQuery = sqlStatement.sql;
         Connection connection = openQueryConnection(query);
 
         try {
@@ -1047,7 +1359,7 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
                 }
             }
 
-            try (Statement statement = connection.createStatement()) {
+            try (Statement statement = sqlStatement.create(connection)) {
                 if (timeout > 0.0d) {
                     statement.setQueryTimeout((int) Math.ceil(timeout));
                 }
@@ -1057,7 +1369,7 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
                 ResultSet result;
 
                 try {
-                    result = statement.executeQuery(sqlQuery);
+                    result = sqlStatement.executeQuery(statement);
 
                 } finally {
                     double duration = timer.stop("SQL: Query");
@@ -1118,6 +1430,8 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
                 && (query == null
                 || (queryConnection = query.getOptions().get(CONNECTION_QUERY_OPTION)) == null
                 || !connection.equals(queryConnection))) {
+            releaseReadReplica(connection);
+
             try {
                 if (!connection.isClosed()) {
                     connection.close();
@@ -1168,7 +1482,14 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
      * @return Nonnull.
      */
     public <T> List<T> selectList(String sqlQuery, Query<T> query) {
-        return select(sqlQuery, query, result -> {
+        Preconditions.checkNotNull(sqlQuery);
+
+        return selectList(new SqlStatement(sqlQuery), query);
+    }
+
+    // Selects a list of objects using the given statement.
+    <T> List<T> selectList(SqlStatement sqlStatement, Query<T> query) {
+        return select(sqlStatement, query, result -> {
             List<T> objects = new ArrayList<>();
 
             while (result.next()) {
@@ -1181,7 +1502,7 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
 
     @Override
     public <T> List<T> readAll(Query<T> query) {
-        return selectList(buildSelectStatement(query), query);
+        return selectList(buildPreparedSelectStatement(query, 0L, Integer.MAX_VALUE), query);
     }
 
     /**
@@ -1216,14 +1537,19 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
     public <T> T selectFirst(String sqlQuery, Query<T> query) {
         Preconditions.checkNotNull(sqlQuery);
 
-        return select(sqlQuery, query, result -> result.next()
+        return selectFirst(new SqlStatement(sqlQuery), query);
+    }
+
+    // Selects the first object using the given statement.
+    <T> T selectFirst(SqlStatement sqlStatement, Query<T> query) {
+        return select(sqlStatement, query, result -> result.next()
                 ? createSavedObjectUsingResultSet(result, query)
                 : null);
     }
 
     @Override
     public <T> T readFirst(Query<T> query) {
-        return selectFirst(buildSelectStatement(query, 0L, 1), query);
+        return selectFirst(buildPreparedSelectStatement(query, 0L, 1), query);
     }
 
     /**
@@ -1239,6 +1565,54 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         return () -> new SqlIterator<>(this, sqlQuery, fetchSize, query);
     }
 
+    /**
+     * Selects a stream of objects that match the given {@code sqlQuery},
+     * which is executed with the given {@code query} options.
+     *
+     * <p>The rows are read using a forward-only cursor and converted into
+     * objects in a separate thread that stays at most {@code fetchSize}
+     * objects ahead of the consumer. The connection is released as soon as
+     * all rows are read or the stream is closed, so the stream must be used
+     * in a try-with-resources statement if it may not be fully consumed.
+     * A stream that's neither is released only after the rows go unread for
+     * 10 minutes.</p>
+     *
+     * @param sqlQuery Nonnull.
+     * @param fetchSize Number of objects to buffer.
+     * @param query Nullable.
+     * @return Nonnull.
+     * @see #getStreamingFetchSize(int)
+     */
+    public <T> Stream<T> selectStream(String sqlQuery, int fetchSize, Query<T> query) {
+        SqlStreamSpliterator<T> spliterator = new SqlStreamSpliterator<>(this, sqlQuery, fetchSize, query);
+
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+    }
+
+    /**
+     * Returns a stream of all objects matching the given {@code query}.
+     *
+     * @param query Nonnull.
+     * @param fetchSize Number of objects to buffer.
+     * @return Nonnull.
+     * @see #selectStream(String, int, Query)
+     */
+    public <T> Stream<T> readStream(Query<T> query, int fetchSize) {
+        return selectStream(buildSelectStatement(query), fetchSize, query);
+    }
+
+    /**
+     * Returns the JDBC fetch size that makes the driver stream the rows
+     * instead of reading them all into memory.
+     *
+     * <p>The default implementation returns the given {@code fetchSize}.</p>
+     *
+     * @param fetchSize Greater than {@code 0}.
+     */
+    protected int getStreamingFetchSize(int fetchSize) {
+        return fetchSize;
+    }
+
     @Override
     public <T> Iterable<T> readIterable(Query<T> query, int fetchSize) {
         if (query.getSorters().isEmpty()) {
@@ -1250,6 +1624,64 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         return selectIterable(buildSelectStatement(query), fetchSize, query);
     }
 
+    @Override
+    public <T> List<Iterable<T>> readPartitionedIterables(Query<T> query, int partitions, int fetchSize) {
+        if (partitions < 2
+                || !query.getSorters().isEmpty()
+                || ObjectUtils.to(boolean.class, query.getOptions().get(DISABLE_BY_ID_ITERATOR_OPTION))) {
+
+            return super.readPartitionedIterables(query, partitions, fetchSize);
+        }
+
+        // Split the ID space evenly and sort the boundaries in the order
+        // that the database uses so that the ranges don't overlap.
+        List<UUID> boundaries = new ArrayList<>();
+        long step = Long.divideUnsigned(-1L, partitions);
+
+        for (int i = 1; i < partitions; ++ i) {
+            boundaries.add(new UUID(step * i, 0L));
+        }
+
+        boundaries.sort(getIdComparator());
+
+        List<Iterable<T>> iterables = new ArrayList<>();
+
+        for (int i = 0, size = boundaries.size(); i <= size; ++ i) {
+            Query<T> partitionQuery = query.clone();
+
+            if (i > 0) {
+                partitionQuery.and("_id >= ?", boundaries.get(i - 1));
+            }
+
+            if (i < size) {
+                partitionQuery.and("_id < ?", boundaries.get(i));
+            }
+
+            iterables.add(ByIdIterator.iterable(partitionQuery, fetchSize));
+        }
+
+        return iterables;
+    }
+
+    /**
+     * Returns the comparator that matches how the database orders the
+     * {@code id} field in {@link #recordTable}.
+     *
+     * <p>The default implementation compares the bytes as unsigned, which
+     * is how {@code BINARY(16)} and most native UUID types are ordered.</p>
+     *
+     * @return Nonnull.
+     */
+    protected Comparator<UUID> getIdComparator() {
+        return (x, y) -> {
+            int compare = Long.compareUnsigned(x.getMostSignificantBits(), y.getMostSignificantBits());
+
+            return compare != 0
+                    ? compare
+                    : Long.compareUnsigned(x.getLeastSignificantBits(), y.getLeastSignificantBits());
+        };
+    }
+
     /**
      * Builds an SQL statement that can be used to get when any of the objects
      * matching the given {@code query} were last updated.
@@ -1281,8 +1713,7 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         }
 
         // 2. Select one more item than requested.
-        String sqlQuery = buildSelectStatement(query, offset, limit + 1);
-        List<T> items = selectList(sqlQuery, query);
+        List<T> items = selectList(buildPreparedSelectStatement(query, offset, limit + 1), query);
         int size = items.size();
 
         // 3. If there are less items than the requested limit, there aren't
@@ -1336,6 +1767,28 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         return addComment(new SqlQuery(this, query).groupStatement(fields), query);
     }
 
+    /**
+     * Builds an SQL statement that can be used to get all objects grouped by
+     * the values of the given {@code fields}, along with the aggregates of
+     * the values of the given {@code aggregateFields} in each group.
+     *
+     * @param query Nonnull.
+     * @param fields Nonnull. Nonempty.
+     * @param aggregateFields Nonnull.
+     * @return {@code null} if the aggregates can't be computed in the same
+     *         statement.
+     */
+    public String buildGroupStatement(Query<?> query, String[] fields, List<String> aggregateFields) {
+        Preconditions.checkNotNull(query);
+        Preconditions.checkNotNull(fields);
+        Preconditions.checkArgument(fields.length > 0);
+        Preconditions.checkNotNull(aggregateFields);
+
+        String sql = new SqlQuery(this, query).groupStatement(fields, aggregateFields);
+
+        return sql != null ? addComment(sql, query) : null;
+    }
+
     @Override
     public <T> PaginatedResult<Grouping<T>> readPartialGrouped(Query<T> query, long offset, int limit, String... fields) {
         for (String field : fields) {
@@ -1345,11 +1798,19 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
             }
         }
 
-        String sqlQuery = buildGroupStatement(query, fields);
+        List<String> aggregateFields = new ArrayList<>(getGroupingAggregateFields(query));
+        String sqlQuery = buildGroupStatement(query, fields, aggregateFields);
+
+        // Aggregate in memory instead.
+        if (sqlQuery == null) {
+            return super.readPartialGrouped(query, offset, limit, fields);
+        }
 
         return select(sqlQuery, query, result -> {
-            List<Grouping<T>> groupings = new ArrayList<>();
+            List<SqlGrouping<T>> groupings = new ArrayList<>();
+            List<Object[]> rawAggregates = new ArrayList<>();
             int fieldsLength = fields.length;
+            int aggregateFieldsSize = aggregateFields.size();
             int groupingsCount = 0;
 
             for (int i = 0, last = (int) offset + limit; result.next(); ++ i, ++ groupingsCount) {
@@ -1372,58 +1833,118 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
                     throw new UnsupportedOperationException();
                 }
                 groupings.add(grouping);
+
+                // Non-null count, sum, minimum, and maximum of each field.
+                Object[] raw = new Object[aggregateFieldsSize * 4];
+
+                for (int j = 0; j < aggregateFieldsSize; ++ j) {
+                    raw[j * 4] = result.getObject(SqlQuery.COUNT_ALIAS + j);
+                    raw[j * 4 + 1] = result.getObject(SqlQuery.SUM_ALIAS + j);
+                    raw[j * 4 + 2] = result.getObject(SqlQuery.MINIMUM_ALIAS + j);
+                    raw[j * 4 + 3] = result.getObject(SqlQuery.MAXIMUM_ALIAS + j);
+                }
+
+                rawAggregates.add(raw);
             }
 
             int groupingsSize = groupings.size();
-            List<Integer> removes = new ArrayList<>();
 
-            for (int i = 0; i < fieldsLength; ++ i) {
-                Query.MappedKey key = query.mapEmbeddedKey(getEnvironment(), fields[i]);
-                ObjectField field = key.getSubQueryKeyField();
-                if (field == null) {
-                    field = key.getField();
+            for (int i = 0; i < aggregateFieldsSize; ++ i) {
+                List<Object> rawMinimums = new ArrayList<>(groupingsSize);
+                List<Object> rawMaximums = new ArrayList<>(groupingsSize);
+
+                for (Object[] raw : rawAggregates) {
+                    rawMinimums.add(raw[i * 4 + 2]);
+                    rawMaximums.add(raw[i * 4 + 3]);
                 }
 
-                if (field != null) {
-                    Map<String, Object> rawKeys = new HashMap<>();
-                    for (int j = 0; j < groupingsSize; ++ j) {
-                        rawKeys.put(String.valueOf(j), groupings.get(j).getKeys().get(i));
-                    }
+                String aggregateField = aggregateFields.get(i);
+                List<Object> minimums = convertGroupingValues(query, aggregateField, rawMinimums);
+                List<Object> maximums = convertGroupingValues(query, aggregateField, rawMaximums);
 
-                    String itemType = field.getInternalItemType();
-                    if (ObjectField.RECORD_TYPE.equals(itemType)) {
-                        for (Map.Entry<String, Object> entry : rawKeys.entrySet()) {
-                            Map<String, Object> ref = new HashMap<>();
-                            ref.put(StateSerializer.REFERENCE_KEY, entry.getValue());
-                            entry.setValue(ref);
-                        }
-                    }
+                for (int j = 0; j < groupingsSize; ++ j) {
+                    Object[] raw = rawAggregates.get(j);
 
-                    Map<String, Object> rawKeysCopy = new HashMap<>(rawKeys);
-                    Map<?, ?> convertedKeys = (Map<?, ?>) StateSerializer.toJavaValue(query.getDatabase(), null, field, "map/" + itemType, rawKeys);
+                    groupings.get(j).setAggregate(
+                            aggregateField,
+                            ObjectUtils.to(long.class, raw[i * 4]),
+                            ObjectUtils.to(double.class, raw[i * 4 + 1]),
+                            minimums.get(j),
+                            maximums.get(j));
+                }
+            }
 
-                    for (int j = 0; j < groupingsSize; ++ j) {
-                        String jString = String.valueOf(j);
-                        Object convertedKey = convertedKeys.get(jString);
+            List<Integer> removes = new ArrayList<>();
 
-                        if (convertedKey == null
-                                && rawKeysCopy.get(jString) != null) {
-                            removes.add(j - removes.size());
-                        }
+            for (int i = 0; i < fieldsLength; ++ i) {
+                List<Object> rawKeys = new ArrayList<>(groupingsSize);
+
+                for (SqlGrouping<T> grouping : groupings) {
+                    rawKeys.add(grouping.getKeys().get(i));
+                }
 
-                        groupings.get(j).getKeys().set(i, convertedKey);
+                List<Object> convertedKeys = convertGroupingValues(query, fields[i], rawKeys);
+
+                for (int j = 0; j < groupingsSize; ++ j) {
+                    Object convertedKey = convertedKeys.get(j);
+
+                    if (convertedKey == null
+                            && rawKeys.get(j) != null) {
+                        removes.add(j - removes.size());
                     }
+
+                    groupings.get(j).getKeys().set(i, convertedKey);
                 }
             }
 
+            List<Grouping<T>> items = new ArrayList<>(groupings);
+
             for (Integer i : removes) {
-                groupings.remove((int) i);
+                items.remove((int) i);
             }
 
-            return new PaginatedResult<>(offset, limit, groupingsCount - removes.size(), groupings);
+            return new PaginatedResult<>(offset, limit, groupingsCount - removes.size(), items);
         });
     }
 
+    // Converts the raw values of the given field read from the database to
+    // their Java equivalents, or returns them as is if there's no field.
+    private List<Object> convertGroupingValues(Query<?> query, String fieldName, List<Object> values) {
+        Query.MappedKey key = query.mapEmbeddedKey(getEnvironment(), fieldName);
+        ObjectField field = key.getSubQueryKeyField();
+        if (field == null) {
+            field = key.getField();
+        }
+
+        if (field == null) {
+            return values;
+        }
+
+        int size = values.size();
+        Map<String, Object> rawValues = new HashMap<>();
+        for (int i = 0; i < size; ++ i) {
+            rawValues.put(String.valueOf(i), values.get(i));
+        }
+
+        String itemType = field.getInternalItemType();
+        if (ObjectField.RECORD_TYPE.equals(itemType)) {
+            for (Map.Entry<String, Object> entry : rawValues.entrySet()) {
+                Map<String, Object> ref = new HashMap<>();
+                ref.put(StateSerializer.REFERENCE_KEY, entry.getValue());
+                entry.setValue(ref);
+            }
+        }
+
+        Map<?, ?> convertedValues = (Map<?, ?>) StateSerializer.toJavaValue(query.getDatabase(), null, field, "map/" + itemType, rawValues);
+        List<Object> converted = new ArrayList<>(size);
+
+        for (int i = 0; i < size; ++ i) {
+            converted.add(convertedValues.get(String.valueOf(i)));
+        }
+
+        return converted;
+    }
+
     @Override
     protected void beginTransaction(Connection connection, boolean isImmediate) throws SQLException {
         connection.setAutoCommit(false);
@@ -1432,6 +1953,12 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
     @Override
     protected void commitTransaction(Connection connection, boolean isImmediate) throws SQLException {
         connection.commit();
+
+        SqlReadReplicaPool pool = readReplicaPool;
+
+        if (pool != null) {
+            pool.markCommit();
+        }
     }
 
     @Override
@@ -1512,6 +2039,19 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
         return false;
     }
 
+    /**
+     * Serializes the given {@code state} into a byte array that's suitable
+     * for storing in the {@code data} field in {@link #recordTable}.
+     *
+     * <p>The default implementation uses {@link #getDataFormat()}.</p>
+     *
+     * @param state Nonnull.
+     * @return Nonnull.
+     */
+    protected byte[] serializeState(State state) {
+        return StateSerializer.serialize(state.getSimpleValues(), getDataFormat());
+    }
+
     @Override
     protected void doSaves(Connection connection, boolean isImmediate, List<State> states) throws SQLException {
         if (states == null || states.isEmpty()) {
@@ -1545,155 +2085,391 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
 
             double now = System.currentTimeMillis() / 1000.0;
 
+            for (State state : saveRecordsInBatches(connection, context, states, now)) {
+                saveRecord(connection, context, state, now);
+            }
+        }
+    }
+
+    // Saves the data and the update date of the states that can be written
+    // without reading the old data first in JDBC batches, and returns the
+    // states that must be saved one at a time instead.
+    private List<State> saveRecordsInBatches(Connection connection, DSLContext context, List<State> states, double now) throws SQLException {
+        List<State> insertStates = new ArrayList<>();
+        List<State> updateStates = new ArrayList<>();
+        List<State> rowStates = new ArrayList<>();
+        Set<UUID> ids = new HashSet<>();
+
+        for (State state : states) {
+
+            // Same object saved more than once must be written in order.
+            if (!ids.add(state.getId())) {
+                return states;
+
+            } else if (state.isNew()) {
+                insertStates.add(state);
+
+            } else if (state.getAtomicOperations().isEmpty()) {
+                updateStates.add(state);
+
+            } else {
+                rowStates.add(state);
+            }
+        }
+
+        if (insertStates.size() + updateStates.size() < 2) {
+            return states;
+        }
+
+        DataType<UUID> uuidType = uuidType();
+        Param<UUID> idParam = DSL.param("id", uuidType);
+        Param<UUID> typeIdParam = DSL.param("typeId", uuidType);
+        Param<UUID> existingIdParam = DSL.param("existingId", uuidType);
+        Param<UUID> existingTypeIdParam = DSL.param("existingTypeId", uuidType);
+        Param<byte[]> dataParam = DSL.param("data", byteArrayType());
+        Param<Double> dateParam = DSL.param("date", doubleType());
+
+        // Save data.
+        executeBatch(
+                connection,
+                context,
+                context.insertInto(recordTable,
+                        recordIdField,
+                        recordTypeIdField,
+                        recordDataField)
+                        .select(context.select(
+                                idParam,
+                                typeIdParam,
+                                dataParam)
+                                .whereNotExists(context
+                                        .selectOne()
+                                        .from(recordTable)
+                                        .where(recordIdField.eq(existingIdParam))
+                                        .and(recordTypeIdField.eq(existingTypeIdParam)))),
+                insertStates,
+                state -> {
+                    UUID id = state.getId();
+                    UUID typeId = state.getVisibilityAwareTypeId();
+                    Map<String, Object> bindValues = new HashMap<>();
+
+                    bindValues.put(idParam.getName(), id);
+                    bindValues.put(typeIdParam.getName(), typeId);
+                    bindValues.put(dataParam.getName(), serializeState(state));
+                    bindValues.put(existingIdParam.getName(), id);
+                    bindValues.put(existingTypeIdParam.getName(), typeId);
+                    return bindValues;
+                },
+                rowStates);
+
+        executeBatch(
+                connection,
+                context,
+                context.update(recordTable)
+                        .set(recordTypeIdField, typeIdParam)
+                        .set(recordDataField, dataParam)
+                        .where(recordIdField.eq(idParam)),
+                updateStates,
+                state -> {
+                    Map<String, Object> bindValues = new HashMap<>();
+
+                    bindValues.put(idParam.getName(), state.getId());
+                    bindValues.put(typeIdParam.getName(), state.getVisibilityAwareTypeId());
+                    bindValues.put(dataParam.getName(), serializeState(state));
+                    return bindValues;
+                },
+                rowStates);
+
+        // Save update date.
+        executeBatch(
+                connection,
+                context,
+                context.insertInto(recordUpdateTable,
+                        recordUpdateIdField,
+                        recordUpdateTypeIdField,
+                        recordUpdateDateField)
+                        .select(context.select(
+                                idParam,
+                                typeIdParam,
+                                dateParam)
+                                .whereNotExists(context
+                                        .selectOne()
+                                        .from(recordUpdateTable)
+                                        .where(recordUpdateIdField.eq(existingIdParam)))),
+                insertStates,
+                state -> {
+                    UUID id = state.getId();
+                    Map<String, Object> bindValues = new HashMap<>();
+
+                    bindValues.put(idParam.getName(), id);
+                    bindValues.put(typeIdParam.getName(), state.getVisibilityAwareTypeId());
+                    bindValues.put(dateParam.getName(), now);
+                    bindValues.put(existingIdParam.getName(), id);
+                    return bindValues;
+                },
+                rowStates);
+
+        executeBatch(
+                connection,
+                context,
+                context.update(recordUpdateTable)
+                        .set(recordUpdateTypeIdField, typeIdParam)
+                        .set(recordUpdateDateField, dateParam)
+                        .where(recordUpdateIdField.eq(idParam)),
+                updateStates,
+                state -> {
+                    Map<String, Object> bindValues = new HashMap<>();
+
+                    bindValues.put(idParam.getName(), state.getId());
+                    bindValues.put(typeIdParam.getName(), state.getVisibilityAwareTypeId());
+                    bindValues.put(dateParam.getName(), now);
+                    return bindValues;
+                },
+                rowStates);
+
+        return rowStates;
+    }
+
+    // Executes the write for all states in a single JDBC batch, and moves
+    // the states that didn't affect any rows to the failed states, so that
+    // they can be retried one at a time. If the batch fails as a whole, all
+    // states are moved. Rows reported as SUCCESS_NO_INFO may not have
+    // matched anything, so they're retried too, which is safe because the
+    // writes one at a time check whether the row exists first.
+    private void executeBatch(
+            Connection connection,
+            DSLContext context,
+            org.jooq.Query query,
+            List<State> states,
+            Function<State, Map<String, Object>> bindValuesFunction,
+            List<State> failedStates) throws SQLException {
+
+        if (states.isEmpty()) {
+            return;
+        }
+
+        boolean useSavepoint = shouldUseSavepoint();
+        Savepoint savepoint = null;
+        int[] affected = null;
+
+        Stats.Timer timer = STATS.startTimer();
+        Profiler.Static.startThreadEvent("SQL: Update");
+
+        try {
+            if (useSavepoint && !connection.getAutoCommit()) {
+                savepoint = connection.setSavepoint();
+            }
+
+            BatchBindStep batch = context.batch(query);
+
             for (State state : states) {
-                boolean isNew = state.isNew();
-                UUID id = state.getId();
-                UUID typeId = state.getVisibilityAwareTypeId();
-                byte[] data = null;
-
-                // Save data.
-                while (true) {
-
-                    // Looks like a new object so try to INSERT.
-                    if (isNew) {
-                        if (data == null) {
-                            data = StateSerializer.serialize(state.getSimpleValues());
-                        }
+                batch = batch.bind(bindValuesFunction.apply(state));
+            }
 
-                        if (execute(connection, context, context
-                                .insertInto(recordTable,
-                                        recordIdField,
-                                        recordTypeIdField,
-                                        recordDataField)
-                                .select(context.select(
-                                        DSL.inline(id, uuidType()),
-                                        DSL.inline(typeId, uuidType()),
-                                        DSL.inline(data, byteArrayType()))
-                                        .whereNotExists(context
-                                                .selectOne()
-                                                .from(recordTable)
-                                                .where(recordIdField.eq(id))
-                                                .and(recordTypeIdField.eq(typeId))))) < 1) {
-
-                            // INSERT failed so retry with UPDATE.
-                            isNew = false;
-                            continue;
-                        }
+            affected = batch.execute();
+
+            if (savepoint != null) {
+                connection.releaseSavepoint(savepoint);
+            }
 
-                    } else {
-                        List<AtomicOperation> atomicOperations = state.getAtomicOperations();
+        } catch (DataAccessException error) {
+            if (savepoint != null) {
+                connection.rollback(savepoint);
+            }
 
-                        // Normal update.
-                        if (atomicOperations.isEmpty()) {
-                            if (data == null) {
-                                data = StateSerializer.serialize(state.getSimpleValues());
-                            }
+            // Transaction may have been rolled back (e.g. deadlock), so
+            // individual retries wouldn't help.
+            Throwable cause = error.getCause();
 
-                            if (execute(connection, context, context
-                                    .update(recordTable)
-                                    .set(recordTypeIdField, typeId)
-                                    .set(recordDataField, data)
-                                    .where(recordIdField.eq(id))) < 1) {
+            if (cause instanceof SQLException && isRecoverableError((SQLException) cause)) {
+                throw (SQLException) cause;
+            }
 
-                                // UPDATE failed so retry with INSERT.
-                                isNew = true;
-                                continue;
-                            }
+            LOGGER.debug("SQL batch update failed! Retrying one at a time.", error);
 
-                        } else {
-
-                            // Atomic operations requested, so find the old object.
-                            Object oldObject = Query
-                                    .from(Object.class)
-                                    .where("_id = ?", id)
-                                    .using(this)
-                                    .option(CONNECTION_QUERY_OPTION, connection)
-                                    .option(RETURN_ORIGINAL_DATA_QUERY_OPTION, Boolean.TRUE)
-                                    .master()
-                                    .noCache()
-                                    .first();
-
-                            if (oldObject == null) {
-                                retryWrites();
-                                break;
-                            }
+        } finally {
+            double time = timer.stop("SQL: Update");
 
-                            // Restore the data from the old object.
-                            State oldState = State.getInstance(oldObject);
-                            UUID oldTypeId = oldState.getVisibilityAwareTypeId();
-                            byte[] oldData = (byte[]) oldState.getExtra(ORIGINAL_DATA_EXTRA);
+            Profiler.Static.stopThreadEvent(query);
 
-                            state.setValues(oldState.getValues());
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug(
+                        "SQL batch update: [{}], Size: [{}], Time: [{}]ms",
+                        new Object[] {
+                                context.render(query),
+                                states.size(),
+                                time * 1000.0
+                        });
+            }
+        }
 
-                            // Apply all the atomic operations.
-                            for (AtomicOperation operation : atomicOperations) {
-                                String field = operation.getField();
-                                state.putByPath(field, oldState.getByPath(field));
-                            }
+        List<State> successfulStates = new ArrayList<>();
 
-                            for (AtomicOperation operation : atomicOperations) {
-                                operation.execute(state);
-                            }
+        for (int i = 0, size = states.size(); i < size; ++ i) {
+            State state = states.get(i);
 
-                            data = StateSerializer.serialize(state.getSimpleValues());
+            if (affected != null
+                    && i < affected.length
+                    && affected[i] > 0) {
 
-                            if (execute(connection, context, context
-                                    .update(recordTable)
-                                    .set(recordTypeIdField, typeId)
-                                    .set(recordDataField, data)
-                                    .where(recordIdField.eq(id))
-                                    .and(recordTypeIdField.eq(oldTypeId))
-                                    .and(recordDataField.eq(oldData))) < 1) {
+                successfulStates.add(state);
 
-                                // UPDATE failed so start over.
-                                retryWrites();
-                                break;
-                            }
-                        }
-                    }
+            } else {
+                failedStates.add(state);
+            }
+        }
 
-                    // Success!
-                    break;
+        states.clear();
+        states.addAll(successfulStates);
+    }
+
+    // Saves the data and the update date of the state.
+    private void saveRecord(Connection connection, DSLContext context, State state, double now) throws SQLException {
+        boolean isNew = state.isNew();
+        UUID id = state.getId();
+        UUID typeId = state.getVisibilityAwareTypeId();
+        byte[] data = null;
+
+        // Save data.
+        while (true) {
+
+            // Looks like a new object so try to INSERT.
+            if (isNew) {
+                if (data == null) {
+                    data = serializeState(state);
                 }
 
-                // Save update date.
-                while (true) {
-                    if (isNew) {
-                        if (execute(connection, context, context
-                                .insertInto(recordUpdateTable,
-                                        recordUpdateIdField,
-                                        recordUpdateTypeIdField,
-                                        recordUpdateDateField)
-                                .select(context.select(
-                                        DSL.inline(id, uuidType()),
-                                        DSL.inline(typeId, uuidType()),
-                                        DSL.inline(now, doubleType()))
-                                        .whereNotExists(context
-                                                .selectOne()
-                                                .from(recordUpdateTable)
-                                                .where(recordUpdateIdField.eq(id))))) < 1) {
-
-                            // INSERT failed so retry with UPDATE.
-                            isNew = false;
-                            continue;
-                        }
+                if (execute(connection, context, context
+                        .insertInto(recordTable,
+                                recordIdField,
+                                recordTypeIdField,
+                                recordDataField)
+                        .select(context.select(
+                                DSL.inline(id, uuidType()),
+                                DSL.inline(typeId, uuidType()),
+                                DSL.inline(data, byteArrayType()))
+                                .whereNotExists(context
+                                        .selectOne()
+                                        .from(recordTable)
+                                        .where(recordIdField.eq(id))
+                                        .and(recordTypeIdField.eq(typeId))))) < 1) {
+
+                    // INSERT failed so retry with UPDATE.
+                    isNew = false;
+                    continue;
+                }
 
-                    } else {
-                        if (execute(connection, context, context
-                                .update(recordUpdateTable)
-                                .set(recordUpdateTypeIdField, typeId)
-                                .set(recordUpdateDateField, now)
-                                .where(recordUpdateIdField.eq(id))) < 1) {
+            } else {
+                List<AtomicOperation> atomicOperations = state.getAtomicOperations();
 
-                            // UPDATE failed so retry with INSERT.
-                            isNew = true;
-                            continue;
-                        }
+                // Normal update.
+                if (atomicOperations.isEmpty()) {
+                    if (data == null) {
+                        data = serializeState(state);
+                    }
+
+                    if (execute(connection, context, context
+                            .update(recordTable)
+                            .set(recordTypeIdField, typeId)
+                            .set(recordDataField, data)
+                            .where(recordIdField.eq(id))) < 1) {
+
+                        // UPDATE failed so retry with INSERT.
+                        isNew = true;
+                        continue;
+                    }
+
+                } else {
+
+                    // Atomic operations requested, so find the old object.
+                    Object oldObject = Query
+                            .from(Object.class)
+                            .where("_id = ?", id)
+                            .using(this)
+                            .option(CONNECTION_QUERY_OPTION, connection)
+                            .option(RETURN_ORIGINAL_DATA_QUERY_OPTION, Boolean.TRUE)
+                            .master()
+                            .noCache()
+                            .first();
+
+                    if (oldObject == null) {
+                        retryWrites();
+                        break;
+                    }
+
+                    // Restore the data from the old object.
+                    State oldState = State.getInstance(oldObject);
+                    UUID oldTypeId = oldState.getVisibilityAwareTypeId();
+                    byte[] oldData = (byte[]) oldState.getExtra(ORIGINAL_DATA_EXTRA);
+
+                    state.setValues(oldState.getValues());
+
+                    // Apply all the atomic operations.
+                    for (AtomicOperation operation : atomicOperations) {
+                        String field = operation.getField();
+                        state.putByPath(field, oldState.getByPath(field));
+                    }
+
+                    for (AtomicOperation operation : atomicOperations) {
+                        operation.execute(state);
+                    }
+
+                    data = serializeState(state);
+
+                    if (execute(connection, context, context
+                            .update(recordTable)
+                            .set(recordTypeIdField, typeId)
+                            .set(recordDataField, data)
+                            .where(recordIdField.eq(id))
+                            .and(recordTypeIdField.eq(oldTypeId))
+                            .and(recordDataField.eq(oldData))) < 1) {
+
+                        // UPDATE failed so start over.
+                        retryWrites();
+                        break;
                     }
+                }
+            }
+
+            // Success!
+            break;
+        }
+
+        // Save update date.
+        while (true) {
+            if (isNew) {
+                if (execute(connection, context, context
+                        .insertInto(recordUpdateTable,
+                                recordUpdateIdField,
+                                recordUpdateTypeIdField,
+                                recordUpdateDateField)
+                        .select(context.select(
+                                DSL.inline(id, uuidType()),
+                                DSL.inline(typeId, uuidType()),
+                                DSL.inline(now, doubleType()))
+                                .whereNotExists(context
+                                        .selectOne()
+                                        .from(recordUpdateTable)
+                                        .where(recordUpdateIdField.eq(id))))) < 1) {
 
-                    break;
+                    // INSERT failed so retry with UPDATE.
+                    isNew = false;
+                    continue;
+                }
+
+            } else {
+                if (execute(connection, context, context
+                        .update(recordUpdateTable)
+                        .set(recordUpdateTypeIdField, typeId)
+                        .set(recordUpdateDateField, now)
+                        .where(recordUpdateIdField.eq(id))) < 1) {
+
+                    // UPDATE failed so retry with INSERT.
+                    isNew = true;
+                    continue;
                 }
             }
+
+            break;
         }
     }
 
@@ -1741,74 +2517,131 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
             return cachedId;
         }
 
-        // Try to find the ID from the database.
-        Connection readConnection = openReadConnection();
+        Integer id = findSymbolIds(Collections.singleton(symbol), create).get(symbol);
 
-        try {
-            int id = readSymbolId(symbol, readConnection);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * Finds the unique IDs associated with all given {@code symbols} using
+     * at most one query to read them and, if requested, one batch to create
+     * the missing ones.
+     *
+     * <p>Symbols that aren't found without creation are remembered for a
+     * short time so that they're not looked up repeatedly.</p>
+     *
+     * @param symbols Nonnull.
+     * @param create {@code true} to create the IDs on demand.
+     * @return Nonnull. Doesn't contain the symbols that aren't associated
+     *         with IDs if their creation isn't requested.
+     */
+    protected Map<String, Integer> findSymbolIds(Collection<String> symbols, boolean create) {
+        Preconditions.checkNotNull(symbols);
+
+        Map<String, Integer> cachedIds = symbolIds.get();
+        Map<String, Integer> ids = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+
+        // IDs already cached?
+        for (String symbol : symbols) {
+            Preconditions.checkNotNull(symbol);
+
+            Integer cachedId = cachedIds.get(symbol);
+
+            if (cachedId != null) {
+                ids.put(symbol, cachedId);
 
-            if (id > 0 || !create) {
-                return id;
+            } else if (create || missingSymbols.getIfPresent(symbol) == null) {
+                missing.add(symbol);
             }
+        }
+
+        if (missing.isEmpty()) {
+            return ids;
+        }
+
+        // Try to find the IDs from the database.
+        Connection readConnection = openReadConnection();
+
+        try {
+            readSymbolIds(missing, readConnection, ids);
 
         } finally {
             closeConnection(readConnection);
         }
 
-        // Create the ID and re-fetch it from the database to make sure that
-        // it's correct in case of unique constraint violation.
+        if (missing.isEmpty()) {
+            return ids;
+
+        } else if (!create) {
+            missing.forEach(symbol -> missingSymbols.put(symbol, Boolean.TRUE));
+            return ids;
+        }
+
+        // Create the IDs and re-fetch them from the database to make sure
+        // that they're correct in case of unique constraint violation.
         Connection connection = openConnection();
 
         try {
             try (DSLContext context = openContext(connection)) {
+                Param<String> valueParam = DSL.param("value", stringIndexType());
+                Param<String> existingValueParam = DSL.param("existingValue", stringIndexType());
                 org.jooq.Query createQuery = context
                         .insertInto(symbolTable, symbolValueField)
                         .select(context
-                                .select(DSL.inline(symbol, stringIndexType()))
+                                .select(valueParam)
                                 .whereNotExists(context
                                         .selectOne()
                                         .from(symbolTable)
-                                        .where(symbolValueField.eq(symbol))));
+                                        .where(symbolValueField.eq(existingValueParam))));
+
+                BatchBindStep batch = context.batch(createQuery);
+
+                for (String symbol : missing) {
+                    batch = batch.bind(symbol, symbol);
+                }
 
                 try {
-                    createQuery.execute();
+                    batch.execute();
 
                 } catch (DataAccessException error) {
                     throw convertJooqError(error, createQuery);
                 }
             }
 
-            return readSymbolId(symbol, connection);
+            readSymbolIds(missing, connection, ids);
+            return ids;
 
         } finally {
             closeConnection(connection);
         }
     }
 
-    // Reads the symbol ID from the database.
-    private int readSymbolId(String symbol, Connection connection) {
+    // Reads the symbol IDs from the database and removes the ones that are
+    // found from the given missing symbols.
+    private void readSymbolIds(Set<String> missing, Connection connection, Map<String, Integer> ids) {
         try (DSLContext context = openContext(connection)) {
-            ResultQuery<Record1<Integer>> selectQuery = context
-                    .select(symbolIdField)
-                    .from(symbolTable)
-                    .where(symbolValueField.eq(symbol));
-
-            try {
-                Integer id = selectQuery
-                        .fetchOptional()
-                        .map(Record1::value1)
-                        .orElse(null);
+            for (List<String> symbols : Iterables.partition(new ArrayList<>(missing), SYMBOL_READ_BATCH_SIZE)) {
+                ResultQuery<Record2<Integer, String>> selectQuery = context
+                        .select(symbolIdField, symbolValueField)
+                        .from(symbolTable)
+                        .where(symbolValueField.in(symbols));
 
-                if (id != null) {
-                    symbolIds.get().put(symbol, id);
-                    return id;
+                try {
+                    for (Record2<Integer, String> record : selectQuery.fetch()) {
+                        Integer id = record.value1();
+                        String symbol = record.value2();
+
+                        if (missing.remove(symbol)) {
+                            symbolIds.get().put(symbol, id);
+                            missingSymbols.invalidate(symbol);
+                            ids.put(symbol, id);
+                        }
+                    }
 
-                } else {
-                    return -1;
+                } catch (DataAccessException error) {
+                    throw convertJooqError(error, selectQuery);
                 }
-
-            } catch (DataAccessException error) {
-                throw convertJooqError(error, selectQuery);
             }
         }
     }
@@ -1817,20 +2650,38 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
     private void insertIndexes(DSLContext context, ObjectIndex onlyIndex, List<State> states) throws SQLException {
         Map<Table<Record>, BatchBindStep> batches = new HashMap<>();
         Map<Table<Record>, Set<Map<String, Object>>> bindValuesSets = new HashMap<>();
+        List<List<SqlIndexValue>> sqlIndexValuesList = new ArrayList<>();
+        Set<String> symbols = new HashSet<>();
 
+        // Resolve all symbols at once.
         for (State state : states) {
+            List<SqlIndexValue> sqlIndexValues = new ArrayList<>();
+
+            for (SqlIndexValue sqlIndexValue : SqlIndexValue.find(state)) {
+                if (onlyIndex == null || onlyIndex.equals(sqlIndexValue.getIndex())) {
+                    sqlIndexValues.add(sqlIndexValue);
+                    symbols.add(sqlIndexValue.getUniqueName());
+                }
+            }
+
+            sqlIndexValuesList.add(sqlIndexValues);
+        }
+
+        Map<String, Integer> foundSymbolIds = findSymbolIds(symbols, true);
+
+        for (int i = 0, size = states.size(); i < size; ++ i) {
+            State state = states.get(i);
             UUID id = state.getId();
             UUID typeId = state.getVisibilityAwareTypeId();
 
-            for (SqlIndexValue sqlIndexValue : SqlIndexValue.find(state)) {
+            for (SqlIndexValue sqlIndexValue : sqlIndexValuesList.get(i)) {
                 ObjectIndex index = sqlIndexValue.getIndex();
+                Integer symbolId = foundSymbolIds.get(sqlIndexValue.getUniqueName());
 
-                if (onlyIndex != null && !onlyIndex.equals(index)) {
-                    continue;
+                if (symbolId == null) {
+                    symbolId = -1;
                 }
 
-                Object symbolId = findSymbolId(sqlIndexValue.getUniqueName(), true);
-
                 for (AbstractSqlIndex sqlIndex : getSqlIndexes(index)) {
                     Table<Record> table = sqlIndex.table;
                     BatchBindStep batch = batches.get(table);
@@ -1977,6 +2828,20 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
     }
 
     public void notifyUpdate(Object object) {
+        notifyChange(object, false);
+    }
+
+    /**
+     * Notifies all {@link UpdateNotifier}s that the given {@code object}
+     * has been deleted.
+     *
+     * @param object Nonnull.
+     */
+    public void notifyDelete(Object object) {
+        notifyChange(object, true);
+    }
+
+    private void notifyChange(Object object, boolean delete) {
         NOTIFIER: for (UpdateNotifier<?> notifier : updateNotifiers) {
             for (Type notifierInterface : notifier.getClass().getGenericInterfaces()) {
                 if (notifierInterface instanceof ParameterizedType) {
@@ -2007,14 +2872,20 @@ public abstract class AbstractSqlDatabase extends AbstractDatabase<Connection> {
             UpdateNotifier<Object> objectNotifier = (UpdateNotifier<Object>) notifier;
 
             try {
-                objectNotifier.onUpdate(object);
+                if (delete) {
+                    objectNotifier.onDelete(object);
+
+                } else {
+                    objectNotifier.onUpdate(object);
+                }
 
             } catch (Exception error) {
                 LOGGER.warn(
                         String.format(
-                                "Can't notify [%s] of [%s] update!",
+                                "Can't notify [%s] of [%s] %s!",
                                 notifier,
-                                State.getInstance(object).getId()),
+                                State.getInstance(object).getId(),
+                                delete ? "delete" : "update"),
                         error);
             }
         }
@@ -42,5 +42,5 @@ abstract class AbstractSqlIndex {
 
     public abstract Map<String, Object> valueBindValues(ObjectIndex index, Object value);
 
-    public abstract Object valueInline(ObjectIndex index, Object value);
+    public abstract Object value(ObjectIndex index, Object value);
 }
@@ -38,9 +38,9 @@ class LocationSqlIndex extends AbstractSqlIndex {
     }
 
     @Override
-    public Object valueInline(ObjectIndex index, Object value) {
+    public Object value(ObjectIndex index, Object value) {
         return value instanceof Location
-                ? database.stGeomFromText(DSL.inline(((Location) value).toWkt(), String.class))
+                ? database.stGeomFromText(DSL.val(((Location) value).toWkt(), String.class))
                 : null;
     }
 }
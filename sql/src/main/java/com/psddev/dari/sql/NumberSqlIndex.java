@@ -38,7 +38,7 @@ class NumberSqlIndex extends AbstractSqlIndex {
     }
 
     @Override
-    public Object valueInline(ObjectIndex index, Object value) {
-        return DSL.inline(ObjectUtils.to(Double.class, value), database.doubleType());
+    public Object value(ObjectIndex index, Object value) {
+        return DSL.val(ObjectUtils.to(Double.class, value), database.doubleType());
     }
 }
@@ -38,9 +38,9 @@ class RegionSqlIndex extends AbstractSqlIndex {
     }
 
     @Override
-    public Object valueInline(ObjectIndex index, Object value) {
+    public Object value(ObjectIndex index, Object value) {
         return value instanceof Region
-                ? database.stGeomFromText(DSL.inline(((Region) value).toWkt(), String.class))
+                ? database.stGeomFromText(DSL.val(((Region) value).toWkt(), String.class))
                 : null;
     }
 }
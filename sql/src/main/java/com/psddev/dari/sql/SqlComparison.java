@@ -63,7 +63,7 @@ interface SqlComparison {
 
                     return database.stContains(
                             join.valueField,
-                            database.stGeomFromText(DSL.inline(wkt, String.class)));
+                            database.stGeomFromText(DSL.val(wkt, String.class)));
                 };
 
             } else if (sqlIndex instanceof StringSqlIndex) {
@@ -92,7 +92,7 @@ interface SqlComparison {
                             (Field) database.stArea(join.valueField),
                             database.stArea(
                                     database.stGeomFromText(
-                                            DSL.inline(((Region) value).toWkt(), String.class))));
+                                            DSL.val(((Region) value).toWkt(), String.class))));
 
                 } else {
                     Double valueDouble = ObjectUtils.to(Double.class, value);
@@ -103,7 +103,7 @@ interface SqlComparison {
 
                     return compareFunction.apply(
                             (Field) database.stArea(join.valueField),
-                            DSL.inline(valueDouble, double.class));
+                            DSL.val(valueDouble, double.class));
                 }
             };
 
@@ -1,22 +1,53 @@
 package com.psddev.dari.sql;
 
+import com.psddev.dari.db.AbstractDatabase;
 import com.psddev.dari.db.AbstractGrouping;
 import com.psddev.dari.db.Query;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 class SqlGrouping<T> extends AbstractGrouping<T> {
 
     private final long count;
+    private final Map<String, Aggregate> sqlAggregates = new HashMap<>();
 
     public SqlGrouping(List<Object> keys, Query<T> query, String[] fields, long count) {
         super(keys, query, fields);
         this.count = count;
     }
 
+    /**
+     * Sets the aggregate of the values of the given {@code field} that was
+     * computed in the same statement as the grouping.
+     *
+     * @param field Nonnull.
+     * @param minimum Nullable.
+     * @param maximum Nullable.
+     */
+    public void setAggregate(String field, long nonNullCount, double sum, Object minimum, Object maximum) {
+        Aggregate aggregate = new Aggregate();
+
+        aggregate.setNonNullCount(nonNullCount);
+        aggregate.setSum(sum);
+        aggregate.setMinimum(minimum);
+        aggregate.setMaximum(maximum);
+        sqlAggregates.put(field, aggregate);
+    }
+
     @Override
     protected Aggregate createAggregate(String field) {
-        throw new UnsupportedOperationException();
+        Aggregate aggregate = sqlAggregates.get(field);
+
+        if (aggregate == null) {
+            throw new UnsupportedOperationException(String.format(
+                    "[%s] wasn't aggregated! Request it using the [%s] query option.",
+                    field,
+                    AbstractDatabase.GROUPING_AGGREGATE_FIELDS_QUERY_OPTION));
+        }
+
+        return aggregate;
     }
 
     @Override
@@ -168,14 +168,14 @@ final class SqlJoin {
             switch (queryKey) {
                 case Query.ID_KEY :
                 case Query.TYPE_KEY :
-                    return DSL.inline(ObjectUtils.to(UUID.class, value), sqlQuery.database.uuidType());
+                    return DSL.val(ObjectUtils.to(UUID.class, value), sqlQuery.database.uuidType());
 
                 default :
                     return value;
             }
 
         } else {
-            return sqlIndex.valueInline(index, value);
+            return sqlIndex.value(index, value);
         }
     }
 }
@@ -1,12 +1,14 @@
 package com.psddev.dari.sql;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
 import com.psddev.dari.db.ComparisonPredicate;
 import com.psddev.dari.db.CompoundPredicate;
 import com.psddev.dari.db.Location;
@@ -37,6 +39,9 @@ import org.jooq.impl.DSL;
 class SqlQuery {
 
     public static final String COUNT_ALIAS = "_count";
+    public static final String SUM_ALIAS = "_sum";
+    public static final String MINIMUM_ALIAS = "_min";
+    public static final String MAXIMUM_ALIAS = "_max";
 
     protected final AbstractSqlDatabase database;
     protected final Query<?> query;
@@ -333,7 +338,7 @@ class SqlQuery {
                         }
 
                         Condition contains = database.stContains(
-                                database.stGeomFromText(DSL.inline(((Region) value).toWkt())),
+                                database.stGeomFromText(DSL.val(((Region) value).toWkt())),
                                 join.valueField);
 
                         comparisonConditions.add(isNotEqualsAll
@@ -465,8 +470,32 @@ class SqlQuery {
      * @throws NullPointerException If {@code groupKeys} is {@code null}.
      */
     public String groupStatement(String... groupKeys) {
+        return groupStatement(groupKeys, Collections.emptyList());
+    }
+
+    /**
+     * Returns an SQL statement that can be used to group rows by the values
+     * of the given {@code groupKeys} and aggregate the values of the given
+     * {@code aggregateKeys} in each group.
+     *
+     * <p>Each aggregate key at index {@code i} adds the columns
+     * {@code _count<i>}, {@code _sum<i>}, {@code _min<i>} and
+     * {@code _max<i>} after the group keys.</p>
+     *
+     * @param groupKeys Can't be {@code null} or empty.
+     * @param aggregateKeys Can't be {@code null}.
+     * @return {@code null} if the aggregates can't be computed in the same
+     *         statement the same way that they're computed in memory, such
+     *         as when the conditions or the aggregate keys on the collection
+     *         fields produce more than one row per object, or when an
+     *         aggregate key isn't numeric.
+     * @throws IllegalArgumentException If {@code groupKeys} is empty.
+     * @throws NullPointerException If {@code groupKeys} is {@code null}.
+     */
+    public String groupStatement(String[] groupKeys, List<String> aggregateKeys) {
         Preconditions.checkNotNull(groupKeys, "[groupKeys] can't be null!");
         Preconditions.checkArgument(groupKeys.length > 0, "[groupKeys] can't be empty!");
+        Preconditions.checkNotNull(aggregateKeys, "[aggregateKeys] can't be null!");
 
         List<Field<?>> groupByFields = new ArrayList<>();
 
@@ -491,6 +520,59 @@ class SqlQuery {
         }
 
         Table<?> table = initialize(recordTable);
+        List<Field<?>> aggregateFields = new ArrayList<>();
+
+        if (!aggregateKeys.isEmpty()) {
+
+            // The sums would include the same values more than once.
+            if (needsDistinct) {
+                return null;
+            }
+
+            // Join the index tables after the WHERE clause is built so that
+            // the conditions never reuse them.
+            for (int i = 0, size = aggregateKeys.size(); i < size; ++ i) {
+                String aggregateKey = aggregateKeys.get(i);
+                Query.MappedKey mappedKey = query.mapEmbeddedKey(database.getEnvironment(), aggregateKey);
+
+                if (mappedKey.hasSubQuery()) {
+                    return null;
+                }
+
+                // Joining a collection field produces a row per item, which
+                // would inflate the counts and the sums of all aggregates.
+                ObjectField field = mappedKey.getField();
+
+                if (field == null || field.isInternalCollectionType()) {
+                    return null;
+                }
+
+                mappedKeys.put(aggregateKey, mappedKey);
+                selectIndex(aggregateKey, mappedKey);
+
+                SqlJoin join = SqlJoin.create(this, aggregateKey);
+
+                // In memory, the sums include any values that can be
+                // converted to numbers, which SQL can't match for the
+                // other index types.
+                if (!(join.sqlIndex instanceof NumberSqlIndex)) {
+                    return null;
+                }
+
+                if (join.needsIndexTable) {
+                    table = table.leftOuterJoin(join.table)
+                            .on(join.idField.eq(recordIdField))
+                            .and(join.typeIdField.eq(recordTypeIdField))
+                            .and(join.symbolIdField.in(join.symbolIds));
+                }
+
+                aggregateFields.add(join.valueField.count().as(COUNT_ALIAS + i));
+                aggregateFields.add(DSL.sum(numberField(join.valueField)).as(SUM_ALIAS + i));
+                aggregateFields.add(join.valueField.min().as(MINIMUM_ALIAS + i));
+                aggregateFields.add(join.valueField.max().as(MAXIMUM_ALIAS + i));
+            }
+        }
+
         List<Field<?>> selectFields = new ArrayList<>();
 
         selectFields.add((needsDistinct
@@ -499,6 +581,7 @@ class SqlQuery {
                 .as(COUNT_ALIAS));
 
         selectFields.addAll(groupByFields);
+        selectFields.addAll(aggregateFields);
 
         return tableRenderContext.render(dslContext
                 .select(selectFields)
@@ -508,6 +591,11 @@ class SqlQuery {
                 .orderBy(orderByFields));
     }
 
+    @SuppressWarnings("unchecked")
+    private static Field<? extends Number> numberField(Field<Object> field) {
+        return (Field) field;
+    }
+
     /**
      * Returns an SQL statement that can be used to get when the rows
      * matching the query were last updated.
@@ -526,6 +614,151 @@ class SqlQuery {
      * matching the query.
      */
     public String select(int offset, int limit) {
+        return tableRenderContext.render(selectQuery(offset, limit));
+    }
+
+    /**
+     * Returns a prepared SQL statement that can be used to list a subset of
+     * rows matching the query.
+     *
+     * <p>The SQL is rendered with placeholders for all values, and if the
+     * given {@code templates} cache is available, it's reused for all
+     * queries with the same shape.</p>
+     *
+     * @param templates Nullable.
+     * @return Nonnull.
+     */
+    public SqlStatement selectStatement(int offset, int limit, Cache<String, String> templates) {
+        String shape = templates != null ? shape(offset) : null;
+        Select<?> select = selectQuery(offset, limit);
+        String sql = shape != null ? templates.getIfPresent(shape) : null;
+
+        if (sql == null) {
+            sql = dslContext.renderContext().paramType(ParamType.INDEXED).declareTables(true).render(select);
+
+            if (shape != null) {
+                templates.put(shape, sql);
+            }
+        }
+
+        return new SqlStatement(sql, dslContext, select);
+    }
+
+    // Returns a key that's the same for all queries that render into the
+    // same SQL when all values are placeholders, or null if the query has
+    // something that can change the SQL, like a sub-query value.
+    private String shape(int offset) {
+        StringBuilder shape = new StringBuilder();
+
+        shape.append(query.getGroup());
+        shape.append('|').append(query.isFromAll());
+        shape.append('|').append(query.isReferenceOnly());
+        shape.append('|').append(query.isFromAll() ? 0 : query.getConcreteTypeIds(database).size());
+
+        // jOOQ leaves out OFFSET when it's 0.
+        shape.append('|').append(offset == 0);
+        shape.append('|');
+
+        Predicate predicate = query.getPredicate();
+
+        if (predicate != null && !appendShape(shape, predicate)) {
+            return null;
+        }
+
+        for (Sorter sorter : query.getSorters()) {
+            shape.append('|').append(sorter.getOperator());
+
+            for (Object option : sorter.getOptions()) {
+                shape.append(',');
+
+                if (option instanceof String) {
+                    shape.append(option);
+                    appendIndexShape(shape, (String) option);
+
+                } else {
+                    shape.append(option != null ? option.getClass().getName() : null);
+                }
+            }
+        }
+
+        return shape.toString();
+    }
+
+    private boolean appendShape(StringBuilder shape, Predicate predicate) {
+        if (predicate instanceof CompoundPredicate) {
+            shape.append(((CompoundPredicate) predicate).getOperator()).append('(');
+
+            for (Predicate child : ((CompoundPredicate) predicate).getChildren()) {
+                if (!appendShape(shape, child)) {
+                    return false;
+                }
+
+                shape.append(',');
+            }
+
+            shape.append(')');
+            return true;
+
+        } else if (predicate instanceof ComparisonPredicate) {
+            ComparisonPredicate comparison = (ComparisonPredicate) predicate;
+            String key = comparison.getKey();
+            String operator = comparison.getOperator();
+
+            shape.append(key);
+            appendIndexShape(shape, key);
+            shape.append(' ').append(operator).append(comparison.isIgnoreCase() ? "[c]" : "").append(' ');
+
+            // Other operators are handled by the database specific
+            // implementations that may render the values differently.
+            if (!PredicateParser.EQUALS_ANY_OPERATOR.equals(operator)
+                    && !PredicateParser.NOT_EQUALS_ALL_OPERATOR.equals(operator)
+                    && !SqlComparison.SUPPORTED_OPERATORS.contains(operator)) {
+
+                shape.append(comparison.getValues());
+                return true;
+            }
+
+            for (Object value : comparison.getValues()) {
+                if (value instanceof Query || value instanceof QueryPhrase) {
+                    return false;
+
+                } else if (value == null) {
+                    shape.append("n");
+
+                } else if (value == Query.MISSING_VALUE) {
+                    shape.append("m");
+
+                } else if (value instanceof Class) {
+                    shape.append(database.getEnvironment().getTypeByClass((Class<?>) value) != null ? "v" : "n");
+
+                } else if (value instanceof Location) {
+                    shape.append("l");
+
+                } else if (value instanceof Region) {
+                    shape.append("r");
+
+                } else {
+                    shape.append("v");
+                }
+            }
+
+            return true;
+
+        } else {
+            return false;
+        }
+    }
+
+    private void appendIndexShape(StringBuilder shape, String key) {
+        ObjectIndex index = selectedIndexes.get(key);
+
+        if (index != null) {
+            shape.append('[').append(index.getUniqueName()).append(':').append(index.getType()).append(']');
+        }
+    }
+
+    // Builds the jOOQ query that lists a subset of rows matching the query.
+    private Select<?> selectQuery(int offset, int limit) {
         Table<?> table = initialize(recordTable);
         List<SelectField<?>> selectFields = new ArrayList<>();
 
@@ -579,6 +812,6 @@ class SqlQuery {
                     .limit(limit);
         }
 
-        return tableRenderContext.render(select);
+        return select;
     }
 }
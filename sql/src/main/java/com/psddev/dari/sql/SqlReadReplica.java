@@ -0,0 +1,117 @@
+package com.psddev.dari.sql;
+
+import com.google.common.base.Preconditions;
+
+import javax.sql.DataSource;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read-only replica of the master database that {@link AbstractSqlDatabase}
+ * can route the reads to.
+ *
+ * @see AbstractSqlDatabase#READ_DATA_SOURCES_SUB_SETTING
+ * @see AbstractSqlDatabase#getReadReplicas()
+ */
+public final class SqlReadReplica {
+
+    private final String name;
+    private final DataSource dataSource;
+    private final double weight;
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private volatile boolean healthy = true;
+    private volatile long lag = -1L;
+    private volatile long lastCheck;
+
+    /**
+     * @param name Nonnull.
+     * @param dataSource Nonnull.
+     * @param weight Must be greater than {@code 0}.
+     */
+    SqlReadReplica(String name, DataSource dataSource, double weight) {
+        Preconditions.checkNotNull(name);
+        Preconditions.checkNotNull(dataSource);
+        Preconditions.checkArgument(weight > 0.0, "Weight must be greater than 0!");
+
+        this.name = name;
+        this.dataSource = dataSource;
+        this.weight = weight;
+    }
+
+    /**
+     * @return Nonnull.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Nonnull.
+     */
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    /**
+     * Returns the relative share of the reads that this replica should
+     * receive.
+     */
+    public double getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns the number of connections to this replica that are currently
+     * open.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Returns {@code true} if the last health check succeeded.
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Returns the replication lag in milliseconds as of the
+     * {@linkplain #getLastCheck last check}, or {@code -1} if it's unknown.
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    /**
+     * Returns the time of the last health check in milliseconds since the
+     * epoch, or {@code 0} if it hasn't been checked yet.
+     */
+    public long getLastCheck() {
+        return lastCheck;
+    }
+
+    void acquire() {
+        outstanding.incrementAndGet();
+    }
+
+    void release() {
+        outstanding.decrementAndGet();
+    }
+
+    void update(boolean healthy, long lag, long lastCheck) {
+        this.healthy = healthy;
+        this.lag = lag;
+        this.lastCheck = lastCheck;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%s (healthy: %s, lag: %sms, outstanding: %s)",
+                name,
+                healthy,
+                lag,
+                outstanding.get());
+    }
+}
@@ -0,0 +1,240 @@
+package com.psddev.dari.sql;
+
+import com.google.common.collect.ImmutableList;
+import com.psddev.dari.util.ObjectUtils;
+import com.psddev.dari.util.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Routes the reads to the least busy replica relative to its weight,
+ * skipping the ones that are unhealthy, lagging too far behind, or that may
+ * not have the writes that were committed on the current thread yet.
+ */
+final class SqlReadReplicaPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SqlReadReplicaPool.class);
+
+    private static final String EXECUTOR_NAME = "SQL Read Replicas";
+    private static final double CHECK_INTERVAL = 1.0;
+    private static final int CHECK_TIMEOUT = 2;
+
+    private final List<SqlReadReplica> replicas;
+    private final long maximumLag;
+    private final String lagQuery;
+    private final ThreadLocal<Long> lastCommit = new ThreadLocal<>();
+    private final Map<Connection, SqlReadReplica> connections = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    private final Task checker = new Task(EXECUTOR_NAME, null) {
+
+        @Override
+        protected void doTask() {
+            check();
+        }
+    };
+
+    /**
+     * @param replicas Nonnull.
+     * @param maximumLag Maximum replication lag in milliseconds.
+     * @param lagQuery Nullable. SQL query that returns the replication lag
+     *        in seconds.
+     */
+    public SqlReadReplicaPool(List<SqlReadReplica> replicas, long maximumLag, String lagQuery) {
+        this.replicas = ImmutableList.copyOf(replicas);
+        this.maximumLag = maximumLag;
+        this.lagQuery = lagQuery;
+    }
+
+    /**
+     * @return Nonnull.
+     */
+    public List<SqlReadReplica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Checks all replicas once and then periodically in the background.
+     */
+    public void start() {
+        check();
+        checker.scheduleWithFixedDelay(CHECK_INTERVAL, CHECK_INTERVAL);
+    }
+
+    /**
+     * Stops checking the replicas.
+     */
+    public void stop() {
+        checker.stop();
+    }
+
+    /**
+     * Selects the replica that should be used for the next read.
+     *
+     * @return {@code null} if the read should go to the master instead.
+     */
+    public SqlReadReplica select() {
+        Long commit = lastCommit.get();
+
+        if (commit != null) {
+            long sinceCommit = System.currentTimeMillis() - commit;
+
+            // Any replica that's usable at all must have caught up by now.
+            if (sinceCommit > maximumLag + (long) (CHECK_INTERVAL * 1000.0)) {
+                lastCommit.remove();
+                commit = null;
+
+            } else if (lagQuery == null) {
+                return null;
+            }
+        }
+
+        int size = replicas.size();
+        int start = ThreadLocalRandom.current().nextInt(size);
+        SqlReadReplica selected = null;
+        double selectedLoad = 0.0;
+
+        for (int i = 0; i < size; ++ i) {
+            SqlReadReplica replica = replicas.get((start + i) % size);
+
+            if (!replica.isHealthy()) {
+                continue;
+            }
+
+            long lag = replica.getLag();
+
+            if (lag > maximumLag) {
+                continue;
+            }
+
+            // Read your writes: the replica must have caught up to the
+            // last commit on this thread as of its last check.
+            if (commit != null
+                    && lagQuery != null
+                    && (lag < 0L || replica.getLastCheck() - lag < commit)) {
+
+                continue;
+            }
+
+            double load = (replica.getOutstanding() + 1) / replica.getWeight();
+
+            if (selected == null || load < selectedLoad) {
+                selected = replica;
+                selectedLoad = load;
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * Records that the given {@code connection} was opened against the
+     * given {@code replica}.
+     *
+     * @param connection Nonnull.
+     * @param replica Nonnull.
+     */
+    public void acquire(Connection connection, SqlReadReplica replica) {
+        replica.acquire();
+        connections.put(connection, replica);
+    }
+
+    /**
+     * Records that the given {@code connection} is being closed.
+     *
+     * @param connection Nullable.
+     */
+    public void release(Connection connection) {
+        if (connection != null) {
+            SqlReadReplica replica = connections.remove(connection);
+
+            if (replica != null) {
+                replica.release();
+            }
+        }
+    }
+
+    /**
+     * Records that a write was committed on the current thread, so that the
+     * subsequent reads on it can see the write.
+     */
+    public void markCommit() {
+        lastCommit.set(System.currentTimeMillis());
+    }
+
+    /**
+     * Marks the given {@code replica} as unhealthy until the next check.
+     *
+     * @param replica Nonnull.
+     * @param error Nullable.
+     */
+    public void markFailure(SqlReadReplica replica, Exception error) {
+        if (replica.isHealthy()) {
+            LOGGER.warn(String.format("Can't connect to read replica [%s]!", replica.getName()), error);
+        }
+
+        replica.update(false, replica.getLag(), replica.getLastCheck());
+    }
+
+    // Updates the health and the replication lag of all replicas.
+    private void check() {
+        for (SqlReadReplica replica : replicas) {
+            boolean healthy = false;
+            long lag = -1L;
+
+            try (Connection connection = replica.getDataSource().getConnection()) {
+                if (lagQuery != null) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.setQueryTimeout(CHECK_TIMEOUT);
+
+                        try (ResultSet result = statement.executeQuery(lagQuery)) {
+                            if (result.next()) {
+                                Double lagSeconds = ObjectUtils.to(Double.class, result.getObject(1));
+
+                                if (lagSeconds != null) {
+                                    lag = Math.max(0L, (long) (lagSeconds * 1000.0));
+                                }
+                            }
+                        }
+                    }
+
+                    healthy = true;
+
+                } else {
+                    healthy = connection.isValid(CHECK_TIMEOUT);
+                }
+
+            } catch (SQLException | RuntimeException error) {
+
+                // Pool and driver errors only affect this replica, so the
+                // others must still be checked.
+                healthy = false;
+
+                if (replica.isHealthy()) {
+                    LOGGER.warn(String.format("Can't check read replica [%s]!", replica.getName()), error);
+                }
+            }
+
+            if (healthy && !replica.isHealthy()) {
+                LOGGER.info("Read replica [{}] is healthy again", replica.getName());
+            }
+
+            // Without a heartbeat, the replica is considered to be too far
+            // behind.
+            if (healthy && lagQuery != null && lag < 0L) {
+                lag = Long.MAX_VALUE;
+            }
+
+            replica.update(healthy, lag, System.currentTimeMillis());
+        }
+    }
+}
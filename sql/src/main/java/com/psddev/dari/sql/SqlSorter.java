@@ -63,7 +63,7 @@ interface SqlSorter {
 
         return database.stLength(
                 database.stMakeLine(
-                        database.stGeomFromText(DSL.inline(((Location) option).toWkt())),
+                        database.stGeomFromText(DSL.val(((Location) option).toWkt())),
                         join.valueField));
     }
 
@@ -0,0 +1,104 @@
+package com.psddev.dari.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.jooq.DSLContext;
+import org.jooq.QueryPart;
+import org.jooq.exception.DataAccessException;
+
+/**
+ * SQL that's either executed as is or prepared with the bind values from
+ * the jOOQ query that it was rendered from.
+ */
+class SqlStatement {
+
+    public final String sql;
+
+    private final DSLContext dslContext;
+    private final QueryPart queryPart;
+
+    /**
+     * Creates an instance that executes the given {@code sql} as is.
+     *
+     * @param sql Nonnull.
+     */
+    public SqlStatement(String sql) {
+        this(sql, null, null);
+    }
+
+    /**
+     * Creates an instance that prepares the given {@code sql} and binds the
+     * values in the given {@code queryPart}.
+     *
+     * @param sql Nonnull. Must have been rendered from a query with the same
+     *        shape as the given {@code queryPart}.
+     * @param dslContext Nullable.
+     * @param queryPart Nullable.
+     */
+    public SqlStatement(String sql, DSLContext dslContext, QueryPart queryPart) {
+        this.sql = sql;
+        this.dslContext = dslContext;
+        this.queryPart = queryPart;
+    }
+
+    /**
+     * Returns a copy of this instance with the given {@code sql}, such as
+     * the same SQL with a comment.
+     *
+     * @param sql Nonnull.
+     * @return Nonnull.
+     */
+    public SqlStatement withSql(String sql) {
+        return new SqlStatement(sql, dslContext, queryPart);
+    }
+
+    /**
+     * Creates a JDBC statement using the given {@code connection}, with all
+     * values bound if it's prepared.
+     *
+     * @param connection Nonnull.
+     * @return Nonnull.
+     */
+    public Statement create(Connection connection) throws SQLException {
+        if (queryPart == null) {
+            return connection.createStatement();
+        }
+
+        PreparedStatement statement = connection.prepareStatement(sql);
+
+        try {
+            dslContext.bindContext(statement).visit(queryPart);
+
+        } catch (DataAccessException error) {
+            statement.close();
+
+            Throwable cause = error.getCause();
+
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+
+            } else {
+                throw error;
+            }
+        }
+
+        return statement;
+    }
+
+    /**
+     * Executes the given {@code statement}, which must have been
+     * {@linkplain #create created} by this instance.
+     *
+     * @param statement Nonnull.
+     * @return Nonnull.
+     */
+    public ResultSet executeQuery(Statement statement) throws SQLException {
+        return queryPart != null
+                ? ((PreparedStatement) statement).executeQuery()
+                : statement.executeQuery(sql);
+    }
+}
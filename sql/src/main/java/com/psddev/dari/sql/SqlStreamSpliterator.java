@@ -0,0 +1,256 @@
+package com.psddev.dari.sql;
+
+import com.google.common.base.Preconditions;
+import com.psddev.dari.db.Database;
+import com.psddev.dari.db.Query;
+import com.psddev.dari.util.Profiler;
+import com.psddev.dari.util.Stats;
+import com.psddev.dari.util.TaskExecutor;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Reads the rows using a forward-only cursor and converts them into objects
+ * in a separate thread, staying at most a fetch size ahead of the consumer.
+ * The query is only executed once the first object is requested, on the
+ * consumer's thread, so that the connection is selected and profiled like
+ * any other read.
+ *
+ * <p>If the consumer doesn't request another object for
+ * {@value #MAXIMUM_OFFER_WAIT} milliseconds without closing the stream,
+ * the stream is considered abandoned and the connection is released.</p>
+ */
+final class SqlStreamSpliterator<T> implements Closeable, Spliterator<T> {
+
+    private static final String EXECUTOR_NAME = "SQL Stream";
+    private static final Object NULL = new Object();
+    private static final Object END = new Object();
+    private static final long OFFER_TIMEOUT = 100L;
+    private static final long MAXIMUM_OFFER_WAIT = 600000L;
+
+    private final AbstractSqlDatabase database;
+    private final String sqlQuery;
+    private final int fetchSize;
+    private final Query<T> query;
+    private final BlockingQueue<Object> items;
+
+    private volatile boolean closed;
+    private volatile boolean abandoned;
+    private boolean started;
+    private boolean done;
+
+    /**
+     * @param database Nonnull.
+     * @param sqlQuery Nonnull.
+     * @param fetchSize Number of objects to buffer. {@code 0} or less to use
+     *                  the default.
+     * @param query Nullable.
+     */
+    public SqlStreamSpliterator(AbstractSqlDatabase database, String sqlQuery, int fetchSize, Query<T> query) {
+        Preconditions.checkNotNull(database);
+        Preconditions.checkNotNull(sqlQuery);
+
+        this.database = database;
+        this.sqlQuery = sqlQuery;
+        this.fetchSize = fetchSize <= 0 ? 200 : fetchSize;
+        this.query = query;
+        this.items = new ArrayBlockingQueue<>(this.fetchSize);
+    }
+
+    // Executes the query on the consumer thread and starts converting the
+    // rows in a separate one.
+    private void start() {
+        Connection connection = null;
+        Statement statement = null;
+        ResultSet result = null;
+
+        try {
+            connection = database.openQueryConnection(query);
+            statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(database.getStreamingFetchSize(fetchSize));
+
+            Stats.Timer timer = AbstractSqlDatabase.STATS.startTimer();
+            Profiler.Static.startThreadEvent("SQL: Query");
+
+            try {
+                result = statement.executeQuery(sqlQuery);
+
+            } finally {
+                timer.stop("SQL: Query");
+                Profiler.Static.stopThreadEvent(sqlQuery);
+            }
+
+        } catch (SQLException error) {
+            database.closeResources(query, connection, statement, result);
+            throw database.createSelectError(sqlQuery, query, error);
+
+        } catch (RuntimeException error) {
+            database.closeResources(query, connection, statement, result);
+            throw error;
+        }
+
+        // Workers don't inherit the default database override.
+        Database defaultDatabase = Database.Static.getDefault();
+        Connection producerConnection = connection;
+        Statement producerStatement = statement;
+        ResultSet producerResult = result;
+
+        TaskExecutor.Static.getInstance(EXECUTOR_NAME).execute(() -> produce(defaultDatabase, producerConnection, producerStatement, producerResult));
+    }
+
+    // Converts all rows and puts the objects into the queue. The profiler
+    // isn't carried over, because it can't be used by two threads at once.
+    private void produce(Database defaultDatabase, Connection connection, Statement statement, ResultSet result) {
+        RuntimeException failure = null;
+        boolean completed = false;
+
+        Database.Static.overrideDefault(defaultDatabase);
+
+        try {
+            while (!closed && result.next()) {
+                T object = database.createSavedObjectUsingResultSet(result, query);
+
+                offer(object != null ? object : NULL);
+            }
+
+            completed = true;
+
+        } catch (SQLException error) {
+            failure = database.createSelectError(sqlQuery, query, error);
+
+        } catch (RuntimeException error) {
+            failure = error;
+
+        } finally {
+            Database.Static.restoreDefault();
+            database.closeResources(query, connection, statement, result);
+
+            // Make sure that the consumer doesn't mistake an error for the
+            // end of the rows.
+            if (failure == null && !completed) {
+                failure = new IllegalStateException(String.format(
+                        "Unexpected error while streaming [%s]!",
+                        sqlQuery));
+            }
+
+            offer(failure != null ? new Failure(failure) : END);
+        }
+    }
+
+    // Waits until there's room in the queue or the consumer goes away.
+    private void offer(Object item) {
+        try {
+            for (long waited = 0L; !closed; waited += OFFER_TIMEOUT) {
+                if (items.offer(item, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    return;
+
+                } else if (waited >= MAXIMUM_OFFER_WAIT) {
+                    abandoned = true;
+                    closed = true;
+                    return;
+                }
+            }
+
+        } catch (InterruptedException error) {
+            closed = true;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (done) {
+            return false;
+        }
+
+        if (!started) {
+            started = true;
+
+            try {
+                start();
+
+            } catch (RuntimeException error) {
+                done = true;
+                throw error;
+            }
+        }
+
+        Object item;
+
+        try {
+            while ((item = items.poll(OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) == null) {
+                if (abandoned) {
+                    done = true;
+                    throw new IllegalStateException(String.format(
+                            "Stopped streaming [%s] after waiting [%s] milliseconds for the consumer!",
+                            sqlQuery, MAXIMUM_OFFER_WAIT));
+                }
+            }
+
+        } catch (InterruptedException error) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the next SQL row!", error);
+        }
+
+        if (item == END) {
+            done = true;
+            return false;
+
+        } else if (item instanceof Failure) {
+            done = true;
+            throw ((Failure) item).error;
+
+        } else {
+            @SuppressWarnings("unchecked")
+            T object = item == NULL ? null : (T) item;
+
+            action.accept(object);
+            return true;
+        }
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED;
+    }
+
+    /**
+     * Stops reading the rows and releases the connection.
+     */
+    @Override
+    public void close() {
+        done = true;
+        closed = true;
+
+        items.clear();
+    }
+
+    private static final class Failure {
+
+        public final RuntimeException error;
+
+        public Failure(RuntimeException error) {
+            this.error = error;
+        }
+    }
+}
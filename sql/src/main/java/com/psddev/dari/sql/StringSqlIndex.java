@@ -57,7 +57,7 @@ class StringSqlIndex extends AbstractSqlIndex {
     }
 
     @Override
-    public Object valueInline(ObjectIndex index, Object value) {
-        return DSL.inline(valueString(index, value), database.stringIndexType());
+    public Object value(ObjectIndex index, Object value) {
+        return DSL.val(valueString(index, value), database.stringIndexType());
     }
 }
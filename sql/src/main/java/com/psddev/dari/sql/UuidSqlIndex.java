@@ -39,7 +39,7 @@ class UuidSqlIndex extends AbstractSqlIndex {
     }
 
     @Override
-    public Object valueInline(ObjectIndex index, Object value) {
-        return DSL.inline(ObjectUtils.to(UUID.class, value), database.uuidType());
+    public Object value(ObjectIndex index, Object value) {
+        return DSL.val(ObjectUtils.to(UUID.class, value), database.uuidType());
     }
 }
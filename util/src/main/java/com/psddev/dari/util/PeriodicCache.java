@@ -22,6 +22,7 @@ public abstract class PeriodicCache<K, V> implements Map<K, V> {
     private volatile Map<K, V> map = Collections.emptyMap();
     private final Task task;
     private volatile Date updateDate = new Date(0);
+    private volatile long version;
 
     /**
      * Creates an instance that will update every given {@code interval}
@@ -70,6 +71,14 @@ public abstract class PeriodicCache<K, V> implements Map<K, V> {
         return updateDate;
     }
 
+    /**
+     * Returns the number of times that this cache was updated, so that the
+     * values derived from it can be cached until it changes.
+     */
+    public long getVersion() {
+        return version;
+    }
+
     /**
      * Returns a map that will replace the existing cache.
      *
@@ -77,6 +86,18 @@ public abstract class PeriodicCache<K, V> implements Map<K, V> {
      */
     protected abstract Map<K, V> update();
 
+    /**
+     * Called after the cache is updated with the given {@code newMap}.
+     *
+     * <p>The default implementation doesn't do anything.</p>
+     *
+     * @param oldMap Nonnull.
+     * @param newMap Nonnull.
+     * @param newVersion Same as {@link #getVersion}.
+     */
+    protected void afterRefresh(Map<K, V> oldMap, Map<K, V> newMap, long newVersion) {
+    }
+
     /** Refreshes the cache immediately. */
     public synchronized void refresh() {
 
@@ -86,6 +107,11 @@ public abstract class PeriodicCache<K, V> implements Map<K, V> {
             map = newMap;
             updateDate = new Date();
 
+            // Must be after the map so that the version never refers to an
+            // older map.
+            long newVersion = version + 1;
+            version = newVersion;
+
             if (LOGGER.isDebugEnabled()) {
                 Set<K> newKeys = new HashSet<K>(newMap.keySet());
                 int updateCount = 0, deleteCount = 0, sameCount = 0;
@@ -113,6 +139,8 @@ public abstract class PeriodicCache<K, V> implements Map<K, V> {
                                 deleteCount,
                                 sameCount });
             }
+
+            afterRefresh(oldMap, newMap, newVersion);
         }
     }
 
@@ -9,11 +9,15 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 import javax.naming.Binding;
 import javax.naming.Context;
@@ -64,6 +68,7 @@ public final class Settings {
     private static final Map<String, Map<String, Object>> PERMANENT_OVERRIDES_MAP = new LinkedHashMap<String, Map<String, Object>>();
     private static final ThreadLocal<Map<String, Object>> THREAD_OVERRIDES = new ThreadLocal<Map<String, Object>>();
     private static final String RANDOM_SECRET = UUID.randomUUID().toString();
+    private static final List<Handle<?>> LISTENED_HANDLES = new CopyOnWriteArrayList<Handle<?>>();
 
     private static final LoadingCache<Class<?>, Constructor<?>> CONSTRUCTOR_CACHE = CacheBuilder
             .newBuilder()
@@ -142,6 +147,13 @@ public final class Settings {
                     return Collections.unmodifiableMap(settings);
                 }
 
+                @Override
+                protected void afterRefresh(Map<String, Object> oldMap, Map<String, Object> newMap, long newVersion) {
+                    for (Handle<?> handle : LISTENED_HANDLES) {
+                        handle.refresh(newMap, newVersion);
+                    }
+                }
+
                 private void putAllMap(Map<String, Object> map, Map<?, ?> other) {
                     for (Map.Entry<?, ?> entry : other.entrySet()) {
                         Object key = entry.getKey();
@@ -196,6 +208,28 @@ public final class Settings {
         }
     };
 
+    /**
+     * Returns a handle to the value associated with the given {@code key}
+     * as an instance of the given {@code returnClass}, or if not found or
+     * is blank, the given {@code defaultValue}.
+     *
+     * <p>The handle parses the {@code key} once and caches the converted
+     * value until the settings change, so it should be kept in a field
+     * and used instead of {@link #getOrDefault(Class, String, Object)} on
+     * the hot paths.</p>
+     *
+     * @param returnClass Can't be {@code null}.
+     * @param key Can't be {@code null}.
+     * @param defaultValue Can be {@code null}.
+     * @return Never {@code null}.
+     */
+    public static <T> Handle<T> handle(Class<T> returnClass, String key, T defaultValue) {
+        Preconditions.checkNotNull(returnClass);
+        Preconditions.checkNotNull(key);
+
+        return new Handle<T>(returnClass, key, defaultValue);
+    }
+
     /**
      * Returns the value associated with the given {@code key}, or if not
      * found or is blank, the given {@code defaultValue}.
@@ -559,6 +593,168 @@ public final class Settings {
         return object;
     }
 
+    /**
+     * Precompiled accessor to a setting value.
+     *
+     * @see #handle
+     */
+    public static final class Handle<T> {
+
+        private final Class<T> returnClass;
+        private final String key;
+        private final String[] path;
+        private final String[] remainingPaths;
+        private final T defaultValue;
+        private final List<Consumer<T>> listeners = new CopyOnWriteArrayList<Consumer<T>>();
+
+        private volatile Snapshot<T> snapshot;
+        private T lastListenedValue;
+
+        private Handle(Class<T> returnClass, String key, T defaultValue) {
+            this.returnClass = returnClass;
+            this.key = key;
+            this.path = key.split("/", -1);
+            this.remainingPaths = new String[path.length];
+            this.defaultValue = defaultValue;
+
+            for (int i = 0, index = 0; i < path.length; ++ i) {
+                remainingPaths[i] = key.substring(index);
+                index += path[i].length() + 1;
+            }
+        }
+
+        /**
+         * @return Never {@code null}.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the value, taking the overrides in the current thread
+         * into account.
+         *
+         * @see Settings#getOrDefault(Class, String, Object)
+         */
+        public T get() {
+            Map<String, Object> overrides = THREAD_OVERRIDES.get();
+
+            if (overrides != null) {
+                Object value = find(overrides);
+
+                if (!ObjectUtils.isBlank(value)) {
+                    return ObjectUtils.to(returnClass, value);
+                }
+            }
+
+            PeriodicCache<String, Object> settings = SETTINGS.get();
+            long version = settings.getVersion();
+            Snapshot<T> current = snapshot;
+
+            if (current == null || current.version != version) {
+                current = new Snapshot<T>(version, convert(settings));
+                snapshot = current;
+            }
+
+            return current.value;
+        }
+
+        /**
+         * Adds the given {@code listener} to be called with the new value
+         * whenever the global settings change it.
+         *
+         * @param listener Can't be {@code null}.
+         */
+        public void addChangeListener(Consumer<T> listener) {
+            Preconditions.checkNotNull(listener);
+
+            synchronized (this) {
+                if (listeners.isEmpty()) {
+                    lastListenedValue = convert(SETTINGS.get());
+                    LISTENED_HANDLES.add(this);
+                }
+
+                listeners.add(listener);
+            }
+        }
+
+        /**
+         * Removes the given {@code listener} that was previously added with
+         * {@link #addChangeListener}.
+         *
+         * @param listener Can be {@code null}.
+         */
+        public void removeChangeListener(Consumer<T> listener) {
+            synchronized (this) {
+                if (listeners.remove(listener) && listeners.isEmpty()) {
+                    LISTENED_HANDLES.remove(this);
+                }
+            }
+        }
+
+        // Updates the cached value and notifies the listeners if it
+        // changed.
+        private void refresh(Map<String, Object> settings, long version) {
+            T value = convert(settings);
+
+            snapshot = new Snapshot<T>(version, value);
+
+            synchronized (this) {
+                if (Objects.equals(lastListenedValue, value)) {
+                    return;
+                }
+
+                lastListenedValue = value;
+
+                for (Consumer<T> listener : listeners) {
+                    try {
+                        listener.accept(value);
+
+                    } catch (RuntimeException error) {
+                        LOGGER.warn(String.format("Can't notify the change in [%s]!", key), error);
+                    }
+                }
+            }
+        }
+
+        private T convert(Map<String, Object> settings) {
+            Object value = find(settings);
+
+            return ObjectUtils.to(returnClass, ObjectUtils.isBlank(value) ? defaultValue : value);
+        }
+
+        // Same as CollectionUtils#getByPath, but without parsing the key
+        // again for the maps.
+        private Object find(Map<String, Object> map) {
+            Object value = map;
+
+            for (int i = 0, length = path.length; i < length; ++ i) {
+                if (value == null) {
+                    return null;
+
+                } else if (value instanceof Map) {
+                    value = ((Map<?, ?>) value).get(path[i]);
+
+                } else {
+                    return CollectionUtils.getByPath(value, remainingPaths[i]);
+                }
+            }
+
+            return value;
+        }
+    }
+
+    private static final class Snapshot<T> {
+
+        public final long version;
+        public final T value;
+
+        public Snapshot(long version, T value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+
     /**
      * @deprecated Use {@link #getOrDefault(String, Object)} instead.
      */
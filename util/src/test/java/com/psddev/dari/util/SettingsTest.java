@@ -0,0 +1,79 @@
+package com.psddev.dari.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SettingsTest {
+
+    private static final String OVERRIDES_NAME = SettingsTest.class.getName();
+
+    @After
+    public void after() {
+        Settings.removePermanentOverrides(OVERRIDES_NAME);
+        Settings.setOverride("settingsTest", null);
+    }
+
+    @Test
+    public void testHandleDefault() {
+        Settings.Handle<Long> handle = Settings.handle(long.class, "settingsTest/missing", 5L);
+
+        Assert.assertEquals(Long.valueOf(5L), handle.get());
+    }
+
+    @Test
+    public void testHandlePermanentOverride() {
+        Settings.Handle<Integer> handle = Settings.handle(int.class, "settingsTest/nested/size", 1);
+
+        Assert.assertEquals(Integer.valueOf(1), handle.get());
+
+        Settings.putPermanentOverrides(OVERRIDES_NAME, overrides("42"));
+        Assert.assertEquals(Integer.valueOf(42), handle.get());
+
+        Settings.removePermanentOverrides(OVERRIDES_NAME);
+        Assert.assertEquals(Integer.valueOf(1), handle.get());
+    }
+
+    @Test
+    public void testHandleThreadOverride() {
+        Settings.Handle<String> handle = Settings.handle(String.class, "settingsTest/nested/size", "default");
+
+        Settings.setOverride("settingsTest/nested/size", "thread");
+        Assert.assertEquals("thread", handle.get());
+    }
+
+    @Test
+    public void testHandleChangeListener() {
+        Settings.Handle<Integer> handle = Settings.handle(int.class, "settingsTest/nested/size", 1);
+        List<Integer> changes = new ArrayList<Integer>();
+        Consumer<Integer> listener = changes::add;
+
+        handle.addChangeListener(listener);
+
+        Settings.putPermanentOverrides(OVERRIDES_NAME, overrides("2"));
+        Settings.putPermanentOverrides(OVERRIDES_NAME, overrides("2"));
+        Settings.putPermanentOverrides(OVERRIDES_NAME, overrides("3"));
+
+        handle.removeChangeListener(listener);
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals(Integer.valueOf(2), changes.get(0));
+        Assert.assertEquals(Integer.valueOf(3), changes.get(1));
+    }
+
+    private Map<String, Object> overrides(String size) {
+        Map<String, Object> nested = new HashMap<String, Object>();
+        Map<String, Object> root = new HashMap<String, Object>();
+        Map<String, Object> overrides = new HashMap<String, Object>();
+
+        nested.put("size", size);
+        root.put("nested", nested);
+        overrides.put("settingsTest", root);
+        return overrides;
+    }
+}